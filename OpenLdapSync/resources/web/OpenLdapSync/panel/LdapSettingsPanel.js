@@ -426,6 +426,28 @@ Ext4.define('OpenLdapSync.panel.LdapSettingsPanel', {
                 fieldLabel: 'Sync Frequency (Hours)',
                 minValue: 0,
                 allowDecimals: false
+            },{
+                xtype: 'checkbox',
+                labelWidth: 170,
+                fieldLabel: 'Incremental Sync?',
+                name: 'incrementalSync',
+                helpPopup: 'If checked, scheduled syncs will only read users and groups that changed since the previous sync. Users removed from LDAP are only detected by a full sync, which runs at the frequency below.'
+            },{
+                xtype: 'textfield',
+                labelWidth: 170,
+                width: 400,
+                fieldLabel: 'Change Attribute',
+                name: 'changeAttribute',
+                helpPopup: 'The attribute used to find changed entries. This is usually modifyTimestamp, entryCSN (OpenLDAP) or uSNChanged (Active Directory).'
+            },{
+                xtype: 'numberfield',
+                name: 'fullSyncFrequency',
+                labelWidth: 170,
+                width: 400,
+                fieldLabel: 'Full Sync Frequency (Hours)',
+                helpPopup: 'When incremental sync is enabled, a full sync will run if the last one was longer ago than this.',
+                minValue: 0,
+                allowDecimals: false
             },{
                 layout: 'hbox',
                 style: 'margin-top: 20px',
@@ -68,6 +68,9 @@ public ApiResponse execute(InitiateLdapSyncForm form, BindException errors) thro
                 if (form.isForPreview())
                     runner.setPreviewOnly(true);
 
+                if (form.isFullSync())
+                    runner.setForceFullSync(true);
+
                 runner.doSync();
 
                 Map<String, Object> result = new HashMap<>();
@@ -87,6 +90,7 @@ public ApiResponse execute(InitiateLdapSyncForm form, BindException errors) thro
     public static class InitiateLdapSyncForm
     {
         private boolean _forPreview = false;
+        private boolean _fullSync = false;
 
         public boolean isForPreview()
         {
@@ -97,6 +101,16 @@ public void setForPreview(boolean forPreview)
         {
             _forPreview = forPreview;
         }
+
+        public boolean isFullSync()
+        {
+            return _fullSync;
+        }
+
+        public void setFullSync(boolean fullSync)
+        {
+            _fullSync = fullSync;
+        }
     }
 
     @RequiresPermission(AdminPermission.class)
@@ -179,6 +193,9 @@ public static class LdapForm {
         private boolean _enabled;
         private Integer _frequency;
         private String _syncMode;
+        private Boolean _incrementalSync;
+        private String _changeAttribute;
+        private Integer _fullSyncFrequency;
         private String _labkeyAdminEmail;
 
         private JSONArray _allowedDn;
@@ -453,6 +470,36 @@ public void setFrequency(Integer frequency)
             _frequency = frequency;
         }
 
+        public Boolean isIncrementalSync()
+        {
+            return _incrementalSync;
+        }
+
+        public void setIncrementalSync(Boolean incrementalSync)
+        {
+            _incrementalSync = incrementalSync;
+        }
+
+        public String getChangeAttribute()
+        {
+            return _changeAttribute;
+        }
+
+        public void setChangeAttribute(String changeAttribute)
+        {
+            _changeAttribute = changeAttribute;
+        }
+
+        public Integer getFullSyncFrequency()
+        {
+            return _fullSyncFrequency;
+        }
+
+        public void setFullSyncFrequency(Integer fullSyncFrequency)
+        {
+            _fullSyncFrequency = fullSyncFrequency;
+        }
+
         public String getLabkeyAdminEmail()
         {
             return _labkeyAdminEmail;
@@ -668,6 +715,15 @@ public ApiResponse execute(LdapForm form, BindException errors)
             if (form.getSyncMode() != null)
                 props.put(LdapSettings.SYNC_MODE_PROP, form.getSyncMode());
 
+            if (form.isIncrementalSync() != null)
+                props.put(LdapSettings.INCREMENTAL_SYNC_PROP, form.isIncrementalSync().toString());
+
+            if (form.getChangeAttribute() != null)
+                props.put(LdapSettings.CHANGE_ATTRIBUTE_PROP, form.getChangeAttribute());
+
+            if (form.getFullSyncFrequency() != null)
+                props.put(LdapSettings.FULL_SYNC_FREQUENCY_PROP, form.getFullSyncFrequency().toString());
+
             if (form.getAllowedDn() != null && form.getAllowedDn().length() > 0)
             {
                 String allowed = StringUtils.join(form.getAllowedDn().toList(), LdapSettings.DELIM);
@@ -1,28 +1,44 @@
 package org.labkey.openldapsync.ldap;
 
-import org.apache.commons.lang3.StringUtils;
-import org.apache.directory.api.ldap.model.cursor.EntryCursor;
+import org.apache.commons.collections4.ListUtils;
 import org.apache.directory.api.ldap.model.cursor.SearchCursor;
 import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.Entry;
+import org.apache.directory.api.ldap.model.entry.Value;
 import org.apache.directory.api.ldap.model.exception.LdapException;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidDnException;
+import org.apache.directory.api.ldap.model.filter.FilterEncoder;
+import org.apache.directory.api.ldap.model.message.ResultCodeEnum;
+import org.apache.directory.api.ldap.model.message.SearchRequest;
 import org.apache.directory.api.ldap.model.message.SearchRequestImpl;
+import org.apache.directory.api.ldap.model.message.SearchResultDone;
 import org.apache.directory.api.ldap.model.message.SearchScope;
+import org.apache.directory.api.ldap.model.message.controls.PagedResults;
+import org.apache.directory.api.ldap.model.message.controls.PagedResultsImpl;
 import org.apache.directory.api.ldap.model.name.Dn;
 import org.apache.directory.api.ldap.model.name.Rdn;
 import org.apache.directory.ldap.client.api.DefaultPoolableLdapConnectionFactory;
 import org.apache.directory.ldap.client.api.LdapConnection;
 import org.apache.directory.ldap.client.api.LdapConnectionConfig;
+import org.apache.directory.ldap.client.api.LdapConnectionPool;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * User: bimber
@@ -38,6 +54,20 @@
     private static final Logger _log = LogManager.getLogger(LdapConnectionWrapper.class);
     private boolean doLog = false;
 
+    //the page size requested using the RFC 2696 paged results control
+    private static final int PAGE_SIZE = 500;
+
+    //the max number of (uid=..) terms combined into one filter when resolving group members
+    private static final int MAX_FILTER_TERMS = 100;
+
+    //the max number of concurrent searches, each using its own pooled connection
+    private static final int MAX_THREADS = 4;
+
+    private LdapConnectionPool _connectionPool = null;
+
+    //member terms (uid=x or cn=x) resolved to users, shared by all groups resolved through this wrapper
+    private final Map<String, List<LdapEntry>> _memberCache = new ConcurrentHashMap<>();
+
     public LdapConnectionWrapper() throws LdapException
     {
         init();
@@ -78,6 +108,12 @@ private void ensureConnected() throws LdapException
 
     public void disconnect() throws LdapException
     {
+        if (_connectionPool != null)
+        {
+            _connectionPool.close();
+            _connectionPool = null;
+        }
+
         if (_connection != null)
         {
             try
@@ -112,6 +148,18 @@ private LdapConnection getConnection() throws LdapException
         }
     }
 
+    private synchronized LdapConnectionPool getConnectionPool()
+    {
+        if (_connectionPool == null)
+        {
+            _connectionPool = new LdapConnectionPool(_pool);
+            _connectionPool.setMaxTotal(MAX_THREADS);
+            _connectionPool.setTestOnBorrow(true);
+        }
+
+        return _connectionPool;
+    }
+
     private void possiblyLog(String msg)
     {
         if (doLog)
@@ -157,110 +205,173 @@ public boolean isMemberOfSupported() throws LdapException
 
     public List<LdapEntry> getGroupMembers(String dn) throws LdapException
     {
-        return isMemberOfSupported() ? getGroupMembersUsingMemberOf(dn) : getGroupMembersWithoutMemberOf(dn);
+        return getGroupMembers(List.of(dn)).get(dn);
     }
 
-    private List<LdapEntry> getGroupMembersUsingMemberOf(String dn) throws LdapException
+    /**
+     * Resolves the members of each group, running the searches in parallel over pooled connections.
+     * @return A map of group DN to members, in the same order as the input
+     */
+    public Map<String, List<LdapEntry>> getGroupMembers(Collection<String> dns) throws LdapException
     {
         ensureConnected();
 
-        try
+        List<String> groupDns = new ArrayList<>(new LinkedHashSet<>(dns));
+        List<List<LdapEntry>> members;
+        if (isMemberOfSupported())
         {
-            try (EntryCursor cursor = _connection.search(_settings.getCompleteUserSearchString(), _settings.getCompleteGroupMemberFilterString(dn), SearchScope.SUBTREE, "*"))
-            {
-                List<LdapEntry> users = new ArrayList<>();
-                while (cursor.next())
-                {
-                    Entry entry = cursor.get();
-                    users.add(new LdapEntry(entry, _settings));
-                }
+            members = runInParallel(groupDns, this::getGroupMembersUsingMemberOf);
+        }
+        else
+        {
+            members = getGroupMembersWithoutMemberOf(groupDns);
+        }
 
-                return users;
-            }
+        Map<String, List<LdapEntry>> ret = new LinkedHashMap<>();
+        for (int i = 0; i < groupDns.size(); i++)
+        {
+            ret.put(groupDns.get(i), members.get(i));
         }
-        catch (Exception e)
+
+        return ret;
+    }
+
+    private List<LdapEntry> getGroupMembersUsingMemberOf(LdapConnection connection, String dn) throws LdapException
+    {
+        List<LdapEntry> users = new ArrayList<>();
+        for (Entry entry : search(connection, new Dn(_settings.getCompleteUserSearchString()), _settings.getCompleteGroupMemberFilterString(dn), SearchScope.SUBTREE))
         {
-            throw new LdapException(e);
+            users.add(new LdapEntry(entry, _settings));
         }
+
+        return users;
     }
 
     /**
      * Gets the group members using the memberUid attribute.
      * This method is necessary if the LDAP server has no memberOf group overlay, and so instead we need to iterate
-     * through what the LDAP search returns and find the memberUid attribute (which are the users) in each group
+     * through what the LDAP search returns and find the memberUid attribute (which are the users) in each group.
+     * Members are resolved in batches, and each is only resolved once even if it belongs to several groups.
      */
-    public List<LdapEntry> getGroupMembersWithoutMemberOf(String dn) throws LdapException
+    private List<List<LdapEntry>> getGroupMembersWithoutMemberOf(List<String> groupDns) throws LdapException
     {
-        String filter = "(objectclass=" + _settings.getGroupObjectClass() + ")";
-        try (EntryCursor cursor = _connection.search(new Dn(dn), filter, SearchScope.SUBTREE, "member", "memberUid"))
+        List<Set<String>> termsByGroup = runInParallel(groupDns, this::getMemberTerms);
+
+        Set<String> unresolved = new LinkedHashSet<>();
+        termsByGroup.forEach(terms -> terms.stream().filter(t -> !_memberCache.containsKey(t)).forEach(unresolved::add));
+        if (!unresolved.isEmpty())
         {
-            List<LdapEntry> users = new ArrayList<>();
-            Set<String> userIds = new HashSet<>();
+            possiblyLog("LDAP resolving " + unresolved.size() + " group members");
+            runInParallel(ListUtils.partition(new ArrayList<>(unresolved), MAX_FILTER_TERMS), this::resolveMemberTerms);
+        }
 
-            //iterate through the results from LDAP and gather userIds
-            while (cursor.next())
+        List<List<LdapEntry>> ret = new ArrayList<>();
+        for (Set<String> terms : termsByGroup)
+        {
+            Map<String, LdapEntry> users = new LinkedHashMap<>();
+            for (String term : terms)
             {
-                Entry group = cursor.get();
-                Iterator<Attribute> attributeIterator = group.getAttributes().iterator();
+                _memberCache.getOrDefault(term, List.of()).forEach(u -> users.putIfAbsent(u.getDn().getName(), u));
+            }
 
-                while (attributeIterator.hasNext())
+            ret.add(new ArrayList<>(users.values()));
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return The members of this group, as terms of the form attribute=value
+     */
+    private Set<String> getMemberTerms(LdapConnection connection, String dn) throws LdapException
+    {
+        String filter = "(objectclass=" + _settings.getGroupObjectClass() + ")";
+        Set<String> terms = new LinkedHashSet<>();
+
+        //iterate through the results from LDAP and gather userIds
+        for (Entry group : search(connection, new Dn(dn), filter, SearchScope.SUBTREE, "member", "memberUid"))
+        {
+            Iterator<Attribute> attributeIterator = group.getAttributes().iterator();
+
+            while (attributeIterator.hasNext())
+            {
+                Attribute a = attributeIterator.next();
+                if ("memberUid".equalsIgnoreCase(a.getId()))
                 {
-                    Attribute a = attributeIterator.next();
-                    if ("memberUid".equalsIgnoreCase(a.getId()))
-                    {
-                        a.forEach((val) -> {
-                            userIds.add("(uid=" + val + ")");
-                        });
+                    a.forEach((val) -> {
+                        terms.add("uid=" + val);
+                    });
 
-                    }
-                    else if ("member".equalsIgnoreCase(a.getId()))
-                    {
-                        a.forEach((val) -> {
-                            try
-                            {
-                                Rdn rdn = new Dn(val.toString()).getRdn();
-                                if (!"cn".equalsIgnoreCase(rdn.getType()))
-                                {
-                                    _log.error("Member attribute was not CN: " + val + ".  was: " + rdn.getType());
-                                    return;
-                                }
-
-                                userIds.add("(" + rdn.getName() + ")");
-                            }
-                            catch (LdapInvalidDnException e)
+                }
+                else if ("member".equalsIgnoreCase(a.getId()))
+                {
+                    a.forEach((val) -> {
+                        try
+                        {
+                            Rdn rdn = new Dn(val.toString()).getRdn();
+                            if (!"cn".equalsIgnoreCase(rdn.getType()))
                             {
-                                _log.error("Invalid DN for member attribute: " + val);
+                                _log.error("Member attribute was not CN: " + val + ".  was: " + rdn.getType());
+                                return;
                             }
 
-                        });
-                    }
-                    else
-                    {
-                        _log.error("Unknown attribute: " + a.getId());
-                        continue;
-                    }
+                            terms.add("cn=" + rdn.getValue());
+                        }
+                        catch (LdapInvalidDnException e)
+                        {
+                            _log.error("Invalid DN for member attribute: " + val);
+                        }
+
+                    });
+                }
+                else
+                {
+                    _log.error("Unknown attribute: " + a.getId());
                 }
             }
+        }
 
-            if (!userIds.isEmpty())
+        return terms;
+    }
+
+    private Void resolveMemberTerms(LdapConnection connection, List<String> terms) throws LdapException
+    {
+        StringBuilder filterUsers = new StringBuilder("(|");
+        for (String term : terms)
+        {
+            String[] tokens = term.split("=", 2);
+            filterUsers.append("(").append(tokens[0]).append("=").append(FilterEncoder.encodeFilterValue(tokens[1])).append(")");
+        }
+        filterUsers.append(")");
+
+        String userFilter = _settings.getCompleteUserFilterString(filterUsers.toString());
+        List<Entry> entries = search(connection, new Dn(_settings.getCompleteUserSearchString()), userFilter, SearchScope.SUBTREE);
+
+        for (String term : terms)
+        {
+            String[] tokens = term.split("=", 2);
+            List<LdapEntry> users = new ArrayList<>();
+            for (Entry entry : entries)
             {
-                String filterUsers = "(|".concat(StringUtils.join(userIds, "")).concat(")");
-                String userFilter = _settings.getCompleteUserFilterString(filterUsers);
-                try (EntryCursor LDAPUserEntry = _connection.search(_settings.getCompleteUserSearchString(), userFilter, SearchScope.SUBTREE, "*"))
+                Attribute a = entry.get(tokens[0]);
+                if (a != null)
                 {
-                    while (LDAPUserEntry.next())
+                    for (Value val : a)
                     {
-                        users.add(new LdapEntry(LDAPUserEntry.get(), _settings));
+                        if (tokens[1].equalsIgnoreCase(val.getString()))
+                        {
+                            users.add(new LdapEntry(entry, _settings));
+                            break;
+                        }
                     }
                 }
             }
 
-            return users;
-        }
-        catch (Exception e)
-        {
-            throw new LdapException(e);
+            //NOTE: cache misses as well, so users outside the search base are not searched for again
+            _memberCache.put(term, users);
         }
+
+        return null;
     }
 
     public LdapEntry getGroup(String dn) throws LdapException
@@ -273,21 +384,13 @@ private LdapEntry getEntry(String dn, String filter) throws LdapException
         ensureConnected();
 
         possiblyLog("LDAP getEntry: from " + dn + ", filter: " + filter);
-        try (EntryCursor cursor = _connection.search(dn, filter, SearchScope.OBJECT, "*"))
-        {
-            while (cursor.next())
-            {
-                Entry entry = cursor.get();
-                if (entry != null)
-                    return new LdapEntry(entry, _settings);
-            }
-
-            return null;
-        }
-        catch (Exception e)
+        for (Entry entry : search(_connection, new Dn(dn), filter, SearchScope.OBJECT))
         {
-            throw new LdapException(e);
+            if (entry != null)
+                return new LdapEntry(entry, _settings);
         }
+
+        return null;
     }
 
     /**
@@ -309,6 +412,17 @@ public List<LdapEntry> listAllUsers() throws LdapException
         return getChildren(new Dn(_settings.getCompleteUserSearchString()), _settings.getCompleteUserFilterString(), _settings.getUserObjectClass());
     }
 
+    /**
+     * List the users whose change attribute (modifyTimestamp, entryCSN or uSNChanged) is at or after the provided value
+     */
+    public List<LdapEntry> listUsersChangedSince(String highWaterMark) throws LdapException
+    {
+        ensureConnected();
+
+        String changeFilter = "(" + _settings.getChangeAttribute() + ">=" + FilterEncoder.encodeFilterValue(highWaterMark) + ")";
+        return getChildren(new Dn(_settings.getCompleteUserSearchString()), _settings.getCompleteUserFilterString(changeFilter), _settings.getUserObjectClass());
+    }
+
     private List<LdapEntry> getChildren(Dn dn, String filter, String objectClass) throws LdapException
     {
         return getChildren(dn, filter, objectClass, new HashSet<>());
@@ -319,25 +433,87 @@ private List<LdapEntry> getChildren(Dn dn, String filter, String expectedObjectC
         List<LdapEntry> entries = new ArrayList<>();
 
         possiblyLog("LDAP getChildren: from " + dn + ", filter: " + filter);
-        try (EntryCursor cursor = _connection.search(dn, filter, SearchScope.SUBTREE, "*"))
+        for (Entry entry : search(_connection, dn, filter, SearchScope.SUBTREE))
         {
-            while (cursor.next())
+            if (entry.hasObjectClass(expectedObjectClass))
             {
-                Entry entry = cursor.get();
+                entries.add(new LdapEntry(entry, _settings));
+            }
 
-                if (entry.hasObjectClass(expectedObjectClass))
-                {
-                    entries.add(new LdapEntry(entry, _settings));
-                }
+            String key = entry.getDn().getName();
+            if (encountered.contains(key))
+            {
+                _log.info("previously encountered: " + key);
+                continue;
+            }
+            encountered.add(entry.getDn().getName());
+        }
+
+        return entries;
+    }
 
-                String key = entry.getDn().getName();
-                if (encountered.contains(key))
+    /**
+     * Searches using the paged results control, so large result sets are not truncated by the server's size limit.
+     * Servers that do not support paging ignore the control and return all results at once.
+     * If no attributes are provided, all user attributes and the change attribute are returned.
+     */
+    private List<Entry> search(LdapConnection connection, Dn dn, String filter, SearchScope scope, String... attributes) throws LdapException
+    {
+        if (attributes.length == 0)
+        {
+            attributes = new String[]{"*", _settings.getChangeAttribute()};
+        }
+
+        List<Entry> entries = new ArrayList<>();
+        byte[] cookie = null;
+        try
+        {
+            do
+            {
+                SearchRequest sr = new SearchRequestImpl();
+                sr.setBase(dn);
+                sr.setFilter(filter);
+                sr.setScope(scope);
+                sr.addAttributes(attributes);
+
+                PagedResults paging = new PagedResultsImpl();
+                paging.setSize(PAGE_SIZE);
+                paging.setCookie(cookie);
+                sr.addControl(paging);
+
+                cookie = null;
+                try (SearchCursor cursor = connection.search(sr))
                 {
-                    _log.info("previously encountered: " + key);
-                    continue;
+                    while (cursor.next())
+                    {
+                        if (cursor.isEntry())
+                        {
+                            entries.add(cursor.getEntry());
+                        }
+                    }
+
+                    SearchResultDone done = cursor.getSearchResultDone();
+                    if (done != null)
+                    {
+                        ResultCodeEnum resultCode = done.getLdapResult().getResultCode();
+                        if (resultCode != ResultCodeEnum.SUCCESS)
+                        {
+                            throw new LdapException("LDAP search of " + dn + " failed with: " + resultCode + ", filter: " + filter);
+                        }
+
+                        PagedResults response = (PagedResults)done.getControl(PagedResults.OID);
+                        if (response != null)
+                        {
+                            cookie = response.getCookie();
+                        }
+                    }
                 }
-                encountered.add(entry.getDn().getName());
             }
+            while (cookie != null && cookie.length > 0);
+        }
+        catch (LdapException e)
+        {
+            throw e;
         }
         catch (Exception e)
         {
@@ -347,6 +523,70 @@ private List<LdapEntry> getChildren(Dn dn, String filter, String expectedObjectC
         return entries;
     }
 
+    private interface ConnectionTask<K, V>
+    {
+        V run(LdapConnection connection, K key) throws LdapException;
+    }
+
+    /**
+     * Runs the task for each key, each on a connection borrowed from the pool.
+     * @return The results, in the same order as the keys
+     */
+    private <K, V> List<V> runInParallel(List<K> keys, ConnectionTask<K, V> task) throws LdapException
+    {
+        List<V> ret = new ArrayList<>();
+        if (keys.size() == 1)
+        {
+            ret.add(task.run(_connection, keys.get(0)));
+            return ret;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(MAX_THREADS, keys.size())));
+        try
+        {
+            List<Future<V>> futures = new ArrayList<>();
+            for (K key : keys)
+            {
+                futures.add(executor.submit(() -> {
+                    LdapConnection connection = getConnectionPool().getConnection();
+                    try
+                    {
+                        return task.run(connection, key);
+                    }
+                    finally
+                    {
+                        getConnectionPool().releaseConnection(connection);
+                    }
+                }));
+            }
+
+            for (Future<V> f : futures)
+            {
+                ret.add(f.get());
+            }
+
+            return ret;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new LdapException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof LdapException le)
+            {
+                throw le;
+            }
+
+            throw new LdapException(e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
     public String getProviderName()
     {
         return _cfg.getLdapHost();
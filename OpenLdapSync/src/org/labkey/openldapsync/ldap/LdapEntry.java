@@ -1,5 +1,6 @@
 package org.labkey.openldapsync.ldap;
 
+import org.apache.commons.lang3.math.NumberUtils;
 import org.apache.directory.api.ldap.model.entry.Attribute;
 import org.apache.directory.api.ldap.model.entry.Entry;
 import org.apache.directory.api.ldap.model.exception.LdapInvalidAttributeValueException;
@@ -114,6 +115,35 @@ public String getUID()
         return getAttribute(_settings.getUIDMapping());
     }
 
+    /**
+     * @return The value of the configured change attribute (modifyTimestamp, entryCSN or uSNChanged), if the server returned it
+     */
+    public String getChangeValue()
+    {
+        return getAttribute(_settings.getChangeAttribute());
+    }
+
+    public boolean isChangedSince(String highWaterMark)
+    {
+        String value = getChangeValue();
+
+        //if the server did not return the attribute, assume this entry changed
+        return highWaterMark == null || value == null || compareChangeValues(value, highWaterMark) >= 0;
+    }
+
+    /**
+     * uSNChanged is numeric, while modifyTimestamp and entryCSN sort correctly as strings
+     */
+    public static int compareChangeValues(String value1, String value2)
+    {
+        if (NumberUtils.isDigits(value1) && NumberUtils.isDigits(value2))
+        {
+            return Long.compare(Long.parseLong(value1), Long.parseLong(value2));
+        }
+
+        return value1.compareTo(value2);
+    }
+
     public String getIM() throws LdapInvalidAttributeValueException
     {
         try
@@ -26,6 +26,7 @@
 {
     public static final String PROPERTY_CATEGORY = "ldk.ldapConfig";
     public static final String PROPERTY_CATEGORY_ENCRYPTED = "ldk.ldapConfigEncrypted";
+    public static final String SYNC_STATE_CATEGORY = "ldk.ldapSyncState";
 
     public static final String BASE_SEARCH_PROP = "baseSearchString";
     public static final String GROUP_SEARCH_PROP = "groupSearchString";
@@ -58,6 +59,9 @@
     public static final String ENABLED_PROP = "enabled";
     public static final String FREQUENCY_PROP = "frequency";
     public static final String SYNC_MODE_PROP = "syncMode";
+    public static final String INCREMENTAL_SYNC_PROP = "incrementalSync";
+    public static final String CHANGE_ATTRIBUTE_PROP = "changeAttribute";
+    public static final String FULL_SYNC_FREQUENCY_PROP = "fullSyncFrequency";
 
     public static final String ALLOWED_DN_PROP = "allowedDn";
 
@@ -77,6 +81,14 @@
     public static final String DEFAULT_UID_VAL = "userPrincipalName";
     public static final String DEFAULT_USERCLASS_VAL = "user";
     public static final String DEFAULT_GROUPCLASS_VAL = "group";
+    public static final String DEFAULT_CHANGE_ATTRIBUTE_VAL = "modifyTimestamp";
+    public static final int DEFAULT_FULL_SYNC_FREQUENCY_VAL = 24;
+
+    //these are stored separately from the settings, since they are written by each sync
+    public static final String HIGH_WATER_MARK_STATE = "highWaterMark";
+    public static final String LAST_FULL_SYNC_STATE = "lastFullSync";
+    public static final String PROVIDER_STATE = "provider";
+    public static final String CHANGE_ATTRIBUTE_STATE = "changeAttribute";
 
     public static final String DELIM = "<>";
 
@@ -125,6 +137,9 @@ public static void setLdapSettings(Map<String, String> props, Map<String, String
         encryptedWritableProps.putAll(encryptedProps);
         encryptedWritableProps.save();
 
+        //the search or filter strings may have changed, so the next sync should not be incremental
+        clearSyncState();
+
         LdapScheduler.get().onSettingsChange();
     }
 
@@ -148,6 +163,10 @@ else if (key.equals(FREQUENCY_PROP) && StringUtils.trimToNull(map.get(key)) != n
             {
                 ret.put(key, Integer.parseInt(map.get(key)));
             }
+            else if (key.equals(FULL_SYNC_FREQUENCY_PROP) && StringUtils.trimToNull(map.get(key)) != null)
+            {
+                ret.put(key, Integer.parseInt(map.get(key)));
+            }
             else if (key.equals(PORT_PROP) && StringUtils.trimToNull(map.get(key)) != null)
             {
                 ret.put(key, Integer.parseInt(map.get(key)));
@@ -203,6 +222,12 @@ else if (key.equals(USE_SSL_PROP) && StringUtils.trimToNull(map.get(key)) != nul
         if (isMissingOrEmpty(ret, MEMBER_SYNC_PROP))
             ret.put(MEMBER_SYNC_PROP, MemberSyncMode.noAction.name());
 
+        if (isMissingOrEmpty(ret, CHANGE_ATTRIBUTE_PROP))
+            ret.put(CHANGE_ATTRIBUTE_PROP, DEFAULT_CHANGE_ATTRIBUTE_VAL);
+
+        if (!ret.containsKey(FULL_SYNC_FREQUENCY_PROP))
+            ret.put(FULL_SYNC_FREQUENCY_PROP, DEFAULT_FULL_SYNC_FREQUENCY_VAL);
+
         return ret;
     }
 
@@ -464,6 +489,50 @@ public Integer getFrequency()
         return _settings.get(FREQUENCY_PROP) == null ? null : (Integer)_settings.get(FREQUENCY_PROP);
     }
 
+    /**
+     * If true, syncs only read the users and groups changed since the last sync, based on the change attribute.
+     * A full sync is still run at the full sync frequency, which is the only time users removed from LDAP are detected.
+     */
+    public boolean isIncrementalSync()
+    {
+        return "true".equals(String.valueOf(_settings.get(INCREMENTAL_SYNC_PROP)));
+    }
+
+    /**
+     * The attribute used to find changed entries.  This is usually modifyTimestamp, entryCSN (OpenLDAP) or uSNChanged (Active Directory).
+     */
+    public String getChangeAttribute()
+    {
+        return (String)_settings.get(CHANGE_ATTRIBUTE_PROP);
+    }
+
+    /**
+     * The maximum number of hours between full syncs when incremental sync is enabled
+     */
+    public Integer getFullSyncFrequency()
+    {
+        return _settings.get(FULL_SYNC_FREQUENCY_PROP) == null ? null : (Integer)_settings.get(FULL_SYNC_FREQUENCY_PROP);
+    }
+
+    public static Map<String, String> getSyncState()
+    {
+        return PropertyManager.getProperties(SYNC_STATE_CATEGORY);
+    }
+
+    public static void saveSyncState(Map<String, String> state)
+    {
+        WritablePropertyMap writableProps = PropertyManager.getWritableProperties(SYNC_STATE_CATEGORY, true);
+        writableProps.clear();
+
+        writableProps.putAll(state);
+        writableProps.save();
+    }
+
+    public static void clearSyncState()
+    {
+        saveSyncState(Collections.emptyMap());
+    }
+
     /**
      * Provides a brief sanity check of the settings, designed to identify problems if a sync will run.
      * @throws LdapException
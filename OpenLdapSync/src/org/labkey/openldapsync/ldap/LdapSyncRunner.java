@@ -44,10 +44,13 @@
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -93,6 +96,12 @@ public class LdapSyncRunner implements Job
 
     private Container _userGroupContainer = ContainerManager.getRoot();
 
+    private boolean _forceFullSync = false;
+    private boolean _incremental = false;
+    private String _priorHighWaterMark = null;
+    private String _highWaterMark = null;
+    private final Map<String, List<LdapEntry>> _groupMembers = new HashMap<>();
+
     public LdapSyncRunner()
     {
 
@@ -142,6 +151,7 @@ protected void performSync() throws LdapException
             _wrapper.connect();
 
             initPreviouslySyncedRecords();
+            initSyncState();
 
             LdapSettings.LdapSyncMode mode = _settings.getSyncMode();
             if (LdapSettings.LdapSyncMode.usersOnly.equals(mode))
@@ -151,17 +161,28 @@ protected void performSync() throws LdapException
             }
             else if (LdapSettings.LdapSyncMode.groupWhitelist.equals(mode))
             {
-                for (String name : _settings.getGroupWhiteList())
+                List<LdapEntry> groups = findGroups(_settings.getGroupWhiteList());
+
+                //NOTE: in an incremental sync, new members are found through the groups that changed, since adding a member modifies the group
+                List<String> groupDns = groups.stream().filter(this::isChanged).map(g -> g.getDn().getName()).toList();
+                for (List<LdapEntry> users : getGroupMembers(groupDns).values())
                 {
-                    List<LdapEntry> users = _wrapper.getGroupMembers(name);
                     for (LdapEntry user : users)
                     {
                         syncUser(user);
                     }
                 }
-                handleUsersRemovedFromLdap();
 
-                syncGroupsAndMembers(_settings.getGroupWhiteList());
+                if (_incremental)
+                {
+                    syncChangedUsersPreviouslySynced();
+                }
+                else
+                {
+                    handleUsersRemovedFromLdap();
+                }
+
+                syncGroups(groups);
             }
             else if (LdapSettings.LdapSyncMode.usersAndGroups.equals(mode))
             {
@@ -178,8 +199,118 @@ else if (LdapSettings.LdapSyncMode.usersAndGroups.equals(mode))
 
         log(getSummaryText());
         updateLdapTable();
-        deactivatePrincipalsPreviouslySynced();
+
+        //NOTE: an incremental sync only sees changed entries, so this would report nearly every user
+        if (!_incremental)
+        {
+            deactivatePrincipalsPreviouslySynced();
+        }
+
         writeAuditTrail();
+        saveSyncState();
+    }
+
+    /**
+     * Determines whether this sync can be incremental: it must be enabled, a previous sync against this server must have recorded a
+     * high-water mark, and the last full sync must be more recent than the full sync frequency.
+     */
+    private void initSyncState()
+    {
+        _incremental = false;
+        _priorHighWaterMark = null;
+        _highWaterMark = null;
+
+        if (!_settings.isIncrementalSync() || _forceFullSync)
+        {
+            return;
+        }
+
+        Map<String, String> state = LdapSettings.getSyncState();
+        String highWaterMark = StringUtils.trimToNull(state.get(LdapSettings.HIGH_WATER_MARK_STATE));
+        if (highWaterMark == null || !_wrapper.getProviderName().equals(state.get(LdapSettings.PROVIDER_STATE)) || !_settings.getChangeAttribute().equals(state.get(LdapSettings.CHANGE_ATTRIBUTE_STATE)))
+        {
+            log("No prior sync with these settings, performing a full sync");
+            return;
+        }
+
+        String lastFullSync = state.get(LdapSettings.LAST_FULL_SYNC_STATE);
+        Integer fullSyncFrequency = _settings.getFullSyncFrequency();
+        if (lastFullSync == null || (fullSyncFrequency != null && System.currentTimeMillis() - Long.parseLong(lastFullSync) >= fullSyncFrequency * 3600000L))
+        {
+            log("Full sync is due, performing a full sync");
+            return;
+        }
+
+        _incremental = true;
+        _priorHighWaterMark = highWaterMark;
+        _highWaterMark = highWaterMark;
+        log("Performing an incremental sync of entries where " + _settings.getChangeAttribute() + " is at least: " + highWaterMark);
+    }
+
+    private void saveSyncState()
+    {
+        if (_previewOnly)
+            return;
+
+        Map<String, String> state = new HashMap<>(LdapSettings.getSyncState());
+        if (_highWaterMark == null)
+        {
+            if (_settings.isIncrementalSync())
+            {
+                log("WARNING: The LDAP server did not return the attribute " + _settings.getChangeAttribute() + ", so incremental sync cannot be used");
+            }
+
+            return;
+        }
+
+        state.put(LdapSettings.HIGH_WATER_MARK_STATE, _highWaterMark);
+        state.put(LdapSettings.PROVIDER_STATE, _wrapper.getProviderName());
+        state.put(LdapSettings.CHANGE_ATTRIBUTE_STATE, _settings.getChangeAttribute());
+        if (!_incremental)
+        {
+            state.put(LdapSettings.LAST_FULL_SYNC_STATE, String.valueOf(System.currentTimeMillis()));
+        }
+
+        LdapSettings.saveSyncState(state);
+    }
+
+    /**
+     * Records the highest value of the change attribute seen in this sync, which becomes the starting point of the next incremental sync.
+     * NOTE: an entry modified while this sync is running may be missed by the next incremental sync, but will be found by the next full sync.
+     */
+    private void trackChange(LdapEntry entry)
+    {
+        String value = entry.getChangeValue();
+        if (value != null && (_highWaterMark == null || LdapEntry.compareChangeValues(value, _highWaterMark) > 0))
+        {
+            _highWaterMark = value;
+        }
+    }
+
+    private boolean isChanged(LdapEntry entry)
+    {
+        return !_incremental || entry.isChangedSince(_priorHighWaterMark);
+    }
+
+    /**
+     * Resolves the members of these groups in one batch, reusing any groups already resolved by this sync
+     */
+    private Map<String, List<LdapEntry>> getGroupMembers(List<String> groupDns) throws LdapException
+    {
+        List<String> toResolve = groupDns.stream().filter(dn -> !_groupMembers.containsKey(dn)).toList();
+        if (!toResolve.isEmpty())
+        {
+            _groupMembers.putAll(_wrapper.getGroupMembers(toResolve));
+        }
+
+        Map<String, List<LdapEntry>> ret = new LinkedHashMap<>();
+        for (String dn : groupDns)
+        {
+            List<LdapEntry> members = _groupMembers.get(dn);
+            ret.put(dn, members == null ? Collections.emptyList() : members);
+        }
+
+        return ret;
     }
 
     private void log(String message)
@@ -196,9 +327,14 @@ private String getSummaryText()
     }
 
     private void syncGroupsAndMembers(List<String> included) throws LdapException
+    {
+        syncGroups(findGroups(included));
+    }
+
+    private List<LdapEntry> findGroups(List<String> included) throws LdapException
     {
         //first find groups that are included
-        Set<LdapEntry> groups = new HashSet<>();
+        Set<LdapEntry> groups = new LinkedHashSet<>();
         if (included == null)
             groups.addAll(_wrapper.listAllGroups());
         else
@@ -222,6 +358,14 @@ private void syncGroupsAndMembers(List<String> included) throws LdapException
             }
         }
 
+        return new ArrayList<>(groups);
+    }
+
+    private void syncGroups(List<LdapEntry> groups) throws LdapException
+    {
+        //resolve members of all groups that need it at once, which allows these searches to run in parallel
+        getGroupMembers(groups.stream().filter(g -> g.isEnabled() && isChanged(g)).map(g -> g.getDn().getName()).toList());
+
         for (LdapEntry group : groups)
         {
             syncGroupAndMembers(group);
@@ -232,13 +376,32 @@ private void syncGroupsAndMembers(List<String> included) throws LdapException
 
     private void syncAllUsers() throws LdapException
     {
-        List<LdapEntry> users = _wrapper.listAllUsers();
+        List<LdapEntry> users = _incremental ? _wrapper.listUsersChangedSince(_priorHighWaterMark) : _wrapper.listAllUsers();
         for (LdapEntry entry : users)
         {
             syncUser(entry);
         }
 
-        handleUsersRemovedFromLdap();
+        //NOTE: an incremental sync does not see unchanged users, so removed users can only be found by a full sync
+        if (!_incremental)
+        {
+            handleUsersRemovedFromLdap();
+        }
+    }
+
+    /**
+     * In an incremental sync of whitelisted groups, users whose attributes changed but whose groups did not are only synced if they were synced before
+     */
+    private void syncChangedUsersPreviouslySynced() throws LdapException
+    {
+        for (LdapEntry entry : _wrapper.listUsersChangedSince(_priorHighWaterMark))
+        {
+            String dn = entry.getDn().getName();
+            if (_syncedRecordMap.containsKey(dn) && !_usersSynced.containsKey(dn))
+            {
+                syncUser(entry);
+            }
+        }
     }
 
     private void handleUsersRemovedFromLdap() throws LdapException
@@ -307,6 +470,8 @@ private void handleGroupsRemovedFromLdap() throws LdapException
 
     private void syncUser(LdapEntry ldapEntry) throws LdapException
     {
+        trackChange(ldapEntry);
+
         //verify whether the user has been synced before
         User existing = UserManager.getUser(ldapEntry.getValidEmail());
         if (existing != null)
@@ -356,7 +521,9 @@ private String getNameForGroup(LdapEntry group) throws LdapException
 
     private void syncGroupAndMembers(LdapEntry group) throws LdapException
     {
+        trackChange(group);
         String groupName = getNameForGroup(group);
+        boolean created = false;
 
         Group existingGroup = null;
         Integer groupId = null;
@@ -380,6 +547,7 @@ private void syncGroupAndMembers(LdapEntry group) throws LdapException
         else if (existingGroup == null)
         {
             existingGroup = createGroup(groupName);
+            created = true;
         }
         else
         {
@@ -389,13 +557,18 @@ else if (existingGroup == null)
         if (existingGroup != null)
         {
             _groupsSynced.put(group.getDn().getName(), existingGroup.getUserId());
-            syncGroupMembership(group, existingGroup);
+
+            //NOTE: membership is stored on the group entry, so a group that has not changed since the last sync has the same members
+            if (created || isChanged(group))
+            {
+                syncGroupMembership(group, existingGroup);
+            }
         }
     }
 
     private void syncGroupMembership(LdapEntry group, Group existingGroup) throws LdapException
     {
-        List<LdapEntry> children = _wrapper.getGroupMembers(group.getDn().getName());
+        List<LdapEntry> children = getGroupMembers(List.of(group.getDn().getName())).get(group.getDn().getName());
         //NOTE: this is potentially going to include inactive users.  in this instance i dont believe that is an issue
         Set<UserPrincipal> existingMembers = SecurityManager.getAllGroupMembers(existingGroup, MemberType.ALL_GROUPS_AND_USERS);
 
@@ -438,7 +611,7 @@ else if (_settings.getMemberSyncMode().equals(LdapSettings.MemberSyncMode.remove
                         if (u.getPrincipalType().equals(PrincipalType.GROUP))
                             continue;
 
-                        if (_usersSynced.containsValue(u.getUserId()))
+                        if (isSyncedFromLdap(u))
                         {
                             deleteMember(existingGroup, u);
                         }
@@ -448,6 +621,24 @@ else if (_settings.getMemberSyncMode().equals(LdapSettings.MemberSyncMode.remove
         }
     }
 
+    private boolean isSyncedFromLdap(UserPrincipal u)
+    {
+        if (_usersSynced.containsValue(u.getUserId()))
+        {
+            return true;
+        }
+
+        //an incremental sync only visits changed users, so also check the users recorded by earlier syncs
+        return _incremental && getPreviouslySyncedRecords(PrincipalType.USER).stream().anyMatch(m -> Integer.valueOf(u.getUserId()).equals(m.getLabkeyId()));
+    }
+
+    private boolean isRecorded(String dn, Integer labkeyId)
+    {
+        LdapSyncModel model = _syncedRecordMap.get(dn);
+
+        return model != null && labkeyId.equals(model.getLabkeyId());
+    }
+
     private void updateLdapTable() throws LdapException
     {
         if (_previewOnly)
@@ -461,6 +652,10 @@ private void updateLdapTable() throws LdapException
             User u = _settings.getLabKeyAdminUser();
             for (String dn : _usersSynced.keySet())
             {
+                //skip the query for records loaded at the start of this sync
+                if (isRecorded(dn, _usersSynced.get(dn)))
+                    continue;
+
                 SimpleFilter filter = new SimpleFilter(FieldKey.fromString("provider"), provider, CompareType.EQUAL);
                 filter.addCondition(FieldKey.fromString("sourceId"), dn);
                 filter.addCondition(FieldKey.fromString("labkeyId"), _usersSynced.get(dn));
@@ -482,6 +677,9 @@ private void updateLdapTable() throws LdapException
 
             for (String dn : _groupsSynced.keySet())
             {
+                if (isRecorded(dn, _groupsSynced.get(dn)))
+                    continue;
+
                 SimpleFilter filter = new SimpleFilter(FieldKey.fromString("provider"), provider, CompareType.EQUAL);
                 filter.addCondition(FieldKey.fromString("sourceId"), dn);
                 filter.addCondition(FieldKey.fromString("labkeyId"), _groupsSynced.get(dn));
@@ -777,6 +975,14 @@ public void setPreviewOnly(boolean previewOnly)
         _previewOnly = previewOnly;
     }
 
+    /**
+     * If true, this sync reads all users and groups even if incremental sync is enabled
+     */
+    public void setForceFullSync(boolean forceFullSync)
+    {
+        _forceFullSync = forceFullSync;
+    }
+
     public List<String> getMessages()
     {
         return _messages;
@@ -1004,6 +1210,58 @@ public void testBasicSync() throws Exception
             cleanUsersAndGroups();
         }
 
+        @Test
+        public void testIncrementalSync() throws Exception
+        {
+            LdapSettings settings = new MutatableLdapSettings();
+            LdapSyncRunner runner = getRunner(settings);
+            DummyConnectionWrapper wrapper = (DummyConnectionWrapper)runner._wrapper;
+            wrapper._users.clear();
+
+            MockLdapEntry oldUser = getUserEntry(EMAIL1, settings);
+            oldUser._otherProps.put(LdapSettings.DEFAULT_CHANGE_ATTRIBUTE_VAL, "20200101000000Z");
+            wrapper.addUser(oldUser);
+
+            MockLdapEntry changedUser = getUserEntry(EMAIL2, settings);
+            changedUser._otherProps.put(LdapSettings.DEFAULT_CHANGE_ATTRIBUTE_VAL, "20200301000000Z");
+            wrapper.addUser(changedUser);
+
+            //only the user changed since the high-water mark should be read, and unchanged users are not removed
+            runner._incremental = true;
+            runner._priorHighWaterMark = "20200201000000Z";
+            runner._highWaterMark = runner._priorHighWaterMark;
+            runner.syncAllUsers();
+
+            assertEquals("Incorrect number of users added", 1, runner._usersAdded);
+            assertEquals("Incorrect number of users removed", 0, runner._usersRemoved);
+            assertTrue("Changed user not synced", runner._usersSynced.containsKey(changedUser.getDn().getName()));
+            assertFalse("Unchanged user was synced", runner._usersSynced.containsKey(oldUser.getDn().getName()));
+            assertEquals("Incorrect high-water mark", "20200301000000Z", runner._highWaterMark);
+
+            //groups new to LabKey always have their members synced
+            wrapper._groupMap.values().forEach(g -> g._otherProps.put(LdapSettings.DEFAULT_CHANGE_ATTRIBUTE_VAL, "20200101000000Z"));
+            runner.syncGroupsAndMembers(null);
+            assertEquals("Incorrect number of memberships added", 2, runner._membershipsAdded);
+
+            //existing groups that have not changed are skipped, so a membership removed on the LabKey side is not restored until the group changes
+            Group g = GroupManager.getGroup(getProject(), GROUP_NAME1, GroupEnumType.PROJECT);
+            SecurityManager.deleteMember(g, UserManager.getUser(changedUser.getValidEmail()));
+            runner.syncGroupsAndMembers(null);
+            assertEquals("Incorrect number of memberships added", 2, runner._membershipsAdded);
+
+            cleanUsersAndGroups();
+        }
+
+        @Test
+        public void testCompareChangeValues()
+        {
+            //uSNChanged values must be compared numerically
+            assertTrue(LdapEntry.compareChangeValues("1000", "999") > 0);
+            assertTrue(LdapEntry.compareChangeValues("20200101000000Z", "20200301000000Z") < 0);
+            assertTrue(LdapEntry.compareChangeValues("20200101000000.000000Z#000000#000#000000", "20200101000000.000001Z#000000#000#000000") < 0);
+            assertEquals(0, LdapEntry.compareChangeValues("20200101000000Z", "20200101000000Z"));
+        }
+
         @Test
         public void testCustomUserProperties() throws Exception
         {
@@ -1105,6 +1363,15 @@ public List<LdapEntry> getGroupMembers(String dn)
                 return _groupMemberMap.get(_groupMap.get(dn));
             }
 
+            @Override
+            public Map<String, List<LdapEntry>> getGroupMembers(Collection<String> dns)
+            {
+                Map<String, List<LdapEntry>> ret = new LinkedHashMap<>();
+                dns.forEach(dn -> ret.put(dn, getGroupMembers(dn)));
+
+                return ret;
+            }
+
             @Override
             public LdapEntry getGroup(String dn)
             {
@@ -1122,6 +1389,12 @@ public List<LdapEntry> listAllUsers()
             {
                 return _users;
             }
+
+            @Override
+            public List<LdapEntry> listUsersChangedSince(String highWaterMark)
+            {
+                return _users.stream().filter(u -> u.isChangedSince(highWaterMark)).toList();
+            }
         }
 
         private static class MockLdapEntry extends LdapEntry
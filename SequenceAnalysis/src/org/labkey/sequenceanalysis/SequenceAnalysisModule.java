@@ -60,6 +60,7 @@
 import org.labkey.sequenceanalysis.analysis.SbtGeneCountHandler;
 import org.labkey.sequenceanalysis.analysis.UnmappedSequenceBasedGenotypeHandler;
 import org.labkey.sequenceanalysis.analysis.UpdateReadsetFilesHandler;
+import org.labkey.sequenceanalysis.api.picard.CigarPositionIterable;
 import org.labkey.sequenceanalysis.button.AddSraRunButton;
 import org.labkey.sequenceanalysis.button.ArchiveReadsetsButton;
 import org.labkey.sequenceanalysis.button.ChangeReadsetStatusButton;
@@ -119,7 +120,11 @@
 import org.labkey.sequenceanalysis.run.variant.*;
 import org.labkey.sequenceanalysis.util.Barcoder;
 import org.labkey.sequenceanalysis.util.ChainFileValidator;
+import org.labkey.sequenceanalysis.util.FastqQualityScanner;
+import org.labkey.sequenceanalysis.util.GenomicRecordSorter;
+import org.labkey.sequenceanalysis.util.ReadAheadInputStream;
 import org.labkey.sequenceanalysis.util.ScatterGatherUtils;
+import org.labkey.sequenceanalysis.util.SequenceTagIndex;
 
 import java.util.Arrays;
 import java.util.Collection;
@@ -470,7 +475,12 @@ public Set<Class> getUnitTests()
                 VariantProcessingJob.TestCase.class,
                 ScatterGatherUtils.TestCase.class,
                 ChainFileValidator.TestCase.class,
-                FastqcRunner.TestCase.class
+                FastqcRunner.TestCase.class,
+                SequenceTagIndex.TestCase.class,
+                GenomicRecordSorter.TestCase.class,
+                CigarPositionIterable.TestCase.class,
+                FastqQualityScanner.TestCase.class,
+                ReadAheadInputStream.TestCase.class
         );
     }
 
@@ -471,7 +471,7 @@ private void appendParents(Set<String> distinctSubjects, PedigreeRecord p, List<
     @Override
     public String getVCFLineCount(File vcf, Logger log, boolean passOnly) throws PipelineJobException
     {
-        return passOnly ? ProcessVariantsHandler.getVCFLineCount(vcf, log, passOnly, false) : ProcessVariantsHandler.getVCFLineCount(vcf, log, passOnly, true);
+        return ProcessVariantsHandler.getVCFLineCount(vcf, log, passOnly);
     }
 
     @Override
@@ -1,6 +1,7 @@
 package org.labkey.sequenceanalysis.analysis;
 
 import au.com.bytecode.opencsv.CSVWriter;
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.filter.DuplicateReadFilter;
 import org.apache.commons.lang3.StringUtils;
 import org.json.JSONObject;
@@ -15,6 +16,7 @@
 import org.labkey.api.sequenceanalysis.model.Readset;
 import org.labkey.api.sequenceanalysis.pipeline.AbstractParameterizedOutputHandler;
 import org.labkey.api.sequenceanalysis.pipeline.ReferenceGenome;
+import org.labkey.api.sequenceanalysis.pipeline.SamSorter;
 import org.labkey.api.sequenceanalysis.pipeline.SequenceAnalysisJobSupport;
 import org.labkey.api.sequenceanalysis.pipeline.SequenceOutputHandler;
 import org.labkey.api.util.Compress;
@@ -167,6 +169,7 @@ public void processFilesRemote(List<SequenceOutputFile> inputFiles, JobContext c
             Set<Integer> distinctGenomes = new HashSet<>();
             for (SequenceOutputFile so : inputFiles)
             {
+                SequenceBasedTypingAlignmentAggregator agg = null;
                 try
                 {
                     j++;
@@ -192,7 +195,14 @@ public void processFilesRemote(List<SequenceOutputFile> inputFiles, JobContext c
                     job.getLogger().info("\tCalculation complete");
 
                     job.getLogger().info("Inspecting alignments in BAM");
-                    BamIterator bi = new BamIterator(so.getFile(), rg.getWorkingFastaFile(), job.getLogger());
+
+                    //NOTE: in low memory mode, the aggregator requires all alignments of a read to be adjacent
+                    File queryNameSortedBam = null;
+                    if (params.optBoolean("queryNameGrouped", false))
+                    {
+                        job.getLogger().info("Sorting BAM by read name");
+                        queryNameSortedBam = new SamSorter(job.getLogger()).execute(so.getFile(), new File(ctx.getOutputDir(), FileUtil.getBaseName(so.getFile()) + ".queryname.bam"), SAMFileHeader.SortOrder.queryname);
+                    }
 
                     List<AlignmentAggregator> aggregators = new ArrayList<>();
                     Map<String, String> toolParams = new HashMap<>();
@@ -202,7 +212,7 @@ public void processFilesRemote(List<SequenceOutputFile> inputFiles, JobContext c
                             toolParams.put(param, params.get(param).toString());
                     }
 
-                    SequenceBasedTypingAlignmentAggregator agg = new SequenceBasedTypingAlignmentAggregator(job.getLogger(), rg.getWorkingFastaFile(), avgBaseQualityAggregator, toolParams);
+                    agg = new SequenceBasedTypingAlignmentAggregator(job.getLogger(), rg.getWorkingFastaFile(), avgBaseQualityAggregator, toolParams);
                     agg.setDoTrackIntervals(true);
 
                     File lineageMapFile = new File(ctx.getSourceDirectory(), rg.getGenomeId() + "_lineageMap.txt");
@@ -237,8 +247,19 @@ public void processFilesRemote(List<SequenceOutputFile> inputFiles, JobContext c
                         minAlignmentLength = params.getInt("minAlignmentLength");
                     }
 
-                    bi.addAggregators(aggregators);
-                    bi.iterateReads();
+                    try
+                    {
+                        BamIterator bi = new BamIterator(queryNameSortedBam == null ? so.getFile() : queryNameSortedBam, rg.getWorkingFastaFile(), job.getLogger());
+                        bi.addAggregators(aggregators);
+                        bi.iterateReads();
+                    }
+                    finally
+                    {
+                        if (queryNameSortedBam != null)
+                        {
+                            queryNameSortedBam.delete();
+                        }
+                    }
 
                     String prefix = String.valueOf(so.getAnalysis_id());
                     if (so.getReadset() != null)
@@ -297,7 +318,7 @@ public void processFilesRemote(List<SequenceOutputFile> inputFiles, JobContext c
                                 }
 
                                 FastqAggregate fa = uniqueReads.get(sequence);
-                                fa.addSample(so.getReadset().toString(), map.get("header").toString(), agg.getUniqueReads().size());
+                                fa.addSample(so.getReadset().toString(), map.get("header").toString(), agg.getUniqueReadCount());
                             }
                         }
                     }
@@ -366,6 +387,13 @@ public void processFilesRemote(List<SequenceOutputFile> inputFiles, JobContext c
                 {
                     throw new PipelineJobException(e);
                 }
+                finally
+                {
+                    if (agg != null)
+                    {
+                        agg.close();
+                    }
+                }
             }
 
             ctx.getLogger().info("building merged file: " + jointUnmappedCollapsed.getPath());
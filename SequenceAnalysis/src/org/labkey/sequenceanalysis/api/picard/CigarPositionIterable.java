@@ -15,13 +15,24 @@
  */
 package org.labkey.sequenceanalysis.api.picard;
 
-import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
 import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.TextCigarCodec;
 import htsjdk.samtools.util.CigarUtil;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
 import org.labkey.sequenceanalysis.run.analysis.BamIterator;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * User: bbimber
@@ -36,74 +47,181 @@
  */
 public class CigarPositionIterable implements Iterable<CigarPositionIterable.PositionInfo>
 {
+    private static final String TRANSIENT_KEY = "CigarPositionIterable";
+
     private final SAMRecord _record;
 
+    private final CigarOperator[] _ops;
+    private final int[] _readPositions;
+    private final int[] _refPositions;
+    private final int[] _lastReadPositions;
+    private final int[] _lastRefPositions;
+    private final int[] _indels;
+
     public CigarPositionIterable(SAMRecord record)
     {
         _record = record;
-    }
 
-    @Override
-    public CigarIterator iterator()
-    {
-        return new CigarIterator(this);
-    }
+        int length = 0;
+        for (CigarElement ce : record.getCigar().getCigarElements())
+        {
+            length += ce.getLength();
+        }
 
-    public class CigarIterator implements Iterator<CigarPositionIterable.PositionInfo>
-    {
-        private final SAMRecord _record;
+        _ops = new CigarOperator[length];
+        _readPositions = new int[length];
+        _refPositions = new int[length];
+        _lastReadPositions = new int[length];
+        _lastRefPositions = new int[length];
+        _indels = new int[length];
 
-        private Integer[] _readPositions;
-        private Integer[] _refPositions;
-        private char[] _explodedCigar;
-        private int _pos = 0;
+        initializeCigar();
+    }
 
-        /**
-         * Prepare to iterate the CIGAR string of this record
-         * @param iterable A CigarPositionIterable instance
-         */
-        public CigarIterator(CigarPositionIterable iterable)
+    /**
+     * Returns the CigarPositionIterable for this record, which is computed once and cached on the record, so that multiple consumers of the
+     * same read (such as the aggregators fed by BamIterator) do not each re-walk the CIGAR.
+     */
+    public static CigarPositionIterable forRecord(SAMRecord record)
+    {
+        Object cached = record.getTransientAttribute(TRANSIENT_KEY);
+        if (cached instanceof CigarPositionIterable cpi)
         {
-            _record = iterable._record;
-            initializeCigar();
+            return cpi;
         }
 
-        private void initializeCigar()
-        {
-            Cigar c = _record.getCigar();
-            _explodedCigar = CigarUtil.cigarArrayFromString(c.toString());
+        CigarPositionIterable cpi = new CigarPositionIterable(record);
+        record.setTransientAttribute(TRANSIENT_KEY, cpi);
+
+        return cpi;
+    }
 
-            int readPos = 0; //0-based
-            int refPos = _record.getAlignmentStart() - 1; //0-based
+    /**
+     * Computes the read and reference coordinates of each position in a single forward pass.  The 'last' positions and indel lengths
+     * are tracked as we go, rather than scanning backwards from each indel position.
+     */
+    private void initializeCigar()
+    {
+        int readPos = 0; //0-based
+        int refPos = _record.getAlignmentStart() - 1; //0-based
+        int lastReadIdx = -1;
+        int lastRefIdx = -1;
 
-            _readPositions = new Integer[_explodedCigar.length];
-            _refPositions = new Integer[_explodedCigar.length];
-            int i = 0;
-            for (char el : _explodedCigar)
+        int i = 0;
+        for (CigarElement ce : _record.getCigar().getCigarElements())
+        {
+            CigarOperator op = ce.getOperator();
+            for (int j = 0; j < ce.getLength(); j++)
             {
-                CigarOperator op = CigarOperator.valueOf(Character.toString(el));
-                if (op.consumesReadBases())
+                _ops[i] = op;
+                _readPositions[i] = op.consumesReadBases() ? readPos++ : -1;
+                _refPositions[i] = op.consumesReferenceBases() ? refPos++ : -1;
+
+                if (_readPositions[i] > -1)
                 {
-                    _readPositions[i] = readPos;
-                    readPos++;
+                    _lastReadPositions[i] = _readPositions[i];
+                    lastReadIdx = i;
                 }
-                else
+                else if (lastReadIdx > -1)
                 {
-                    _readPositions[i] = -1;
+                    _lastReadPositions[i] = _readPositions[lastReadIdx];
+                    _indels[i] = lastReadIdx - i;
                 }
 
-                if (op.consumesReferenceBases())
+                if (_refPositions[i] > -1)
                 {
-                    _refPositions[i] = refPos;
-                    refPos++;
+                    _lastRefPositions[i] = _refPositions[i];
+                    lastRefIdx = i;
                 }
-                else
+                else if (lastRefIdx > -1)
                 {
-                    _refPositions[i] = -1;
+                    _lastRefPositions[i] = _refPositions[lastRefIdx];
+                    _indels[i] = i - lastRefIdx;
                 }
+
                 i++;
             }
         }
+    }
+
+    /**
+     * @return The number of positions in the exploded CIGAR
+     */
+    public int size()
+    {
+        return _ops.length;
+    }
+
+    /**
+     * @return The PositionInfo for the given index of the exploded CIGAR
+     */
+    public PositionInfo getPositionInfo(int idx)
+    {
+        return new PositionInfo(idx);
+    }
+
+    //NOTE: the following methods allow callers to inspect positions by index without allocating a PositionInfo.  See PositionInfo for descriptions of each.
+
+    public int getRefPosition(int idx)
+    {
+        return _refPositions[idx];
+    }
+
+    public int getLastRefPosition(int idx)
+    {
+        return _lastRefPositions[idx];
+    }
+
+    public int getLastReadPosition(int idx)
+    {
+        return _lastReadPositions[idx];
+    }
+
+    public int getInsertIndex(int idx)
+    {
+        return Math.max(_indels[idx], 0);
+    }
+
+    public boolean isInsertion(int idx)
+    {
+        return _ops[idx] == CigarOperator.INSERTION;
+    }
+
+    public boolean isDel(int idx)
+    {
+        return _ops[idx] == CigarOperator.DELETION;
+    }
+
+    public boolean includeInSnpCount(int idx)
+    {
+        CigarOperator op = _ops[idx];
+        return op == CigarOperator.INSERTION || op == CigarOperator.DELETION || op == CigarOperator.MATCH_OR_MISMATCH || op == CigarOperator.EQ || op == CigarOperator.X;
+    }
+
+    public byte getReadBase(int idx)
+    {
+        return isDel(idx) ? BamIterator.INDEL_CHARACTER : _record.getReadBases()[_readPositions[idx]];
+    }
+
+    public byte getReferenceBase(int idx, byte[] referenceBases)
+    {
+        return isInsertion(idx) ? BamIterator.INDEL_CHARACTER : referenceBases[_refPositions[idx]];
+    }
+
+    public int getBaseQuality(int idx)
+    {
+        return _record.getBaseQualities()[_lastReadPositions[idx]];
+    }
+
+    @Override
+    public CigarIterator iterator()
+    {
+        return new CigarIterator();
+    }
+
+    public class CigarIterator implements Iterator<CigarPositionIterable.PositionInfo>
+    {
+        private int _pos = 0;
 
         @Override
         public void remove()
@@ -117,7 +235,7 @@ public void remove()
         @Override
         public boolean hasNext()
         {
-            return _pos < _readPositions.length;
+            return _pos < _ops.length;
         }
 
         /**
@@ -126,10 +244,10 @@ public boolean hasNext()
         @Override
         public PositionInfo next()
         {
-            if (_pos >= _readPositions.length)
+            if (_pos >= _ops.length)
                 return null;
 
-            PositionInfo info = new PositionInfo(_record, _pos, _explodedCigar, _readPositions, _refPositions);
+            PositionInfo info = new PositionInfo(_pos);
             _pos++;
             return info;
         }
@@ -141,57 +259,11 @@ public PositionInfo next()
      */
     public class PositionInfo
     {
-        private final SAMRecord _record;
-        private final CigarOperator _op;
         private final int _pos;
-        private final int _readPos;
-        private final int _refPos;
-        private int _indel = 0;
-
-        private int _lastReadPos;
-        private int _lastRefPos;
 
-        public PositionInfo(SAMRecord record, int pos, char[] ops, Integer[] readPos, Integer[] refPos)
+        public PositionInfo(int pos)
         {
-            _record = record;
             _pos = pos;
-            _op = CigarOperator.valueOf(Character.toString(ops[pos]));
-            _readPos = readPos[pos];
-            _refPos = refPos[pos];
-
-            if (_readPos > -1)
-                _lastReadPos = _readPos;
-            else
-            {
-                int i = _pos;
-                while (i >= 0)
-                {
-                    if (readPos[i] > -1)
-                    {
-                        _lastReadPos = readPos[i];
-                        _indel = i - _pos;
-                        break;
-                    }
-                    i--;
-                }
-            }
-
-            if (_refPos > -1)
-                _lastRefPos = _refPos;
-            else
-            {
-                int i = _pos;
-                while (i >= 0)
-                {
-                    if (refPos[i] > -1)
-                    {
-                        _lastRefPos = refPos[i];
-                        _indel = _pos - i;
-                        break;
-                    }
-                    i--;
-                }
-            }
         }
 
         /**
@@ -199,7 +271,7 @@ public PositionInfo(SAMRecord record, int pos, char[] ops, Integer[] readPos, In
          */
         public int getRefPosition()
         {
-            return _refPos;
+            return _refPositions[_pos];
         }
 
         /**
@@ -207,7 +279,7 @@ public int getRefPosition()
          */
         public int getReadPosition()
         {
-            return _readPos;
+            return _readPositions[_pos];
         }
 
         /**
@@ -217,7 +289,7 @@ public int getReadPosition()
          */
         public int getIndel()
         {
-            return _indel;
+            return _indels[_pos];
         }
 
         /**
@@ -234,7 +306,7 @@ public int getInsertIndex()
          */
         public int getLastReadPosition()
         {
-            return _lastReadPos;
+            return _lastReadPositions[_pos];
         }
 
         /**
@@ -243,7 +315,7 @@ public int getLastReadPosition()
          */
         public int getLastRefPosition()
         {
-            return _lastRefPos;
+            return _lastRefPositions[_pos];
         }
 
         /**
@@ -252,7 +324,7 @@ public int getLastRefPosition()
          */
         public byte getReferenceBase(byte[] referenceBases)
         {
-            return isInsertion() ? BamIterator.INDEL_CHARACTER : referenceBases[_refPos];
+            return CigarPositionIterable.this.getReferenceBase(_pos, referenceBases);
         }
 
         /**
@@ -260,7 +332,7 @@ public byte getReferenceBase(byte[] referenceBases)
          */
         public byte getReadBase()
         {
-            return isDel() ? BamIterator.INDEL_CHARACTER : _record.getReadBases()[_readPos];
+            return CigarPositionIterable.this.getReadBase(_pos);
         }
 
         /**
@@ -268,7 +340,7 @@ public byte getReadBase()
          */
         public boolean isSkipped()
         {
-            return _op.equals(CigarOperator.SOFT_CLIP) || _op.equals(CigarOperator.HARD_CLIP) || _op.equals(CigarOperator.SKIPPED_REGION);
+            return _ops[_pos] == CigarOperator.SOFT_CLIP || _ops[_pos] == CigarOperator.HARD_CLIP || _ops[_pos] == CigarOperator.SKIPPED_REGION;
         }
 
         /**
@@ -284,7 +356,7 @@ public boolean isIndel()
          */
         public boolean isInsertion()
         {
-            return _op.equals(CigarOperator.INSERTION);
+            return CigarPositionIterable.this.isInsertion(_pos);
         }
 
         /**
@@ -292,7 +364,7 @@ public boolean isInsertion()
          */
         public boolean isDel()
         {
-            return _op.equals(CigarOperator.DELETION);
+            return CigarPositionIterable.this.isDel(_pos);
         }
 
         /**
@@ -300,7 +372,7 @@ public boolean isDel()
          */
         public boolean overlapsReference()
         {
-            return _op.consumesReadBases() && _op.consumesReferenceBases();
+            return _ops[_pos].consumesReadBases() && _ops[_pos].consumesReferenceBases();
         }
 
         public boolean includeInSnpCount()
@@ -318,7 +390,7 @@ public String getReferenceName()
          */
         public CigarOperator getCigarOperator()
         {
-            return _op;
+            return _ops[_pos];
         }
 
         /**
@@ -334,7 +406,216 @@ public SAMRecord getRecord()
          */
         public int getBaseQuality()
         {
-            return _record.getBaseQualities()[getLastReadPosition()];
+            return CigarPositionIterable.this.getBaseQuality(_pos);
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final Logger _log = LogManager.getLogger(TestCase.class);
+
+        private static final List<String> CIGARS = Arrays.asList("150M", "5S100M2I40M3S", "50M3D50M1I45M", "20H30M200N70M", "10S60M5D30M4I46M");
+
+        @Test
+        public void testMatchesLegacyIterator()
+        {
+            for (SAMRecord rec : getRecords(1))
+            {
+                List<int[]> expected = legacyPositions(rec);
+                CigarPositionIterable cpi = new CigarPositionIterable(rec);
+                assertEquals("Incorrect length for: " + rec.getCigarString(), expected.size(), cpi.size());
+
+                int idx = 0;
+                for (PositionInfo pi : cpi)
+                {
+                    int[] actual = new int[]{pi.getCigarOperator().ordinal(), pi.getReadPosition(), pi.getRefPosition(), pi.getLastReadPosition(), pi.getLastRefPosition(), pi.getIndel()};
+                    assertArrayEquals("Incorrect position " + idx + " for: " + rec.getCigarString(), expected.get(idx), actual);
+                    idx++;
+                }
+            }
+        }
+
+        /**
+         * Compares throughput and allocation against the previous implementation. Timings are only logged, since they depend on the machine,
+         * but the current implementation must allocate less.
+         */
+        @Test
+        public void testThroughputAndAllocation()
+        {
+            List<SAMRecord> records = getRecords(2000);
+
+            //warm up both, and confirm they agree
+            assertEquals(legacyChecksum(records), currentChecksum(records));
+            for (int i = 0; i < 5; i++)
+            {
+                legacyChecksum(records);
+                currentChecksum(records);
+            }
+
+            long bytes = getAllocatedBytes();
+            long start = System.nanoTime();
+            long legacy = 0;
+            for (int i = 0; i < 10; i++)
+            {
+                legacy += legacyChecksum(records);
+            }
+            long legacyNanos = System.nanoTime() - start;
+            long legacyBytes = getAllocatedBytes() - bytes;
+
+            bytes = getAllocatedBytes();
+            start = System.nanoTime();
+            long current = 0;
+            for (int i = 0; i < 10; i++)
+            {
+                current += currentChecksum(records);
+            }
+            long currentNanos = System.nanoTime() - start;
+            long currentBytes = getAllocatedBytes() - bytes;
+
+            assertEquals(legacy, current);
+            _log.info("CIGAR iteration of " + (records.size() * 10) + " reads. Legacy: " + (legacyNanos / 1000000) + "ms, " + legacyBytes + " bytes allocated. Current: " + (currentNanos / 1000000) + "ms, " + currentBytes + " bytes allocated");
+
+            //NOTE: allocation tracking is a HotSpot feature, and is skipped if unavailable
+            if (bytes >= 0)
+            {
+                assertTrue("Expected fewer bytes allocated than the legacy iterator: " + currentBytes + " / " + legacyBytes, currentBytes < legacyBytes);
+            }
+        }
+
+        private static List<SAMRecord> getRecords(int copies)
+        {
+            SAMFileHeader header = new SAMFileHeader();
+            header.addSequence(new SAMSequenceRecord("chr1", 1000000));
+
+            List<SAMRecord> ret = new ArrayList<>();
+            for (int i = 0; i < copies; i++)
+            {
+                for (String cigar : CIGARS)
+                {
+                    int readLength = TextCigarCodec.decode(cigar).getReadLength();
+                    byte[] bases = new byte[readLength];
+                    Arrays.fill(bases, (byte)'A');
+                    byte[] quals = new byte[readLength];
+                    Arrays.fill(quals, (byte)30);
+
+                    SAMRecord rec = new SAMRecord(header);
+                    rec.setReadName("read" + ret.size());
+                    rec.setReferenceName("chr1");
+                    rec.setAlignmentStart(1000 + (i * 100));
+                    rec.setCigarString(cigar);
+                    rec.setReadBases(bases);
+                    rec.setBaseQualities(quals);
+                    ret.add(rec);
+                }
+            }
+
+            return ret;
+        }
+
+        private static long legacyChecksum(List<SAMRecord> records)
+        {
+            long ret = 0;
+            for (SAMRecord rec : records)
+            {
+                for (int[] pos : legacyPositions(rec))
+                {
+                    ret += pos[0] + pos[1] + pos[2] + pos[3] + pos[4] + pos[5];
+                }
+            }
+
+            return ret;
+        }
+
+        private static long currentChecksum(List<SAMRecord> records)
+        {
+            long ret = 0;
+            for (SAMRecord rec : records)
+            {
+                CigarPositionIterable cpi = new CigarPositionIterable(rec);
+                for (int i = 0; i < cpi.size(); i++)
+                {
+                    ret += cpi._ops[i].ordinal() + cpi._readPositions[i] + cpi.getRefPosition(i) + cpi.getLastReadPosition(i) + cpi.getLastRefPosition(i) + cpi._indels[i];
+                }
+            }
+
+            return ret;
+        }
+
+        /**
+         * The previous implementation: the CIGAR is exploded through its string form into boxed arrays, and each position parses its
+         * operator again and scans backwards for indels. One object is created per position, as PositionInfo was.
+         */
+        private static List<int[]> legacyPositions(SAMRecord record)
+        {
+            char[] explodedCigar = CigarUtil.cigarArrayFromString(record.getCigar().toString());
+            Integer[] readPositions = new Integer[explodedCigar.length];
+            Integer[] refPositions = new Integer[explodedCigar.length];
+
+            int readPos = 0;
+            int refPos = record.getAlignmentStart() - 1;
+            for (int i = 0; i < explodedCigar.length; i++)
+            {
+                CigarOperator op = CigarOperator.valueOf(Character.toString(explodedCigar[i]));
+                readPositions[i] = op.consumesReadBases() ? readPos++ : -1;
+                refPositions[i] = op.consumesReferenceBases() ? refPos++ : -1;
+            }
+
+            List<int[]> ret = new ArrayList<>();
+            for (int pos = 0; pos < explodedCigar.length; pos++)
+            {
+                CigarOperator op = CigarOperator.valueOf(Character.toString(explodedCigar[pos]));
+                int indel = 0;
+                int lastReadPos = 0;
+                int lastRefPos = 0;
+
+                if (readPositions[pos] > -1)
+                {
+                    lastReadPos = readPositions[pos];
+                }
+                else
+                {
+                    for (int i = pos; i >= 0; i--)
+                    {
+                        if (readPositions[i] > -1)
+                        {
+                            lastReadPos = readPositions[i];
+                            indel = i - pos;
+                            break;
+                        }
+                    }
+                }
+
+                if (refPositions[pos] > -1)
+                {
+                    lastRefPos = refPositions[pos];
+                }
+                else
+                {
+                    for (int i = pos; i >= 0; i--)
+                    {
+                        if (refPositions[i] > -1)
+                        {
+                            lastRefPos = refPositions[i];
+                            indel = pos - i;
+                            break;
+                        }
+                    }
+                }
+
+                ret.add(new int[]{op.ordinal(), readPositions[pos], refPositions[pos], lastReadPos, lastRefPos, indel});
+            }
+
+            return ret;
+        }
+
+        private static long getAllocatedBytes()
+        {
+            if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean && bean.isThreadAllocatedMemorySupported())
+            {
+                return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+
+            return -1;
         }
     }
 }
@@ -21,27 +21,35 @@
 import htsjdk.samtools.fastq.FastqReader;
 import htsjdk.samtools.fastq.FastqRecord;
 import htsjdk.samtools.fastq.FastqWriter;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
 import org.apache.logging.log4j.Logger;
-import org.apache.logging.log4j.LogManager;
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.pipeline.PipelineJobException;
 import org.labkey.api.util.FileType;
 import org.labkey.api.util.Formats;
 import org.labkey.api.util.Pair;
+import org.labkey.sequenceanalysis.util.SequenceUtil;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * This is designed to parse the FASTQ files produced by a single run on an illumina instructment and produce one gzipped FASTQ
@@ -58,12 +66,16 @@
     private final Map<String, SampleIdType> _illuminaIdToLocalIdMap;
     private File _destinationDir;
     private final List<File> _files;
-    private Map<Pair<SampleIdType, Integer>, Pair<File, FastqWriter>> _fileMap;
+    private Map<Pair<SampleIdType, Integer>, File> _fileMap;
     private Map<Pair<SampleIdType, Integer>, Integer> _sequenceTotals;
-    private final Set<String> _skippedSampleId = new HashSet<>();
+    private final Set<String> _skippedSampleId = ConcurrentHashMap.newKeySet();
     private final Logger _logger;
     private static final FileType FASTQ_FILETYPE = new FileType(Arrays.asList("fastq", "fq"), "fastq", FileType.gzSupportLevel.SUPPORT_GZ);
     private boolean _outputGzip = false;
+    private int _threads = 1;
+
+    //NOTE: when inputs are parsed in parallel, threads are limited so that at most this many outputs are held open. Each open BGZF writer holds its own buffers.
+    private static final int MAX_OPEN_OUTPUTS = 256;
 
     public IlluminaFastqSplitter(@Nullable String outputPrefix, Map<String, SampleIdType> sampleMap, Logger logger, List<File> files)
     {
@@ -110,162 +122,471 @@ public static List<File> inferIlluminaInputsFromPath(String path, @Nullable Stri
     // the key of the map is a pair where the first item is the sampleId and the second item indicated whether this file is the forward (1) or reverse (2) reads
     public Map<Pair<SampleIdType, Integer>, File> parseFastqFiles() throws PipelineJobException
     {
-        _fileMap = new HashMap<>();
+        _fileMap = new LinkedHashMap<>();
         _sequenceTotals = new HashMap<>();
 
-        int _parsedReads;
+        //NOTE: when inputs are parsed in parallel, the writers are synchronous, and the threads are capped so that every worker can keep all of its outputs open
+        int threads = getSplitterThreads();
+        List<FileSplitter> splitters = new ArrayList<>();
+        for (int i = 0; i < _files.size(); i++)
+        {
+            splitters.add(new FileSplitter(_files.get(i), i, threads <= 1));
+        }
 
         try
         {
-            for (File f : _files)
+            runSplitters(splitters, threads);
+
+            //NOTE: each input writes its own part of every output, and these are gathered in input order.  This means the order of reads in each output,
+            // and therefore the pairing of the R1 and R2 outputs, does not depend on thread scheduling
+            Map<Pair<SampleIdType, Integer>, List<SampleOutput>> partsByKey = new LinkedHashMap<>();
+            for (FileSplitter splitter : splitters)
             {
-                try
+                for (SampleOutput output : splitter._outputs.values())
                 {
-                    _logger.info("Beginning to parse file: " + f.getName());
-                    File targetDir = _destinationDir == null ? f.getParentFile() : _destinationDir;
+                    partsByKey.computeIfAbsent(output._key, x -> new ArrayList<>()).add(output);
+                }
+            }
 
-                    _parsedReads = 0;
+            for (Pair<SampleIdType, Integer> key : partsByKey.keySet())
+            {
+                List<SampleOutput> parts = partsByKey.get(key);
+                File output = parts.get(0)._output;
+                int total = 0;
+                List<File> partFiles = new ArrayList<>();
+                for (SampleOutput part : parts)
+                {
+                    total += part._count;
+                    partFiles.add(part._partFile);
+                }
 
-                    try (FastqReader reader = new FastqReader(f))
-                    {
-                        while (reader.hasNext())
-                        {
-                            FastqRecord fq = reader.next();
-                            String header = fq.getReadHeader();
-                            IlluminaReadHeader parsedHeader = new IlluminaReadHeader(header);
-                            String illuminaSampleId = null;
-                            if (parsedHeader.getIndexSequenceString() != null)
-                            {
-                                illuminaSampleId = parsedHeader.getIndexSequenceString();
-                            }
-                            else
-                            {
-                                illuminaSampleId  = "S" + parsedHeader.getSampleNum();
-                            }
-
-                            int pairNumber = parsedHeader.getPairNumber();
-
-                            FastqWriter writer = getWriter(illuminaSampleId, targetDir, pairNumber);
-                            if (writer != null)
-                            {
-                                writer.write(fq);
-
-                                _parsedReads++;
-                                updateCount(illuminaSampleId, pairNumber);
-
-                                if (0 == _parsedReads % 25000)
-                                    logReadsProgress(_parsedReads);
-                            }
-                        }
-
-                        if (0 != _parsedReads % 25000)
-                            logReadsProgress(_parsedReads);
-
-                        _logger.info("Finished parsing file: " + f.getName());
-                    }
+                if (partFiles.size() == 1)
+                {
+                    Files.move(partFiles.get(0).toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
                 }
-                catch (IOException e)
+                else
                 {
-                    throw new PipelineJobException(e);
+                    SequenceUtil.concatenateFiles(partFiles, output, _outputGzip);
                 }
+
+                _fileMap.put(key, output);
+                _sequenceTotals.put(key, total);
             }
         }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
         finally
         {
-            for (Pair<File, FastqWriter> pair : _fileMap.values())
+            for (FileSplitter splitter : splitters)
             {
-                if (pair.second != null)
-                    pair.second.close();
+                for (SampleOutput output : splitter._outputs.values())
+                {
+                    if (output._partFile.exists())
+                        output._partFile.delete();
+                }
             }
         }
 
-        Map<Pair<SampleIdType, Integer>, File> outputs = new HashMap<>();
-        for (Pair<SampleIdType, Integer> key :_fileMap.keySet())
+        return new HashMap<>(_fileMap);
+    }
+
+    /**
+     * Each input can write to every sample, so this returns the largest number of threads for which threads x outputs per input fits within MAX_OPEN_OUTPUTS.
+     */
+    private int getSplitterThreads()
+    {
+        int threads = Math.min(_threads, _files.size());
+        if (threads <= 1)
         {
-            outputs.put(key, _fileMap.get(key).getKey());
+            return 1;
         }
 
-        return outputs;
-    }
+        //NOTE: one output per sample and read number, plus Undetermined
+        int outputsPerInput = 2 * (new HashSet<>(_illuminaIdToLocalIdMap.values()).size() + 1);
+        int maxThreads = Math.max(1, MAX_OPEN_OUTPUTS / outputsPerInput);
+        if (maxThreads < threads)
+        {
+            _logger.info("Limiting threads to " + maxThreads + " so that the outputs for " + _illuminaIdToLocalIdMap.size() + " samples can remain open");
+            threads = maxThreads;
+        }
 
-    private void logReadsProgress(int count)
-    {
-        String formattedCount = Formats.commaf0.format(count);
-        _logger.info(formattedCount + " reads processed");
+        return threads;
     }
 
-    private void updateCount(String illuminaSampleId, int pairNumber)
+    private void runSplitters(List<FileSplitter> splitters, int threads) throws IOException, PipelineJobException
     {
-        if (_illuminaIdToLocalIdMap.containsKey(illuminaSampleId))
+        if (threads <= 1)
         {
-            Pair<SampleIdType, Integer> key = Pair.of(_illuminaIdToLocalIdMap.get(illuminaSampleId), pairNumber);
+            for (FileSplitter splitter : splitters)
+            {
+                splitter.split();
+            }
 
-            Integer total = _sequenceTotals.get(key);
-            if (total == null)
-                total = 0;
+            return;
+        }
 
-            total++;
+        _logger.info("Parsing " + splitters.size() + " files using " + threads + " threads");
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<Void>> tasks = new ArrayList<>();
+            for (FileSplitter splitter : splitters)
+            {
+                tasks.add(pool.submit(() -> {
+                    splitter.split();
 
-            _sequenceTotals.put(key, total);
+                    return null;
+                }));
+            }
+
+            for (Future<Void> task : tasks)
+            {
+                task.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new PipelineJobException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException ioe)
+                throw ioe;
+            else if (e.getCause() instanceof RuntimeException re)
+                throw re;
+
+            throw new PipelineJobException(e.getCause());
+        }
+        finally
+        {
+            pool.shutdownNow();
         }
     }
 
-    private FastqWriter getWriter(String illuminaSampleId, File targetDir, int pairNumber) throws IOException
+    private void logReadsProgress(File f, int count)
+    {
+        String formattedCount = Formats.commaf0.format(count);
+        _logger.info(formattedCount + " reads processed" + (_files.size() > 1 ? " from " + f.getName() : ""));
+    }
+
+    // NOTE: this returns null both for unknown samples and for those mapped to a null sampleId (Undetermined)
+    private @Nullable SampleIdType resolveSample(String illuminaSampleId)
     {
         if (!_illuminaIdToLocalIdMap.containsKey(illuminaSampleId))
         {
-            if (!_skippedSampleId.contains(illuminaSampleId))
+            if (_skippedSampleId.add(illuminaSampleId))
             {
                 _logger.warn("The CSV input does not contain sample info for a sample with index: " + illuminaSampleId);
-                _skippedSampleId.add(illuminaSampleId);
             }
+
             return null;
         }
 
+        return _illuminaIdToLocalIdMap.get(illuminaSampleId);
+    }
+
+    private String getOutputName(SampleIdType sampleId, int pairNumber)
+    {
         // NOTE: sampleIdx is the index of the sample according to the Illumina CSV file, and the number assigned
         // by the illumina barcode callers.  Sample 0 always refers to control reads
-        SampleIdType sampleId = _illuminaIdToLocalIdMap.get(illuminaSampleId);
-        Pair<SampleIdType, Integer> sampleKey = Pair.of(sampleId, pairNumber);
-        if (_fileMap.containsKey(sampleKey))
+        String suffix;
+        if (Integer.valueOf(0).equals(sampleId))
+        {
+            suffix = "Control";
+        }
+        else if (sampleId == null || Integer.valueOf(-1).equals(sampleId))
         {
-            return _fileMap.get(sampleKey).getValue();
+            suffix = "Undetermined";
         }
         else
         {
-            String suffix;
-            if (Integer.valueOf(0).equals(sampleId))
+            suffix = String.valueOf(sampleId);
+        }
+
+        return (_outputPrefix == null ? "Reads" : _outputPrefix) + "-R" + pairNumber + "-" + suffix + ".fastq" + (_outputGzip ? ".gz" : "");
+    }
+
+    /**
+     * Splits a single input FASTQ into one part file per sample and read number.
+     */
+    private class FileSplitter
+    {
+        private final File _input;
+        private final int _fileIdx;
+        private final File _targetDir;
+        private final Map<Pair<SampleIdType, Integer>, SampleOutput> _outputs = new LinkedHashMap<>();
+        private final Map<Pair<String, Integer>, SampleOutput> _outputsByIlluminaId = new HashMap<>();
+        private final boolean _asyncWriters;
+
+        public FileSplitter(File input, int fileIdx, boolean asyncWriters)
+        {
+            _input = input;
+            _fileIdx = fileIdx;
+            _targetDir = _destinationDir == null ? input.getParentFile() : _destinationDir;
+            _asyncWriters = asyncWriters;
+        }
+
+        public void split() throws IOException
+        {
+            _logger.info("Beginning to parse file: " + _input.getName());
+
+            HeaderParser parser = new HeaderParser();
+            int parsedReads = 0;
+            String lastSampleId = null;
+            int lastPairNumber = -1;
+            SampleOutput output = null;
+
+            try (FastqReader reader = new FastqReader(_input))
             {
-                suffix = "Control";
+                while (reader.hasNext())
+                {
+                    FastqRecord fq = reader.next();
+                    parser.parse(fq.getReadHeader());
+
+                    //NOTE: the parser returns the same instance while the index is unchanged, which is typical of consecutive reads
+                    if (parser.getIlluminaSampleId() != lastSampleId || parser.getPairNumber() != lastPairNumber)
+                    {
+                        lastSampleId = parser.getIlluminaSampleId();
+                        lastPairNumber = parser.getPairNumber();
+                        output = getOutput(lastSampleId, lastPairNumber);
+                    }
+
+                    if (output != null)
+                    {
+                        output._writer.write(fq);
+                        output._count++;
+
+                        parsedReads++;
+                        if (0 == parsedReads % 25000)
+                            logReadsProgress(_input, parsedReads);
+                    }
+                }
+
+                if (0 != parsedReads % 25000)
+                    logReadsProgress(_input, parsedReads);
+
+                _logger.info("Finished parsing file: " + _input.getName());
             }
-            else if (sampleId == null || Integer.valueOf(-1).equals(sampleId))
+            finally
             {
-                suffix = "Undetermined";
+                for (SampleOutput o : _outputs.values())
+                {
+                    o._writer.close();
+                }
             }
-            else
+        }
+
+        private @Nullable SampleOutput getOutput(String illuminaSampleId, int pairNumber) throws IOException
+        {
+            Pair<String, Integer> illuminaKey = Pair.of(illuminaSampleId, pairNumber);
+            if (_outputsByIlluminaId.containsKey(illuminaKey))
             {
-                suffix = String.valueOf(sampleId);
+                return _outputsByIlluminaId.get(illuminaKey);
             }
 
-            String name = (_outputPrefix == null ? "Reads" : _outputPrefix) + "-R" + pairNumber + "-" + suffix + ".fastq" + (_outputGzip ? ".gz" : "");
-            File newFile = new File(targetDir, name);
-            newFile.createNewFile();
+            SampleOutput ret = null;
+            SampleIdType sampleId = resolveSample(illuminaSampleId);
+            if (_illuminaIdToLocalIdMap.containsKey(illuminaSampleId))
+            {
+                Pair<SampleIdType, Integer> key = Pair.of(sampleId, pairNumber);
+                ret = _outputs.get(key);
+                if (ret == null)
+                {
+                    ret = new SampleOutput(key, new File(_targetDir, getOutputName(sampleId, pairNumber)), _fileIdx, _asyncWriters);
+                    _outputs.put(key, ret);
+                }
+            }
+
+            _outputsByIlluminaId.put(illuminaKey, ret);
+
+            return ret;
+        }
+    }
+
+    private class SampleOutput
+    {
+        private final Pair<SampleIdType, Integer> _key;
+        private final File _output;
+        private final File _partFile;
+        private final FastqWriter _writer;
+        private int _count = 0;
+
+        public SampleOutput(Pair<SampleIdType, Integer> key, File output, int fileIdx, boolean async) throws IOException
+        {
+            _key = key;
+            _output = output;
+            _partFile = new File(output.getParentFile(), output.getName() + ".part" + fileIdx);
 
             // Buffer the output so we aren't constantly writing through to file system. See issue 19633
+            // NOTE: gzip output is written as BGZF, which is still valid gzip, and allows per-file parts to be concatenated without recompression
             FastqWriter syncWriter;
             if (_outputGzip)
             {
-                syncWriter = new BasicFastqWriter(new PrintStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(newFile), 64 * 1024))));
+                syncWriter = new BasicFastqWriter(new PrintStream(new BlockCompressedOutputStream(new FileOutputStream(_partFile), _partFile)));
             }
             else
             {
-                syncWriter = new BasicFastqWriter(new PrintStream(new BufferedOutputStream(new FileOutputStream(newFile), 64 * 1024)));
+                syncWriter = new BasicFastqWriter(new PrintStream(new BufferedOutputStream(new FileOutputStream(_partFile), 64 * 1024)));
             }
 
-            // Also use an async IO for better perf
-            FastqWriter writer = new AsyncFastqWriter(syncWriter, AsyncFastqWriter.DEFAULT_QUEUE_SIZE);
+            // Also use an async IO for better perf.  With gzip output, this means compression of each sample runs on its own thread.
+            // Parallel inputs use synchronous writers, since the inputs already run on separate threads
+            _writer = async ? new AsyncFastqWriter(syncWriter, AsyncFastqWriter.DEFAULT_QUEUE_SIZE) : syncWriter;
+        }
+    }
 
-            _fileMap.put(Pair.of(sampleId, pairNumber), Pair.of(newFile, writer));
-            return writer;
+    /**
+     * Extracts the sample index and read number from an illumina read header, without the regex split and object allocation of IlluminaReadHeader.
+     * Headers that do not follow the standard layout are passed to IlluminaReadHeader, so the results and errors are identical.
+     */
+    protected static class HeaderParser
+    {
+        private static final int SAMPLE_FIELD = 10;
+        private static final int[] NUMERIC_FIELDS = new int[]{1, 3, 4, 5, 6, 7, 9};
+
+        private final int[] _starts = new int[SAMPLE_FIELD + 1];
+        private final int[] _ends = new int[SAMPLE_FIELD + 1];
+
+        private String _lastSampleField = null;
+        private String _illuminaSampleId = null;
+        private int _pairNumber;
+
+        public void parse(String header)
+        {
+            if (!parseStandard(header))
+            {
+                IlluminaReadHeader parsedHeader = new IlluminaReadHeader(header);
+                _illuminaSampleId = parsedHeader.getIndexSequenceString() != null ? parsedHeader.getIndexSequenceString() : "S" + parsedHeader.getSampleNum();
+                _pairNumber = parsedHeader.getPairNumber();
+                _lastSampleField = null;
+            }
+        }
+
+        private boolean parseStandard(String header)
+        {
+            int len = header.length();
+            if (header.endsWith("/1") || header.endsWith("/2"))
+            {
+                return false;
+            }
+
+            int fields = 0;
+            int fieldStart = 0;
+            for (int i = 0; i <= len && fields <= SAMPLE_FIELD; i++)
+            {
+                if (i == len || header.charAt(i) == ':' || header.charAt(i) == ' ')
+                {
+                    _starts[fields] = fieldStart;
+                    _ends[fields] = i;
+                    fields++;
+                    fieldStart = i + 1;
+                }
+            }
+
+            if (fields <= SAMPLE_FIELD)
+            {
+                return false;
+            }
+
+            for (int field : NUMERIC_FIELDS)
+            {
+                if (parseDigits(header, _starts[field], _ends[field]) < 0)
+                {
+                    return false;
+                }
+            }
+
+            int start = _starts[SAMPLE_FIELD];
+            int end = _ends[SAMPLE_FIELD];
+            if (_lastSampleField != null && _lastSampleField.length() == end - start && header.regionMatches(start, _lastSampleField, 0, end - start))
+            {
+                _pairNumber = parseDigits(header, _starts[7], _ends[7]);
+                return true;
+            }
+
+            String sampleId;
+            if (isIndexSequence(header, start, end))
+            {
+                sampleId = header.substring(start, end);
+            }
+            else
+            {
+                int sampleNum = parseDigits(header, start, end);
+                if (sampleNum < 0)
+                {
+                    return false;
+                }
+
+                sampleId = "S" + sampleNum;
+            }
+
+            _lastSampleField = header.substring(start, end);
+            _illuminaSampleId = sampleId;
+            _pairNumber = parseDigits(header, _starts[7], _ends[7]);
+
+            return true;
+        }
+
+        // returns -1 for anything Integer.parseInt() might treat differently, such as signs or values that could overflow
+        private static int parseDigits(String s, int start, int end)
+        {
+            if (end <= start || end - start > 9)
+            {
+                return -1;
+            }
+
+            int ret = 0;
+            for (int i = start; i < end; i++)
+            {
+                char c = s.charAt(i);
+                if (c < '0' || c > '9')
+                {
+                    return -1;
+                }
+
+                ret = (ret * 10) + (c - '0');
+            }
+
+            return ret;
+        }
+
+        // equivalent to matching ^[ATGCN]+$ or ^[ATGCN]+\+[ATGCN]+$
+        private static boolean isIndexSequence(String s, int start, int end)
+        {
+            int runLength = 0;
+            boolean seenPlus = false;
+            for (int i = start; i < end; i++)
+            {
+                char c = s.charAt(i);
+                if (c == 'A' || c == 'T' || c == 'G' || c == 'C' || c == 'N')
+                {
+                    runLength++;
+                }
+                else if (c == '+' && !seenPlus && runLength > 0)
+                {
+                    seenPlus = true;
+                    runLength = 0;
+                }
+                else
+                {
+                    return false;
+                }
+            }
+
+            return runLength > 0;
+        }
+
+        public String getIlluminaSampleId()
+        {
+            return _illuminaSampleId;
+        }
+
+        public int getPairNumber()
+        {
+            return _pairNumber;
         }
     }
 
@@ -274,6 +595,11 @@ public void setOutputGzip(boolean outputGzip)
         _outputGzip = outputGzip;
     }
 
+    public void setThreads(int threads)
+    {
+        _threads = Math.max(threads, 1);
+    }
+
     public File getDestinationDir()
     {
         return _destinationDir;
@@ -150,6 +150,12 @@ public RecordedActionSet run() throws PipelineJobException
             //this step will be slow
             IlluminaFastqSplitter<Integer> parser = new IlluminaFastqSplitter<>("Illumina", sampleMap, job.getLogger(), input.getParent(), prefix);
             parser.setOutputGzip(true);
+
+            Integer threads = SequenceTaskHelper.getMaxThreads(job);
+            if (threads != null)
+            {
+                parser.setThreads(threads);
+            }
             parser.setDestinationDir(getSupport().getAnalysisDirectory());
 
             // the first element of the pair is the sample ID.  the second is either 1 or 2,
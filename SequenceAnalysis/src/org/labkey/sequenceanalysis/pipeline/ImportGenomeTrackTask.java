@@ -31,7 +31,6 @@
 import htsjdk.variant.vcf.VCFHeader;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.SystemUtils;
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.assay.AssayFileWriter;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
@@ -240,14 +239,7 @@ private int addTrackForLibrary(File file, String trackName, String trackDescript
         if (SequenceUtil.FILETYPE.bed.getFileType().isType(file))
         {
             validateAndTransformTsv(file, outputFile, nameTranslationMap, knownChrs, 0, 1, 2, -1, dict, action);
-            if (SystemUtils.IS_OS_WINDOWS)
-            {
-                getJob().getLogger().warn("unable to sort BED file on windows, skipping");
-            }
-            else
-            {
-                SequencePipelineService.get().sortROD(outputFile, getJob().getLogger(), 2);
-            }
+            SequenceUtil.sortROD(outputFile, getJob().getLogger(), 2, dict);
         }
         else if (SequenceUtil.FILETYPE.gff.getFileType().isType(file) || SequenceUtil.FILETYPE.gtf.getFileType().isType(file))
         {
@@ -255,7 +247,7 @@ else if (SequenceUtil.FILETYPE.gff.getFileType().isType(file) || SequenceUtil.FI
             getJob().getLogger().info("total lines in input: " + count1);
 
             validateAndTransformTsv(file, outputFile, nameTranslationMap, knownChrs, 0, 3, 4, 0, dict, action);
-            sortGxf(outputFile);
+            sortGxf(outputFile, dict);
 
             long count2 = SequenceUtil.getLineCount(outputFile);
             getJob().getLogger().info("total lines in sorted output: " + count2);
@@ -341,16 +333,10 @@ else if (SequenceUtil.FILETYPE.bw.getFileType().isType(file))
         return (Integer)map.get("rowid");
     }
 
-    private void sortGxf(File gxf) throws PipelineJobException
+    private void sortGxf(File gxf, SAMSequenceDictionary dict) throws PipelineJobException
     {
         getJob().getLogger().info("sorting file: " + gxf.getPath());
-        if (SystemUtils.IS_OS_WINDOWS)
-        {
-            getJob().getLogger().warn("unable to sort files on windows, skipping");
-            return;
-        }
-
-        new GxfSorter(getJob().getLogger()).sortGxf(gxf, null);
+        new GxfSorter(getJob().getLogger(), dict).sortGxf(gxf, null);
     }
     private File getOutputFile(File file, File tracksDir)
     {
@@ -7,7 +7,6 @@
 import htsjdk.variant.vcf.VCFCodec;
 import htsjdk.variant.vcf.VCFFileReader;
 import htsjdk.variant.vcf.VCFHeader;
-import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.time.DurationFormatUtils;
 import org.apache.logging.log4j.LogManager;
@@ -29,7 +28,6 @@
 import org.labkey.api.sequenceanalysis.SequenceAnalysisService;
 import org.labkey.api.sequenceanalysis.SequenceOutputFile;
 import org.labkey.api.sequenceanalysis.pipeline.AbstractResumer;
-import org.labkey.api.sequenceanalysis.pipeline.BcftoolsRunner;
 import org.labkey.api.sequenceanalysis.pipeline.PipelineStepCtx;
 import org.labkey.api.sequenceanalysis.pipeline.PipelineStepProvider;
 import org.labkey.api.sequenceanalysis.pipeline.ReferenceGenome;
@@ -39,7 +37,6 @@
 import org.labkey.api.sequenceanalysis.pipeline.TaskFileManager;
 import org.labkey.api.sequenceanalysis.pipeline.ToolParameterDescriptor;
 import org.labkey.api.sequenceanalysis.pipeline.VariantProcessingStep;
-import org.labkey.api.sequenceanalysis.run.SimpleScriptWrapper;
 import org.labkey.api.util.FileType;
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.URIUtil;
@@ -50,6 +47,7 @@
 import org.labkey.sequenceanalysis.run.util.MergeVcfsAndGenotypesWrapper;
 import org.labkey.sequenceanalysis.run.variant.OutputVariantsStartingInIntervalsStep;
 import org.labkey.sequenceanalysis.util.SequenceUtil;
+import org.labkey.sequenceanalysis.util.VcfSummary;
 
 import java.io.File;
 import java.io.IOException;
@@ -478,8 +476,9 @@ public static File processVCF(File input, Integer libraryId, JobContext ctx, Res
                 currentVCF = output.getVCF();
 
                 ctx.getJob().getLogger().info("output VCF: " + currentVCF.getPath());
-                ctx.getJob().getLogger().info("total variants: " + getVCFLineCount(currentVCF, ctx.getJob().getLogger(), false, true));
-                ctx.getJob().getLogger().info("passing variants: " + getVCFLineCount(currentVCF, ctx.getJob().getLogger(), true, false));
+                VcfSummary summary = VcfSummary.get(currentVCF, true, ctx.getJob().getLogger());
+                ctx.getJob().getLogger().info("total variants: " + summary.getTotalRecords());
+                ctx.getJob().getLogger().info("passing variants: " + summary.getPassingRecords());
                 ctx.getJob().getLogger().debug("index exists: " + (new File(currentVCF.getPath() + ".tbi")).exists());
 
                 try
@@ -522,54 +521,11 @@ public static File processVCF(File input, Integer libraryId, JobContext ctx, Res
         return null;
     }
 
-    private static String countUsingBcfTools(File vcf, Logger log) throws PipelineJobException
+    public static String getVCFLineCount(File vcf, Logger log, boolean passOnly) throws PipelineJobException
     {
-        BcftoolsRunner wrapper = new BcftoolsRunner(log);
+        VcfSummary summary = VcfSummary.get(vcf, passOnly, log);
 
-        return StringUtils.trimToNull(wrapper.executeWithOutput(Arrays.asList(wrapper.getBcfToolsPath().getPath(), "index", "-n", vcf.getPath())));
-    }
-
-    public static String getVCFLineCount(File vcf, Logger log, boolean passOnly, boolean useBcfTools) throws PipelineJobException
-    {
-        if (useBcfTools)
-        {
-            if (passOnly)
-            {
-                throw new PipelineJobException("bcftools VCF count cannot be used with passOnly");
-            }
-
-            try
-            {
-                return countUsingBcfTools(vcf, log);
-            }
-            catch (PipelineJobException e)
-            {
-                // ignore and continue:
-                log.warn("Cannot count variants using bcftools, this index might have been created using another tool");
-            }
-
-        }
-
-        String cat = vcf.getName().endsWith(".gz") ? "zcat" : "cat";
-        SimpleScriptWrapper wrapper = new SimpleScriptWrapper(null);
-
-        String ret = StringUtils.trimToNull(wrapper.executeWithOutput(Arrays.asList("/bin/bash", "-c", cat + " \"" + vcf.getPath() + "\" | grep -v \"#\" | " + (passOnly ? "awk ' $7 == \"PASS\" || $7 == \"\\.\" ' | " : "") + "wc -l | awk \" { print $1 } \"")));
-
-        //NOTE: unsure how to get awk to omit this warning, so discard it:
-        //the warning is: escape '\.' treated as plain '.'
-        if (ret != null)
-        {
-            ret = ret.trim();
-            String[] tokens = ret.split("\n");
-            if (tokens.length > 1)
-            {
-                tokens = ArrayUtils.remove(tokens, 0);
-                ret = StringUtils.join(tokens, "\n");
-                ret = ret.trim();
-            }
-        }
-
-        return ret;
+        return String.valueOf(passOnly ? summary.getPassingRecords() : summary.getTotalRecords());
     }
 
     public class Processor implements SequenceOutputProcessor
@@ -766,6 +766,12 @@ private Barcoder getBarcoder() throws PipelineJobException
 
         barcoder.setCreateSummaryLog(true);
 
+        Integer threads = SequenceTaskHelper.getMaxThreads(getJob());
+        if (threads != null)
+        {
+            barcoder.setThreads(threads);
+        }
+
         if (getHelper().getSettings().isDebugMode())
         {
             getJob().getLogger().debug("will create detailed barcode log");
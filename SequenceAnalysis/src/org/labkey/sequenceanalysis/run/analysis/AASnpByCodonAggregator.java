@@ -41,6 +41,7 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 
 /**
  * User: bimber
@@ -129,6 +130,38 @@ private void addSnp(AASnp snp)
         _snps.put(key, count);
     }
 
+    @Override
+    public AASnpByCodonAggregator createShard(Function<ShardableAlignmentAggregator, ShardableAlignmentAggregator> shardResolver)
+    {
+        return initShard(new AASnpByCodonAggregator(getLogger(), getRefFasta(), _avgQualAggregator, getSettings()), shardResolver);
+    }
+
+    @Override
+    public void merge(ShardableAlignmentAggregator shard)
+    {
+        super.merge(shard);
+
+        AASnpByCodonAggregator other = (AASnpByCodonAggregator)shard;
+        _totalAlignments += other._totalAlignments;
+        _totalFilteredSnps += other._totalFilteredSnps;
+        _refSequenceMap.putAll(other._refSequenceMap);
+
+        other._snps.forEach((key, count) -> _snps.merge(key, count, Integer::sum));
+        for (String key : other._cacheDef.keySet())
+        {
+            CacheKeyInfo info = _cacheDef.get(key);
+            if (info == null)
+            {
+                info = new CacheKeyInfo(other._cacheDef.get(key));
+                _cacheDef.put(key, info);
+            }
+            else
+            {
+                info.merge(other._cacheDef.get(key));
+            }
+        }
+    }
+
     private String getAAKey(AASnp snp)
     {
         return snp.getAaRef().getRowId() + "||" +
@@ -261,6 +294,45 @@ public CacheKeyInfo(AASnp snp)
             addSNP(snp);
         }
 
+        /**
+         * Copies a CacheKeyInfo created by a shard, so that depth is calculated using this aggregator's coverage
+         */
+        public CacheKeyInfo(CacheKeyInfo other)
+        {
+            _aaRefId = other._aaRefId;
+            _aaRefName = other._aaRefName;
+            _ntRefName = other._ntRefName;
+            _ntRefId = other._ntRefId;
+            _aaRefPos = other._aaRefPos;
+            _aaInsertIndex = other._aaInsertIndex;
+            _readResidue = other._readResidue;
+            _refResidue = other._refResidue;
+            _codon = other._codon;
+
+            merge(other);
+        }
+
+        public void merge(CacheKeyInfo other)
+        {
+            _ntPositions.addAll(other._ntPositions);
+            _readnames.addAll(other._readnames);
+            _dupReadnames.addAll(other._dupReadnames);
+
+            for (String ntPosString : other._readnamesByPos.keySet())
+            {
+                Set<String> readnames = _readnamesByPos.computeIfAbsent(ntPosString, k -> new HashSet<>());
+                for (String readname : other._readnamesByPos.get(ntPosString))
+                {
+                    if (!readnames.add(readname))
+                    {
+                        _dupReadnames.add(readname);
+                    }
+                }
+
+                _ntPositionStrings.put(ntPosString, readnames.size());
+            }
+        }
+
         public int getAaRefId()
         {
             return _aaRefId;
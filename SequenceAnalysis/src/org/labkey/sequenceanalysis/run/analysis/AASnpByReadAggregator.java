@@ -18,6 +18,7 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
 
 /**
  * User: bimber
@@ -115,6 +116,36 @@ public List<Map<String, Object>> getResults(User u, Container c, AnalysisModel m
         return rows;
     }
 
+    @Override
+    public AASnpByReadAggregator createShard(Function<ShardableAlignmentAggregator, ShardableAlignmentAggregator> shardResolver)
+    {
+        return initShard(new AASnpByReadAggregator(getLogger(), getRefFasta(), _avgQualAggregator, getSettings()), shardResolver);
+    }
+
+    @Override
+    public void merge(ShardableAlignmentAggregator shard)
+    {
+        super.merge(shard);
+
+        //NOTE: keys include the read name, and each read is inspected by a single shard, so these do not overlap
+        AASnpByReadAggregator other = (AASnpByReadAggregator)shard;
+        _refSequenceMap.putAll(other._refSequenceMap);
+        other._snps.forEach((key, count) -> _snps.merge(key, count, Integer::sum));
+        for (String key : other._cacheDef.keySet())
+        {
+            CacheKeyInfo info = _cacheDef.get(key);
+            if (info == null)
+            {
+                _cacheDef.put(key, other._cacheDef.get(key));
+            }
+            else
+            {
+                info._ntPositions.addAll(other._cacheDef.get(key)._ntPositions);
+                info._ntPositionStrings.addAll(other._cacheDef.get(key)._ntPositionStrings);
+            }
+        }
+    }
+
     @Override
     public void writeOutput(User u, Container c, AnalysisModel model)
     {
@@ -265,6 +265,26 @@ protected List<NTSnp> recalculateInsertIndex(List<NTSnp> snps)
         return snps;
     }
 
+    /**
+     * Copies the quality thresholds of this aggregator onto a newly created shard
+     */
+    protected <T extends AbstractAlignmentAggregator> T copySettings(T shard)
+    {
+        shard._minAvgSnpQual = _minAvgSnpQual;
+        shard._minSnpQual = _minSnpQual;
+        shard._minAvgDipQual = _minAvgDipQual;
+        shard._minDipQual = _minDipQual;
+        shard._minMapQual = _minMapQual;
+        shard._logProgress = _logProgress;
+
+        return shard;
+    }
+
+    protected void mergeCounts(AbstractAlignmentAggregator shard)
+    {
+        _lowMappingQual += shard._lowMappingQual;
+    }
+
     public void setLogProgress(boolean logProgress)
     {
         _logProgress = logProgress;
@@ -201,7 +201,7 @@ private String getBaseKey(Integer pos, String base)
         return pos + "||" + base;
     }
 
-    public Map<Integer, Map<String, Double>> getQualsForReference(Integer refId) throws PipelineJobException
+    public synchronized Map<Integer, Map<String, Double>> getQualsForReference(Integer refId) throws PipelineJobException
     {
         if (_quals == null)
             calculateAvgQuals();
@@ -15,17 +15,23 @@
  */
 package org.labkey.sequenceanalysis.run.analysis;
 
+import htsjdk.samtools.QueryInterval;
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.reference.FastaSequenceIndex;
 import htsjdk.samtools.reference.IndexedFastaSequenceFile;
 import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.util.Interval;
 import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
+import org.jetbrains.annotations.Nullable;
 import org.jmock.Expectations;
 import org.jmock.Mockery;
 import org.jmock.lib.legacy.ClassImposteriser;
@@ -73,13 +79,21 @@
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * User: bbimber
@@ -93,7 +107,10 @@
     private final File _ref;
 
     private final Logger _logger;
-    private final Map<String, ReferenceSequence> _references = new HashMap<>();
+    //NOTE: contigs in least recently used order, bounded by MAX_CACHED_BASES
+    private final LinkedHashMap<String, ReferenceSequence> _references = new LinkedHashMap<>(16, 0.75f, true);
+    private long _cachedBases = 0;
+    private static final long MAX_CACHED_BASES = 50_000_000L;
 
     public static final byte INDEL_CHARACTER = (byte)'-';
     public static final byte AMBIGUITY_CHARACTER = (byte)'N';
@@ -107,7 +124,7 @@ public BamIterator(File bam, File refFasta, Logger logger) throws FileNotFoundEx
         _logger = logger;
 
         _bai = SequenceUtil.getExpectedIndex(_bam);
-        if(!_bai.exists())
+        if(!_bai.exists() && !isQueryNameSorted(_bam))
             throw new FileNotFoundException("Missing index for BAM, expected: " + _bai.getPath());
 
         File fai = new File(_ref.getPath() + ".fai");
@@ -115,6 +132,19 @@ public BamIterator(File bam, File refFasta, Logger logger) throws FileNotFoundEx
             throw new FileNotFoundException("Missing index for FASTA, expected: " + fai.getPath());
     }
 
+    //NOTE: a queryname sorted BAM cannot be indexed, and is only read from start to end by iterateReads()
+    private static boolean isQueryNameSorted(File bam)
+    {
+        try
+        {
+            return SequenceUtil.getBamSortOrder(bam) == SAMFileHeader.SortOrder.queryname;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
     public void addAggregators(List<AlignmentAggregator> aggregators)
     {
         _alignmentAggregators.addAll(aggregators);
@@ -126,6 +156,63 @@ public void addAggregator(AlignmentAggregator aggregator)
     }
 
     public void iterateReads(String refName, int start, int stop) throws IOException, PipelineJobException
+    {
+        if (refName == null)
+        {
+            iterateAllReads();
+            return;
+        }
+
+        iterateReads(Collections.singletonList(new Interval(refName, Math.max(start, 1), stop)));
+    }
+
+    /**
+     * Iterates the reads overlapping the supplied intervals, using the BAM index to seek directly to each region rather than
+     * scanning the entire file.  Overlapping or abutting intervals are merged, so each alignment is only passed to the aggregators once.
+     */
+    public void iterateReads(List<Interval> intervals) throws IOException, PipelineJobException
+    {
+        SamReaderFactory bamFact = SamReaderFactory.makeDefault();
+        bamFact.validationStringency(ValidationStringency.SILENT);
+
+        File fai = new File(_ref.getPath() + ".fai");
+        try (SamReader sam = bamFact.open(_bam);IndexedFastaSequenceFile indexedRef = new IndexedFastaSequenceFile(_ref, new FastaSequenceIndex(fai)))
+        {
+            if (!sam.hasIndex())
+            {
+                throw new PipelineJobException("Unable to read index for BAM: " + _bam.getPath());
+            }
+
+            QueryInterval[] queryIntervals = toQueryIntervals(sam.getFileHeader().getSequenceDictionary(), intervals);
+            if (queryIntervals.length == 0)
+            {
+                _logger.info("None of the supplied intervals were found in the BAM header, no alignments will be inspected");
+                return;
+            }
+
+            _logger.info("Inspecting alignments overlapping " + queryIntervals.length + " interval(s)");
+            try (SAMRecordIterator it = sam.queryOverlapping(queryIntervals))
+            {
+                iterate(it, indexedRef, true, 0);
+            }
+        }
+        finally
+        {
+            _references.clear();
+            _cachedBases = 0;
+        }
+    }
+
+    /**
+     * Iterates all reads in the alignment
+     * @return
+     */
+    public void iterateReads() throws IOException, PipelineJobException
+    {
+        iterateAllReads();
+    }
+
+    private void iterateAllReads() throws IOException, PipelineJobException
     {
         SamReaderFactory bamFact = SamReaderFactory.makeDefault();
         bamFact.validationStringency(ValidationStringency.SILENT);
@@ -135,40 +222,323 @@ public void iterateReads(String refName, int start, int stop) throws IOException
         {
             try (SAMRecordIterator it = sam.iterator())
             {
-                int i = 0;
-                long startTime = new Date().getTime();
+                iterate(it, indexedRef, false, 0);
+            }
+        }
+        finally
+        {
+            _references.clear();
+            _cachedBases = 0;
+        }
+    }
+
+    /**
+     * @param ownedAfter If positive, alignments starting at or before this position are skipped, since they are owned by the preceding shard
+     */
+    private void iterate(SAMRecordIterator it, IndexedFastaSequenceFile indexedRef, boolean skipUnmapped, int ownedAfter) throws PipelineJobException
+    {
+        int i = 0;
+        long startTime = new Date().getTime();
+
+        while (it.hasNext())
+        {
+            i++;
+
+            SAMRecord r = it.next();
+
+            //NOTE: unmapped reads placed next to their mate can be returned by an indexed query
+            if (skipUnmapped && r.getReadUnmappedFlag())
+                continue;
+
+            if (ownedAfter > 0 && r.getAlignmentStart() <= ownedAfter)
+                continue;
+
+            processAlignment(r, indexedRef);
+
+            if (i % 10000 == 0)
+            {
+                long newTime = new Date().getTime();
+                _logger.info("processed " + i + " alignments in " + ((newTime - startTime) / 1000) + " seconds");
+                startTime = newTime;
+            }
+        }
+    }
+
+    /**
+     * Iterates all mapped reads, dividing the work between worker threads.  See iterateReadsSharded(List, int, int)
+     */
+    public void iterateReadsSharded(int threads, int windowSize) throws IOException, PipelineJobException
+    {
+        iterateReadsSharded(null, threads, windowSize);
+    }
+
+    /**
+     * Iterates the mapped reads overlapping the supplied intervals, dividing the work between worker threads.  The intervals are split into
+     * shards (one per contig, or fixed-size windows if windowSize is positive), which are queried using the BAM index.  Each worker feeds its own
+     * copy of the aggregators, created using ShardableAlignmentAggregator.createShard(), and these are merged back into the registered aggregators once all
+     * shards are complete.  Unlike iterateReads(), unmapped reads are not passed to the aggregators.
+     * If any registered aggregator does not implement ShardableAlignmentAggregator, this falls back to a single-threaded pass.
+     * @param intervals The intervals to inspect, or null to inspect all contigs
+     */
+    public void iterateReadsSharded(@Nullable List<Interval> intervals, int threads, int windowSize) throws IOException, PipelineJobException
+    {
+        List<ReadShard> shards;
+        SamReaderFactory bamFact = SamReaderFactory.makeDefault();
+        bamFact.validationStringency(ValidationStringency.SILENT);
+        try (SamReader sam = bamFact.open(_bam))
+        {
+            if (!sam.hasIndex())
+            {
+                throw new PipelineJobException("Unable to read index for BAM: " + _bam.getPath());
+            }
 
-                while (it.hasNext())
+            SAMSequenceDictionary dict = sam.getFileHeader().getSequenceDictionary();
+            if (intervals == null)
+            {
+                intervals = new ArrayList<>();
+                for (SAMSequenceRecord rec : dict.getSequences())
                 {
-                    i++;
+                    intervals.add(new Interval(rec.getSequenceName(), 1, rec.getSequenceLength()));
+                }
+            }
+
+            shards = createShards(toQueryIntervals(dict, intervals), windowSize);
+        }
+
+        List<ShardableAlignmentAggregator> shardable = getShardableAggregators();
+        if (shardable == null)
+        {
+            _logger.info("One or more aggregators does not support sharding, using a single thread");
+        }
 
-                    SAMRecord r = it.next();
-                    if (refName != null && (r.getReadUnmappedFlag() || !refName.equals(r.getReferenceName())))
-                        continue;
+        int workers = Math.min(threads, shards.size());
+        if (shardable == null || workers < 2)
+        {
+            iterateReads(intervals);
+            return;
+        }
 
-                    if (r.getAlignmentEnd() < start || r.getAlignmentStart() > stop)
-                        continue;
+        List<List<ShardableAlignmentAggregator>> aggregatorsByWorker = new ArrayList<>();
+        for (int i = 0; i < workers; i++)
+        {
+            aggregatorsByWorker.add(createShardAggregators(shardable));
+        }
 
-                    processAlignment(r, indexedRef);
+        _logger.info("Inspecting alignments using " + shards.size() + " shards and " + workers + " threads");
+        ConcurrentLinkedQueue<ReadShard> queue = new ConcurrentLinkedQueue<>(shards);
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try
+        {
+            List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+            for (List<ShardableAlignmentAggregator> workerAggregators : aggregatorsByWorker)
+            {
+                tasks.add(pool.submit(() -> {
+                    BamIterator worker = new BamIterator(_bam, _ref, _logger);
+                    worker.addAggregators(new ArrayList<>(workerAggregators));
+                    worker.iterateShards(queue);
 
-                    if (i % 10000 == 0)
-                    {
-                        long newTime = new Date().getTime();
-                        _logger.info("processed " + i + " alignments in " + ((newTime - startTime) / 1000) + " seconds");
-                        startTime = newTime;
-                    }
+                    return null;
+                }));
+            }
+
+            for (ForkJoinTask<Void> task : tasks)
+            {
+                task.get();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new PipelineJobException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof PipelineJobException pje)
+                throw pje;
+            else if (e.getCause() instanceof IOException ioe)
+                throw ioe;
+
+            throw new PipelineJobException(e.getCause());
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+
+        //NOTE: merge in a consistent order so the output does not depend on thread scheduling
+        for (List<ShardableAlignmentAggregator> workerAggregators : aggregatorsByWorker)
+        {
+            for (int i = 0; i < shardable.size(); i++)
+            {
+                shardable.get(i).merge(workerAggregators.get(i));
+            }
+        }
+    }
+
+    /**
+     * @return The registered aggregators, in the same order, or null if any of them cannot be sharded
+     */
+    private @Nullable List<ShardableAlignmentAggregator> getShardableAggregators()
+    {
+        List<ShardableAlignmentAggregator> ret = new ArrayList<>();
+        for (AlignmentAggregator agg : _alignmentAggregators)
+        {
+            if (!(agg instanceof ShardableAlignmentAggregator s))
+            {
+                return null;
+            }
+
+            ret.add(s);
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return One shard per supplied aggregator, in the same order
+     */
+    private List<ShardableAlignmentAggregator> createShardAggregators(List<ShardableAlignmentAggregator> aggregators)
+    {
+        Map<ShardableAlignmentAggregator, ShardableAlignmentAggregator> shardMap = new IdentityHashMap<>();
+        List<ShardableAlignmentAggregator> ret = new ArrayList<>();
+        for (ShardableAlignmentAggregator agg : aggregators)
+        {
+            ret.add(resolveShard(agg, aggregators, shardMap));
+        }
+
+        return ret;
+    }
+
+    private ShardableAlignmentAggregator resolveShard(ShardableAlignmentAggregator agg, List<ShardableAlignmentAggregator> aggregators, Map<ShardableAlignmentAggregator, ShardableAlignmentAggregator> shardMap)
+    {
+        if (shardMap.containsKey(agg))
+        {
+            return shardMap.get(agg);
+        }
+
+        //any aggregator referenced by another shard must also be registered, or its results would never be merged
+        if (!aggregators.contains(agg))
+        {
+            throw new IllegalStateException("Aggregator was not registered with this iterator: " + agg.getClass().getName());
+        }
+
+        ShardableAlignmentAggregator shard = agg.createShard(a -> resolveShard(a, aggregators, shardMap));
+        shardMap.put(agg, shard);
+
+        return shard;
+    }
+
+    private void iterateShards(ConcurrentLinkedQueue<ReadShard> queue) throws IOException, PipelineJobException
+    {
+        SamReaderFactory bamFact = SamReaderFactory.makeDefault();
+        bamFact.validationStringency(ValidationStringency.SILENT);
+
+        File fai = new File(_ref.getPath() + ".fai");
+        try (SamReader sam = bamFact.open(_bam);IndexedFastaSequenceFile indexedRef = new IndexedFastaSequenceFile(_ref, new FastaSequenceIndex(fai)))
+        {
+            ReadShard shard;
+            while ((shard = queue.poll()) != null)
+            {
+                try (SAMRecordIterator it = sam.queryOverlapping(shard.getIntervals()))
+                {
+                    iterate(it, indexedRef, true, shard.getOwnedAfter());
                 }
             }
         }
+        finally
+        {
+            _references.clear();
+            _cachedBases = 0;
+        }
     }
 
     /**
-     * Iterates all reads in the alignment
-     * @return
+     * Divides the intervals into shards.  If windowSize is positive, each interval is split into windows of that size; otherwise all intervals
+     * on a given contig form a single shard.  Because a read can overlap more than one window, each window only accepts reads that do not also
+     * overlap the window before it, which ensures each read is inspected exactly once.
      */
-    public void iterateReads() throws IOException, PipelineJobException
+    protected static List<ReadShard> createShards(QueryInterval[] intervals, int windowSize)
     {
-        iterateReads(null, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        List<ReadShard> ret = new ArrayList<>();
+        List<QueryInterval> contigIntervals = new ArrayList<>();
+        int prevEnd = 0;
+        for (QueryInterval qi : intervals)
+        {
+            if (!contigIntervals.isEmpty() && contigIntervals.get(0).referenceIndex != qi.referenceIndex)
+            {
+                if (windowSize <= 0)
+                {
+                    ret.add(new ReadShard(contigIntervals, 0));
+                }
+
+                contigIntervals = new ArrayList<>();
+                prevEnd = 0;
+            }
+            contigIntervals.add(qi);
+
+            if (windowSize > 0)
+            {
+                for (int start = qi.start; start <= qi.end; start += windowSize)
+                {
+                    int end = (int)Math.min((long)start + windowSize - 1, qi.end);
+                    ret.add(new ReadShard(Collections.singletonList(new QueryInterval(qi.referenceIndex, start, end)), prevEnd));
+                    prevEnd = end;
+                }
+            }
+        }
+
+        if (windowSize <= 0 && !contigIntervals.isEmpty())
+        {
+            ret.add(new ReadShard(contigIntervals, 0));
+        }
+
+        return ret;
+    }
+
+    protected static class ReadShard
+    {
+        private final QueryInterval[] _intervals;
+        private final int _ownedAfter;
+
+        public ReadShard(List<QueryInterval> intervals, int ownedAfter)
+        {
+            _intervals = intervals.toArray(new QueryInterval[0]);
+            _ownedAfter = ownedAfter;
+        }
+
+        public QueryInterval[] getIntervals()
+        {
+            return _intervals;
+        }
+
+        public int getOwnedAfter()
+        {
+            return _ownedAfter;
+        }
+    }
+
+    protected static QueryInterval[] toQueryIntervals(SAMSequenceDictionary dict, List<Interval> intervals)
+    {
+        List<QueryInterval> ret = new ArrayList<>();
+        for (Interval i : intervals)
+        {
+            SAMSequenceRecord rec = dict.getSequence(i.getContig());
+            if (rec == null)
+            {
+                continue;
+            }
+
+            int end = Math.min(i.getEnd(), rec.getSequenceLength());
+            if (end < i.getStart())
+            {
+                continue;
+            }
+
+            ret.add(new QueryInterval(rec.getSequenceIndex(), i.getStart(), end));
+        }
+
+        //this will sort the intervals and merge any that overlap or abut
+        return QueryInterval.optimizeIntervals(ret.toArray(new QueryInterval[0]));
     }
 
     private void processAlignment(SAMRecord r, IndexedFastaSequenceFile indexedRef) throws PipelineJobException
@@ -177,7 +547,7 @@ private void processAlignment(SAMRecord r, IndexedFastaSequenceFile indexedRef)
         {
             for (AlignmentAggregator aggregator : _alignmentAggregators)
             {
-                aggregator.inspectAlignment(r, null, new HashMap<>());
+                aggregator.inspectAlignment(r, null, Collections.emptyMap());
             }
             return;
         }
@@ -185,44 +555,45 @@ private void processAlignment(SAMRecord r, IndexedFastaSequenceFile indexedRef)
 
         ReferenceSequence ref = getReferenceSequenceFromFasta(r.getReferenceName(), indexedRef);
 
-        Map<Integer, List<NTSnp>> snpPositions = new TreeMap<>();
-        CigarPositionIterable cpi = new CigarPositionIterable(r);
-        CigarPositionIterable.CigarIterator ci = cpi.iterator();
-        while (ci.hasNext())
+        //NOTE: the CIGAR is walked once per read and cached on the record, so aggregators can reuse it via CigarPositionIterable.forRecord().
+        //Positions are inspected by index, and objects are only allocated for the (relatively rare) positions that differ from the reference.
+        Map<Integer, List<NTSnp>> snpPositions = null;
+        CigarPositionIterable cpi = CigarPositionIterable.forRecord(r);
+        byte[] refBases = ref.getBases();
+        for (int i = 0; i < cpi.size(); i++)
         {
-            CigarPositionIterable.PositionInfo pi = ci.next();
-            List<NTSnp> snps = snpPositions.get(pi.getLastRefPosition());
-            if (snps == null)
-                snps = new ArrayList<>();
+            if (!cpi.includeInSnpCount(i))
+                continue;
 
-            if (pi.includeInSnpCount())
-            {
-                NTSnp ntSnp = new NTSnp(pi);
+            // test whether refBase equals the readBase
+            if (cpi.getReferenceBase(i, refBases) == cpi.getReadBase(i))
+                continue;
 
-                // test whether refBase equals the readBase
-                if (ntSnp.getReferenceBase(ref.getBases()) != ntSnp.getReadBase())
-                {
-                    snps.add(ntSnp);
-                }
-            }
+            if (snpPositions == null)
+                snpPositions = new TreeMap<>();
 
-            if (snps.size() > 0)
-                snpPositions.put(pi.getLastRefPosition(), snps);
+            snpPositions.computeIfAbsent(cpi.getLastRefPosition(i), k -> new ArrayList<>(1)).add(new NTSnp(cpi.getPositionInfo(i)));
         }
 
-        //sort SNPs on insert idx
-        for (Integer pos : snpPositions.keySet())
+        if (snpPositions == null)
+        {
+            snpPositions = Collections.emptyMap();
+        }
+        else
         {
-            List<NTSnp> sortedSnps = snpPositions.get(pos);
-            sortedSnps.sort((snp1, snp2) ->
+            //sort SNPs on insert idx.  SNPs are added in CIGAR order, so this is normally already sorted
+            for (List<NTSnp> sortedSnps : snpPositions.values())
             {
-                Integer pos1 = snp1.getLastRefPosition();
-                Integer idx1 = snp1.getInsertIndex();
-                Integer compare1 = pos1.compareTo(snp2.getLastRefPosition());
+                if (sortedSnps.size() > 1)
+                {
+                    sortedSnps.sort((snp1, snp2) ->
+                    {
+                        int compare1 = Integer.compare(snp1.getLastRefPosition(), snp2.getLastRefPosition());
 
-                return compare1 != 0 ? compare1 : idx1.compareTo(snp2.getInsertIndex());
-            });
-            snpPositions.put(pos, sortedSnps);
+                        return compare1 != 0 ? compare1 : Integer.compare(snp1.getInsertIndex(), snp2.getInsertIndex());
+                    });
+                }
+            }
         }
 
         for (AlignmentAggregator aggregator : _alignmentAggregators)
@@ -233,15 +604,26 @@ private void processAlignment(SAMRecord r, IndexedFastaSequenceFile indexedRef)
 
     private ReferenceSequence getReferenceSequenceFromFasta(String refName, IndexedFastaSequenceFile indexedRef)
     {
-        if (_references.containsKey(refName))
+        ReferenceSequence ref = _references.get(refName);
+        if (ref != null)
         {
-            return _references.get(refName);
+            return ref;
         }
-        else
+
+        //NOTE: coordinate-sorted input visits each contig once, but queryname-sorted input can switch contigs on every read.
+        //Retain recently used contigs up to a fixed size rather than accumulating the whole genome. The newest contig is always kept.
+        ref = indexedRef.getSequence(refName);
+        _references.put(refName, ref);
+        _cachedBases += ref.length();
+
+        Iterator<ReferenceSequence> it = _references.values().iterator();
+        while (_cachedBases > MAX_CACHED_BASES && _references.size() > 1)
         {
-            _references.put(refName, indexedRef.getSequence(refName));
-            return _references.get(refName);
+            _cachedBases -= it.next().length();
+            it.remove();
         }
+
+        return ref;
     }
 
     public static class TestCase extends Assert
@@ -393,6 +775,45 @@ public void basicTest() throws Exception
 
         }
 
+        @Test
+        public void testMergeIntervals()
+        {
+            SAMSequenceDictionary dict = new SAMSequenceDictionary(Arrays.asList(new SAMSequenceRecord("chr1", 1000), new SAMSequenceRecord("chr2", 500)));
+            QueryInterval[] intervals = toQueryIntervals(dict, Arrays.asList(
+                    new Interval("chr2", 10, 20),
+                    new Interval("chr1", 100, 200),
+                    new Interval("chr1", 150, 300),
+                    new Interval("chr1", 301, 400),
+                    new Interval("chr2", 450, Integer.MAX_VALUE),
+                    new Interval("chrUnknown", 1, 10)
+            ));
+
+            Assert.assertEquals(3, intervals.length);
+            Assert.assertEquals(new QueryInterval(0, 100, 400), intervals[0]);
+            Assert.assertEquals(new QueryInterval(1, 10, 20), intervals[1]);
+            Assert.assertEquals(new QueryInterval(1, 450, 500), intervals[2]);
+        }
+
+        @Test
+        public void testCreateShards()
+        {
+            QueryInterval[] intervals = new QueryInterval[]{new QueryInterval(0, 1, 250), new QueryInterval(0, 400, 450), new QueryInterval(1, 1, 100)};
+
+            List<ReadShard> byContig = createShards(intervals, 0);
+            Assert.assertEquals(2, byContig.size());
+            Assert.assertEquals(2, byContig.get(0).getIntervals().length);
+            Assert.assertEquals(0, byContig.get(0).getOwnedAfter());
+            Assert.assertEquals(1, byContig.get(1).getIntervals().length);
+
+            List<ReadShard> byWindow = createShards(intervals, 100);
+            Assert.assertEquals(5, byWindow.size());
+            Assert.assertEquals(new QueryInterval(0, 201, 250), byWindow.get(2).getIntervals()[0]);
+            Assert.assertEquals(200, byWindow.get(2).getOwnedAfter());
+            Assert.assertEquals(new QueryInterval(0, 400, 450), byWindow.get(3).getIntervals()[0]);
+            Assert.assertEquals(250, byWindow.get(3).getOwnedAfter());
+            Assert.assertEquals(0, byWindow.get(4).getOwnedAfter());
+        }
+
         private static File getSampleDataDir()
         {
             Module module = ModuleLoader.getInstance().getModule(SequenceAnalysisModule.class);
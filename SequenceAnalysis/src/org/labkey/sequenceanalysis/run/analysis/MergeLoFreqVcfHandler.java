@@ -3,7 +3,6 @@
 import au.com.bytecode.opencsv.CSVReader;
 import au.com.bytecode.opencsv.CSVWriter;
 import htsjdk.samtools.SAMSequenceDictionary;
-import htsjdk.samtools.SAMSequenceRecord;
 import htsjdk.samtools.reference.IndexedFastaSequenceFile;
 import htsjdk.samtools.reference.ReferenceSequence;
 import htsjdk.samtools.util.CloseableIterator;
@@ -15,7 +14,6 @@
 import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
 import htsjdk.variant.vcf.VCFFileReader;
 import htsjdk.variant.vcf.VCFHeader;
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 import org.apache.logging.log4j.Logger;
@@ -33,13 +31,13 @@
 import org.labkey.api.sequenceanalysis.pipeline.SequenceOutputHandler;
 import org.labkey.api.sequenceanalysis.pipeline.SequencePipelineService;
 import org.labkey.api.sequenceanalysis.pipeline.ToolParameterDescriptor;
-import org.labkey.api.sequenceanalysis.run.SimpleScriptWrapper;
 import org.labkey.api.util.PageFlowUtil;
 import org.labkey.api.util.StringUtilsLabKey;
-import org.labkey.api.writer.PrintWriters;
 import org.labkey.sequenceanalysis.SequenceAnalysisModule;
 import org.labkey.sequenceanalysis.run.variant.SNPEffStep;
 import org.labkey.sequenceanalysis.run.variant.SnpEffWrapper;
+import org.labkey.sequenceanalysis.util.CoverageDepthIndex;
+import org.labkey.sequenceanalysis.util.GenomicRecordSorter;
 import org.labkey.sequenceanalysis.util.SequenceUtil;
 
 import java.io.BufferedWriter;
@@ -47,8 +45,6 @@
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
-import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -60,7 +56,6 @@
 import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import java.util.zip.GZIPOutputStream;
 
 public class MergeLoFreqVcfHandler extends AbstractParameterizedOutputHandler<SequenceOutputHandler.SequenceOutputProcessor>
@@ -351,7 +346,6 @@ else if ("I".equals(line[0]))
 
             ReferenceGenome genome = ctx.getSequenceSupport().getCachedGenome(genomeIds.iterator().next());
             SAMSequenceDictionary dict = SAMSequenceDictionaryExtractor.extractDictionary(genome.getSequenceDictionary().toPath());
-            Map<String, Integer> contigToOffset = getContigToOffset(dict);
 
             //Write whitelist as VCF, then run SNPEff:
             runSnpEff(ctx, siteToAlleleNoIndel, whitelistSites, uniqueIndels, genome, basename);
@@ -361,10 +355,20 @@ else if ("I".equals(line[0]))
             File output = new File(ctx.getOutputDir(), basename + "txt.gz");
             int idx = 0;
             int totalAdjusted = 0;
+            List<File> depthIndexFiles = new ArrayList<>();
             try (CSVWriter writer = new CSVWriter(new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(output)), StringUtilsLabKey.DEFAULT_CHARSET)), '\t', CSVWriter.NO_QUOTE_CHARACTER))
             {
                 writer.writeNext(new String[]{"ReadsetName", "OutputFileId", "ReadsetId", "Contig", "Start", "End", "Ref", "AltAlleles", "GatkDepth", "LoFreqDepth", "RefAF", "AltAFs", "NonRefCount", "AltCounts"});
 
+                //NOTE: convert each coverage file into a binary index once, rather than scanning the text file for every lookup
+                List<CoverageDepthIndex> depthIndexes = new ArrayList<>();
+                for (SequenceOutputFile so : inputFiles)
+                {
+                    File depthIndex = new File(ctx.getWorkingDirectory(), so.getRowid() + CoverageDepthIndex.EXTENSION);
+                    depthIndexFiles.add(depthIndex);
+                    depthIndexes.add(CoverageDepthIndex.open(getDepthFile(so.getFile()), depthIndex, dict, ctx.getLogger()));
+                }
+
                 int siteIdx = 0;
                 for (Pair<String, Integer> site : whitelistSites)
                 {
@@ -374,8 +378,10 @@ else if ("I".equals(line[0]))
                         ctx.getLogger().info("positions written: " + siteIdx + ", current pos: " + site.getRight());
                     }
 
-                    for (SequenceOutputFile so : inputFiles)
+                    int[] siteDepths = CoverageDepthIndex.getDepths(depthIndexes, site.getLeft(), site.getRight());
+                    for (int soIdx = 0; soIdx < inputFiles.size(); soIdx++)
                     {
+                        SequenceOutputFile so = inputFiles.get(soIdx);
                         VCFFileReader reader = getReader(so.getFile());
 
                         //NOTE: LoFreq should output one VCF line per allele:
@@ -403,7 +409,7 @@ else if ("I".equals(line[0]))
                             if (!it.hasNext())
                             {
                                 //No variant was called, so this is either considered all WT, or no-call
-                                int depth = getReadDepth(so.getFile(), contigToOffset, site.getLeft(), site.getRight(), ctx);
+                                int depth = siteDepths[soIdx];
                                 if (depth < minDepth)
                                 {
                                     line.add(String.valueOf(depth));
@@ -510,7 +516,7 @@ else if ("I".equals(line[0]))
                                 if (gatkDepth == null)
                                 {
                                     //No variant was called, so this is either considered all WT, or no-call
-                                    gatkDepth = getReadDepth(so.getFile(), contigToOffset, site.getLeft(), site.getRight(), ctx);
+                                    gatkDepth = siteDepths[soIdx];
                                     lofreqDepth = (int)NO_DATA_VAL;
 
                                 }
@@ -575,6 +581,10 @@ else if ("I".equals(line[0]))
             {
                 throw new PipelineJobException(e);
             }
+            finally
+            {
+                depthIndexFiles.forEach(File::delete);
+            }
 
             for (VCFFileReader reader : readerMap.values())
             {
@@ -613,21 +623,6 @@ private static String getCacheKey(String contig, int start)
             return contig + "<>" + start;
         }
 
-        private Map<String, Integer> getContigToOffset(SAMSequenceDictionary dict)
-        {
-            Map<String, Integer> ret = new HashMap<>();
-
-            //Account for the header line:
-            int offset = 1;
-            for (SAMSequenceRecord rec : dict.getSequences())
-            {
-                ret.put(rec.getSequenceName(), offset);
-                offset += rec.getSequenceLength();
-            }
-
-            return ret;
-        }
-
         private File getDepthFile(File vcf) throws PipelineJobException
         {
             //NOTE: Earlier iterations used multiple VCF naming conventions
@@ -641,70 +636,31 @@ private File getDepthFile(File vcf) throws PipelineJobException
             return gatkDepth;
         }
 
-        private int getReadDepth(File vcf, Map<String, Integer> contigToOffset, String contig, int position1, JobContext ctx) throws PipelineJobException
-        {
-            File gatkDepth = getDepthFile(vcf);
-
-            int lineNo = contigToOffset.get(contig) + position1;
-            try (Stream<String> lines = Files.lines(gatkDepth.toPath()))
-            {
-                String[] line = lines.skip(lineNo - 1).findFirst().get().split("\t");
-
-                if (!line[0].equals(contig + ":" + position1))
-                {
-                    throw new PipelineJobException("Incorrect line at " + lineNo + ", expected " + contig + ":" + position1 + ", but was: " + line[0]);
-                }
-
-                return Integer.parseInt(line[1]);
-            }
-            catch (Exception e)
-            {
-                ctx.getLogger().error("Error parsing GATK depth: " + vcf.getName() + " / " + gatkDepth.getPath() + " / " + lineNo);
-                throw new PipelineJobException(e);
-            }
-        }
-
         private void sortTsvFile(JobContext ctx, File input) throws PipelineJobException
         {
-            File output = new File(input.getParentFile(), "tmpTable.txt.gz");
-            File script = new File(input.getParentFile(), "script.sh");
-            try (PrintWriter writer = PrintWriters.getPrintWriter(script))
+            //NOTE: sort on contig, start and end, retaining the header line
+            GenomicRecordSorter sorter = new GenomicRecordSorter(ctx.getLogger());
+            sorter.setHeaderLines(1);
+            sorter.setContigColumn(4);
+            sorter.setStartColumn(5);
+            sorter.setEndColumn(6);
+            sorter.setThreads(SequencePipelineService.get().getMaxThreads(ctx.getLogger()));
+
+            long lineCountIn = SequencePipelineService.get().getLineCount(input);
+            try
             {
-                writer.println("#!/bin/bash");
-                writer.println("set -x");
-                writer.println("set -e");
-                writer.println("{");
-                writer.println("zcat " + input.getPath() +" | head -n 1;");
-                writer.println("zcat " + input.getPath() +" | tail -n +2 | sort -k5,5 -k6,6n -k7,7n;");
-                writer.println("} | gzip -c > " + output.getPath() + "\n");
+                sorter.sort(input, input);
             }
             catch (IOException e)
             {
                 throw new PipelineJobException(e);
             }
 
-            SimpleScriptWrapper wrapper = new SimpleScriptWrapper(ctx.getLogger());
-            wrapper.setWorkingDir(script.getParentFile());
-            wrapper.execute(Arrays.asList("/bin/bash", script.getPath()));
-
-            long lineCountIn = SequencePipelineService.get().getLineCount(input);
-            long lineCountOut = SequencePipelineService.get().getLineCount(output);
+            long lineCountOut = SequencePipelineService.get().getLineCount(input);
             if (lineCountIn != lineCountOut)
             {
                 throw new PipelineJobException("Error sorting file");
             }
-
-            input.delete();
-            script.delete();
-
-            try
-            {
-                FileUtils.moveFile(output, input);
-            }
-            catch (IOException e)
-            {
-                throw new PipelineJobException(e);
-            }
         }
 
         private final Map<File, VCFFileReader> readerMap = new HashMap<>();
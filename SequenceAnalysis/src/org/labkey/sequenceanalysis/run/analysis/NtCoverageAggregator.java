@@ -35,56 +35,38 @@
 import org.labkey.sequenceanalysis.run.util.NTSnp;
 
 import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.function.Function;
 
 /**
  * User: bimber
  * Date: 9/22/12
  * Time: 3:02 PM
  */
-public class NtCoverageAggregator extends AbstractAlignmentAggregator
+public class NtCoverageAggregator extends AbstractAlignmentAggregator implements ShardableAlignmentAggregator
 {
-    private final Map<String, int[][]> _totalCoverage = new HashMap<>();
-    private final Map<String, int[][]> _totalQual = new HashMap<>();
-    private final Map<String, int[][]> _hcCoverage = new HashMap<>();
-    private final Map<String, int[][]> _hcQual = new HashMap<>();
-    private final Map<String, ReferenceSequence> _refSequences = new HashMap<>();
+    private final Map<String, CoverageStore> _coverage = new HashMap<>();
     private int _totalFilteredSnps = 0;
     private int _totalAlignments = 0;
 
-    private final Map<String, int[][][]> _totalCoverageByBase = new HashMap<>();
-    private final Map<String, int[][][]> _totalQualByBase = new HashMap<>();
+    private static final char[] BASES = new char[]{'A', 'T', 'G', 'C', 'N', '-'};
+    private static final String[] BASE_FIELD_SUFFIXES = new String[]{"a", "t", "g", "c", "n", "del"};
 
-    private final Set<String> _encounteredReferences = new HashSet<>();
-
-    private final Map<Character, String> _baseMap = new HashMap<>()
-    {
-        {
-            put('A', "a");
-            put('T', "t");
-            put('G', "g");
-            put('C', "c");
-            put('N', "n");
-            put('-', "del");
-        }
-    };
-
-    private final Map<Character, Integer> _baseIndexMap = new HashMap<>()
+    //maps a base to its position in BASES, or -1 if not a recognized base
+    private static final byte[] BASE_INDEX = new byte[256];
+    static
     {
+        Arrays.fill(BASE_INDEX, (byte)-1);
+        for (int i = 0; i < BASES.length; i++)
         {
-            put('A', 0);
-            put('T', 1);
-            put('G', 2);
-            put('C', 3);
-            put('N', 4);
-            put('-', 5);
+            BASE_INDEX[BASES[i]] = (byte)i;
         }
-    };
+    }
 
     public NtCoverageAggregator(Logger log, File refFasta, AvgBaseQualityAggregator avgQualAggregator, Map<String, String> settings)
     {
@@ -101,238 +83,112 @@ public void inspectAlignment(SAMRecord record, ReferenceSequence ref, Map<Intege
 
         _totalAlignments++;
 
-        initHashes(ref);
+        CoverageStore store = _coverage.computeIfAbsent(ref.getName(), k -> new CoverageStore(ref));
 
-        CigarPositionIterable.CigarIterator ci = new CigarPositionIterable(record).iterator();
-        while (ci.hasNext())
+        CigarPositionIterable cpi = CigarPositionIterable.forRecord(record);
+        for (int i = 0; i < cpi.size(); i++)
         {
-            CigarPositionIterable.PositionInfo pi = ci.next();
-
             //We only want to include positions that would produce SNPs, which primarily means we skip soft-clipped sections
-            if (!pi.includeInSnpCount())
+            if (!cpi.includeInSnpCount(i))
                 continue;
 
-            if (snps.containsKey(pi.getRefPosition()))
+            List<NTSnp> snpsAtPosition = snps.get(cpi.getRefPosition(i));
+            if (snpsAtPosition != null)
             {
-                for (NTSnp ntSnp : snps.get(pi.getRefPosition()))
+                for (NTSnp ntSnp : snpsAtPosition)
                 {
                     inspectSnp(record, ntSnp);
                 }
             }
             else
             {
-                char base = (char)pi.getReadBase();
-                appendSnp(ref.getName(), pi.getLastRefPosition(), pi.getInsertIndex(), pi.getBaseQuality(), base, _totalCoverage, _totalQual, _totalCoverageByBase, _totalQualByBase);
-
-                if (pi.getReadBase() != BamIterator.AMBIGUITY_CHARACTER)
-                    appendSnp(ref.getName(), pi.getLastRefPosition(), pi.getInsertIndex(), pi.getBaseQuality(), base, _hcCoverage, _hcQual, null, null);
+                byte base = cpi.getReadBase(i);
+                store.add(cpi.getLastRefPosition(i), cpi.getInsertIndex(i), getBaseIndex(base), cpi.getBaseQuality(i), base != BamIterator.AMBIGUITY_CHARACTER);
             }
         }
     }
 
-    private void initHashes(ReferenceSequence ref)
-    {
-        if (_encounteredReferences.contains(ref.getName()))
-            return;
-
-        _encounteredReferences.add(ref.getName());
-
-        int capacity = ref.length() + 1;
-        final int INITIAL_SIZE = 4;
-        final int BASE_INITIAL_SIZE = 6;
-        _refSequences.put(ref.getName(), ref);
-        _totalCoverage.put(ref.getName(), new int[capacity][INITIAL_SIZE]);
-        _totalQual.put(ref.getName(), new int[capacity][INITIAL_SIZE]);
-        _hcCoverage.put(ref.getName(), new int[capacity][INITIAL_SIZE]);
-        _hcQual.put(ref.getName(), new int[capacity][INITIAL_SIZE]);
-
-        _totalCoverageByBase.put(ref.getName(), new int[capacity][INITIAL_SIZE][BASE_INITIAL_SIZE]);
-        _totalQualByBase.put(ref.getName(), new int[capacity][INITIAL_SIZE][BASE_INITIAL_SIZE]);
-    }
-
     public int getDepthAtPosition(String ref, int position, int index)
     {
-        if (!_totalCoverage.containsKey(ref))
-            return 0;
-
-        if (_totalCoverage.get(ref).length <= position)
-            return 0;
-
-        if (_totalCoverage.get(ref)[position].length <= index)
-            return 0;
+        CoverageStore store = _coverage.get(ref);
 
-        return _totalCoverage.get(ref)[position][index];
+        return store == null ? 0 : store.getCount(position, index, CoverageStore.TOTAL);
     }
 
     public int getHcDepthAtPosition(String ref, int position, int index)
     {
-        if (!_hcCoverage.containsKey(ref))
-            return 0;
+        CoverageStore store = _coverage.get(ref);
 
-        if (_hcCoverage.get(ref).length <= position)
-            return 0;
-
-        if (_hcCoverage.get(ref)[position].length <= index)
-            return 0;
-
-        return _hcCoverage.get(ref)[position][index];
+        return store == null ? 0 : store.getCount(position, index, CoverageStore.HC);
     }
 
     public int getDepthQualityAtPositionForBase(String ref, int position, int index, char base)
     {
-        if (!_totalCoverageByBase.containsKey(ref))
-            return 0;
-
-        if (_totalCoverageByBase.get(ref).length <= position)
-            return 0;
-
-        if (_totalCoverageByBase.get(ref)[position].length <= index)
-            return 0;
-
-        if (_totalCoverageByBase.get(ref)[position][_baseIndexMap.get(base)].length <= index)
-            return 0;
+        CoverageStore store = _coverage.get(ref);
 
-        return _totalCoverageByBase.get(ref)[position][index][_baseIndexMap.get(base)];
+        return store == null ? 0 : store.getCount(position, index, CoverageStore.FIRST_BASE + getBaseIndex((byte)base));
     }
 
-    public int getTotalQualityAtPositionForBase(String ref, int position, int index, char base)
+    public long getTotalQualityAtPositionForBase(String ref, int position, int index, char base)
     {
-        if (!_totalQualByBase.containsKey(ref))
-            return 0;
+        CoverageStore store = _coverage.get(ref);
 
-        if (_totalQualByBase.get(ref).length <= position)
-            return 0;
-
-        if (_totalQualByBase.get(ref)[position].length <= index)
-            return 0;
-
-        if (_totalQualByBase.get(ref)[position][_baseIndexMap.get(base)].length <= index)
-            return 0;
-
-        return _totalQualByBase.get(ref)[position][index][_baseIndexMap.get(base)];
+        return store == null ? 0 : store.getQual(position, index, CoverageStore.FIRST_BASE + getBaseIndex((byte)base));
     }
 
     private void inspectSnp(SAMRecord record, NTSnp ntSnp) throws PipelineJobException
     {
-        char base = (char)ntSnp.getReadBase();
-        if (!isPassingSnp(record, ntSnp))
+        byte base = ntSnp.getReadBase();
+        boolean passing = isPassingSnp(record, ntSnp);
+        if (!passing)
         {
-            base = (char) BamIterator.AMBIGUITY_CHARACTER;
+            base = BamIterator.AMBIGUITY_CHARACTER;
             _totalFilteredSnps++;
         }
 
-        appendSnp(ntSnp.getReferenceName(), ntSnp.getLastRefPosition(), ntSnp.getInsertIndex(), ntSnp.getBaseQuality(), base, _totalCoverage, _totalQual, _totalCoverageByBase, _totalQualByBase);
-
-        if ((char)BamIterator.AMBIGUITY_CHARACTER != base)
-        {
-            appendSnp(ntSnp.getReferenceName(), ntSnp.getLastRefPosition(), ntSnp.getInsertIndex(), ntSnp.getBaseQuality(), (char)ntSnp.getReadBase(), _hcCoverage, _hcQual, null, null);
-        }
+        //NOTE: filtered SNPs count towards total coverage as N, but are not included in high-confidence coverage
+        CoverageStore store = _coverage.get(ntSnp.getReferenceName());
+        store.add(ntSnp.getLastRefPosition(), ntSnp.getInsertIndex(), getBaseIndex(base), ntSnp.getBaseQuality(), passing && base != BamIterator.AMBIGUITY_CHARACTER);
     }
 
-    private int[] extendArray(int[] source, int newLength, int buffer)
+    private int getBaseIndex(byte base)
     {
-        newLength += buffer;
-        int[] newArray = new int[newLength];
-        System.arraycopy(source, 0, newArray, 0, source.length);
+        int idx = BASE_INDEX[base & 0xFF];
+        if (idx == -1)
+        {
+            throw new IllegalArgumentException("Unknown base: " + (char)base);
+        }
 
-        return newArray;
+        return idx;
     }
 
-    private int[][] extendArray(int[][] source, int newLength, int buffer)
+    @Override
+    public NtCoverageAggregator createShard(Function<ShardableAlignmentAggregator, ShardableAlignmentAggregator> shardResolver)
     {
-        newLength += buffer;
-        int[][] newArray = new int[newLength][6];
-        System.arraycopy(source, 0, newArray, 0, source.length);
-
-        return newArray;
+        return copySettings(new NtCoverageAggregator(getLogger(), getRefFasta(), _avgQualAggregator, Collections.emptyMap()));
     }
 
-    private void appendSnp(String refName, int position, int index, int qual, char base, Map<String, int[][]> coverageMap, Map<String, int[][]> qualMap, Map<String, int[][][]> coverageByBase, Map<String, int[][][]> qualByBase)
+    @Override
+    public void merge(ShardableAlignmentAggregator shard)
     {
-        final int DEFAULT_EXTENSION = 20;
-
-        //first track total coverage
-        int[] totals = coverageMap.get(refName)[position];
-        if (totals.length <= index)
-        {
-            totals = extendArray(totals, index + 1, DEFAULT_EXTENSION);
-            coverageMap.get(refName)[position] = totals;
-        }
-        totals[index]++;
-
+        NtCoverageAggregator other = (NtCoverageAggregator)shard;
+        mergeCounts(other);
+        _totalFilteredSnps += other._totalFilteredSnps;
+        _totalAlignments += other._totalAlignments;
 
-        //also add quality score
-        int[] qualTotals = qualMap.get(refName)[position];
-        if (qualTotals.length <= index)
+        for (String refName : other._coverage.keySet())
         {
-            qualTotals = extendArray(qualTotals, index + 1, DEFAULT_EXTENSION);
-            qualMap.get(refName)[position] = qualTotals;
-        }
-        qualTotals[index] += qual;
-
-
-        int baseIndex = getBaseIndex(base);
-
-        //also track coverage per base
-        if (coverageByBase != null)
-        {
-            int[][] totalsByBase = coverageByBase.get(refName)[position];
-            if (totalsByBase.length <= index)
+            CoverageStore store = _coverage.get(refName);
+            if (store == null)
             {
-                totalsByBase = extendArray(totalsByBase, index + 1, DEFAULT_EXTENSION);
-                coverageByBase.get(refName)[position] = totalsByBase;
+                //the common case: each contig is only inspected by one shard, so we can simply take ownership of its data
+                _coverage.put(refName, other._coverage.get(refName));
             }
-            totalsByBase[index][baseIndex]++;
-        }
-
-        //and quality
-        if (qualByBase != null)
-        {
-            int[][] qualTotalByBase = qualByBase.get(refName)[position];
-            if (qualTotalByBase.length <= index)
+            else
             {
-                qualTotalByBase = extendArray(qualTotalByBase, index + 1, DEFAULT_EXTENSION);
-                qualByBase.get(refName)[position] = qualTotalByBase;
+                store.merge(other._coverage.get(refName));
             }
-            qualTotalByBase[index][baseIndex] += qual;
-        }
-    }
-
-    private int getBaseIndex(char base)
-    {
-        return _baseIndexMap.get(base);
-    }
-
-    private int getValueForPosition(String refName, int position, int index, Map<String, int[][]> map)
-    {
-        if (!map.containsKey(refName))
-            return 0;
-
-        int[][] arr = map.get(refName);
-        if (arr[position].length <= index)
-            return 0;
-
-        return arr[position][index];
-    }
-
-    private int getValueForPositionAndBase(String refName, int position, int index, char base, Map<String, int[][][]> map)
-    {
-        if (!map.containsKey(refName))
-            return 0;
-
-        int[][][] arr = map.get(refName);
-        if (arr[position].length <= index)
-            return 0;
-
-        int baseInx = getBaseIndex(base);
-
-        if (arr[position][index].length <= baseInx)
-        {
-            //TOOD: error?
-            return 0;
         }
-
-        return arr[position][index][baseInx];
     }
 
     @Override
@@ -351,29 +207,31 @@ public void writeOutput(User u, Container c, AnalysisModel model)
 
             ReferenceLibraryHelper libraryHelper = getReferenceLibraryHelper();
 
+            //NOTE: rows are written as we iterate the arrays, and the same row map is reused for each insert
+            Map<String, Object> row = new HashMap<>();
+
             //insert new
-            for (String refName : _totalCoverage.keySet())
+            for (String refName : _coverage.keySet())
             {
                 Integer refId = libraryHelper.resolveSequenceId(refName);
+                CoverageStore store = _coverage.get(refName);
+                byte[] refBases = store.getReference().getBases();
 
                 //keep track of positions by reference
-                Integer totalSaved = summary.get(refName);
-                if (totalSaved == null)
-                    totalSaved = 0;
+                int totalSaved = 0;
 
-                int[][] coverageForRef = _totalCoverage.get(refName);
-                for (int position = 0; position < coverageForRef.length; position++)
+                for (int position = 0; position < store.length(); position++)
                 {
-                    int[] coverageByIndex = coverageForRef[position];
-                    for (int index = 0; index < coverageByIndex.length; index++)
+                    int maxIndex = store.getMaxInsertIndex(position);
+                    for (int index = 0; index <= maxIndex; index++)
                     {
-                        int savedDepth = getValueForPosition(refName, position, index, _totalCoverage);
+                        int savedDepth = store.getCount(position, index, CoverageStore.TOTAL);
                         if (savedDepth == 0)
                             continue;
 
-                        int savedHCDepth = getValueForPosition(refName, position, index, _hcCoverage);
+                        int savedHCDepth = store.getCount(position, index, CoverageStore.HC);
 
-                        Map<String, Object> row = new HashMap<>();
+                        row.clear();
                         row.put("analysis_id", model.getAnalysisId());
                         row.put("ref_nt_id", refId);
                         row.put("ref_nt_position", position + 1); //convert to 1-based
@@ -383,24 +241,24 @@ public void writeOutput(User u, Container c, AnalysisModel model)
 
                         int total = 0;
                         int n_total = 0;
-                        char wtBase = index == 0 ? (char)_refSequences.get(refName).getBases()[position] : 'x';
+                        char wtBase = index == 0 && position < refBases.length ? (char)refBases[position] : 'x';
 
-                        for (char base : _baseMap.keySet())
+                        for (int baseIdx = 0; baseIdx < BASES.length; baseIdx++)
                         {
-                            String fieldSuffix = _baseMap.get(base);
-                            Integer baseTotal = getValueForPositionAndBase(refName, position, index, base, _totalCoverageByBase);
+                            String fieldSuffix = BASE_FIELD_SUFFIXES[baseIdx];
+                            int baseTotal = store.getCount(position, index, CoverageStore.FIRST_BASE + baseIdx);
 
                             row.put("total_" + fieldSuffix, baseTotal);
 
                             total += baseTotal;
-                            if ('N' == base)
+                            if ('N' == BASES[baseIdx])
                                 n_total += baseTotal;
 
-                            double totalQual = getValueForPositionAndBase(refName, position, index, base, _totalQualByBase);
-                            double avgQual = baseTotal == 0 ? 0 : totalQual / baseTotal.doubleValue();
+                            double totalQual = store.getQual(position, index, CoverageStore.FIRST_BASE + baseIdx);
+                            double avgQual = baseTotal == 0 ? 0 : totalQual / baseTotal;
                             row.put("avgqual_" + fieldSuffix, avgQual);
 
-                            if (index == 0 && base == wtBase)
+                            if (index == 0 && BASES[baseIdx] == wtBase)
                             {
                                 row.put("wt", baseTotal);
                             }
@@ -454,6 +312,173 @@ public void writeOutput(User u, Container c, AnalysisModel model)
         }
     }
 
+    /**
+     * Holds the coverage for a single reference sequence.  For each position and insert index, we track total and high-confidence depth and quality,
+     * along with depth and quality per base.  Rather than allocating small arrays per position, non-insert positions are packed into flat primitive
+     * pages, which are only allocated once a read touches them.  Insertions (insert index above zero) are comparatively rare, and are stored sparsely.
+     */
+    private static class CoverageStore
+    {
+        private static final int TOTAL = 0;
+        private static final int HC = 1;
+        private static final int FIRST_BASE = 2;
+        private static final int FIELDS = FIRST_BASE + BASES.length;
+
+        private static final int PAGE_BITS = 16;
+        private static final int PAGE_SIZE = 1 << PAGE_BITS;
+        private static final int PAGE_MASK = PAGE_SIZE - 1;
+
+        private final ReferenceSequence _ref;
+        private final int _length;
+        private final int[][] _countPages;
+        private final long[][] _qualPages;
+
+        private final Map<Long, int[]> _insertCounts = new HashMap<>();
+        private final Map<Long, long[]> _insertQuals = new HashMap<>();
+        private final Map<Integer, Integer> _maxInsertIndex = new HashMap<>();
+
+        public CoverageStore(ReferenceSequence ref)
+        {
+            _ref = ref;
+            _length = ref.length() + 1;
+
+            int pages = (_length >> PAGE_BITS) + 1;
+            _countPages = new int[pages][];
+            _qualPages = new long[pages][];
+        }
+
+        public ReferenceSequence getReference()
+        {
+            return _ref;
+        }
+
+        public int length()
+        {
+            return _length;
+        }
+
+        public int getMaxInsertIndex(int position)
+        {
+            return _maxInsertIndex.getOrDefault(position, 0);
+        }
+
+        public void add(int position, int index, int baseIdx, int qual, boolean highConfidence)
+        {
+            int[] counts;
+            long[] quals;
+            int offset;
+            if (index == 0)
+            {
+                int page = position >> PAGE_BITS;
+                if (_countPages[page] == null)
+                {
+                    _countPages[page] = new int[PAGE_SIZE * FIELDS];
+                    _qualPages[page] = new long[PAGE_SIZE * FIELDS];
+                }
+
+                counts = _countPages[page];
+                quals = _qualPages[page];
+                offset = (position & PAGE_MASK) * FIELDS;
+            }
+            else
+            {
+                long key = getInsertKey(position, index);
+                counts = _insertCounts.computeIfAbsent(key, k -> new int[FIELDS]);
+                quals = _insertQuals.computeIfAbsent(key, k -> new long[FIELDS]);
+                offset = 0;
+                _maxInsertIndex.merge(position, index, Math::max);
+            }
+
+            counts[offset + TOTAL]++;
+            quals[offset + TOTAL] += qual;
+            counts[offset + FIRST_BASE + baseIdx]++;
+            quals[offset + FIRST_BASE + baseIdx] += qual;
+
+            if (highConfidence)
+            {
+                counts[offset + HC]++;
+                quals[offset + HC] += qual;
+            }
+        }
+
+        public int getCount(int position, int index, int field)
+        {
+            if (position < 0 || position >= _length)
+                return 0;
+
+            if (index == 0)
+            {
+                int[] counts = _countPages[position >> PAGE_BITS];
+                return counts == null ? 0 : counts[(position & PAGE_MASK) * FIELDS + field];
+            }
+
+            int[] counts = _insertCounts.get(getInsertKey(position, index));
+            return counts == null ? 0 : counts[field];
+        }
+
+        public long getQual(int position, int index, int field)
+        {
+            if (position < 0 || position >= _length)
+                return 0;
+
+            if (index == 0)
+            {
+                long[] quals = _qualPages[position >> PAGE_BITS];
+                return quals == null ? 0 : quals[(position & PAGE_MASK) * FIELDS + field];
+            }
+
+            long[] quals = _insertQuals.get(getInsertKey(position, index));
+            return quals == null ? 0 : quals[field];
+        }
+
+        public void merge(CoverageStore other)
+        {
+            for (int page = 0; page < _countPages.length; page++)
+            {
+                if (other._countPages[page] == null)
+                {
+                    continue;
+                }
+
+                if (_countPages[page] == null)
+                {
+                    _countPages[page] = other._countPages[page];
+                    _qualPages[page] = other._qualPages[page];
+                    continue;
+                }
+
+                for (int i = 0; i < _countPages[page].length; i++)
+                {
+                    _countPages[page][i] += other._countPages[page][i];
+                    _qualPages[page][i] += other._qualPages[page][i];
+                }
+            }
+
+            other._insertCounts.forEach((key, counts) -> {
+                int[] target = _insertCounts.computeIfAbsent(key, k -> new int[FIELDS]);
+                for (int i = 0; i < FIELDS; i++)
+                {
+                    target[i] += counts[i];
+                }
+            });
+
+            other._insertQuals.forEach((key, quals) -> {
+                long[] target = _insertQuals.computeIfAbsent(key, k -> new long[FIELDS]);
+                for (int i = 0; i < FIELDS; i++)
+                {
+                    target[i] += quals[i];
+                }
+            });
+
+            other._maxInsertIndex.forEach((position, index) -> _maxInsertIndex.merge(position, index, Math::max));
+        }
+
+        private static long getInsertKey(int position, int index)
+        {
+            return ((long)position << 32) | index;
+        }
+    }
+
     @Override
     public String getSynopsis()
     {
@@ -38,13 +38,14 @@
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Function;
 
 /**
  * User: bimber
  * Date: 9/22/12
  * Time: 2:57 PM
  */
-public class NtSnpByPosAggregator extends AbstractAlignmentAggregator
+public class NtSnpByPosAggregator extends AbstractAlignmentAggregator implements ShardableAlignmentAggregator
 {
     private NtCoverageAggregator _coverageAggregator = null;
     private boolean _coverageTrackedExternally;
@@ -214,6 +215,46 @@ public void writeOutput(User u, Container c, AnalysisModel model)
         }
     }
 
+    protected Map<String, String> getSettings()
+    {
+        return _settings;
+    }
+
+    @Override
+    public NtSnpByPosAggregator createShard(Function<ShardableAlignmentAggregator, ShardableAlignmentAggregator> shardResolver)
+    {
+        return initShard(new NtSnpByPosAggregator(getLogger(), getRefFasta(), _avgQualAggregator, getSettings()), shardResolver);
+    }
+
+    protected <T extends NtSnpByPosAggregator> T initShard(T shard, Function<ShardableAlignmentAggregator, ShardableAlignmentAggregator> shardResolver)
+    {
+        copySettings(shard);
+        if (_coverageTrackedExternally)
+        {
+            //the shared coverage aggregator is registered separately, so this shard should use that aggregator's shard
+            shard.setCoverageAggregator((NtCoverageAggregator)shardResolver.apply(_coverageAggregator), true);
+        }
+
+        return shard;
+    }
+
+    @Override
+    public void merge(ShardableAlignmentAggregator shard)
+    {
+        NtSnpByPosAggregator other = (NtSnpByPosAggregator)shard;
+        mergeCounts(other);
+        _totalFilteredSnps += other._totalFilteredSnps;
+        _totalAlignments += other._totalAlignments;
+
+        other._snps.forEach((key, count) -> _snps.merge(key, count, Integer::sum));
+        other._cacheDef.forEach(_cacheDef::putIfAbsent);
+
+        if (!_coverageTrackedExternally && other._coverageAggregator != null)
+        {
+            getCoverageAggregator().merge(other._coverageAggregator);
+        }
+    }
+
     public void setCoverageAggregator(NtCoverageAggregator coverageAggregator, boolean coverageTrackedExternally)
     {
         _coverageAggregator = coverageAggregator;
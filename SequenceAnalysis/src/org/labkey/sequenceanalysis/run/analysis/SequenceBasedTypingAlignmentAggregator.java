@@ -17,6 +17,7 @@
 
 import au.com.bytecode.opencsv.CSVReader;
 import au.com.bytecode.opencsv.CSVWriter;
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFormatException;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
@@ -29,6 +30,8 @@
 import htsjdk.samtools.fastq.FastqWriterFactory;
 import htsjdk.samtools.reference.IndexedFastaSequenceFile;
 import htsjdk.samtools.reference.ReferenceSequence;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.IOUtil;
 import htsjdk.samtools.util.Interval;
 import htsjdk.samtools.util.IntervalList;
 import org.apache.commons.io.FileUtils;
@@ -47,6 +50,7 @@
 import org.labkey.api.security.User;
 import org.labkey.api.sequenceanalysis.model.AnalysisModel;
 import org.labkey.api.util.FileType;
+import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.Pair;
 import org.labkey.api.util.StringUtilsLabKey;
 import org.labkey.api.writer.PrintWriters;
@@ -71,6 +75,7 @@
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
@@ -96,19 +101,46 @@ public class SequenceBasedTypingAlignmentAggregator extends AbstractAlignmentAgg
 
     private final Set<String> _distinctReferences = new HashSet<>();
     private Map<String, Integer> _acceptedReferences = new HashMap<>();
-    private Set<String> _acceptedReads = new HashSet<>();
-    private final Map<String, Integer> _acceptedAlignments = new HashMap<>();
+    private Set<Integer> _acceptedStage1Ids = new HashSet<>();
+    private int _acceptedAlignments = 0;
+
+    //NOTE: with coordinate-sorted input a read's alignments are scattered, so distinct names must be held. Query name grouped input only needs a count.
     private final Set<String> _uniqueReads = new HashSet<>();
-    private final Map<String, Set<String>> _alignmentsByReadM1 = new HashMap<>();
-    private final Map<String, Set<String>> _alignmentsByReadM2 = new HashMap<>();
+    private int _uniqueReadCount = 0;
+
+    //NOTE: rather than holding a set of reference names per read, each read stores the ID of an interned hit set
+    private final HitSetIndex _hitSets = new HitSetIndex();
+    private final Map<String, Integer> _alignmentsByReadM1 = new HashMap<>();
+    private final Map<String, Integer> _alignmentsByReadM2 = new HashMap<>();
     private final Map<String, IntervalList> _intervalsByReference = new HashMap<>();
     private int _forwardAlignmentsDiscardedBySnps = 0;
     private int _reverseAlignmentsDiscardedBySnps = 0;
 
-    private final Set<String> _unaligned = new HashSet<>();
-    private final Set<String> _unmappedWithMappedMate = new HashSet<>();
-    private final Set<String> _mappedWithoutHits = new HashSet<>();
-    private Set<String> _mappedWithoutHitsExcludingPassed = new HashSet<>();
+    //NOTE: in query name grouped mode, only the hits of the current read are held. Each read is summarized (stage 1) when the next read begins.
+    private boolean _queryNameGrouped = false;
+    private String _currentReadName = null;
+    private int _currentM1 = NO_HITS;
+    private int _currentM2 = NO_HITS;
+    private static final int NO_HITS = -1;
+
+    //stage 1 totals, keyed on the interned set of reference IDs, which are accumulated as each read is summarized
+    private final Map<Integer, HitSet> _stage1Totals = new HashMap<>();
+    private final Map<BitSet, Integer> _refSetIds = new HashMap<>();
+    private boolean _stage1Complete = false;
+
+    //the stage 1 hit set of each read is written here, so the names of reads without passing hits can be found for outputUnmappedReads()
+    private File _readOutcomeFile = null;
+    private PrintWriter _readOutcomeWriter = null;
+    private CSVWriter _logWriter = null;
+
+    private int _unmappedReads = 0;
+    private int _unaligned = 0;
+    private int _unmappedWithMappedMate = 0;
+    private int _mappedWithoutHits = 0;
+    private int _mappedWithoutHitsExcludingPassed = 0;
+    private int _readsWithM1Hits = 0;
+    private int _readsWithM2Hits = 0;
+    private int _readsWithHits = 0;
     private int _totalAlignmentsInspected = 0;
     private final int _maxSNPs = 0;
     private int _skippedReferencesByPct = 0;
@@ -122,7 +154,7 @@ public class SequenceBasedTypingAlignmentAggregator extends AbstractAlignmentAgg
     private int _pairsWithoutSharedHits = 0;
     private int _singletonCalls = 0;
     private int _pairedCalls = 0;
-    private final Set<String> _rejectedSingletonReadNames = new HashSet<>();
+    private int _rejectedSingletonReads = 0;
     private int _rejectedSingletonAlignments = 0;
     private int _shortAlignments = 0;
 
@@ -151,6 +183,18 @@ public SequenceBasedTypingAlignmentAggregator(Logger log, File refFasta, AvgBase
 
         if (settings.get("minAlignmentLength") != null)
             _minAlignmentLength = Integer.parseInt(settings.get("minAlignmentLength"));
+
+        if (settings.get("queryNameGrouped") != null)
+            _queryNameGrouped = Boolean.parseBoolean(settings.get("queryNameGrouped"));
+    }
+
+    /**
+     * If true, the input must have all alignments for a read name together (i.e. queryname sorted or grouped).
+     * Each read is then summarized as soon as its alignments end, so memory does not grow with the number of reads.
+     */
+    public void setQueryNameGrouped(boolean queryNameGrouped)
+    {
+        _queryNameGrouped = queryNameGrouped;
     }
 
     public void setOutputLog(File outputLog)
@@ -176,7 +220,25 @@ public void inspectAlignment(SAMRecord record, ReferenceSequence ref, Map<Intege
             return;
         }
 
-        _uniqueReads.add(record.getReadName());
+        if (_queryNameGrouped)
+        {
+            if (!record.getReadName().equals(_currentReadName))
+            {
+                if (_uniqueReadCount == 0)
+                {
+                    verifyGrouped(record);
+                }
+
+                closeRead();
+                _currentReadName = record.getReadName();
+                _uniqueReadCount++;
+            }
+        }
+        else
+        {
+            _uniqueReads.add(record.getReadName());
+        }
+
         if (record.isSecondaryOrSupplementary())
         {
             _secondarySupplementary++;
@@ -186,11 +248,16 @@ public void inspectAlignment(SAMRecord record, ReferenceSequence ref, Map<Intege
         {
             if (!record.getReadPairedFlag() || record.getMateUnmappedFlag())
             {
-                _unaligned.add(record.getReadName());
+                //NOTE: both mates of an unaligned pair are unmapped, so the pair is only counted once
+                if (!record.getReadPairedFlag() || record.getFirstOfPairFlag())
+                {
+                    _unmappedReads++;
+                    _unaligned++;
+                }
             }
             else
             {
-                _unmappedWithMappedMate.add(record.getReadName());
+                _unmappedWithMappedMate++;
             }
         }
         else
@@ -204,27 +271,12 @@ public void inspectAlignment(SAMRecord record, ReferenceSequence ref, Map<Intege
             }
 
             Integer numSnps = getNumMismatches(record, snps);
-            String key = getKey(record);
             if (numSnps <= _maxSNPs)
             {
-                Integer total = _acceptedAlignments.get(key);
-                if (total == null)
-                    total = 0;
-
-                total++;
-                _acceptedAlignments.put(key, total);
-
                 if (numSnps != snps.size())
                     _alignmentsIncludingDiscardedSnps++;
 
-                if (!record.getReadPairedFlag() || record.getFirstOfPairFlag())
-                {
-                    appendAlignment(record, ref, _alignmentsByReadM1);
-                }
-                else
-                {
-                    appendAlignment(record, ref, _alignmentsByReadM2);
-                }
+                appendAlignment(record, !record.getReadPairedFlag() || record.getFirstOfPairFlag());
             }
             else
             {
@@ -240,20 +292,74 @@ public void inspectAlignment(SAMRecord record, ReferenceSequence ref, Map<Intege
         }
     }
 
-    private void appendAlignment(SAMRecord record, ReferenceSequence ref, Map<String, Set<String>> alignmentsByRead)
+    private void appendAlignment(SAMRecord record, boolean isFirstMate)
     {
-        Set<String> alignments = alignmentsByRead.get(record.getReadName());
-        if (alignments == null)
-            alignments = new HashSet<>();
+        Map<String, Integer> alignmentsByRead = isFirstMate ? _alignmentsByReadM1 : _alignmentsByReadM2;
+        Map<String, Integer> alignmentsByMate = isFirstMate ? _alignmentsByReadM2 : _alignmentsByReadM1;
 
-        alignments.add(record.getReferenceName());
+        int hit = _hitSets.getHit(record.getReferenceName(), record.getReadNegativeStrandFlag());
+        int setId = _queryNameGrouped ? (isFirstMate ? _currentM1 : _currentM2) : alignmentsByRead.getOrDefault(record.getReadName(), NO_HITS);
+        int mateSetId = _queryNameGrouped ? (isFirstMate ? _currentM2 : _currentM1) : alignmentsByMate.getOrDefault(record.getReadName(), NO_HITS);
+        if (setId == NO_HITS || !_hitSets.contains(setId, hit))
+        {
+            //accepted alignments are counted once per distinct read name, reference and strand, regardless of mate
+            if (mateSetId == NO_HITS || !_hitSets.contains(mateSetId, hit))
+            {
+                _acceptedAlignments++;
+            }
+
+            setId = _hitSets.add(setId == NO_HITS ? HitSetIndex.EMPTY : setId, hit);
+        }
+
+        if (!_queryNameGrouped)
+        {
+            alignmentsByRead.put(record.getReadName(), setId);
+        }
+        else if (isFirstMate)
+        {
+            _currentM1 = setId;
+        }
+        else
+        {
+            _currentM2 = setId;
+        }
 
-        alignmentsByRead.put(record.getReadName(), alignments);
         appendInterval(record);
 
         _distinctReferences.add(record.getReferenceName());
     }
 
+    private void verifyGrouped(SAMRecord record) throws PipelineJobException
+    {
+        SAMFileHeader header = record.getHeader();
+        if (header != null && header.getSortOrder() != SAMFileHeader.SortOrder.queryname && header.getGroupOrder() != SAMFileHeader.GroupOrder.query)
+        {
+            throw new PipelineJobException("Query name grouped mode requires alignments sorted or grouped by read name, but the BAM sort order is: " + header.getSortOrder());
+        }
+    }
+
+    /**
+     * Summarizes the hits of the current read, in query name grouped mode
+     */
+    private void closeRead() throws PipelineJobException
+    {
+        try
+        {
+            if (_currentReadName != null && (_currentM1 != NO_HITS || _currentM2 != NO_HITS))
+            {
+                summarizeRead(_currentReadName, _currentM1, _currentM2);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+
+        _currentReadName = null;
+        _currentM1 = NO_HITS;
+        _currentM2 = NO_HITS;
+    }
+
     private void appendInterval(SAMRecord record)
     {
         if (!doTrackIntervals)
@@ -316,12 +422,26 @@ public OutputStream getLogOutputStream(File outputLog) throws IOException
         }
     }
 
-    public Map<String, HitSet> getAlignmentSummary(File outputLog) throws IOException, PipelineJobException
+    private CSVWriter getLogWriter() throws IOException
+    {
+        if (_logWriter == null && _outputLog != null)
+        {
+            _logWriter = new CSVWriter(new BufferedWriter(new OutputStreamWriter(getLogOutputStream(_outputLog), StandardCharsets.UTF_8)), '\t', CSVWriter.NO_QUOTE_CHARACTER);
+            _logWriter.writeNext(new String[]{""});
+            _logWriter.writeNext(new String[]{"*****Summary By Read*****"});
+            _logWriter.writeNext(new String[]{"Orientation", "ReadName", "InitialRefs", "PassingRefs", "RefName", "PassedFilters", "ReadsForReference", "Has Aligned Mate?"});
+        }
+
+        return _logWriter;
+    }
+
+    public Map<String, HitSet> getAlignmentSummary() throws IOException, PipelineJobException
     {
-        try (CSVWriter writer = outputLog == null ? null : new CSVWriter(new BufferedWriter(new OutputStreamWriter(getLogOutputStream(outputLog), StandardCharsets.UTF_8)), '\t', CSVWriter.NO_QUOTE_CHARACTER))
+        try
         {
             //these are stage-1 filters, filtering on the read-pair level
-            Map<String, HitSet> totals = doFilterStage1(writer);
+            Map<String, HitSet> totals = doFilterStage1();
+            CSVWriter writer = getLogWriter();
 
             //stage 2 filters, filtering across the set of alignments
             Map<String, HitSet> totals2 = doFilterStage2(writer, totals);
@@ -339,13 +459,13 @@ public Map<String, HitSet> getAlignmentSummary(File outputLog) throws IOExceptio
                 for (String refName : hs.refNames)
                 {
                     int total = totalByReferenceFinal.containsKey(refName) ? totalByReferenceFinal.get(refName) : 0;
-                    total += hs.readNames.size();
+                    total += hs.reads;
                     totalByReferenceFinal.put(refName, total);
                 }
 
                 if (!hs.refNames.isEmpty())
                 {
-                    distinctFinalReads += hs.readNames.size();
+                    distinctFinalReads += hs.reads;
                 }
             }
 
@@ -353,74 +473,138 @@ public Map<String, HitSet> getAlignmentSummary(File outputLog) throws IOExceptio
             getLogger().info("\tpassing references: " + totalByReferenceFinal.size());
             getLogger().info("\ttotal passing reads: " + distinctFinalReads);
             getLogger().info("\ttotal allele groups: " + totals4.size());
-            getLogger().info("\ttotal unaligned reads: " + _unaligned.size());
+            getLogger().info("\ttotal unaligned reads: " + _unaligned);
 
             return totals4;
         }
+        finally
+        {
+            if (_logWriter != null)
+            {
+                _logWriter.close();
+                _logWriter = null;
+            }
+        }
     }
 
-    private Map<String, HitSet> doFilterStage1(CSVWriter writer)
+    private Map<String, HitSet> doFilterStage1() throws IOException, PipelineJobException
     {
+        getLogger().info("starting stage 1 filters (by read pair)");
+        getLogger().info("\tinitial references: " + _distinctReferences.size());
+        getLogger().info("\tinitial reads: " + getUniqueReadCount());
+        getLogger().info("\tinitial unaligned reads: " + _unmappedReads);
+
+        if (!_stage1Complete)
+        {
+            if (_queryNameGrouped)
+            {
+                closeRead();
+            }
+            else
+            {
+                //handle single or first-mate reads first
+                for (Map.Entry<String, Integer> e : _alignmentsByReadM1.entrySet())
+                {
+                    summarizeRead(e.getKey(), e.getValue(), _alignmentsByReadM2.getOrDefault(e.getKey(), NO_HITS));
+                }
+
+                for (Map.Entry<String, Integer> e : _alignmentsByReadM2.entrySet())
+                {
+                    if (!_alignmentsByReadM1.containsKey(e.getKey()))
+                    {
+                        summarizeRead(e.getKey(), NO_HITS, e.getValue());
+                    }
+                }
+
+                //NOTE: once summarized, the per-read hits are no longer needed
+                _alignmentsByReadM1.clear();
+                _alignmentsByReadM2.clear();
+            }
+
+            closeReadOutcomeWriter();
+            _stage1Complete = true;
+        }
+
+        getLogger().info("\talignments helped using paired read: " + _alignmentsHelpedByMate);
+        if (_onlyImportValidPairs)
+        {
+            getLogger().info("\talignments rejected because they lack a valid pair: " + _rejectedSingletonAlignments);
+            getLogger().info("\tdistinct reads rejected because they lack a valid pair: " + _rejectedSingletonReads);
+        }
+
         Map<String, HitSet> totals = new HashMap<>();
-        if (writer != null)
+        for (HitSet hs : _stage1Totals.values())
         {
-            writer.writeNext(new String[]{""});
-            writer.writeNext(new String[]{"*****Summary By Read*****"});
-            writer.writeNext(new String[]{"Orientation", "ReadName", "InitialRefs", "PassingRefs", "RefName", "PassedFilters", "ReadsForReference", "Has Aligned Mate?"});
+            totals.put(hs.getKey(), hs);
         }
 
-        getLogger().info("starting stage 1 filters (by read pair)");
-        getLogger().info("\tinitial references: " + _distinctReferences.size());
-        getLogger().info("\tinitial reads: " + _uniqueReads.size());
-        getLogger().info("\tinitial unaligned reads: " + _unaligned.size());
+        return totals;
+    }
 
-        //handle single or first-mate reads first
-        for (String readName : _alignmentsByReadM1.keySet())
+    /**
+     * Applies the stage 1 (read pair) filters to a single read, given the hit set IDs of each mate, and adds it to the stage 1 totals
+     */
+    private void summarizeRead(String readName, int m1, int m2) throws IOException
+    {
+        CSVWriter writer = getLogWriter();
+        _readsWithHits++;
+        if (m2 != NO_HITS)
         {
-            List<String> refNames = new ArrayList(_alignmentsByReadM1.get(readName));
-            List<String> refNames2 = null;
+            _readsWithM2Hits++;
+        }
+
+        if (m1 != NO_HITS)
+        {
+            _readsWithM1Hits++;
+
+            BitSet refIds = _hitSets.getRefIds(m1);
+            BitSet refIds2 = null;
 
             //if this read has an aligned mate, we find the intersect between its alignments
-            Boolean hasMate = false;
-            if (_alignmentsByReadM2.containsKey(readName))
+            boolean hasMate = false;
+            if (m2 != NO_HITS)
             {
-                refNames2 = new ArrayList<>(_alignmentsByReadM2.get(readName));
+                refIds2 = _hitSets.getRefIds(m2);
 
                 // note: if reverse read has no alignments, skip this optimization
                 // it will only pass if we have onlyImportValidPairs=false
-                if (!refNames2.isEmpty())
+                if (!refIds2.isEmpty())
                 {
-                    int originalSize = refNames.size();
-                    refNames.retainAll(refNames2);
-                    if (!refNames.isEmpty())
+                    BitSet shared = (BitSet)refIds.clone();
+                    shared.and(refIds2);
+                    if (!shared.isEmpty())
                     {
-                        if (refNames.size() != originalSize)
+                        if (shared.cardinality() != refIds.cardinality())
                         {
                             _alignmentsHelpedByMate++;
                         }
+                        refIds = shared;
                         hasMate = true;
                     }
                     else
+                    {
+                        refIds = shared;
                         _pairsWithoutSharedHits++;
+                    }
                 }
             }
 
+            List<String> refNames = _hitSets.getRefNames(refIds);
             if (writer != null)
             {
-                List<String> names = new ArrayList<>(_alignmentsByReadM1.get(readName));
-                Collections.sort(names);
-
+                List<String> names = _hitSets.getRefNames(_hitSets.getRefIds(m1));
                 for (String refName : names)
                 {
-                    writer.writeNext(new String[]{"Forward", readName, String.valueOf(_alignmentsByReadM1.get(readName).size()), String.valueOf(refNames.size()), refName, String.valueOf(refNames.contains(refName)), hasMate.toString()});
+                    writer.writeNext(new String[]{"Forward", readName, String.valueOf(names.size()), String.valueOf(refNames.size()), refName, String.valueOf(refNames.contains(refName)), String.valueOf(hasMate)});
                 }
             }
 
-            if (refNames.size() > 0)
+            if (!refNames.isEmpty())
             {
+                String refNames2 = refIds2 == null ? "N/A" : StringUtils.join(_hitSets.getRefNames(refIds2), ";");
                 if (!_onlyImportValidPairs || hasMate)
                 {
-                    appendReadToTotals(readName, refNames, totals, true, hasMate);
+                    appendReadToTotals(readName, refIds, true, hasMate);
 
                     if (hasMate)
                     {
@@ -431,87 +615,65 @@ private Map<String, HitSet> doFilterStage1(CSVWriter writer)
                         _singletonCalls++;
                         if (writer != null)
                         {
-                            writer.writeNext(new String[]{"Singleton", readName, StringUtils.join(refNames, ";"), (refNames2 == null ? "N/A" : StringUtils.join(refNames2, ";"))});
+                            writer.writeNext(new String[]{"Singleton", readName, StringUtils.join(refNames, ";"), refNames2});
                         }
                     }
                 }
                 else
                 {
                     _rejectedSingletonAlignments++;
-                    _rejectedSingletonReadNames.add(readName);
-                    _unaligned.add(readName);
-                    _mappedWithoutHits.add(readName);
+                    _rejectedSingletonReads++;
+                    appendReadWithoutHits(readName);
 
                     if (writer != null)
                     {
-                        writer.writeNext(new String[]{"Singleton", readName, StringUtils.join(refNames, ";"), (refNames2 == null ? "N/A" : StringUtils.join(refNames2, ";"))});
+                        writer.writeNext(new String[]{"Singleton", readName, StringUtils.join(refNames, ";"), refNames2});
                     }
                 }
             }
             else
             {
-                _unaligned.add(readName);
-                _mappedWithoutHits.add(readName);
+                appendReadWithoutHits(readName);
             }
         }
-
-        for (String mateName : _alignmentsByReadM2.keySet())
+        else
         {
-            if (_alignmentsByReadM1.containsKey(mateName))
-                continue;
-
-            List<String> refNames = new ArrayList(_alignmentsByReadM2.get(mateName));
+            BitSet refIds = _hitSets.getRefIds(m2);
+            List<String> refNames = _hitSets.getRefNames(refIds);
             if (!_onlyImportValidPairs)
             {
-                if (refNames.size() > 0)
+                if (!refNames.isEmpty())
                 {
-                    appendReadToTotals(mateName, refNames, totals, false, true);
+                    appendReadToTotals(readName, refIds, false, true);
                     _singletonCalls++;
-                    if (writer != null)
-                    {
-                        writer.writeNext(new String[]{"Singleton", mateName, "N/A", StringUtils.join(refNames, ";")});
-                    }
                 }
                 else
                 {
-                    _unaligned.add(mateName);
-                    _mappedWithoutHits.add(mateName);
+                    appendReadWithoutHits(readName);
+                }
 
-                    if (writer != null)
-                    {
-                        writer.writeNext(new String[]{"Singleton", mateName, "N/A", StringUtils.join(refNames, ";")});
-                    }
+                if (writer != null)
+                {
+                    writer.writeNext(new String[]{"Singleton", readName, "N/A", StringUtils.join(refNames, ";")});
                 }
             }
             else
             {
                 _rejectedSingletonAlignments++;
-                _rejectedSingletonReadNames.add(mateName);
-                _unaligned.add(mateName);
-                _mappedWithoutHits.add(mateName);
+                _rejectedSingletonReads++;
+                appendReadWithoutHits(readName);
             }
 
             if (writer != null)
             {
-                List<String> names = new ArrayList<>(_alignmentsByReadM2.get(mateName));
-                Collections.sort(names);
-                for (String refName : names)
+                for (String refName : refNames)
                 {
-                    writer.writeNext(new String[]{"Reverse", mateName, String.valueOf(_alignmentsByReadM2.get(mateName).size()), String.valueOf(refNames.size()), refName, String.valueOf(refNames.contains(refName)), ""});
+                    writer.writeNext(new String[]{"Reverse", readName, String.valueOf(refNames.size()), String.valueOf(refNames.size()), refName, String.valueOf(true), ""});
                 }
             }
         }
-
-        getLogger().info("\talignments helped using paired read: " + _alignmentsHelpedByMate);
-        if (_onlyImportValidPairs)
-        {
-            getLogger().info("\talignments rejected because they lack a valid pair: " + _rejectedSingletonAlignments);
-            getLogger().info("\tdistinct reads rejected because they lack a valid pair: " + _rejectedSingletonReadNames.size());
-        }
-
-        return totals;
     }
-    
+
     private Map<String, HitSet> doFilterStage2(CSVWriter writer, Map<String, HitSet> stage1Totals)
     {
         //build map of totals by ref, only counting each read pair once
@@ -565,8 +727,9 @@ else if (_minPctForRef != null && pct < _minPctForRef)
             refNames.removeAll(disallowedReferences);
             if (refNames.isEmpty())
             {
-                _unaligned.addAll(hs.readNames);
-                _mappedWithoutHits.addAll(hs.readNames);
+                _unaligned += hs.reads;
+                _mappedWithoutHits += hs.reads;
+                _mappedWithoutHitsExcludingPassed += hs.reads;
             }
             else
             {
@@ -597,13 +760,13 @@ private Pair<Integer, Map<String, Integer>> writeTotalSummary(String label, Map<
             for (String refName : hs.refNames)
             {
                 int total = totalByReference.containsKey(refName) ? totalByReference.get(refName) : 0;
-                total += hs.readNames.size();
+                total += hs.reads;
                 totalByReference.put(refName, total);
             }
 
             if (!hs.refNames.isEmpty())
             {
-                distinctReads += hs.readNames.size();
+                distinctReads += hs.reads;
             }
         }
 
@@ -611,7 +774,7 @@ private Pair<Integer, Map<String, Integer>> writeTotalSummary(String label, Map<
         getLogger().info("\tinitial references: " + totalByReference.size());
         getLogger().info("\tinitial distinct reads: " + distinctReads);
         getLogger().info("\tinitial allele groups: " + stageTotals.size());
-        getLogger().info("\tinitial unaligned reads: " + _unaligned.size());
+        getLogger().info("\tinitial unaligned reads: " + _unaligned);
 
         return Pair.of(distinctReads, totalByReference);
     }
@@ -646,6 +809,7 @@ private Map<String, HitSet> doFilterStage3(CSVWriter writer, Map<String, HitSet>
             }
 
             int idx = 0;
+            boolean anyDiscarded = false;
             List<String> passingRefs = new ArrayList<>();
             for (String refName : hs.refNames)
             {
@@ -654,8 +818,7 @@ private Map<String, HitSet> doFilterStage3(CSVWriter writer, Map<String, HitSet>
                 if (_minPctWithinGroup != null && pct < _minPctWithinGroup)
                 {
                     msg = "**discarded due to group pct filter";
-                    _unaligned.addAll(hs.readNames);
-                    _mappedWithoutHits.addAll(hs.readNames);
+                    anyDiscarded = true;
                     totalFiltered++;
                 }
                 else
@@ -668,7 +831,7 @@ private Map<String, HitSet> doFilterStage3(CSVWriter writer, Map<String, HitSet>
                     writer.writeNext(new String[]{
                             idx == 0 ? refGroup : "",
                             refName,
-                            String.valueOf(hs.readNames.size()),
+                            String.valueOf(hs.reads),
                             String.valueOf(totalByReferenceStage3.get(refName)),
                             String.valueOf(100.0 * ((double) totalByReferenceStage3.get(refName) / pair.first)),
                             String.valueOf(pct),
@@ -679,11 +842,17 @@ private Map<String, HitSet> doFilterStage3(CSVWriter writer, Map<String, HitSet>
                 idx++;
             }
 
+            //NOTE: reads are counted once per hit set, even if several references were discarded
+            if (anyDiscarded)
+            {
+                _unaligned += hs.reads;
+                _mappedWithoutHits += hs.reads;
+            }
+
             //merge sets
             if (passingRefs.isEmpty())
             {
-                _unaligned.addAll(hs.readNames);
-                _mappedWithoutHits.addAll(hs.readNames);
+                _mappedWithoutHitsExcludingPassed += hs.reads;
             }
             else
             {
@@ -767,7 +936,7 @@ private Map<String, HitSet> doFilterStage4(CSVWriter writer, Map<String, HitSet>
                 }
 
                 resultByLineage.get(lineage).add(hs);
-                totalByLineage.put(lineage, totalByLineage.get(lineage) + hs.readNames.size());
+                totalByLineage.put(lineage, totalByLineage.get(lineage) + hs.reads);
             }
             else
             {
@@ -810,7 +979,7 @@ private Map<String, HitSet> doFilterStage4(CSVWriter writer, Map<String, HitSet>
             int setsSkipped = 0;
             for (HitSet hs : sets)
             {
-                double pctOfLineage = (double)hs.readNames.size() / (double)totalByLineage.get(lineage);
+                double pctOfLineage = (double)hs.reads / (double)totalByLineage.get(lineage);
                 if (pctOfLineage < _minPctForLineageFiltering)
                 {
                     setsSkipped++;
@@ -853,7 +1022,7 @@ private Map<String, HitSet> doFilterStage4(CSVWriter writer, Map<String, HitSet>
                 for (HitSet hs : sets)
                 {
                     //if below the threshold, leave as is
-                    double pctOfLineage = (double)hs.readNames.size() / (double)totalByLineage.get(lineage);
+                    double pctOfLineage = (double)hs.reads / (double)totalByLineage.get(lineage);
                     if (pctOfLineage < _minPctForLineageFiltering)
                     {
                         if (stage4Totals.containsKey(hs.getKey()))
@@ -901,9 +1070,12 @@ private Map<String, HitSet> doFilterStage4(CSVWriter writer, Map<String, HitSet>
 
     private class HitSet
     {
-        public Set<String> readNames = new HashSet<>();
+        public int reads = 0;
         public Set<String> refNames = new TreeSet<>();
 
+        //the stage 1 sets merged into this one, which are used to identify the reads without passing hits
+        public Set<Integer> stage1Ids = new HashSet<>();
+
         public HitSet(Collection<String> refNames)
         {
             this.refNames.addAll(refNames);
@@ -918,7 +1090,8 @@ public void append(HitSet other)
             forward += other.forward;
             reverse += other.reverse;
             valid_pair += other.valid_pair;
-            readNames.addAll(other.readNames);
+            reads += other.reads;
+            stage1Ids.addAll(other.stage1Ids);
         }
 
         public String getKey()
@@ -930,15 +1103,118 @@ public String getKey()
         }
     }
 
-    private void appendReadToTotals(String readName, List<String> refNames, Map<String, HitSet> totals, boolean hasForward, boolean hasReverse)
+    /**
+     * Interns the distinct sets of hits observed for reads.  Each hit is a reference and strand, encoded as a single int, and each distinct
+     * set of hits is stored once as a BitSet.  Because most reads share a small number of hit combinations, each read only needs to track
+     * the int ID of its current set.
+     */
+    private static class HitSetIndex
     {
-        Collections.sort(refNames);
-        String refs = StringUtils.join(refNames, "||");
+        public static final int EMPTY = 0;
+
+        private final Map<String, Integer> _refIds = new HashMap<>();
+        private final List<String> _refNames = new ArrayList<>();
+
+        private final Map<BitSet, Integer> _setIds = new HashMap<>();
+        private final List<BitSet> _sets = new ArrayList<>();
+
+        //caches the result of adding a given hit to a given set
+        private final Map<Long, Integer> _transitions = new HashMap<>();
+        private final Map<Integer, BitSet> _refIdsBySet = new HashMap<>();
+
+        public HitSetIndex()
+        {
+            intern(new BitSet());
+        }
+
+        public int getHit(String refName, boolean negativeStrand)
+        {
+            Integer refId = _refIds.get(refName);
+            if (refId == null)
+            {
+                refId = _refNames.size();
+                _refNames.add(refName);
+                _refIds.put(refName, refId);
+            }
+
+            return (refId << 1) | (negativeStrand ? 1 : 0);
+        }
+
+        public boolean contains(int setId, int hit)
+        {
+            return _sets.get(setId).get(hit);
+        }
+
+        public int add(int setId, int hit)
+        {
+            long key = ((long)setId << 32) | hit;
+            Integer ret = _transitions.get(key);
+            if (ret == null)
+            {
+                BitSet bs = (BitSet)_sets.get(setId).clone();
+                bs.set(hit);
+                ret = intern(bs);
+                _transitions.put(key, ret);
+            }
+
+            return ret;
+        }
+
+        /**
+         * @return The distinct reference IDs in this set, ignoring strand. The returned BitSet is cached and must not be modified.
+         */
+        public BitSet getRefIds(int setId)
+        {
+            return _refIdsBySet.computeIfAbsent(setId, id -> {
+                BitSet ret = new BitSet();
+                BitSet bs = _sets.get(id);
+                for (int hit = bs.nextSetBit(0); hit >= 0; hit = bs.nextSetBit(hit + 1))
+                {
+                    ret.set(hit >> 1);
+                }
+
+                return ret;
+            });
+        }
+
+        /**
+         * @return A new, sorted list of the reference names for the given reference IDs
+         */
+        public List<String> getRefNames(BitSet refIds)
+        {
+            List<String> ret = new ArrayList<>(refIds.cardinality());
+            for (int refId = refIds.nextSetBit(0); refId >= 0; refId = refIds.nextSetBit(refId + 1))
+            {
+                ret.add(_refNames.get(refId));
+            }
+            Collections.sort(ret);
+
+            return ret;
+        }
 
-        HitSet hs = totals.get(refs);
+        private int intern(BitSet bs)
+        {
+            Integer id = _setIds.get(bs);
+            if (id == null)
+            {
+                id = _sets.size();
+                _sets.add(bs);
+                _setIds.put(bs, id);
+            }
+
+            return id;
+        }
+    }
+
+    private void appendReadToTotals(String readName, BitSet refIds, boolean hasForward, boolean hasReverse) throws IOException
+    {
+        Integer stage1Id = _refSetIds.computeIfAbsent(refIds, x -> _refSetIds.size());
+        HitSet hs = _stage1Totals.get(stage1Id);
         if (hs == null)
         {
-            hs = new HitSet(refNames);
+            hs = new HitSet(_hitSets.getRefNames(refIds));
+            hs.stage1Ids.add(stage1Id);
+            _stage1Totals.put(stage1Id, hs);
         }
 
         if (hasForward)
@@ -956,24 +1232,111 @@ private void appendReadToTotals(String readName, List<String> refNames, Map<Stri
             hs.valid_pair = hs.valid_pair + 1;
         }
 
-        hs.readNames.add(readName);
+        hs.reads++;
+        recordReadOutcome(readName, stage1Id);
+    }
+
+    private void appendReadWithoutHits(String readName) throws IOException
+    {
+        _unaligned++;
+        _mappedWithoutHits++;
+        _mappedWithoutHitsExcludingPassed++;
+        recordReadOutcome(readName, NO_HITS);
+    }
+
+    private void recordReadOutcome(String readName, int stage1Id) throws IOException
+    {
+        if (_readOutcomeWriter == null)
+        {
+            _readOutcomeFile = FileUtil.createTempFile("sbtReads", ".txt.gz");
+            _readOutcomeFile.deleteOnExit();
+            _readOutcomeWriter = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new BlockCompressedOutputStream(_readOutcomeFile, 1), StandardCharsets.UTF_8)));
+        }
+
+        _readOutcomeWriter.print(readName + "\t" + stage1Id + "\n");
+    }
 
-        totals.put(refs, hs);
+    private void closeReadOutcomeWriter()
+    {
+        if (_readOutcomeWriter != null)
+        {
+            _readOutcomeWriter.close();
+            _readOutcomeWriter = null;
+        }
+    }
+
+    /**
+     * Releases the log writer and the temporary file of per-read outcomes.  This should be called once the results are no longer needed,
+     * including when iteration or summarization fails.
+     */
+    public void close()
+    {
+        closeReadOutcomeWriter();
+        if (_logWriter != null)
+        {
+            try
+            {
+                _logWriter.close();
+            }
+            catch (IOException e)
+            {
+                getLogger().warn("Unable to close SBT log: " + e.getMessage());
+            }
+            _logWriter = null;
+        }
+
+        if (_readOutcomeFile != null)
+        {
+            _readOutcomeFile.delete();
+            _readOutcomeFile = null;
+        }
+    }
+
+    /**
+     * @return The names of reads that had alignments, but none that passed the filters
+     */
+    private Set<String> getReadNamesWithoutPassingHits() throws PipelineJobException
+    {
+        Set<String> ret = new HashSet<>();
+        if (_readOutcomeFile == null)
+        {
+            return ret;
+        }
+
+        try (BufferedReader reader = IOUtil.openFileForBufferedUtf8Reading(_readOutcomeFile))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                int idx = line.lastIndexOf('\t');
+                int stage1Id = Integer.parseInt(line.substring(idx + 1));
+                if (stage1Id == NO_HITS || !_acceptedStage1Ids.contains(stage1Id))
+                {
+                    ret.add(line.substring(0, idx));
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+
+        return ret;
     }
 
     public Map<String, HitSet> writeSummary() throws IOException, PipelineJobException
     {
-        Map<String, HitSet> map = getAlignmentSummary(_outputLog);
+        Map<String, HitSet> map = getAlignmentSummary();
 
         getLogger().info("Saving SBT Results");
         getLogger().info("\tTotal alignments inspected: " + _totalAlignmentsInspected);
         getLogger().info("\tSecondary or supplementary alignments inspected: " + _secondarySupplementary);
-        getLogger().info("\tTotal reads inspected: " + _uniqueReads.size());
+        getLogger().info("\tTotal reads inspected: " + getUniqueReadCount());
 
         getLogger().info("\tAlignments discarded due to low mapping quality: " + _lowMappingQual);
         getLogger().info("\tAlignments discarded due to short length: " + _shortAlignments);
-        getLogger().info("\tAlignments retained (lacking high quality SNPs): " + _acceptedAlignments.size());
-        getLogger().info("\tAlignments discarded (due to presence of high quality SNPs): " + (_totalAlignmentsInspected - _acceptedAlignments.size()));
+        getLogger().info("\tAlignments retained (lacking high quality SNPs): " + _acceptedAlignments);
+        getLogger().info("\tAlignments discarded (due to presence of high quality SNPs): " + (_totalAlignmentsInspected - _acceptedAlignments));
         getLogger().info("\tForward Alignments Discarded Due To SNPs: " + _forwardAlignmentsDiscardedBySnps);
         getLogger().info("\tReverse Alignments Discarded Due To SNPs: " + _reverseAlignmentsDiscardedBySnps);
         getLogger().info("\tAlignments retained that contained low qual SNPs (thse may have been discarded for other factors): " + _alignmentsIncludingDiscardedSnps);
@@ -982,7 +1345,7 @@ public Map<String, HitSet> writeSummary() throws IOException, PipelineJobExcepti
         getLogger().info("\tReferences disallowed due to percent filters: " + _skippedReferencesByPct);
 
         Map<String, Integer> acceptedReferences = new HashMap<>();
-        Set<String> acceptedReads = new HashSet<>();
+        Set<Integer> acceptedStage1Ids = new HashSet<>();
         for (HitSet hs : map.values())
         {
             for (String refName : hs.refNames)
@@ -993,25 +1356,23 @@ public Map<String, HitSet> writeSummary() throws IOException, PipelineJobExcepti
                     total = acceptedReferences.get(refName);
                 }
 
-                total += hs.readNames.size();
-                acceptedReads.addAll(hs.readNames);
+                total += hs.reads;
                 acceptedReferences.put(refName, total);
             }
+
+            acceptedStage1Ids.addAll(hs.stage1Ids);
         }
 
         _acceptedReferences = acceptedReferences;
-        _acceptedReads = acceptedReads;
-
-        getLogger().info("\tReads with no alignments: " + _unaligned.size());
-        getLogger().info("\tReads unmapped with a mate mapped: " + _unmappedWithMappedMate.size());
-        getLogger().info("\tMapped reads without passing hits: " + _mappedWithoutHits.size());
-        _mappedWithoutHitsExcludingPassed = new HashSet<>(_mappedWithoutHits);
-        _mappedWithoutHitsExcludingPassed.removeAll(acceptedReads);
+        _acceptedStage1Ids = acceptedStage1Ids;
 
-        getLogger().info("\tMapped reads without passing hits (excluding passed): " + _mappedWithoutHitsExcludingPassed.size() + " (" + getPctMappedWithoutHits() + "%)");
+        getLogger().info("\tReads with no alignments: " + _unaligned);
+        getLogger().info("\tReads unmapped with a mate mapped: " + _unmappedWithMappedMate);
+        getLogger().info("\tMapped reads without passing hits: " + _mappedWithoutHits);
+        getLogger().info("\tMapped reads without passing hits (excluding passed): " + _mappedWithoutHitsExcludingPassed + " (" + getPctMappedWithoutHits() + "%)");
 
-        getLogger().info("\tSingleton or First Mate Reads with at least 1 alignment that passed thresholds: " + _alignmentsByReadM1.keySet().size());
-        getLogger().info("\tSecond Mate Reads with at least 1 alignment that passed thresholds: " + _alignmentsByReadM2.keySet().size());
+        getLogger().info("\tSingleton or First Mate Reads with at least 1 alignment that passed thresholds: " + _readsWithM1Hits);
+        getLogger().info("\tSecond Mate Reads with at least 1 alignment that passed thresholds: " + _readsWithM2Hits);
 
         getLogger().info("\tAlignment calls improved by paired read: " + _alignmentsHelpedByMate);
         getLogger().info("\tAlignment calls improved by allele filters (see references disallowed): " + _alignmentsHelpedByAlleleFilters);
@@ -1023,18 +1384,13 @@ public Map<String, HitSet> writeSummary() throws IOException, PipelineJobExcepti
         if (_onlyImportValidPairs)
         {
             getLogger().info("\tOnly alignments representing valid pairs will be included");
-            Set<String> reject = new HashSet<>(_rejectedSingletonReadNames);
-            reject.removeAll(_acceptedReads);
             getLogger().info("\tAlignments rejected because they lacked a valid pair: " + _rejectedSingletonAlignments);
-            getLogger().info("\tDistinct read names involved: " + _rejectedSingletonReadNames.size());
-            getLogger().info("\tRead pairs rejected because they lacked a valid pair: " + reject.size() + " (" + (100.0 * ((double) reject.size() / (double) _uniqueReads.size())) + "%)");
+            getLogger().info("\tDistinct read names involved: " + _rejectedSingletonReads);
+            getLogger().info("\tRead pairs rejected because they lacked a valid pair: " + _rejectedSingletonReads + " (" + (100.0 * ((double) _rejectedSingletonReads / (double) getUniqueReadCount())) + "%)");
         }
 
-        Set<String> allReadNames = new HashSet<>();
-        allReadNames.addAll(_alignmentsByReadM1.keySet());
-        allReadNames.addAll(_alignmentsByReadM2.keySet());
-        int noHits = _uniqueReads.size() - allReadNames.size();
-        getLogger().info("\tReads discarded due to no passing alignments: " + noHits + " (" + (100.0 * (noHits / (double) _uniqueReads.size())) + "%)");
+        int noHits = getUniqueReadCount() - _readsWithHits;
+        getLogger().info("\tReads discarded due to no passing alignments: " + noHits + " (" + (100.0 * (noHits / (double) getUniqueReadCount())) + "%)");
 
         return map;
     }
@@ -1126,11 +1482,11 @@ public void writeTable(File output) throws PipelineJobException
             for (String key : map.keySet())
             {
                 HitSet totals = map.get(key);
-                writer.writeNext(new String[]{key, String.valueOf(totals.readNames.size()), String.valueOf(totals.forward), String.valueOf(totals.reverse), String.valueOf(totals.valid_pair)});
+                writer.writeNext(new String[]{key, String.valueOf(totals.reads), String.valueOf(totals.forward), String.valueOf(totals.reverse), String.valueOf(totals.valid_pair)});
             }
 
             //append unaligned
-            writer.writeNext(new String[]{"", String.valueOf(_unaligned.size()), "", "", ""});
+            writer.writeNext(new String[]{"", String.valueOf(_unaligned), "", "", ""});
         }
         catch (IOException e)
         {
@@ -1191,8 +1547,9 @@ public File outputReferencesCovered(File outDir, String basename, File refFasta,
 
     public Pair<File, File> outputUnmappedReads(File bam, List<Pair<File, File>> readData, File outDir, String basename, String headerPrefix, int minLength) throws PipelineJobException
     {
-        if (!_mappedWithoutHitsExcludingPassed.isEmpty())
+        if (_mappedWithoutHitsExcludingPassed > 0)
         {
+            Set<String> readNamesWithoutHits = getReadNamesWithoutPassingHits();
             File unmappedReadsF = new File(outDir, basename + ".unmapped-R1.fastq");
             File unmappedReadsR = new File(outDir, basename + ".unmapped-R2.fastq");
             File unmappedReadsSingleton = new File(outDir, basename + ".unmapped-singleton.fastq");
@@ -1227,7 +1584,7 @@ public Pair<File, File> outputUnmappedReads(File bam, List<Pair<File, File>> rea
 
                             //note: should we account for forward/reverse?
                             String[] tokens = r1.getReadHeader().split(" ");
-                            if (_mappedWithoutHitsExcludingPassed.contains(tokens[0]))
+                            if (readNamesWithoutHits.contains(tokens[0]))
                             {
                                 totalExported++;
                                 if (r2 == null)
@@ -1394,14 +1751,14 @@ public String getSynopsis()
         ;
     }
 
-    public Set<String> getUniqueReads()
+    public int getUniqueReadCount()
     {
-        return _uniqueReads;
+        return _queryNameGrouped ? _uniqueReadCount : _uniqueReads.size();
     }
 
     public double getPctMappedWithoutHits()
     {
-        return (double)_mappedWithoutHitsExcludingPassed.size() / (double)_uniqueReads.size();
+        return (double)_mappedWithoutHitsExcludingPassed / (double)getUniqueReadCount();
     }
 
     public void setDoTrackIntervals(boolean doTrackIntervals)
@@ -1,6 +1,7 @@
 package org.labkey.sequenceanalysis.run.analysis;
 
 import au.com.bytecode.opencsv.CSVWriter;
+import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.filter.DuplicateReadFilter;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.logging.log4j.Logger;
@@ -33,6 +34,7 @@
 import org.labkey.api.sequenceanalysis.pipeline.PipelineContext;
 import org.labkey.api.sequenceanalysis.pipeline.PipelineStepProvider;
 import org.labkey.api.sequenceanalysis.pipeline.ReferenceGenome;
+import org.labkey.api.sequenceanalysis.pipeline.SamSorter;
 import org.labkey.api.sequenceanalysis.pipeline.SequenceAnalysisJobSupport;
 import org.labkey.api.sequenceanalysis.pipeline.ToolParameterDescriptor;
 import org.labkey.api.util.Compress;
@@ -140,6 +142,10 @@ public static List<ToolParameterDescriptor> getDefaultParams(boolean includeExpo
                 put("minValue", 0);
             }}, 40),
             ToolParameterDescriptor.create("writeLog", "Write Detailed Log", "If checked, the analysis will write a detailed log file of read mapping and calls.  This is intended for debugging purposes", "checkbox", new JSONObject()
+            {{
+                put("checked", false);
+            }}, null),
+            ToolParameterDescriptor.create("queryNameGrouped", "Low Memory Mode", "If checked, a copy of the BAM will be sorted by read name, and each read will be summarized as soon as its alignments have been inspected, rather than holding every read name in memory.  This is intended for very large BAMs.", "checkbox", new JSONObject()
             {{
                 put("checked", false);
             }}, null)
@@ -248,6 +254,7 @@ public Output performAnalysisPerSampleLocal(AnalysisModel model, File inputBam,
     @Override
     public Output performAnalysisPerSampleRemote(Readset rs, File inputBam, ReferenceGenome referenceGenome, File outputDir) throws PipelineJobException
     {
+        SequenceBasedTypingAlignmentAggregator agg = null;
         try
         {
             AnalysisOutputImpl output = new AnalysisOutputImpl();
@@ -268,13 +275,25 @@ public Output performAnalysisPerSampleRemote(Readset rs, File inputBam, Referenc
             getPipelineCtx().getLogger().info("\tCalculation complete");
 
             getPipelineCtx().getLogger().info("Inspecting alignments in BAM");
-            BamIterator bi = new BamIterator(inputBam, referenceGenome.getWorkingFastaFile(), getPipelineCtx().getLogger());
+            File workDir = new File(getPipelineCtx().getSourceDirectory(), FileUtil.getBaseName(inputBam));
+
+            //NOTE: in low memory mode, the aggregator requires all alignments of a read to be adjacent
+            File queryNameSortedBam = null;
+            if (Boolean.parseBoolean(toolParams.get("queryNameGrouped")))
+            {
+                if (!workDir.exists())
+                {
+                    workDir.mkdirs();
+                }
+
+                getPipelineCtx().getLogger().info("Sorting BAM by read name");
+                queryNameSortedBam = new SamSorter(getPipelineCtx().getLogger()).execute(inputBam, new File(workDir, FileUtil.getBaseName(inputBam) + ".queryname.bam"), SAMFileHeader.SortOrder.queryname);
+            }
 
             List<AlignmentAggregator> aggregators = new ArrayList<>();
-            File workDir = new File(getPipelineCtx().getSourceDirectory(), FileUtil.getBaseName(inputBam));
             File sbtOutputLog = new File(workDir, FileUtil.getBaseName(inputBam) + ".sbt.txt.gz");
 
-            SequenceBasedTypingAlignmentAggregator agg = new SequenceBasedTypingAlignmentAggregator(getPipelineCtx().getLogger(), referenceGenome.getWorkingFastaFile(), avgBaseQualityAggregator, toolParams);
+            agg = new SequenceBasedTypingAlignmentAggregator(getPipelineCtx().getLogger(), referenceGenome.getWorkingFastaFile(), avgBaseQualityAggregator, toolParams);
             if (getProvider().getParameterByName("writeLog").extractValue(getPipelineCtx().getJob(), getProvider(), getStepIdx(), Boolean.class, false))
             {
                 if (!workDir.exists())
@@ -305,8 +324,19 @@ public Output performAnalysisPerSampleRemote(Readset rs, File inputBam, Referenc
 
             aggregators.add(agg);
 
-            bi.addAggregators(aggregators);
-            bi.iterateReads();
+            try
+            {
+                BamIterator bi = new BamIterator(queryNameSortedBam == null ? inputBam : queryNameSortedBam, referenceGenome.getWorkingFastaFile(), getPipelineCtx().getLogger());
+                bi.addAggregators(aggregators);
+                bi.iterateReads();
+            }
+            finally
+            {
+                if (queryNameSortedBam != null)
+                {
+                    queryNameSortedBam.delete();
+                }
+            }
             getPipelineCtx().getLogger().info("Inspection complete");
 
             //write output as TSV
@@ -373,6 +403,13 @@ public Output performAnalysisPerSampleRemote(Readset rs, File inputBam, Referenc
         {
             throw new PipelineJobException(e);
         }
+        finally
+        {
+            if (agg != null)
+            {
+                agg.close();
+            }
+        }
     }
 
     protected File getSBTSummaryFile(File outputDir, File bam)
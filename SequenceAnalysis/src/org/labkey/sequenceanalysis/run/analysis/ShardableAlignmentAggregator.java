@@ -0,0 +1,22 @@
+package org.labkey.sequenceanalysis.run.analysis;
+
+import java.util.function.Function;
+
+/**
+ * An AlignmentAggregator that can be split into independent shards, each of which inspects a subset of the alignments on a separate thread.
+ * Only aggregators implementing this interface are used by BamIterator.iterateReadsSharded().
+ */
+public interface ShardableAlignmentAggregator extends AlignmentAggregator
+{
+    /**
+     * Creates a new, empty aggregator with the same settings as this one.  The result is later combined into this aggregator using merge().
+     * @param shardResolver Returns the shard created for another aggregator in the same pass, which allows dependent aggregators (such as a shared coverage aggregator) to be wired together
+     */
+    ShardableAlignmentAggregator createShard(Function<ShardableAlignmentAggregator, ShardableAlignmentAggregator> shardResolver);
+
+    /**
+     * Adds the results of a shard previously created by createShard() to this aggregator.  This is always called on a single thread,
+     * after all shards have completed.
+     */
+    void merge(ShardableAlignmentAggregator shard);
+}
@@ -10,6 +10,7 @@
 import org.labkey.api.sequenceanalysis.pipeline.PipelineContext;
 import org.labkey.api.sequenceanalysis.pipeline.PipelineStepProvider;
 import org.labkey.api.sequenceanalysis.pipeline.ReferenceGenome;
+import org.labkey.api.sequenceanalysis.pipeline.SequencePipelineService;
 import org.labkey.api.sequenceanalysis.pipeline.ToolParameterDescriptor;
 
 import java.io.File;
@@ -27,6 +28,9 @@
  */
 public class ViralAnalysis extends AbstractPipelineStep implements AnalysisStep
 {
+    //NOTE: viral references are usually a single contig, so this is split into windows to allow more than one thread to inspect it
+    private static final int SHARD_WINDOW_SIZE = 1000;
+
     public ViralAnalysis(PipelineStepProvider provider, PipelineContext ctx)
     {
         super(provider, ctx);
@@ -101,7 +105,16 @@ public Output performAnalysisPerSampleLocal(AnalysisModel model, File inputBam,
             aggregators.add(aaSnp);
 
             bi.addAggregators(aggregators);
-            bi.iterateReads();
+
+            Integer threads = SequencePipelineService.get().getMaxThreads(getPipelineCtx().getLogger());
+            if (threads != null && threads > 1)
+            {
+                bi.iterateReadsSharded(threads, SHARD_WINDOW_SIZE);
+            }
+            else
+            {
+                bi.iterateReads();
+            }
             getPipelineCtx().getLogger().info("Inspection complete");
 
             for (AlignmentAggregator a : aggregators)
@@ -10,7 +10,7 @@
 import org.labkey.sequenceanalysis.model.SequenceTag;
 
 import java.io.File;
-import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -67,82 +67,55 @@ protected Pair<String, String> extractBarcodeFromHeader(FastqRecord rec)
         return Pair.of(barcodes[0], barcodes.length > 2 ? barcodes[1] : null);
     }
 
-    protected void processTag5(FastqRecord rec, String sequenceToTest, SequenceTag bc, int offset, Map<Integer, Map<String, SequenceMatch>> trackingMap)
+    protected void processTag5(FastqRecord rec, String sequenceToTest, SequenceTagIndex barcodes, int offset, Map<Integer, Map<String, SequenceMatch>> trackingMap, List<String[]> detailLines)
     {
-        String targetSeq;
-        String barcodeSeq;
-
-        if (offset >= 0)
-        {
-            barcodeSeq = bc.getSequence();
-            targetSeq = sequenceToTest.substring(offset, offset + barcodeSeq.length());
-        }
-        else
-        {
-            barcodeSeq = bc.getSequence().substring(-offset);
-            targetSeq = sequenceToTest.substring(0, barcodeSeq.length());
-        }
-
-        int editDist = StringUtils.getLevenshteinDistance(barcodeSeq, targetSeq);
-        if (editDist <= _editDistance)
-        {
-            Map<String, SequenceMatch> matchesAtDist = trackingMap.get(editDist);
-            if (matchesAtDist == null)
-                matchesAtDist = new TreeMap<>();
-
-            if (!matchesAtDist.containsKey(bc.getName()))
-            {
-                int start = barcodeSeq.length() + (offset > 0 ? offset : 0);
-                SequenceMatch match = new SequenceMatch(bc, rec, true, editDist, offset, start, null);
-                matchesAtDist.put(bc.getName(), match);
-                trackingMap.put(editDist, matchesAtDist);
-
-                writeDetailedLine(match, barcodeSeq, targetSeq);
-            }
-        }
+        barcodes.scan(sequenceToTest, offset, (bc, editDist, barcodeSeq, targetSeq) -> {
+            int start = barcodeSeq.length() + (offset > 0 ? offset : 0);
+            addMatch(trackingMap, new SequenceMatch(bc, rec, true, editDist, offset, start, null), barcodeSeq, targetSeq, detailLines);
+        });
     }
 
-    protected void processTag3(FastqRecord rec, String sequenceToTest, SequenceTag bc, int offset, Map<Integer, Map<String, SequenceMatch>> trackingMap)
+    /**
+     * @param reversedSequence the sequence to test, already reversed, so this is done once per read rather than once per barcode
+     */
+    protected void processTag3(FastqRecord rec, String reversedSequence, SequenceTagIndex barcodes, int offset, Map<Integer, Map<String, SequenceMatch>> trackingMap, List<String[]> detailLines)
     {
-        String targetSeq;
-        String barcodeSeq;
+        barcodes.scan(reversedSequence, offset, (bc, editDist, barcodeSeq, targetSeq) -> {
+            int stop = (reversedSequence.length() - barcodeSeq.length() - (offset > 0 ? offset : 0));
+            addMatch(trackingMap, new SequenceMatch(bc, rec, false, editDist, offset, null, stop), barcodeSeq, targetSeq, detailLines);
+        });
+    }
 
-        if (offset >= 0)
-        {
-            barcodeSeq = StringUtils.reverse(bc.getReverseComplement());
-            targetSeq = StringUtils.reverse(sequenceToTest).substring(offset, offset + barcodeSeq.length());
-        }
-        else
+    private void addMatch(Map<Integer, Map<String, SequenceMatch>> trackingMap, SequenceMatch match, String barcodeSeq, String targetSeq, List<String[]> detailLines)
+    {
+        Map<String, SequenceMatch> matchesAtDist = trackingMap.computeIfAbsent(match.getEditDistance(), x -> new TreeMap<>());
+        if (!matchesAtDist.containsKey(match.getSequenceTag().getName()))
         {
-            barcodeSeq = StringUtils.reverse(bc.getReverseComplement()).substring(-offset);
-            targetSeq = StringUtils.reverse(sequenceToTest).substring(0, barcodeSeq.length());
+            matchesAtDist.put(match.getSequenceTag().getName(), match);
+            addDetailedLine(detailLines, match, barcodeSeq, targetSeq);
         }
+    }
 
-        int editDist = StringUtils.getLevenshteinDistance(barcodeSeq, targetSeq);
-        if (editDist <= _editDistance)
-        {
-            Map<String, SequenceMatch> matchesAtDist = trackingMap.get(editDist);
-            if (matchesAtDist == null)
-                matchesAtDist = new TreeMap<>();
-
-            if (!matchesAtDist.containsKey(bc.getName()))
-            {
-                int stop = (sequenceToTest.length() - barcodeSeq.length() - (offset > 0 ? offset : 0));
-                SequenceMatch match = new SequenceMatch(bc, rec, false, editDist, offset, null, stop);
-                matchesAtDist.put(bc.getName(), match);
-                trackingMap.put(editDist, matchesAtDist);
+    private void addDetailedLine(List<String[]> detailLines, SequenceMatch match, String barcodeSeq, String targetSeq)
+    {
+        if (!_createDetailedLog)
+            return;
 
-                writeDetailedLine(match, barcodeSeq, targetSeq);
-            }
-        }
+        detailLines.add(new String[]{match.getRec().getReadHeader(), match.getSequenceTag().getName(), match.getMoleculeEnd(), String.valueOf(match.getEditDistance()), String.valueOf(match.getOffset()), String.valueOf(match.getStart1()), String.valueOf(match.getStop()), barcodeSeq, targetSeq});
     }
 
-    private void writeDetailedLine(SequenceMatch match, String barcodeSeq, String targetSeq)
+    /**
+     * Matching only buffers detailed log lines, so that it has no side effects and can run off the writer's thread. This writes them in the order they were found.
+     */
+    protected void writeDetailedLines(List<String[]> detailLines)
     {
         if (!_createDetailedLog)
             return;
 
-        _detailLogWriter.writeNext(new String[]{match.getRec().getReadHeader(), match.getSequenceTag().getName(), match.getMoleculeEnd(), String.valueOf(match.getEditDistance()), String.valueOf(match.getOffset()), String.valueOf(match.getStart1()), String.valueOf(match.getStop()), barcodeSeq, targetSeq});
+        for (String[] line : detailLines)
+        {
+            _detailLogWriter.writeNext(line);
+        }
     }
 
     public void setEditDistance(int editDistance)
@@ -185,15 +158,16 @@ public void setCreateSummaryLog(boolean createSummaryLog)
         _createSummaryLog = createSummaryLog;
     }
 
-    protected void scanForMatches(FastqRecord rec, Collection<SequenceTag> barcodes5, Collection<SequenceTag> barcodes3, Map<Integer, Map<String, SequenceMatch>> matches5, Map<Integer, Map<String, SequenceMatch>> matches3)
+    protected void scanForMatches(FastqRecord rec, SequenceTagIndex barcodes5, SequenceTagIndex barcodes3, Map<Integer, Map<String, SequenceMatch>> matches5, Map<Integer, Map<String, SequenceMatch>> matches3, List<String[]> detailLines)
     {
         //first scan 5' end
 
         //try default matching from end, without deletions first
         String sequenceToTest5;
+        Pair<String, String> barcodes = null;
         if (_barcodesInReadHeader)
         {
-            Pair<String, String> barcodes = extractBarcodeFromHeader(rec);
+            barcodes = extractBarcodeFromHeader(rec);
             if (barcodes == null)
             {
                 return;
@@ -207,20 +181,14 @@ protected void scanForMatches(FastqRecord rec, Collection<SequenceTag> barcodes5
             sequenceToTest5 = rec.getReadString();
         }
 
-        for (SequenceTag bc : barcodes5)
-        {
-            processTag5(rec, sequenceToTest5, bc, 0, matches5);
-        }
+        processTag5(rec, sequenceToTest5, barcodes5, 0, matches5, detailLines);
 
         if (_offsetDistance > 0)
         {
             int i = 1;
             while (i <= _offsetDistance)
             {
-                for (SequenceTag bc : barcodes5)
-                {
-                    processTag5(rec, sequenceToTest5, bc, i, matches5);
-                }
+                processTag5(rec, sequenceToTest5, barcodes5, i, matches5, detailLines);
                 i++;
 
                 if (matches5.size() > 0)
@@ -234,10 +202,7 @@ protected void scanForMatches(FastqRecord rec, Collection<SequenceTag> barcodes5
             int i = 1;
             while (i <= _deletionsAllowed)
             {
-                for (SequenceTag bc : barcodes5)
-                {
-                    processTag5(rec, sequenceToTest5, bc, -i, matches5);
-                }
+                processTag5(rec, sequenceToTest5, barcodes5, -i, matches5, detailLines);
                 i++;
 
                 if (matches5.size() > 0)
@@ -249,8 +214,7 @@ protected void scanForMatches(FastqRecord rec, Collection<SequenceTag> barcodes5
         String sequenceToTest3;
         if (_barcodesInReadHeader)
         {
-            Pair<String, String> barcodes = extractBarcodeFromHeader(rec);
-            if (barcodes == null || barcodes.second == null)
+            if (barcodes.second == null)
             {
                 return;
             }
@@ -263,21 +227,22 @@ protected void scanForMatches(FastqRecord rec, Collection<SequenceTag> barcodes5
             sequenceToTest3 = rec.getReadString();
         }
 
-        //try default matching from end, without deletions first
-        for (SequenceTag bc : barcodes3)
+        if (barcodes3.isEmpty())
         {
-            processTag3(rec, sequenceToTest3, bc, 0, matches3);
+            return;
         }
 
+        sequenceToTest3 = StringUtils.reverse(sequenceToTest3);
+
+        //try default matching from end, without deletions first
+        processTag3(rec, sequenceToTest3, barcodes3, 0, matches3, detailLines);
+
         if (_offsetDistance > 0)
         {
             int i = 1;
             while (i <= _offsetDistance)
             {
-                for (SequenceTag bc : barcodes3)
-                {
-                    processTag3(rec, sequenceToTest3, bc, i, matches3);
-                }
+                processTag3(rec, sequenceToTest3, barcodes3, i, matches3, detailLines);
                 i++;
 
                 if (matches3.size() > 0)
@@ -291,10 +256,7 @@ protected void scanForMatches(FastqRecord rec, Collection<SequenceTag> barcodes5
             int i = 1;
             while (i <= _deletionsAllowed)
             {
-                for (SequenceTag bc : barcodes3)
-                {
-                    processTag3(rec, sequenceToTest3, bc, -i, matches3);
-                }
+                processTag3(rec, sequenceToTest3, barcodes3, -i, matches3, detailLines);
                 i++;
 
                 if (matches3.size() > 0)
@@ -36,7 +36,6 @@
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -45,6 +44,13 @@
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -61,6 +67,15 @@ public class Barcoder extends AbstractSequenceMatcher
     private final Map<String, BarcodeModel> _barcodes = new HashMap<>();
     private final FastqWriterFactory _fastqWriterFactory = new FastqWriterFactory();
     private boolean _scanAll = false;
+    private int _threads = 1;
+
+    //NOTE: built once per call to demultiplexPairs().  The second read of a pair is scanned with the ends swapped
+    private SequenceTagIndex _forward5;
+    private SequenceTagIndex _forward3;
+    private SequenceTagIndex _reverse5;
+    private SequenceTagIndex _reverse3;
+
+    private static final int BATCH_SIZE = 10000;
 
     public Barcoder(Logger logger)
     {
@@ -164,6 +179,15 @@ public Set<File> demultiplexPairs(List<Pair<File, File>> fastqPairs, List<Readse
             }
 
             _logger.info("\tWill scan for a total of " + _barcodes.size() + " barcodes");
+            if (_threads > 1)
+            {
+                _logger.info("\tWill match reads using " + _threads + " threads");
+            }
+
+            _forward5 = new SequenceTagIndex(barcodes5.values(), true, _editDistance);
+            _forward3 = new SequenceTagIndex(barcodes3.values(), false, _editDistance);
+            _reverse5 = new SequenceTagIndex(barcodes3.values(), true, _editDistance);
+            _reverse3 = new SequenceTagIndex(barcodes5.values(), false, _editDistance);
 
             for (Pair<File, File> fastqs : fastqPairs)
             {
@@ -176,40 +200,9 @@ public Set<File> demultiplexPairs(List<Pair<File, File>> fastqPairs, List<Readse
                 try (FastqReader reader1 = new FastqReader(fastqs.first); FastqReader reader2 = fastqs.second == null ? null : new FastqReader(fastqs.second))
                 {
                     Iterator<FastqRecord> it = reader1.iterator();
-                    Iterator<FastqRecord> it2 = null;
-                    if (reader2 != null)
-                    {
-                        it2 = reader2.iterator();
-                    }
-
-                    long count = 0;
-                    while (it.hasNext())
-                    {
-                        count++;
-                        if (count % 100000 == 0)
-                        {
-                            _logger.info("\tprocessed " + NumberFormat.getInstance().format(count) + " reads");
-                        }
-
-                        if (reader2 == null)
-                        {
-                            FastqRecord rec = it.next();
-                            processSequence(fastqs.first, rec, readsets, barcodes5.values(), barcodes3.values());
-                        }
-                        else
-                        {
-                            FastqRecord rec1 = it.next();
-                            if (!it2.hasNext())
-                            {
-                                throw new IllegalArgumentException("Second FASTQ has fewer records than the primary FASTQ");
-                            }
-
-                            FastqRecord rec2 = it2.next();
-
-                            processSequencePair(fastqs.first, fastqs.second, rec1, rec2, readsets, barcodes5.values(), barcodes3.values());
-                        }
-                    }
+                    Iterator<FastqRecord> it2 = reader2 == null ? null : reader2.iterator();
 
+                    long count = _threads > 1 ? processPipelined(fastqs, it, it2, readsets) : processSerial(fastqs, it, it2, readsets);
                     _logger.info("\tfinished " + NumberFormat.getInstance().format(count) + " reads");
                 }
             }
@@ -340,22 +333,181 @@ private File getSummaryLogFile(File fastq)
         return new File(_outputDir, basename + ".barcode-summary.txt.gz");
     }
 
-    private void processSequencePair(File fastq1, File fastq2, FastqRecord rec1, FastqRecord rec2, List<Readset> readsets, Collection<SequenceTag> barcodes5, Collection<SequenceTag> barcodes3) throws IOException
+    private long processSerial(Pair<File, File> fastqs, Iterator<FastqRecord> it, @Nullable Iterator<FastqRecord> it2, List<Readset> readsets) throws IOException
     {
-        Map<Integer, Map<String, SequenceMatch>> forwardMatches5 = new TreeMap<>();
-        Map<Integer, Map<String, SequenceMatch>> forwardMatches3 = new TreeMap<>();
-        Map<Integer, Map<String, SequenceMatch>> reverseMatches5 = new TreeMap<>();
-        Map<Integer, Map<String, SequenceMatch>> reverseMatches3 = new TreeMap<>();
-        _totalReads++;
+        long count = 0;
+        while (it.hasNext())
+        {
+            PendingRead read = nextRead(it, it2);
+            scan(read);
+
+            count++;
+            logProgress(count);
+            apply(fastqs, read, readsets);
+        }
+
+        return count;
+    }
+
+    /**
+     * Reads are decoded in batches on a reader thread and matched by a pool of workers. The calling thread applies results and writes output
+     * in input order, so counts and logs are identical to processSerial(). The number of batches in flight is bounded, which holds back the reader
+     * if writing falls behind.
+     */
+    private long processPipelined(Pair<File, File> fastqs, Iterator<FastqRecord> it, @Nullable Iterator<FastqRecord> it2, List<Readset> readsets) throws IOException
+    {
+        ExecutorService workers = Executors.newFixedThreadPool(_threads);
+        BlockingQueue<Future<List<PendingRead>>> batches = new ArrayBlockingQueue<>(_threads * 2);
+        Thread reader = new Thread(() -> {
+            try
+            {
+                while (it.hasNext())
+                {
+                    List<PendingRead> batch = new ArrayList<>(BATCH_SIZE);
+                    while (it.hasNext() && batch.size() < BATCH_SIZE)
+                    {
+                        batch.add(nextRead(it, it2));
+                    }
+
+                    batches.put(workers.submit(() -> {
+                        for (PendingRead read : batch)
+                        {
+                            scan(read);
+                        }
+
+                        return batch;
+                    }));
+                }
+
+                //NOTE: an empty batch marks the end of the input
+                batches.put(CompletableFuture.completedFuture(Collections.emptyList()));
+            }
+            catch (InterruptedException e)
+            {
+                //the consumer has stopped
+            }
+            catch (Throwable e)
+            {
+                //NOTE: this includes Errors, since the consumer would otherwise block on take() forever
+                try
+                {
+                    batches.put(CompletableFuture.failedFuture(e));
+                }
+                catch (InterruptedException ie)
+                {
+                    //the consumer has stopped
+                }
+            }
+        }, "Barcoder-reader");
+        reader.setDaemon(true);
 
-        scanForMatches(rec1, barcodes5, barcodes3, forwardMatches5, forwardMatches3);
-        scanForMatches(rec2, barcodes3, barcodes5, reverseMatches5, reverseMatches3);
+        long count = 0;
+        try
+        {
+            reader.start();
+            while (true)
+            {
+                List<PendingRead> batch = batches.take().get();
+                if (batch.isEmpty())
+                    break;
+
+                for (PendingRead read : batch)
+                {
+                    count++;
+                    logProgress(count);
+                    apply(fastqs, read, readsets);
+                }
+            }
+
+            reader.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof RuntimeException re)
+                throw re;
+            else if (e.getCause() instanceof Error err)
+                throw err;
+
+            throw new IOException(e.getCause());
+        }
+        finally
+        {
+            reader.interrupt();
+            workers.shutdownNow();
+        }
+
+        return count;
+    }
+
+    private PendingRead nextRead(Iterator<FastqRecord> it, @Nullable Iterator<FastqRecord> it2)
+    {
+        FastqRecord rec1 = it.next();
+        if (it2 == null)
+        {
+            return new PendingRead(rec1, null);
+        }
+
+        if (!it2.hasNext())
+        {
+            throw new IllegalArgumentException("Second FASTQ has fewer records than the primary FASTQ");
+        }
+
+        return new PendingRead(rec1, it2.next());
+    }
+
+    private void logProgress(long count)
+    {
+        if (count % 100000 == 0)
+        {
+            _logger.info("\tprocessed " + NumberFormat.getInstance().format(count) + " reads");
+        }
+    }
+
+    /**
+     * Finds all barcode matches for a read or pair. This has no side effects on the shared state, and can be called from any thread.
+     */
+    private void scan(PendingRead read)
+    {
+        if (read._rec2 == null)
+        {
+            scanForMatches(read._rec1, _forward5, _forward3, read._forwardMatches5, read._forwardMatches3, read._detailLines);
+        }
+        else
+        {
+            scanForMatches(read._rec1, _forward5, _forward3, read._forwardMatches5, read._forwardMatches3, read._detailLines);
+            scanForMatches(read._rec2, _reverse5, _reverse3, read._reverseMatches5, read._reverseMatches3, read._detailLines);
+        }
+    }
+
+    private void apply(Pair<File, File> fastqs, PendingRead read, List<Readset> readsets) throws IOException
+    {
+        writeDetailedLines(read._detailLines);
+        if (read._rec2 == null)
+        {
+            processSequence(fastqs.first, read, readsets);
+        }
+        else
+        {
+            processSequencePair(fastqs.first, fastqs.second, read, readsets);
+        }
+    }
+
+    private void processSequencePair(File fastq1, File fastq2, PendingRead read, List<Readset> readsets) throws IOException
+    {
+        FastqRecord rec1 = read._rec1;
+        FastqRecord rec2 = read._rec2;
+        _totalReads++;
 
         //find the best match for each end:
-        SequenceMatch forwardBc5 = findBestMatch(forwardMatches5, _sequenceMatch5Counts);
-        SequenceMatch forwardBc3 = findBestMatch(forwardMatches3, _sequenceMatch3Counts);
-        SequenceMatch reverseBc5 = findBestMatch(reverseMatches5, _sequenceMatch5Counts);
-        SequenceMatch reverseBc3 = findBestMatch(reverseMatches3, _sequenceMatch3Counts);
+        SequenceMatch forwardBc5 = findBestMatch(read._forwardMatches5, _sequenceMatch5Counts);
+        SequenceMatch forwardBc3 = findBestMatch(read._forwardMatches3, _sequenceMatch3Counts);
+        SequenceMatch reverseBc5 = findBestMatch(read._reverseMatches5, _sequenceMatch5Counts);
+        SequenceMatch reverseBc3 = findBestMatch(read._reverseMatches3, _sequenceMatch3Counts);
 
         List<Readset> readsetMatches = new ArrayList<>();
         for (Readset model : readsets)
@@ -401,15 +553,13 @@ else if (model.getBarcode3() == null && reverseBc5 == null)
         }
     }
 
-    private void processSequence(File fastq, FastqRecord rec, List<Readset> readsets, Collection<SequenceTag> barcodes5, Collection<SequenceTag> barcodes3) throws IOException
+    private void processSequence(File fastq, PendingRead read, List<Readset> readsets) throws IOException
     {
-        Map<Integer, Map<String, SequenceMatch>> matches5 = new TreeMap<>();
-        Map<Integer, Map<String, SequenceMatch>> matches3 = new TreeMap<>();
-        scanForMatches(rec, barcodes5, barcodes3, matches5, matches3);
+        FastqRecord rec = read._rec1;
 
         //find the best match for each end:
-        SequenceMatch bc5 = findBestMatch(matches5, _sequenceMatch5Counts);
-        SequenceMatch bc3 = findBestMatch(matches3, _sequenceMatch3Counts);
+        SequenceMatch bc5 = findBestMatch(read._forwardMatches5, _sequenceMatch5Counts);
+        SequenceMatch bc3 = findBestMatch(read._forwardMatches3, _sequenceMatch3Counts);
         _totalReads++;
 
         boolean found = false;
@@ -544,6 +694,34 @@ public void setScanAll(boolean scanAll)
         _scanAll = scanAll;
     }
 
+    public int getThreads()
+    {
+        return _threads;
+    }
+
+    public void setThreads(int threads)
+    {
+        _threads = Math.max(threads, 1);
+    }
+
+    private class PendingRead
+    {
+        private final FastqRecord _rec1;
+        private final @Nullable FastqRecord _rec2;
+
+        private final Map<Integer, Map<String, SequenceMatch>> _forwardMatches5 = new TreeMap<>();
+        private final Map<Integer, Map<String, SequenceMatch>> _forwardMatches3 = new TreeMap<>();
+        private final Map<Integer, Map<String, SequenceMatch>> _reverseMatches5 = new TreeMap<>();
+        private final Map<Integer, Map<String, SequenceMatch>> _reverseMatches3 = new TreeMap<>();
+        private final List<String[]> _detailLines = new ArrayList<>(0);
+
+        public PendingRead(FastqRecord rec1, @Nullable FastqRecord rec2)
+        {
+            _rec1 = rec1;
+            _rec2 = rec2;
+        }
+    }
+
     public static class TestCase extends Assert
     {
         SequenceIntegrationTests _helper = SequenceIntegrationTests.get();
@@ -592,6 +770,9 @@ public void test() throws Exception
             testBarcoder(log, 1, 0, 0);
             testBarcoder(log, 1, 1, 0);
             testBarcoder(log, 1, 1, 1);
+
+            //the pipelined path should give identical results
+            testBarcoder(log, 1, 1, 1, 4);
         }
 
         //TODO: write this test case
@@ -608,8 +789,14 @@ public void test() throws Exception
 //        }
 
         private void testBarcoder(Logger log, int editDistance, int offset, int deletions) throws IOException
+        {
+            testBarcoder(log, editDistance, offset, deletions, 1);
+        }
+
+        private void testBarcoder(Logger log, int editDistance, int offset, int deletions, int threads) throws IOException
         {
             Barcoder bc = new Barcoder(log);
+            bc.setThreads(threads);
             bc.setCreateDetailedLog(true);
             bc.setCreateSummaryLog(true);
 
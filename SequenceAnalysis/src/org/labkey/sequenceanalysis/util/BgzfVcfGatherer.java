@@ -0,0 +1,399 @@
+package org.labkey.sequenceanalysis.util;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+import htsjdk.samtools.util.IOUtil;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Concatenates coordinate-ordered BGZF VCF shards (such as the outputs of a scatter/gather job) under a new header, without recompressing the records.
+ * Only the block in which each shard's header ends is recompressed; all later blocks are copied byte-for-byte. Each block is still inflated once,
+ * which is used to count total and passing variants and to confirm the output is in the order of the sequence dictionary.
+ * If the shards turn out not to be in order, gather() returns false and the caller is expected to fall back to a full merge and sort.
+ */
+public class BgzfVcfGatherer
+{
+    private static final int BGZF_HEADER_LENGTH = 12;
+    private static final int BGZF_FOOTER_LENGTH = 8;
+    private static final byte[] NEWLINE = new byte[]{'\n'};
+
+    private final SAMSequenceDictionary _dictionary;
+    private final Logger _log;
+    private final Inflater _inflater = new Inflater(true);
+
+    private long _totalVariants = 0;
+    private long _passingVariants = 0;
+
+    //NOTE: parse state for the current line, which can span blocks
+    private boolean _atLineStart = true;
+    private boolean _lineIsHeader = false;
+    private int _field = 0;
+    private byte[] _contig = new byte[64];
+    private int _contigLength = 0;
+    private long _position = 0;
+    private final byte[] _filter = new byte[5];
+    private int _filterLength = 0;
+
+    private String _lastContig = null;
+    private byte[] _lastContigBytes = null;
+    private int _lastContigIdx = -1;
+    private long _lastPosition = 0;
+    private String _error = null;
+
+    public BgzfVcfGatherer(SAMSequenceDictionary dictionary, Logger log)
+    {
+        _dictionary = dictionary;
+        _log = log;
+    }
+
+    public static boolean canGather(List<File> vcfs)
+    {
+        for (File vcf : vcfs)
+        {
+            if (!vcf.getName().toLowerCase().endsWith(".gz") || !IOUtil.isBlockCompressed(vcf.toPath()))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return True if the output was written. False if the shards were not in order, in which case the partial output should be discarded.
+     */
+    public boolean gather(List<File> shards, byte[] header, File output) throws IOException
+    {
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(output), 1 << 20))
+        {
+            out.write(compress(header, 0, header.length));
+
+            for (File shard : shards)
+            {
+                if (!copyShard(shard, out))
+                {
+                    _log.info("Unable to concatenate VCFs without sorting: " + _error);
+                    return false;
+                }
+            }
+
+            out.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+        }
+        finally
+        {
+            _inflater.end();
+        }
+
+        return true;
+    }
+
+    private boolean copyShard(File shard, OutputStream out) throws IOException
+    {
+        boolean inHeader = true;
+        _atLineStart = true;
+
+        byte[] uncompressed = new byte[BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(shard), 1 << 20)))
+        {
+            byte[] block;
+            while ((block = readBlock(in, shard)) != null)
+            {
+                int length = inflate(block, uncompressed, shard);
+                if (length == 0)
+                {
+                    //empty blocks, including the EOF marker, are not needed
+                    continue;
+                }
+
+                if (!inHeader)
+                {
+                    if (!scan(uncompressed, 0, length))
+                        return false;
+
+                    out.write(block);
+                    continue;
+                }
+
+                int recordStart = findHeaderEnd(uncompressed, length);
+                if (recordStart == -1)
+                {
+                    //this block is entirely header
+                    continue;
+                }
+
+                inHeader = false;
+                if (!scan(uncompressed, recordStart, length - recordStart))
+                    return false;
+
+                if (recordStart == 0)
+                {
+                    out.write(block);
+                }
+                else
+                {
+                    out.write(compress(uncompressed, recordStart, length - recordStart));
+                }
+            }
+        }
+
+        //NOTE: if the last record lacks a trailing newline, add one so it is not joined to the first record of the next shard
+        if (!inHeader && !_atLineStart)
+        {
+            if (!endLine())
+                return false;
+
+            out.write(compress(NEWLINE, 0, NEWLINE.length));
+            _atLineStart = true;
+        }
+
+        return true;
+    }
+
+    // returns the offset of the first record line in this block, or -1 if the header continues past it
+    private int findHeaderEnd(byte[] buffer, int length)
+    {
+        for (int i = 0; i < length; i++)
+        {
+            if (_atLineStart && buffer[i] != '#' && buffer[i] != '\n')
+            {
+                return i;
+            }
+
+            _atLineStart = buffer[i] == '\n';
+        }
+
+        return -1;
+    }
+
+    private boolean scan(byte[] buffer, int offset, int length)
+    {
+        int end = offset + length;
+        for (int i = offset; i < end; i++)
+        {
+            byte b = buffer[i];
+            if (b == '\n')
+            {
+                if (!_atLineStart && !endLine())
+                    return false;
+
+                _atLineStart = true;
+                continue;
+            }
+
+            if (_atLineStart)
+            {
+                _atLineStart = false;
+                _lineIsHeader = b == '#';
+                _field = 0;
+                _contigLength = 0;
+                _position = 0;
+                _filterLength = 0;
+            }
+
+            if (_lineIsHeader)
+            {
+                continue;
+            }
+
+            if (b == '\t')
+            {
+                _field++;
+                continue;
+            }
+
+            switch (_field)
+            {
+                case 0:
+                    if (_contigLength == _contig.length)
+                        _contig = Arrays.copyOf(_contig, _contig.length * 2);
+
+                    _contig[_contigLength++] = b;
+                    break;
+                case 1:
+                    _position = (_position * 10) + (b - '0');
+                    break;
+                case 6:
+                    if (_filterLength < _filter.length)
+                        _filter[_filterLength] = b;
+
+                    _filterLength++;
+                    break;
+                default:
+                    //the remaining fields are not needed
+            }
+        }
+
+        return true;
+    }
+
+    private boolean endLine()
+    {
+        if (_lineIsHeader)
+        {
+            _error = "header line found after the first record";
+            return false;
+        }
+
+        _totalVariants++;
+        if ((_filterLength == 4 && _filter[0] == 'P' && _filter[1] == 'A' && _filter[2] == 'S' && _filter[3] == 'S') || (_filterLength == 1 && _filter[0] == '.'))
+        {
+            _passingVariants++;
+        }
+
+        //NOTE: only allocate when the contig changes
+        if (_lastContig == null || !Arrays.equals(_lastContigBytes, 0, _lastContigBytes.length, _contig, 0, _contigLength))
+        {
+            String contig = new String(_contig, 0, _contigLength, StandardCharsets.US_ASCII);
+            int contigIdx = _dictionary.getSequenceIndex(contig);
+            if (contigIdx == -1)
+            {
+                _error = "contig not found in the sequence dictionary: " + contig;
+                return false;
+            }
+            else if (contigIdx < _lastContigIdx)
+            {
+                _error = "contig " + contig + " found after " + _lastContig;
+                return false;
+            }
+
+            _lastContig = contig;
+            _lastContigBytes = Arrays.copyOf(_contig, _contigLength);
+            _lastContigIdx = contigIdx;
+            _lastPosition = 0;
+        }
+
+        if (_position < _lastPosition)
+        {
+            _error = "position " + _lastContig + ":" + _position + " found after " + _lastContig + ":" + _lastPosition;
+            return false;
+        }
+        _lastPosition = _position;
+
+        return true;
+    }
+
+    private static byte[] readBlock(DataInputStream in, File f) throws IOException
+    {
+        byte[] header = new byte[BGZF_HEADER_LENGTH];
+        try
+        {
+            in.readFully(header);
+        }
+        catch (EOFException e)
+        {
+            return null;
+        }
+
+        if ((header[0] & 0xFF) != 31 || (header[1] & 0xFF) != 139 || (header[3] & 4) == 0)
+        {
+            throw new IOException("Not a valid BGZF block in file: " + f.getPath());
+        }
+
+        int extraLength = (header[10] & 0xFF) | ((header[11] & 0xFF) << 8);
+        byte[] extra = new byte[extraLength];
+        in.readFully(extra);
+
+        int blockSize = -1;
+        for (int i = 0; i + 4 <= extraLength; )
+        {
+            int subfieldLength = (extra[i + 2] & 0xFF) | ((extra[i + 3] & 0xFF) << 8);
+            if (extra[i] == 'B' && extra[i + 1] == 'C' && subfieldLength == 2)
+            {
+                blockSize = ((extra[i + 4] & 0xFF) | ((extra[i + 5] & 0xFF) << 8)) + 1;
+                break;
+            }
+
+            i += 4 + subfieldLength;
+        }
+
+        if (blockSize == -1)
+        {
+            throw new IOException("BGZF block is missing its size field in file: " + f.getPath());
+        }
+
+        byte[] block = new byte[blockSize];
+        System.arraycopy(header, 0, block, 0, header.length);
+        System.arraycopy(extra, 0, block, header.length, extra.length);
+        in.readFully(block, header.length + extra.length, blockSize - header.length - extra.length);
+
+        return block;
+    }
+
+    private int inflate(byte[] block, byte[] uncompressed, File f) throws IOException
+    {
+        int extraLength = (block[10] & 0xFF) | ((block[11] & 0xFF) << 8);
+        int dataStart = BGZF_HEADER_LENGTH + extraLength;
+        int expectedLength = (block[block.length - 4] & 0xFF) | ((block[block.length - 3] & 0xFF) << 8) | ((block[block.length - 2] & 0xFF) << 16) | ((block[block.length - 1] & 0xFF) << 24);
+        if (expectedLength < 0 || expectedLength > uncompressed.length)
+        {
+            throw new IOException("BGZF block is larger than expected in file: " + f.getPath());
+        }
+
+        _inflater.reset();
+        _inflater.setInput(block, dataStart, block.length - dataStart - BGZF_FOOTER_LENGTH);
+        try
+        {
+            int length = 0;
+            while (length < expectedLength && !_inflater.finished())
+            {
+                int inflated = _inflater.inflate(uncompressed, length, expectedLength - length);
+                if (inflated == 0 && (_inflater.needsInput() || _inflater.needsDictionary()))
+                    break;
+
+                length += inflated;
+            }
+
+            if (length != expectedLength)
+            {
+                throw new IOException("Truncated BGZF block in file: " + f.getPath());
+            }
+
+            return length;
+        }
+        catch (DataFormatException e)
+        {
+            throw new IOException("Unable to inflate BGZF block in file: " + f.getPath(), e);
+        }
+    }
+
+    // returns complete BGZF blocks for this data, without the EOF marker
+    private static byte[] compress(byte[] data, int offset, int length) throws IOException
+    {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(length / 2);
+        try (BlockCompressedOutputStream out = new BlockCompressedOutputStream(baos, (File)null))
+        {
+            out.write(data, offset, length);
+        }
+
+        byte[] ret = baos.toByteArray();
+
+        return Arrays.copyOf(ret, ret.length - BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length);
+    }
+
+    public long getTotalVariants()
+    {
+        return _totalVariants;
+    }
+
+    public long getPassingVariants()
+    {
+        return _passingVariants;
+    }
+}
@@ -0,0 +1,195 @@
+package org.labkey.sequenceanalysis.util;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.IOUtil;
+import org.apache.logging.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A binary copy of the per-position depth from a GATK DepthOfCoverage file, which has one line per position of the genome in sequence dictionary order.
+ * The index holds one int per position, with contigs at the offsets given by the dictionary, and is memory-mapped so that each lookup is constant-time.
+ * It is built once by reading the coverage file, and rebuilt if the coverage file changes.
+ */
+public class CoverageDepthIndex
+{
+    public static final String EXTENSION = ".depth.idx";
+
+    private static final int MAGIC = 0x31495044; //DPI1
+    private static final int HEADER_SIZE = 32;
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    private final File _coverage;
+    private final Map<String, Long> _contigOffsets;
+    private final Map<String, Integer> _contigLengths;
+    private final MappedByteBuffer[] _segments;
+
+    private CoverageDepthIndex(File coverage, File index, SAMSequenceDictionary dict) throws IOException
+    {
+        _coverage = coverage;
+        _contigOffsets = new HashMap<>();
+        _contigLengths = new HashMap<>();
+        long offset = 0;
+        for (SAMSequenceRecord rec : dict.getSequences())
+        {
+            _contigOffsets.put(rec.getSequenceName(), offset);
+            _contigLengths.put(rec.getSequenceName(), rec.getSequenceLength());
+            offset += rec.getSequenceLength();
+        }
+
+        //NOTE: mapped buffers remain valid after the channel is closed
+        try (FileChannel channel = FileChannel.open(index.toPath(), StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            _segments = new MappedByteBuffer[(int)((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE)];
+            for (int i = 0; i < _segments.length; i++)
+            {
+                long start = i * SEGMENT_SIZE;
+                _segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+                _segments[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+    }
+
+    /**
+     * Opens the index for this coverage file, building it first if it does not exist or is out of date.
+     */
+    public static CoverageDepthIndex open(File coverage, File index, SAMSequenceDictionary dict, Logger log) throws IOException
+    {
+        long totalLength = dict.getReferenceLength();
+        if (!isCurrent(coverage, index, totalLength))
+        {
+            log.debug("building depth index for: " + coverage.getName());
+            build(coverage, index, dict);
+        }
+
+        return new CoverageDepthIndex(coverage, index, dict);
+    }
+
+    /**
+     * @return The depth at each of these indexes, in order, for one position
+     */
+    public static int[] getDepths(List<CoverageDepthIndex> indexes, String contig, int position1)
+    {
+        int[] ret = new int[indexes.size()];
+        for (int i = 0; i < ret.length; i++)
+        {
+            ret[i] = indexes.get(i).getDepth(contig, position1);
+        }
+
+        return ret;
+    }
+
+    public int getDepth(String contig, int position1)
+    {
+        Long contigOffset = _contigOffsets.get(contig);
+        if (contigOffset == null || position1 < 1 || position1 > _contigLengths.get(contig))
+        {
+            throw new IllegalArgumentException("Position not in the sequence dictionary: " + contig + ":" + position1 + ", for file: " + _coverage.getPath());
+        }
+
+        long byteOffset = HEADER_SIZE + ((contigOffset + position1 - 1) * 4);
+
+        return _segments[(int)(byteOffset / SEGMENT_SIZE)].getInt((int)(byteOffset % SEGMENT_SIZE));
+    }
+
+    private static boolean isCurrent(File coverage, File index, long totalLength) throws IOException
+    {
+        if (!index.exists() || index.length() != HEADER_SIZE + (totalLength * 4))
+        {
+            return false;
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        try (FileChannel channel = FileChannel.open(index.toPath(), StandardOpenOption.READ))
+        {
+            while (header.hasRemaining() && channel.read(header) != -1)
+            {
+                //keep reading
+            }
+        }
+        header.flip();
+
+        return header.remaining() == HEADER_SIZE && header.getInt() == MAGIC && header.getLong() == coverage.length() && header.getLong() == coverage.lastModified() && header.getLong() == totalLength;
+    }
+
+    private static void build(File coverage, File index, SAMSequenceDictionary dict) throws IOException
+    {
+        //NOTE: write to a temp file so concurrent readers never see a partial index
+        File tmp = new File(index.getPath() + ".tmp");
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmp), 1 << 20); BufferedReader reader = IOUtil.openFileForBufferedUtf8Reading(coverage))
+        {
+            buffer.putInt(MAGIC);
+            buffer.putLong(coverage.length());
+            buffer.putLong(coverage.lastModified());
+            buffer.putLong(dict.getReferenceLength());
+            buffer.putInt(0);
+
+            //skip the header line
+            String line = reader.readLine();
+            long lineNo = 1;
+            for (SAMSequenceRecord rec : dict.getSequences())
+            {
+                for (int pos = 1; pos <= rec.getSequenceLength(); pos++)
+                {
+                    line = reader.readLine();
+                    lineNo++;
+
+                    int tab = line == null ? -1 : line.indexOf('\t');
+                    int colon = tab == -1 ? -1 : line.lastIndexOf(':', tab);
+                    if (colon == -1 || !line.startsWith(rec.getSequenceName()) || colon != rec.getSequenceName().length() || parseInt(line, colon + 1, tab) != pos)
+                    {
+                        throw new IOException("Incorrect line at " + lineNo + ", expected " + rec.getSequenceName() + ":" + pos + ", but was: " + (line == null ? "end of file" : line.substring(0, Math.max(tab, 0))) + ", in file: " + coverage.getPath());
+                    }
+
+                    int end = line.indexOf('\t', tab + 1);
+                    if (!buffer.hasRemaining())
+                    {
+                        out.write(buffer.array(), 0, buffer.position());
+                        buffer.clear();
+                    }
+
+                    buffer.putInt(parseInt(line, tab + 1, end == -1 ? line.length() : end));
+                }
+            }
+
+            out.write(buffer.array(), 0, buffer.position());
+        }
+
+        Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int parseInt(String s, int start, int end)
+    {
+        int ret = 0;
+        for (int i = start; i < end; i++)
+        {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9')
+            {
+                throw new NumberFormatException("Not an integer: " + s.substring(start, end));
+            }
+
+            ret = (ret * 10) + (c - '0');
+        }
+
+        return ret;
+    }
+}
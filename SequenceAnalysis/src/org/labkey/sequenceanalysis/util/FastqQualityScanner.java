@@ -0,0 +1,504 @@
+package org.labkey.sequenceanalysis.util;
+
+import htsjdk.samtools.fastq.FastqReader;
+import htsjdk.samtools.fastq.FastqRecord;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.util.FileUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.text.NumberFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Computes read and quality metrics for a FASTQ in a single pass over the raw bytes, without decoding records into Strings.
+ * Per base, this only increments a counter for the raw quality byte and a per-position sum; the Q-score thresholds are derived from the
+ * 256-entry byte histogram once the file has been read.  Gzip input is inflated on a separate thread.
+ */
+public class FastqQualityScanner
+{
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    //NOTE: bytes above this were negative in the prior signed-byte comparison, so never counted toward the Q10-Q40 totals
+    private static final int MAX_QUALITY_BYTE = 128;
+
+    private final File _fastq;
+    private final @Nullable Logger _log;
+
+    private final long[] _byteHistogram = new long[256];
+    private long[] _positionSums = new long[512];
+    private long[] _lengthCounts = new long[512];
+
+    private long _total = 0;
+    private long _sumLength = 0;
+    private long _minLength = 0;
+    private long _maxLength = 0;
+    private long _totalBases = 0;
+
+    public FastqQualityScanner(File fastq, @Nullable Logger log)
+    {
+        _fastq = fastq;
+        _log = log;
+    }
+
+    public FastqQualityScanner scan() throws IOException
+    {
+        if (_log != null)
+        {
+            _log.info("calculating quality metrics for file: " + _fastq.getName());
+        }
+
+        //NOTE: the line of the current record (0: header, 1: sequence, 2: separator, 3: quality), and the column within that line
+        int line = 0;
+        int col = 0;
+        int seqLength = 0;
+        boolean atLineStart = true;
+        byte previous = 0;
+
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream is = ReadAheadInputStream.open(_fastq))
+        {
+            int read;
+            while ((read = is.read(buffer)) != -1)
+            {
+                for (int i = 0; i < read; i++)
+                {
+                    byte b = buffer[i];
+                    if (b == '\n')
+                    {
+                        //tolerate windows line endings
+                        boolean cr = previous == '\r';
+                        if (line == 1)
+                        {
+                            seqLength = cr ? col - 1 : col;
+                        }
+                        else if (line == 3)
+                        {
+                            if (cr)
+                            {
+                                col--;
+                                _byteHistogram['\r']--;
+                                _positionSums[col] -= '\r';
+                            }
+
+                            endRecord(seqLength, col);
+                        }
+
+                        //NOTE: blank lines between records are skipped, matching FastqReader
+                        if (!(line == 0 && atLineStart))
+                        {
+                            line = (line + 1) % 4;
+                        }
+
+                        col = 0;
+                        atLineStart = true;
+                        previous = b;
+                        continue;
+                    }
+
+                    if (atLineStart)
+                    {
+                        //NOTE: a blank line with a windows line ending, which is skipped below once the newline is reached
+                        if (line == 0 && b == '\r')
+                        {
+                            previous = b;
+                            continue;
+                        }
+
+                        atLineStart = false;
+                        if (line == 0 && b != '@')
+                            throw new IllegalArgumentException("Improperly formatted FASTQ, expected a header beginning with '@' after read " + _total + ": " + _fastq.getPath());
+                        else if (line == 2 && b != '+')
+                            throw new IllegalArgumentException("Improperly formatted FASTQ, expected a line beginning with '+' after read " + _total + ": " + _fastq.getPath());
+                        else if (line == 3 && _positionSums.length < seqLength + 1)
+                            _positionSums = Arrays.copyOf(_positionSums, Math.max(seqLength + 1, _positionSums.length * 2));
+                    }
+
+                    if (line == 3)
+                    {
+                        //one extra slot is allocated so a trailing carriage return does not overflow
+                        if (col > seqLength)
+                            throw new IllegalArgumentException("Quality string is longer than the sequence for read " + (_total + 1) + ": " + _fastq.getPath());
+
+                        _byteHistogram[b & 0xFF]++;
+                        _positionSums[col] += b;
+                    }
+
+                    col++;
+                    previous = b;
+                }
+            }
+        }
+
+        //the final record may not end with a newline
+        if (line == 3 && (!atLineStart || seqLength == 0))
+        {
+            if (previous == '\r')
+            {
+                col--;
+                _byteHistogram['\r']--;
+                _positionSums[col] -= '\r';
+            }
+
+            endRecord(seqLength, col);
+        }
+        else if (line != 0 || !atLineStart)
+        {
+            throw new IllegalArgumentException("FASTQ ended with an incomplete record after read " + _total + ": " + _fastq.getPath());
+        }
+
+        if (_log != null)
+        {
+            _log.info("processed " + NumberFormat.getInstance().format(_total) + " reads");
+        }
+
+        return this;
+    }
+
+    private void endRecord(int seqLength, int qualLength)
+    {
+        if (qualLength != seqLength)
+        {
+            throw new IllegalArgumentException("Sequence and quality strings have different lengths for read " + (_total + 1) + ": " + _fastq.getPath());
+        }
+
+        if (_lengthCounts.length <= seqLength)
+        {
+            _lengthCounts = Arrays.copyOf(_lengthCounts, Math.max(seqLength + 1, _lengthCounts.length * 2));
+        }
+        _lengthCounts[seqLength]++;
+
+        _total++;
+        _totalBases += seqLength;
+        _sumLength += seqLength;
+
+        //NOTE: this matches the prior implementation, where zero-length reads do not set the minimum
+        if (seqLength < _minLength || _minLength == 0)
+            _minLength = seqLength;
+        if (seqLength > _maxLength)
+            _maxLength = seqLength;
+
+        if (_log != null && _total % 1000000L == 0)
+        {
+            _log.info("processed " + NumberFormat.getInstance().format(_total) + " reads");
+        }
+    }
+
+    public long getTotalReads()
+    {
+        return _total;
+    }
+
+    public long getTotalBases()
+    {
+        return _totalBases;
+    }
+
+    /**
+     * @return The number of bases for each quality score, indexed by score.  Bytes outside the printable ASCII range are counted in the total bases, but not here.
+     */
+    public long[] getQualityHistogram()
+    {
+        long[] ret = new long[MAX_QUALITY_BYTE - FastqUtils.ASCII_OFFSET];
+        System.arraycopy(_byteHistogram, FastqUtils.ASCII_OFFSET, ret, 0, ret.length);
+
+        return ret;
+    }
+
+    public long getBasesWithQualityAtLeast(int minQual)
+    {
+        long ret = 0;
+        for (int b = Math.max(minQual + FastqUtils.ASCII_OFFSET, 0); b < MAX_QUALITY_BYTE; b++)
+        {
+            ret += _byteHistogram[b];
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return The mean quality score at each position of the read, over all reads long enough to include that position
+     */
+    public double[] getMeanQualityByPosition()
+    {
+        double[] ret = new double[(int)_maxLength];
+        long readsCovering = 0;
+        for (int pos = ret.length - 1; pos >= 0; pos--)
+        {
+            readsCovering += _lengthCounts[pos + 1];
+            ret[pos] = readsCovering == 0 ? 0 : ((_positionSums[pos] / (double)readsCovering) - FastqUtils.ASCII_OFFSET);
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return The metrics in the form stored in the quality_metrics table
+     */
+    public Map<String, Object> getMetricsMap()
+    {
+        long totalQ10 = getBasesWithQualityAtLeast(10);
+        long totalQ20 = getBasesWithQualityAtLeast(20);
+        long totalQ30 = getBasesWithQualityAtLeast(30);
+        long totalQ40 = getBasesWithQualityAtLeast(40);
+
+        Map<String, Object> map = new HashMap<>();
+        map.put("Total Reads", _total);
+        map.put("Min Read Length", _minLength);
+        map.put("Max Read Length", _maxLength);
+        map.put("Mean Read Length", _sumLength / (float)_total);
+        map.put("Total Bases", _totalBases);
+        map.put("Total MBases", (_totalBases / 1000000.0));
+        map.put("Total GBases", _totalBases / 1000000000.0);
+        map.put("Total Q10 Bases", totalQ10);
+        map.put("Total Q20 Bases", totalQ20);
+        map.put("Total Q30 Bases", totalQ30);
+        map.put("Total Q40 Bases", totalQ40);
+        map.put("Pct Q10", (totalQ10 / (double)_totalBases) * 100.0);
+        map.put("Pct Q20", (totalQ20 / (double)_totalBases) * 100.0);
+        map.put("Pct Q30", (totalQ30 / (double)_totalBases) * 100.0);
+        map.put("Pct Q40", (totalQ40 / (double)_totalBases) * 100.0);
+
+        return map;
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final String[] BASES = {"A", "C", "G", "T", "N"};
+
+        @Test
+        public void testMatchesFastqReader() throws Exception
+        {
+            List<FastqRecord> records = createRecords(new Random(42), 20000);
+
+            //NOTE: the gzip files are several MB, so the read-ahead stream crosses multiple buffers
+            for (String extension : Arrays.asList(".fastq", ".fastq.gz", ".fastq.bgz"))
+            {
+                for (String eol : Arrays.asList("\n", "\r\n"))
+                {
+                    for (boolean trailingNewline : new boolean[]{true, false})
+                    {
+                        File fastq = FileUtil.createTempFile("fastqQualityScanner", extension);
+                        try
+                        {
+                            writeFastq(fastq, records, eol, trailingNewline);
+                            String message = extension + ", " + (eol.length() == 1 ? "LF" : "CRLF") + ", trailing newline: " + trailingNewline;
+
+                            List<FastqRecord> parsed = readWithFastqReader(fastq);
+                            assertEquals(message, records.size(), parsed.size());
+
+                            FastqQualityScanner scanner = new FastqQualityScanner(fastq, null).scan();
+                            assertEquals(message, getExpectedMetrics(parsed), scanner.getMetricsMap());
+                            assertEquals(message, scanner.getTotalBases(), Arrays.stream(scanner.getQualityHistogram()).sum());
+                            assertArrayEquals(message, getExpectedMeanQualityByPosition(parsed), scanner.getMeanQualityByPosition(), 1e-9);
+                        }
+                        finally
+                        {
+                            fastq.delete();
+                        }
+                    }
+                }
+            }
+        }
+
+        @Test
+        public void testBlankLinesAndEdgeCases() throws Exception
+        {
+            //blank lines between records, a record whose quality string starts with '@' and a final record without a newline
+            String contents = "@r1\nACGT\n+\n@III\n\n@r2 comment\r\nAC\r\n+r2\r\n+#\r\n\r\n@r3\nGGGGG\n+\n5555I";
+            File fastq = FileUtil.createTempFile("fastqQualityScanner", ".fastq");
+            try
+            {
+                Files.writeString(fastq.toPath(), contents);
+
+                List<FastqRecord> parsed = readWithFastqReader(fastq);
+                assertEquals(3, parsed.size());
+
+                FastqQualityScanner scanner = new FastqQualityScanner(fastq, null).scan();
+                assertEquals(getExpectedMetrics(parsed), scanner.getMetricsMap());
+                assertEquals(3L, scanner.getTotalReads());
+                assertEquals(11L, scanner.getTotalBases());
+                assertEquals(1L, scanner.getQualityHistogram()[31]);
+                assertEquals(4L, scanner.getQualityHistogram()[20]);
+                assertArrayEquals(getExpectedMeanQualityByPosition(parsed), scanner.getMeanQualityByPosition(), 1e-9);
+            }
+            finally
+            {
+                fastq.delete();
+            }
+        }
+
+        @Test
+        public void testMalformedInput() throws Exception
+        {
+            //NOTE: FastqReader does not support sequences wrapped over multiple lines, and neither does this
+            assertMalformed("@r1\nACGT\nACGT\n+\nIIII\nIIII\n");
+            assertMalformed("@r1\nACGT\n+\nIII\n");
+            assertMalformed("@r1\nACGT\n+\nIIIII\n");
+            assertMalformed("r1\nACGT\n+\nIIII\n");
+            assertMalformed("@r1\nACGT\n+\n");
+            assertMalformed("@r1\nACGT\n+\nIIII\n@r2\nAC");
+        }
+
+        private void assertMalformed(String contents) throws IOException
+        {
+            File fastq = FileUtil.createTempFile("fastqQualityScanner", ".fastq");
+            try
+            {
+                Files.writeString(fastq.toPath(), contents);
+                new FastqQualityScanner(fastq, null).scan();
+                fail("Expected FASTQ to be rejected: " + contents);
+            }
+            catch (IllegalArgumentException e)
+            {
+                //expected
+            }
+            finally
+            {
+                fastq.delete();
+            }
+        }
+
+        private static List<FastqRecord> createRecords(Random r, int total)
+        {
+            List<FastqRecord> ret = new ArrayList<>(total);
+            for (int i = 0; i < total; i++)
+            {
+                int length = 1 + r.nextInt(150);
+                StringBuilder seq = new StringBuilder(length);
+                StringBuilder qual = new StringBuilder(length);
+                for (int j = 0; j < length; j++)
+                {
+                    seq.append(BASES[r.nextInt(BASES.length)]);
+                    qual.append((char)(FastqUtils.ASCII_OFFSET + r.nextInt(42)));
+                }
+
+                ret.add(new FastqRecord("read" + i, seq.toString(), "", qual.toString()));
+            }
+
+            return ret;
+        }
+
+        private static void writeFastq(File fastq, List<FastqRecord> records, String eol, boolean trailingNewline) throws IOException
+        {
+            try (OutputStream os = fastq.getName().endsWith(".bgz") ? new BlockCompressedOutputStream(fastq) : fastq.getName().endsWith(".gz") ? new GZIPOutputStream(new FileOutputStream(fastq)) : new FileOutputStream(fastq))
+            {
+                for (int i = 0; i < records.size(); i++)
+                {
+                    FastqRecord fq = records.get(i);
+                    String record = "@" + fq.getReadName() + eol + fq.getReadString() + eol + "+" + eol + fq.getBaseQualityString();
+                    if (trailingNewline || i < records.size() - 1)
+                    {
+                        record += eol;
+                    }
+
+                    os.write(record.getBytes(StandardCharsets.US_ASCII));
+                }
+            }
+        }
+
+        private static List<FastqRecord> readWithFastqReader(File fastq)
+        {
+            List<FastqRecord> ret = new ArrayList<>();
+            try (FastqReader reader = new FastqReader(fastq))
+            {
+                reader.forEachRemaining(ret::add);
+            }
+
+            return ret;
+        }
+
+        /**
+         * The metrics as computed by the FastqReader-based implementation this replaced
+         */
+        private static Map<String, Object> getExpectedMetrics(List<FastqRecord> records)
+        {
+            long total = 0;
+            long sum = 0;
+            long min = 0;
+            long max = 0;
+            long totalBases = 0;
+            long[] totalQ = new long[5];
+            for (FastqRecord fq : records)
+            {
+                long len = fq.length();
+                for (byte b : fq.getBaseQualityString().getBytes(StandardCharsets.US_ASCII))
+                {
+                    int qual = (int)b - FastqUtils.ASCII_OFFSET;
+                    for (int i = 1; i < totalQ.length; i++)
+                    {
+                        if (qual >= i * 10)
+                        {
+                            totalQ[i]++;
+                        }
+                    }
+
+                    totalBases++;
+                }
+
+                total++;
+                if (len < min || min == 0)
+                    min = len;
+                if (len > max)
+                    max = len;
+
+                sum += len;
+            }
+
+            Map<String, Object> map = new HashMap<>();
+            map.put("Total Reads", total);
+            map.put("Min Read Length", min);
+            map.put("Max Read Length", max);
+            map.put("Mean Read Length", sum / (float)total);
+            map.put("Total Bases", totalBases);
+            map.put("Total MBases", (totalBases / 1000000.0));
+            map.put("Total GBases", totalBases / 1000000000.0);
+            for (int i = 1; i < totalQ.length; i++)
+            {
+                map.put("Total Q" + (i * 10) + " Bases", totalQ[i]);
+                map.put("Pct Q" + (i * 10), (totalQ[i] / (double)totalBases) * 100.0);
+            }
+
+            return map;
+        }
+
+        private static double[] getExpectedMeanQualityByPosition(List<FastqRecord> records)
+        {
+            int maxLength = records.stream().mapToInt(FastqRecord::length).max().orElse(0);
+            double[] sums = new double[maxLength];
+            long[] counts = new long[maxLength];
+            for (FastqRecord fq : records)
+            {
+                String qual = fq.getBaseQualityString();
+                for (int i = 0; i < qual.length(); i++)
+                {
+                    sums[i] += qual.charAt(i) - FastqUtils.ASCII_OFFSET;
+                    counts[i]++;
+                }
+            }
+
+            double[] ret = new double[maxLength];
+            for (int i = 0; i < maxLength; i++)
+            {
+                ret[i] = sums[i] / counts[i];
+            }
+
+            return ret;
+        }
+    }
+}
@@ -16,11 +16,9 @@
 package org.labkey.sequenceanalysis.util;
 
 import htsjdk.samtools.fastq.FastqReader;
-import htsjdk.samtools.fastq.FastqRecord;
 import htsjdk.samtools.util.FastqQualityFormat;
 import htsjdk.samtools.util.QualityEncodingDetector;
-import org.apache.commons.io.Charsets;
-import org.apache.commons.io.FileUtils;
+import htsjdk.samtools.util.RuntimeIOException;
 import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
@@ -31,15 +29,11 @@
 import org.labkey.api.view.NotFoundException;
 import org.labkey.api.writer.PrintWriters;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.text.NumberFormat;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.zip.GZIPInputStream;
 
@@ -67,52 +61,19 @@ public static FastqQualityFormat inferFastqEncoding(File fastq)
 
     public static long getSequenceCount(File inputFile) throws PipelineJobException
     {
-        FileType gz = new FileType(".gz");
-        try (InputStream is = gz.isType(inputFile) ? new GZIPInputStream(new FileInputStream(inputFile)) : new FileInputStream(inputFile);BufferedReader lnr = new BufferedReader(new InputStreamReader(is, Charsets.US_ASCII)))
-        {
-            int count = 0;
-            while (lnr.readLine() != null)
-            {
-                count++;
-            }
-
-            return count / 4L;
-        }
-        catch (IOException e)
-        {
-            throw new PipelineJobException(e.getMessage());
-        }
+        return SequenceUtil.getLineCount(inputFile) / 4L;
     }
 
     public static Pair<Long, Long> logSequenceCounts(File inputFile1, File inputFile2, Logger log, @Nullable Long previousCount1, @Nullable Long previousCount2) throws PipelineJobException
     {
-        final long bytes = 2147483648L; //2gb
-
-        Long count1 = null;
-        long size1 = FileUtils.sizeOf(inputFile1);
-        if (size1 > bytes)
-        {
-            log.info("\t" + inputFile1.getName() + ": " + FileUtils.byteCountToDisplaySize(size1));
-        }
-        else
-        {
-            count1 = FastqUtils.getSequenceCount(inputFile1);
-            log.info("\t" + inputFile1.getName() + ": " + count1 + " sequences" + (previousCount1 != null ? ", difference from initial: " + (previousCount1 - count1) : ""));
-        }
+        long count1 = FastqUtils.getSequenceCount(inputFile1);
+        log.info("\t" + inputFile1.getName() + ": " + count1 + " sequences" + (previousCount1 != null ? ", difference from initial: " + (previousCount1 - count1) : ""));
 
         Long count2 = null;
         if (inputFile2 != null)
         {
-            long size2 = FileUtils.sizeOf(inputFile2);
-            if (size2 > bytes)
-            {
-                log.info("\t" + inputFile2.getName() + ": " + FileUtils.byteCountToDisplaySize(size2));
-            }
-            else
-            {
-                count2 = inputFile2 == null ? null : FastqUtils.getSequenceCount(inputFile2);
-                log.info("\t" + inputFile2.getName() + ": " + count2 + " sequences" + (previousCount2 != null ? ", difference from initial: " + (previousCount2 - count2) : ""));
-            }
+            count2 = FastqUtils.getSequenceCount(inputFile2);
+            log.info("\t" + inputFile2.getName() + ": " + count2 + " sequences" + (previousCount2 != null ? ", difference from initial: " + (previousCount2 - count2) : ""));
         }
 
         return Pair.of(count1, count2);
@@ -122,97 +83,21 @@ public static Pair<Long, Long> logSequenceCounts(File inputFile1, File inputFile
 
     public static Map<String, Object> getQualityMetrics(File f, @Nullable Logger log)
     {
-        if (log != null)
+        return getQualityScanner(f, log).getMetricsMap();
+    }
+
+    /**
+     * @return The scanner after reading the file, which also provides the full quality histogram and per-position qualities
+     */
+    public static FastqQualityScanner getQualityScanner(File f, @Nullable Logger log)
+    {
+        try
         {
-            log.info("calculating quality metrics for file: " + f.getName());
+            return new FastqQualityScanner(f, log).scan();
         }
-
-        try (FastqReader reader = new FastqReader(f))
+        catch (IOException e)
         {
-            long total = 0;
-            long sum = 0;
-            long min = 0;
-            long max = 0;
-            long totalBases = 0;
-            long totalQ10 = 0;
-            long totalQ20 = 0;
-            long totalQ30 = 0;
-            long totalQ40 = 0;
-            float avg;
-
-            long len;
-            while (reader.hasNext())
-            {
-                FastqRecord fq = reader.next();
-                len = fq.length();
-
-                //parse quality scores:
-                byte[] quals = fq.getBaseQualityString().getBytes(Charsets.US_ASCII);
-                for (byte b : quals)
-                {
-                    int qual = (int)b - ASCII_OFFSET;
-                    if (qual >= 40)
-                    {
-                        totalQ40++;
-                    }
-
-                    if (qual >= 30)
-                    {
-                        totalQ30++;
-                    }
-
-                    if (qual >= 20)
-                    {
-                        totalQ20++;
-                    }
-
-                    if (qual >= 10)
-                    {
-                        totalQ10++;
-                    }
-
-                    totalBases++;
-                }
-
-                total++;
-                if (len < min || min == 0)
-                    min = len;
-                if (len > max)
-                    max = len;
-
-                sum += len;
-
-                if (log != null && total % 1000000L == 0)
-                {
-                    log.info("processed " + NumberFormat.getInstance().format(total) + " reads");
-                }
-            }
-
-            if (log != null)
-            {
-                log.info("processed " + NumberFormat.getInstance().format(total) + " reads");
-            }
-
-            avg = sum / (float)total;
-
-            Map<String, Object> map = new HashMap<>();
-            map.put("Total Reads", total);
-            map.put("Min Read Length", min);
-            map.put("Max Read Length", max);
-            map.put("Mean Read Length", avg);
-            map.put("Total Bases", totalBases);
-            map.put("Total MBases", (totalBases / 1000000.0));
-            map.put("Total GBases", totalBases / 1000000000.0);
-            map.put("Total Q10 Bases", totalQ10);
-            map.put("Total Q20 Bases", totalQ20);
-            map.put("Total Q30 Bases", totalQ30);
-            map.put("Total Q40 Bases", totalQ40);
-            map.put("Pct Q10", (totalQ10 / (double)totalBases) * 100.0);
-            map.put("Pct Q20", (totalQ20 / (double)totalBases) * 100.0);
-            map.put("Pct Q30", (totalQ30 / (double)totalBases) * 100.0);
-            map.put("Pct Q40", (totalQ40 / (double)totalBases) * 100.0);
-
-            return map;
+            throw new RuntimeIOException(e);
         }
     }
 
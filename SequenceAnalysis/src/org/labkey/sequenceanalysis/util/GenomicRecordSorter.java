@@ -0,0 +1,785 @@
+package org.labkey.sequenceanalysis.util;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.samtools.util.IOUtil;
+import htsjdk.tribble.SimpleFeature;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.util.FileType;
+import org.labkey.api.util.FileUtil;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.ToIntFunction;
+
+/**
+ * Sorts a tab-delimited file of genomic records (VCF, BED, GFF/GTF or similar tables) in the JVM, as an external merge sort.
+ * Records are read into chunks of bounded size; full chunks are sorted and spilled to temporary BGZF files on worker threads while reading continues,
+ * and the spilled chunks are then merged. If the output is gzipped it is written as BGZF, and a tabix index can be built in the same pass.
+ *
+ * Records are ordered by contig, then start, then an optional rank (for example, genes before transcripts), then end. Contigs follow the sequence dictionary
+ * if one is provided, otherwise the ##contig lines of a VCF header, and any other contigs come after these in version order (as sort -V would).
+ * The sort is stable, so records with the same key keep their input order.
+ *
+ * Leading lines beginning with '#' are retained as the header. Blank lines, and comment lines found after the first record, are dropped.
+ */
+public class GenomicRecordSorter
+{
+    private static final FileType GZ = new FileType(".gz");
+
+    private final Logger _log;
+
+    private int _contigColumn = 0;
+    private @Nullable Integer _startColumn = null;
+    private @Nullable Integer _endColumn = null;
+    private @Nullable ToIntFunction<String> _rankFunction = null;
+    private int _headerLines = 0;
+    private @Nullable SAMSequenceDictionary _dictionary = null;
+    private @Nullable TabixFormat _tabixFormat = null;
+    private int _threads = 1;
+    private long _maxBytesInMemory = Math.max(1L << 20, Runtime.getRuntime().maxMemory() / 8);
+
+    //NOTE: an estimate of the memory used by each buffered record beyond its line: the Record, the line and contig String objects, and the list slot.
+    //For short records this can exceed the line itself.
+    private static final int RECORD_OVERHEAD_BYTES = 160;
+
+    private Map<String, Integer> _contigOrder = new HashMap<>();
+
+    public GenomicRecordSorter(Logger log)
+    {
+        _log = log;
+    }
+
+    /**
+     * Configures the sorter for a common file type, based on the file name.
+     * @return False if the type is not recognized, in which case only the contig column is used
+     */
+    public boolean configureForFile(File f)
+    {
+        if (SequenceUtil.FILETYPE.vcf.getFileType().isType(f))
+        {
+            setStartColumn(1);
+            setTabixFormat(TabixFormat.VCF);
+            return true;
+        }
+        else if (SequenceUtil.FILETYPE.bed.getFileType().isType(f))
+        {
+            setStartColumn(1);
+            setEndColumn(2);
+            setTabixFormat(TabixFormat.BED);
+            return true;
+        }
+        else if (SequenceUtil.FILETYPE.gtf.getFileType().isType(f) || SequenceUtil.FILETYPE.gff.getFileType().isType(f))
+        {
+            setStartColumn(3);
+            setEndColumn(4);
+            setTabixFormat(TabixFormat.GFF);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @param contigColumn The 0-based column holding the contig
+     */
+    public void setContigColumn(int contigColumn)
+    {
+        _contigColumn = contigColumn;
+    }
+
+    /**
+     * @param startColumn The 0-based column holding the start position, compared numerically. If null, records are ordered by contig only.
+     */
+    public void setStartColumn(@Nullable Integer startColumn)
+    {
+        _startColumn = startColumn;
+    }
+
+    public @Nullable Integer getStartColumn()
+    {
+        return _startColumn;
+    }
+
+    /**
+     * @param endColumn The 0-based column holding the end position, which is compared after the start and rank
+     */
+    public void setEndColumn(@Nullable Integer endColumn)
+    {
+        _endColumn = endColumn;
+    }
+
+    /**
+     * @param rankFunction Computes a rank from the full line, used to order records with the same start. Lower ranks sort first.
+     */
+    public void setRankFunction(@Nullable ToIntFunction<String> rankFunction)
+    {
+        _rankFunction = rankFunction;
+    }
+
+    /**
+     * @param headerLines The number of leading lines to retain as the header, in addition to any lines beginning with '#'
+     */
+    public void setHeaderLines(int headerLines)
+    {
+        _headerLines = headerLines;
+    }
+
+    public void setDictionary(@Nullable SAMSequenceDictionary dictionary)
+    {
+        _dictionary = dictionary;
+    }
+
+    /**
+     * @param tabixFormat If provided and the output is gzipped, a tabix index is written alongside it. The records must be sorted by start for this to be valid.
+     */
+    public void setTabixFormat(@Nullable TabixFormat tabixFormat)
+    {
+        _tabixFormat = tabixFormat;
+    }
+
+    public void setThreads(@Nullable Integer threads)
+    {
+        _threads = threads == null ? 1 : Math.max(1, threads);
+    }
+
+    /**
+     * @param maxBytesInMemory The approximate memory used by buffered records, including per-record overhead, shared between the chunk being read and those being spilled
+     */
+    public void setMaxBytesInMemory(long maxBytesInMemory)
+    {
+        _maxBytesInMemory = maxBytesInMemory;
+    }
+
+    /**
+     * Sorts the input into the output, which can be the same file. Any existing index of the output is deleted.
+     */
+    public void sort(File input, File output) throws IOException
+    {
+        //NOTE: a unique name is used, since more than one file in the same directory can be sorted in place at once
+        File dest = input.equals(output) ? FileUtil.createTempFile("sorted", ".tmp" + (GZ.isType(output) ? ".gz" : ""), output.getParentFile()) : output;
+        for (String extension : Arrays.asList(".tbi", ".idx"))
+        {
+            File idx = new File(output.getPath() + extension);
+            if (idx.exists())
+            {
+                _log.debug("Deleting index: " + idx.getPath());
+                idx.delete();
+            }
+        }
+
+        //NOTE: the chunk currently being read also counts against the memory limit
+        long maxChunkBytes = Math.max(1, _maxBytesInMemory / (_threads + 1));
+        List<Future<File>> spills = new ArrayList<>();
+        List<File> spillFiles = new ArrayList<>();
+        Semaphore inFlight = new Semaphore(_threads);
+        ExecutorService executor = _threads > 1 ? Executors.newFixedThreadPool(_threads) : null;
+        boolean success = false;
+        try
+        {
+            List<String> header = new ArrayList<>();
+            List<Record> chunk = new ArrayList<>();
+            long chunkBytes = 0;
+            long totalRecords = 0;
+
+            try (BufferedReader reader = IOUtil.openFileForBufferedUtf8Reading(input))
+            {
+                boolean inHeader = true;
+                String line;
+                while ((line = reader.readLine()) != null)
+                {
+                    if (inHeader)
+                    {
+                        if (header.size() < _headerLines || line.startsWith("#"))
+                        {
+                            header.add(line);
+                            continue;
+                        }
+
+                        inHeader = false;
+                        initContigOrder(header);
+                    }
+
+                    if (line.isEmpty() || line.startsWith("#"))
+                    {
+                        continue;
+                    }
+
+                    chunk.add(parse(line));
+                    chunkBytes += line.length() + RECORD_OVERHEAD_BYTES;
+                    totalRecords++;
+
+                    if (chunkBytes >= maxChunkBytes)
+                    {
+                        File spill = FileUtil.createTempFile("sort", ".txt.gz", dest.getParentFile());
+                        spillFiles.add(spill);
+                        spills.add(spill(chunk, spill, executor, inFlight));
+
+                        chunk = new ArrayList<>();
+                        chunkBytes = 0;
+                    }
+                }
+
+                if (inHeader)
+                {
+                    initContigOrder(header);
+                }
+            }
+
+            chunk.sort(this::compare);
+
+            try (RecordWriter writer = new RecordWriter(dest))
+            {
+                for (String line : header)
+                {
+                    writer.writeHeader(line);
+                }
+
+                if (spills.isEmpty())
+                {
+                    for (Record r : chunk)
+                    {
+                        writer.write(r._line);
+                    }
+                }
+                else
+                {
+                    _log.debug("merging " + (spills.size() + 1) + " sorted chunks of " + totalRecords + " records");
+                    for (Future<File> f : spills)
+                    {
+                        f.get();
+                    }
+
+                    merge(spillFiles, chunk, writer);
+                }
+            }
+
+            success = true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException ioe)
+            {
+                throw ioe;
+            }
+            else if (e.getCause() instanceof RuntimeException re)
+            {
+                throw re;
+            }
+
+            throw new IOException(e.getCause());
+        }
+        finally
+        {
+            if (executor != null)
+            {
+                executor.shutdownNow();
+            }
+
+            spillFiles.forEach(File::delete);
+            if (!success && !dest.equals(output))
+            {
+                dest.delete();
+                new File(dest.getPath() + ".tbi").delete();
+            }
+        }
+
+        if (!dest.equals(output))
+        {
+            output.delete();
+            Files.move(dest.toPath(), output.toPath());
+
+            File destIdx = new File(dest.getPath() + ".tbi");
+            if (destIdx.exists())
+            {
+                Files.move(destIdx.toPath(), new File(output.getPath() + ".tbi").toPath());
+            }
+        }
+    }
+
+    private Future<File> spill(List<Record> chunk, File spill, @Nullable ExecutorService executor, Semaphore inFlight) throws IOException, InterruptedException
+    {
+        if (executor == null)
+        {
+            writeSpill(chunk, spill);
+
+            return CompletableFuture.completedFuture(spill);
+        }
+
+        //NOTE: this limits the number of chunks held in memory
+        inFlight.acquire();
+
+        return executor.submit(() -> {
+            try
+            {
+                writeSpill(chunk, spill);
+
+                return spill;
+            }
+            finally
+            {
+                inFlight.release();
+            }
+        });
+    }
+
+    private void writeSpill(List<Record> chunk, File spill) throws IOException
+    {
+        chunk.sort(this::compare);
+
+        //NOTE: spilled chunks are only read once, so favor speed over size
+        try (OutputStream out = new BlockCompressedOutputStream(spill, 1))
+        {
+            for (Record r : chunk)
+            {
+                out.write(r._line.getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+            }
+        }
+    }
+
+    private void merge(List<File> spills, List<Record> lastChunk, RecordWriter writer) throws IOException
+    {
+        List<BufferedReader> readers = new ArrayList<>();
+        try
+        {
+            PriorityQueue<MergeSource> queue = new PriorityQueue<>(spills.size() + 1, (a, b) -> {
+                int ret = compare(a._current, b._current);
+
+                //NOTE: earlier chunks held earlier input, which keeps the sort stable
+                return ret != 0 ? ret : Integer.compare(a._idx, b._idx);
+            });
+
+            for (File spill : spills)
+            {
+                BufferedReader reader = IOUtil.openFileForBufferedUtf8Reading(spill);
+                readers.add(reader);
+
+                MergeSource source = new MergeSource(readers.size() - 1, reader.lines().map(this::parse).iterator());
+                if (source.advance())
+                {
+                    queue.add(source);
+                }
+            }
+
+            MergeSource inMemory = new MergeSource(spills.size(), lastChunk.iterator());
+            if (inMemory.advance())
+            {
+                queue.add(inMemory);
+            }
+
+            while (!queue.isEmpty())
+            {
+                MergeSource source = queue.poll();
+                writer.write(source._current._line);
+                if (source.advance())
+                {
+                    queue.add(source);
+                }
+            }
+        }
+        finally
+        {
+            for (BufferedReader reader : readers)
+            {
+                reader.close();
+            }
+        }
+    }
+
+    private void initContigOrder(List<String> header)
+    {
+        _contigOrder = new HashMap<>();
+        if (_dictionary != null)
+        {
+            _dictionary.getSequences().forEach(x -> _contigOrder.put(x.getSequenceName(), x.getSequenceIndex()));
+            return;
+        }
+
+        for (String line : header)
+        {
+            if (line.startsWith("##contig=<ID="))
+            {
+                int end = line.indexOf(',');
+                if (end == -1)
+                {
+                    end = line.indexOf('>');
+                }
+
+                if (end > 13)
+                {
+                    _contigOrder.putIfAbsent(line.substring(13, end), _contigOrder.size());
+                }
+            }
+        }
+    }
+
+    private Record parse(String line)
+    {
+        String contig = getField(line, _contigColumn);
+        Integer contigIdx = _contigOrder.get(contig);
+
+        return new Record(line, contig, contigIdx == null ? Integer.MAX_VALUE : contigIdx, _startColumn == null ? 0 : getNumericField(line, _startColumn), _rankFunction == null ? 0 : _rankFunction.applyAsInt(line), _endColumn == null ? 0 : getNumericField(line, _endColumn));
+    }
+
+    private int compare(Record a, Record b)
+    {
+        int ret = Integer.compare(a._contigIdx, b._contigIdx);
+        if (ret != 0)
+        {
+            return ret;
+        }
+
+        //contigs not in the dictionary
+        if (a._contigIdx == Integer.MAX_VALUE && !a._contig.equals(b._contig))
+        {
+            ret = compareVersion(a._contig, b._contig);
+
+            return ret != 0 ? ret : a._contig.compareTo(b._contig);
+        }
+
+        ret = Long.compare(a._start, b._start);
+        if (ret != 0)
+        {
+            return ret;
+        }
+
+        ret = Integer.compare(a._rank, b._rank);
+        if (ret != 0)
+        {
+            return ret;
+        }
+
+        return Long.compare(a._end, b._end);
+    }
+
+    /**
+     * Compares strings by treating runs of digits as numbers, so chr2 sorts before chr10.
+     */
+    public static int compareVersion(String a, String b)
+    {
+        int i = 0;
+        int j = 0;
+        while (i < a.length() && j < b.length())
+        {
+            char ca = a.charAt(i);
+            char cb = b.charAt(j);
+            if (Character.isDigit(ca) && Character.isDigit(cb))
+            {
+                while (i < a.length() - 1 && a.charAt(i) == '0' && Character.isDigit(a.charAt(i + 1)))
+                    i++;
+                while (j < b.length() - 1 && b.charAt(j) == '0' && Character.isDigit(b.charAt(j + 1)))
+                    j++;
+
+                int endA = i;
+                while (endA < a.length() && Character.isDigit(a.charAt(endA)))
+                    endA++;
+                int endB = j;
+                while (endB < b.length() && Character.isDigit(b.charAt(endB)))
+                    endB++;
+
+                int ret = Integer.compare(endA - i, endB - j);
+                if (ret != 0)
+                {
+                    return ret;
+                }
+
+                for (; i < endA; i++, j++)
+                {
+                    ret = Character.compare(a.charAt(i), b.charAt(j));
+                    if (ret != 0)
+                    {
+                        return ret;
+                    }
+                }
+            }
+            else if (ca != cb)
+            {
+                return Character.compare(ca, cb);
+            }
+            else
+            {
+                i++;
+                j++;
+            }
+        }
+
+        return Integer.compare(a.length() - i, b.length() - j);
+    }
+
+    private static String getField(String line, int idx)
+    {
+        int start = 0;
+        for (int i = 0; i < idx; i++)
+        {
+            start = line.indexOf('\t', start) + 1;
+            if (start == 0)
+            {
+                return "";
+            }
+        }
+
+        int end = line.indexOf('\t', start);
+
+        return end == -1 ? line.substring(start) : line.substring(start, end);
+    }
+
+    // parses leading digits, treating anything else as zero (as sort -n would)
+    private static long getNumericField(String line, int idx)
+    {
+        int start = 0;
+        for (int i = 0; i < idx; i++)
+        {
+            start = line.indexOf('\t', start) + 1;
+            if (start == 0)
+            {
+                return 0;
+            }
+        }
+
+        long ret = 0;
+        for (int i = start; i < line.length(); i++)
+        {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9')
+            {
+                break;
+            }
+
+            ret = (ret * 10) + (c - '0');
+        }
+
+        return ret;
+    }
+
+    private class RecordWriter implements AutoCloseable
+    {
+        private final File _output;
+        private final OutputStream _out;
+        private final @Nullable BlockCompressedOutputStream _bgzf;
+        private @Nullable TabixIndexCreator _indexCreator;
+
+        public RecordWriter(File output) throws IOException
+        {
+            _output = output;
+            if (GZ.isType(output))
+            {
+                _bgzf = new BlockCompressedOutputStream(output);
+                _out = _bgzf;
+                if (_tabixFormat != null)
+                {
+                    _indexCreator = _dictionary == null ? new TabixIndexCreator(_tabixFormat) : new TabixIndexCreator(_dictionary, _tabixFormat);
+                }
+            }
+            else
+            {
+                _bgzf = null;
+                _out = new BufferedOutputStream(new FileOutputStream(output), 1 << 20);
+            }
+        }
+
+        public void writeHeader(String line) throws IOException
+        {
+            _out.write(line.getBytes(StandardCharsets.UTF_8));
+            _out.write('\n');
+        }
+
+        public void write(String line) throws IOException
+        {
+            if (_indexCreator != null)
+            {
+                try
+                {
+                    _indexCreator.addFeature(toFeature(line), _bgzf.getFilePointer());
+                }
+                catch (RuntimeException e)
+                {
+                    _log.warn("Unable to index sorted output, an index will need to be created separately: " + e.getMessage());
+                    _indexCreator = null;
+                }
+            }
+
+            _out.write(line.getBytes(StandardCharsets.UTF_8));
+            _out.write('\n');
+        }
+
+        private SimpleFeature toFeature(String line)
+        {
+            String contig = getField(line, _tabixFormat.sequenceColumn - 1);
+            int start = (int)getNumericField(line, _tabixFormat.startPositionColumn - 1);
+            if ((_tabixFormat.flags & TabixFormat.ZERO_BASED) != 0)
+            {
+                start++;
+            }
+
+            int end;
+            if (TabixFormat.VCF.equals(_tabixFormat))
+            {
+                end = start + Math.max(1, getField(line, 3).length()) - 1;
+            }
+            else
+            {
+                end = _tabixFormat.endPositionColumn > 0 ? (int)getNumericField(line, _tabixFormat.endPositionColumn - 1) : start;
+            }
+
+            return new SimpleFeature(contig, start, Math.max(start, end));
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (_indexCreator != null)
+            {
+                Index index = _indexCreator.finalizeIndex(_bgzf.getFilePointer());
+                _out.close();
+                index.writeBasedOnFeatureFile(_output);
+            }
+            else
+            {
+                _out.close();
+            }
+        }
+    }
+
+    private static class Record
+    {
+        private final String _line;
+        private final String _contig;
+        private final int _contigIdx;
+        private final long _start;
+        private final int _rank;
+        private final long _end;
+
+        public Record(String line, String contig, int contigIdx, long start, int rank, long end)
+        {
+            _line = line;
+            _contig = contig;
+            _contigIdx = contigIdx;
+            _start = start;
+            _rank = rank;
+            _end = end;
+        }
+    }
+
+    private static class MergeSource
+    {
+        private final int _idx;
+        private final Iterator<Record> _records;
+        private Record _current = null;
+
+        public MergeSource(int idx, Iterator<Record> records)
+        {
+            _idx = idx;
+            _records = records;
+        }
+
+        public boolean advance()
+        {
+            _current = _records.hasNext() ? _records.next() : null;
+
+            return _current != null;
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testSortMatchesInMemory() throws Exception
+        {
+            Random r = new Random(42);
+            List<String> contigs = Arrays.asList("chr1", "chr2", "chr10", "chrX", "chrUn_1");
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < 5000; i++)
+            {
+                //NOTE: the record index is included so that the stability of the sort can be checked
+                lines.add(contigs.get(r.nextInt(contigs.size())) + "\t" + r.nextInt(1000) + "\t" + i);
+            }
+
+            File input = FileUtil.createTempFile("sorterTest", ".txt");
+            File output = FileUtil.createTempFile("sorterTest", ".txt.gz");
+            try
+            {
+                try (PrintWriter writer = new PrintWriter(input, StandardCharsets.UTF_8))
+                {
+                    writer.println("##contig=<ID=chrX,length=100>");
+                    writer.println("##contig=<ID=chr1,length=100>");
+                    writer.println("#header");
+                    lines.forEach(writer::println);
+                    writer.println();
+                }
+
+                List<String> expected = new ArrayList<>(lines);
+                List<String> order = Arrays.asList("chrX", "chr1", "chr2", "chr10", "chrUn_1");
+                expected.sort(Comparator.comparing((String x) -> order.indexOf(getField(x, 0))).thenComparingLong(x -> getNumericField(x, 1)));
+
+                for (int threads = 1; threads <= 4; threads += 3)
+                {
+                    GenomicRecordSorter sorter = new GenomicRecordSorter(LogManager.getLogger(GenomicRecordSorter.class));
+                    sorter.setStartColumn(1);
+                    sorter.setThreads(threads);
+
+                    //force several spilled chunks
+                    sorter.setMaxBytesInMemory(40000);
+                    sorter.sort(input, output);
+
+                    List<String> actual;
+                    try (BufferedReader reader = IOUtil.openFileForBufferedUtf8Reading(output))
+                    {
+                        actual = reader.lines().toList();
+                    }
+
+                    assertEquals(Arrays.asList("##contig=<ID=chrX,length=100>", "##contig=<ID=chr1,length=100>", "#header"), actual.subList(0, 3));
+                    assertEquals(expected, actual.subList(3, actual.size()));
+                }
+            }
+            finally
+            {
+                input.delete();
+                output.delete();
+            }
+        }
+
+        @Test
+        public void testCompareVersion()
+        {
+            assertTrue(compareVersion("chr2", "chr10") < 0);
+            assertTrue(compareVersion("chr10", "chrX") < 0);
+            assertTrue(compareVersion("chr1", "chr1_random") < 0);
+            assertEquals(0, compareVersion("chr01", "chr1"));
+        }
+    }
+}
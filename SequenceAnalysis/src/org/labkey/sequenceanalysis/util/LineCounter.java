@@ -0,0 +1,201 @@
+package org.labkey.sequenceanalysis.util;
+
+import org.labkey.api.util.FileType;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Counts lines by scanning raw bytes, rather than building a String per line. Plain files are memory-mapped, and gzip files are inflated on a separate thread.
+ * Line terminators are counted as BufferedReader.readLine() would (\n, \r or \r\n, plus a final unterminated line), so results are identical to the prior approach.
+ *
+ * Completed counts are cached by path, modification time and size, so checking the same file again (for example before and after a step) does not re-read it.
+ */
+public class LineCounter
+{
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final long MAP_SIZE = 1L << 30;
+    private static final int MAX_CACHE_SIZE = 2000;
+
+    private static final FileType GZ = new FileType(".gz");
+    private static final Map<String, CachedCount> _cache = new ConcurrentHashMap<>();
+
+    private long _lines = 0;
+    private boolean _previousCR = false;
+    private boolean _inLine = false;
+
+    private LineCounter()
+    {
+
+    }
+
+    public static long getLineCount(File f) throws IOException
+    {
+        return count(f, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return True if the file has at least minLines lines.  As before, this is false for a missing or empty file, even if minLines is zero.
+     */
+    public static boolean hasMinLineCount(File f, long minLines) throws IOException
+    {
+        if (!f.exists())
+        {
+            return false;
+        }
+
+        long target = Math.max(minLines, 1);
+
+        return count(f, target) >= target;
+    }
+
+    /**
+     * @return The number of lines, or a value of at least stopAfter if the file has that many lines
+     */
+    private static long count(File f, long stopAfter) throws IOException
+    {
+        BasicFileAttributes attributes = Files.readAttributes(f.toPath(), BasicFileAttributes.class);
+        String key = f.getAbsolutePath();
+        CachedCount cached = _cache.get(key);
+        if (cached != null && cached.matches(attributes))
+        {
+            return cached._lines;
+        }
+
+        LineCounter counter = new LineCounter();
+        boolean complete = GZ.isType(f) ? counter.countGzip(f, stopAfter) : counter.countPlain(f, stopAfter);
+        long lines = counter.finish(complete);
+        if (complete)
+        {
+            if (_cache.size() >= MAX_CACHE_SIZE)
+            {
+                _cache.clear();
+            }
+
+            _cache.put(key, new CachedCount(attributes, lines));
+        }
+
+        return lines;
+    }
+
+    private boolean countPlain(File f, long stopAfter) throws IOException
+    {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            for (long position = 0; position < size; position += MAP_SIZE)
+            {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_SIZE, size - position));
+                while (mapped.hasRemaining())
+                {
+                    int length = Math.min(buffer.length, mapped.remaining());
+                    mapped.get(buffer, 0, length);
+                    accept(buffer, length);
+
+                    if (_lines >= stopAfter)
+                    {
+                        return false;
+                    }
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private boolean countGzip(File f, long stopAfter) throws IOException
+    {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream is = new ReadAheadInputStream(new GZIPInputStream(new FileInputStream(f), 64 * 1024)))
+        {
+            int read;
+            while ((read = is.read(buffer)) != -1)
+            {
+                accept(buffer, read);
+
+                if (_lines >= stopAfter)
+                {
+                    return false;
+                }
+            }
+        }
+
+        return true;
+    }
+
+    private void accept(byte[] buffer, int length)
+    {
+        long lines = _lines;
+        boolean previousCR = _previousCR;
+        boolean inLine = _inLine;
+        for (int i = 0; i < length; i++)
+        {
+            byte b = buffer[i];
+            if (b == '\n')
+            {
+                if (!previousCR)
+                {
+                    lines++;
+                }
+
+                previousCR = false;
+                inLine = false;
+            }
+            else if (b == '\r')
+            {
+                lines++;
+                previousCR = true;
+                inLine = false;
+            }
+            else
+            {
+                previousCR = false;
+                inLine = true;
+            }
+        }
+
+        _lines = lines;
+        _previousCR = previousCR;
+        _inLine = inLine;
+    }
+
+    private long finish(boolean complete)
+    {
+        //a final line without a terminator still counts
+        return complete && _inLine ? _lines + 1 : _lines;
+    }
+
+    private static class CachedCount
+    {
+        private final FileTime _lastModified;
+        private final long _size;
+        private final Object _fileKey;
+        private final long _lines;
+
+        public CachedCount(BasicFileAttributes attributes, long lines)
+        {
+            _lastModified = attributes.lastModifiedTime();
+            _size = attributes.size();
+            _fileKey = attributes.fileKey();
+            _lines = lines;
+        }
+
+        public boolean matches(BasicFileAttributes attributes)
+        {
+            return _lastModified.equals(attributes.lastModifiedTime()) && _size == attributes.size() && Objects.equals(_fileKey, attributes.fileKey());
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package org.labkey.sequenceanalysis.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the wrapped stream on a background thread, a fixed number of buffers ahead of the consumer.
+ * This is mainly useful for gzip input, where inflation can then overlap with parsing on the calling thread.
+ */
+public class ReadAheadInputStream extends InputStream
+{
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+    private final InputStream _source;
+    private final BlockingQueue<Chunk> _filled;
+    private final BlockingQueue<byte[]> _free;
+    private final Thread _reader;
+
+    private Chunk _current = null;
+    private int _position = 0;
+    private boolean _eof = false;
+
+    public ReadAheadInputStream(InputStream source)
+    {
+        this(source, DEFAULT_BUFFER_SIZE, 4);
+    }
+
+    public ReadAheadInputStream(InputStream source, int bufferSize, int buffersInFlight)
+    {
+        _source = source;
+        _filled = new ArrayBlockingQueue<>(buffersInFlight + 1);
+        _free = new ArrayBlockingQueue<>(buffersInFlight + 1);
+        for (int i = 0; i < buffersInFlight; i++)
+        {
+            _free.add(new byte[bufferSize]);
+        }
+
+        _reader = new Thread(this::readSource, "ReadAheadInputStream");
+        _reader.setDaemon(true);
+        _reader.start();
+    }
+
+    /**
+     * Opens a file, inflating on a background thread if it is gzip (including BGZF).  Plain files are returned as a buffered stream,
+     * since there is nothing to overlap.
+     */
+    public static InputStream open(File f) throws IOException
+    {
+        if (isGzip(f))
+        {
+            return new ReadAheadInputStream(new GZIPInputStream(new FileInputStream(f), 64 * 1024));
+        }
+
+        return new BufferedInputStream(new FileInputStream(f), DEFAULT_BUFFER_SIZE);
+    }
+
+    public static boolean isGzip(File f) throws IOException
+    {
+        try (InputStream is = new FileInputStream(f))
+        {
+            return is.read() == 0x1f && is.read() == 0x8b;
+        }
+    }
+
+    private void readSource()
+    {
+        try
+        {
+            while (true)
+            {
+                byte[] buffer = _free.take();
+                int length = 0;
+                int read;
+                while (length < buffer.length && (read = _source.read(buffer, length, buffer.length - length)) != -1)
+                {
+                    length += read;
+                }
+
+                if (length > 0)
+                {
+                    _filled.put(new Chunk(buffer, length, null));
+                }
+
+                if (length < buffer.length)
+                {
+                    _filled.put(new Chunk(null, -1, null));
+                    return;
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            //the stream was closed
+        }
+        catch (IOException | RuntimeException e)
+        {
+            _filled.offer(new Chunk(null, -1, e));
+        }
+    }
+
+    private boolean nextChunk() throws IOException
+    {
+        if (_eof)
+        {
+            return false;
+        }
+
+        if (_current != null)
+        {
+            _free.offer(_current._data);
+            _current = null;
+        }
+
+        try
+        {
+            Chunk chunk = _filled.take();
+            if (chunk._error != null)
+            {
+                _eof = true;
+                throw chunk._error instanceof IOException ioe ? ioe : new IOException(chunk._error);
+            }
+            else if (chunk._length == -1)
+            {
+                _eof = true;
+                return false;
+            }
+
+            _current = chunk;
+            _position = 0;
+
+            return true;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    @Override
+    public int read() throws IOException
+    {
+        if ((_current == null || _position == _current._length) && !nextChunk())
+        {
+            return -1;
+        }
+
+        return _current._data[_position++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException
+    {
+        if (len == 0)
+        {
+            return 0;
+        }
+
+        if ((_current == null || _position == _current._length) && !nextChunk())
+        {
+            return -1;
+        }
+
+        int toCopy = Math.min(len, _current._length - _position);
+        System.arraycopy(_current._data, _position, b, off, toCopy);
+        _position += toCopy;
+
+        return toCopy;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        _eof = true;
+        _reader.interrupt();
+        _source.close();
+    }
+
+    private static class Chunk
+    {
+        private final byte[] _data;
+        private final int _length;
+        private final Throwable _error;
+
+        public Chunk(byte[] data, int length, Throwable error)
+        {
+            _data = data;
+            _length = length;
+            _error = error;
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testReadAcrossBuffers() throws Exception
+        {
+            Random r = new Random(42);
+
+            //NOTE: this includes input that is an exact multiple of the buffer size, and empty input
+            for (int size : new int[]{0, 1, 999, 1000, 3000, 100003})
+            {
+                byte[] data = new byte[size];
+                r.nextBytes(data);
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (ReadAheadInputStream is = new ReadAheadInputStream(new ByteArrayInputStream(data), 1000, 2))
+                {
+                    byte[] buffer = new byte[777];
+                    while (true)
+                    {
+                        //alternate single-byte and bulk reads
+                        int b = is.read();
+                        if (b == -1)
+                        {
+                            break;
+                        }
+                        out.write(b);
+
+                        int read = is.read(buffer, 1, buffer.length - 1);
+                        if (read == -1)
+                        {
+                            break;
+                        }
+                        out.write(buffer, 1, read);
+                    }
+
+                    assertEquals(-1, is.read());
+                    assertEquals(-1, is.read(buffer));
+                    assertEquals(0, is.read(buffer, 0, 0));
+                }
+
+                assertArrayEquals("size: " + size, data, out.toByteArray());
+            }
+        }
+
+        @Test
+        public void testSourceError() throws Exception
+        {
+            InputStream source = new InputStream()
+            {
+                private int _read = 0;
+
+                @Override
+                public int read() throws IOException
+                {
+                    if (_read++ == 1500)
+                    {
+                        throw new IOException("Expected failure");
+                    }
+
+                    return 1;
+                }
+            };
+
+            try (ReadAheadInputStream is = new ReadAheadInputStream(source, 1000, 2))
+            {
+                byte[] buffer = new byte[1000];
+                assertEquals(1000, is.read(buffer));
+                is.read(buffer);
+                fail("Expected an IOException");
+            }
+            catch (IOException e)
+            {
+                assertEquals("Expected failure", e.getMessage());
+            }
+        }
+
+        @Test
+        public void testCloseBeforeEnd() throws Exception
+        {
+            ReadAheadInputStream is = new ReadAheadInputStream(new ByteArrayInputStream(new byte[100000]), 1000, 2);
+            assertEquals(0, is.read());
+            is.close();
+
+            //the background thread is blocked waiting for a free buffer, and should exit once interrupted
+            is._reader.join(5000);
+            assertFalse(is._reader.isAlive());
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package org.labkey.sequenceanalysis.util;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.sequenceanalysis.model.SequenceTag;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A precomputed index over a fixed set of barcodes, used to find every barcode within the allowed edit distance
+ * of a read end without computing a full Levenshtein distance against each barcode.
+ *
+ * Barcodes are stored in the orientation they are compared in (the sequence for the 5' end, the reversed reverse-complement for the 3' end),
+ * and are grouped by length. With an edit distance of zero, candidates are an exact hash lookup. Otherwise each barcode is split into
+ * editDistance + 1 segments; any target within that distance must contain at least one segment unchanged, shifted by at most editDistance bases,
+ * so only barcodes sharing a segment are verified with a bounded Levenshtein distance.
+ *
+ * Matches are reported in the order the barcodes were supplied, and are identical to comparing each barcode in turn.
+ * The segment tables for each deletion count are built on first use and never modified after, so instances can be shared across threads.
+ */
+public class SequenceTagIndex
+{
+    private final List<SequenceTag> _tags;
+    private final String[] _sequences;
+    private final int _editDistance;
+    private final Map<Integer, TrimmedIndex> _trimmedIndexes = new ConcurrentHashMap<>();
+
+    public SequenceTagIndex(Collection<? extends SequenceTag> tags, boolean is5Prime, int editDistance)
+    {
+        _tags = new ArrayList<>(tags);
+        _editDistance = editDistance;
+        _sequences = new String[_tags.size()];
+        for (int i = 0; i < _tags.size(); i++)
+        {
+            _sequences[i] = is5Prime ? _tags.get(i).getSequence() : StringUtils.reverse(_tags.get(i).getReverseComplement());
+        }
+    }
+
+    public boolean isEmpty()
+    {
+        return _tags.isEmpty();
+    }
+
+    /**
+     * @param orientedSequence the read sequence, reversed if this index is for the 3' end
+     * @param offset if positive, the number of bases skipped before the barcode. If negative, the number of leading barcode bases that are allowed to be missing.
+     */
+    public void scan(String orientedSequence, int offset, MatchHandler handler)
+    {
+        TrimmedIndex idx = getTrimmedIndex(offset < 0 ? -offset : 0);
+        int targetStart = Math.max(offset, 0);
+
+        List<int[]> hits = null;
+        for (LengthGroup group : idx._groups)
+        {
+            //NOTE: this throws for reads shorter than the barcode, just as comparing each barcode would
+            String targetSeq = orientedSequence.substring(targetStart, targetStart + group._length);
+            BitSet candidates = group.findCandidates(targetSeq);
+            for (int i = candidates.nextSetBit(0); i >= 0; i = candidates.nextSetBit(i + 1))
+            {
+                int editDist = _editDistance == 0 ? 0 : StringUtils.getLevenshteinDistance(idx._sequences[i], targetSeq, _editDistance);
+                if (editDist >= 0)
+                {
+                    if (hits == null)
+                        hits = new ArrayList<>(2);
+
+                    hits.add(new int[]{i, editDist, targetStart});
+                }
+            }
+        }
+
+        if (hits == null)
+            return;
+
+        //report in the order barcodes were supplied, which can span length groups
+        if (hits.size() > 1)
+            hits.sort((a, b) -> Integer.compare(a[0], b[0]));
+
+        for (int[] hit : hits)
+        {
+            String barcodeSeq = idx._sequences[hit[0]];
+            handler.onMatch(_tags.get(hit[0]), hit[1], barcodeSeq, orientedSequence.substring(hit[2], hit[2] + barcodeSeq.length()));
+        }
+    }
+
+    //NOTE: this runs for every read, and indexes are shared by pipelined workers, so the common case (already built) takes no lock
+    private TrimmedIndex getTrimmedIndex(int deletions)
+    {
+        TrimmedIndex idx = _trimmedIndexes.get(deletions);
+        if (idx == null)
+        {
+            idx = _trimmedIndexes.computeIfAbsent(deletions, TrimmedIndex::new);
+        }
+
+        return idx;
+    }
+
+    public interface MatchHandler
+    {
+        void onMatch(SequenceTag tag, int editDistance, String barcodeSeq, String targetSeq);
+    }
+
+    private class TrimmedIndex
+    {
+        private final String[] _sequences;
+        private final List<LengthGroup> _groups = new ArrayList<>();
+
+        public TrimmedIndex(int deletions)
+        {
+            _sequences = new String[SequenceTagIndex.this._sequences.length];
+            Map<Integer, LengthGroup> byLength = new HashMap<>();
+            for (int i = 0; i < _sequences.length; i++)
+            {
+                _sequences[i] = SequenceTagIndex.this._sequences[i].substring(deletions);
+                byLength.computeIfAbsent(_sequences[i].length(), LengthGroup::new).add(i, _sequences[i]);
+            }
+
+            _groups.addAll(byLength.values());
+        }
+    }
+
+    private class LengthGroup
+    {
+        private final int _length;
+        private final int[] _segmentStarts;
+        private final List<Map<String, int[]>> _segments = new ArrayList<>();
+        private final BitSet _members = new BitSet();
+
+        public LengthGroup(int length)
+        {
+            _length = length;
+
+            //too short to split, so every member is verified directly
+            int segmentCount = _editDistance + 1;
+            if (length < segmentCount)
+            {
+                _segmentStarts = new int[0];
+                return;
+            }
+
+            _segmentStarts = new int[segmentCount + 1];
+            for (int j = 0; j <= segmentCount; j++)
+            {
+                _segmentStarts[j] = (j * length) / segmentCount;
+                if (j < segmentCount)
+                    _segments.add(new HashMap<>());
+            }
+        }
+
+        public void add(int idx, String seq)
+        {
+            _members.set(idx);
+            for (int j = 0; j < _segments.size(); j++)
+            {
+                String segment = seq.substring(_segmentStarts[j], _segmentStarts[j + 1]);
+                int[] existing = _segments.get(j).get(segment);
+                int[] updated = existing == null ? new int[1] : Arrays.copyOf(existing, existing.length + 1);
+                updated[updated.length - 1] = idx;
+                _segments.get(j).put(segment, updated);
+            }
+        }
+
+        public BitSet findCandidates(String targetSeq)
+        {
+            if (_segments.isEmpty())
+            {
+                return (BitSet)_members.clone();
+            }
+
+            BitSet ret = new BitSet();
+            for (int j = 0; j < _segments.size(); j++)
+            {
+                int segmentLength = _segmentStarts[j + 1] - _segmentStarts[j];
+                for (int shift = -_editDistance; shift <= _editDistance; shift++)
+                {
+                    int start = _segmentStarts[j] + shift;
+                    if (start < 0 || start + segmentLength > _length)
+                        continue;
+
+                    int[] matches = _segments.get(j).get(targetSeq.substring(start, start + segmentLength));
+                    if (matches != null)
+                    {
+                        for (int idx : matches)
+                        {
+                            ret.set(idx);
+                        }
+                    }
+                }
+            }
+
+            return ret;
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        @Test
+        public void testMatchesLevenshtein()
+        {
+            Random r = new Random(42);
+            List<SequenceTag> tags = new ArrayList<>();
+            for (int i = 0; i < 96; i++)
+            {
+                //include a few shorter barcodes so that more than one length group exists
+                tags.add(new SimpleTag("BC" + i, randomSequence(r, i % 10 == 0 ? 6 : 8)));
+            }
+
+            for (int editDistance = 0; editDistance <= 2; editDistance++)
+            {
+                SequenceTagIndex idx5 = new SequenceTagIndex(tags, true, editDistance);
+                SequenceTagIndex idx3 = new SequenceTagIndex(tags, false, editDistance);
+                for (int i = 0; i < 2000; i++)
+                {
+                    //seed reads with a mutated barcode, so that matches are common
+                    SequenceTag source = tags.get(r.nextInt(tags.size()));
+                    String read = mutate(r, source.getSequence(), editDistance + 1) + randomSequence(r, 20);
+                    String reversed = StringUtils.reverse(read);
+                    for (int offset = -2; offset <= 2; offset++)
+                    {
+                        assertEquals(bruteForce(tags, read, offset, true, editDistance), collect(idx5, read, offset));
+                        assertEquals(bruteForce(tags, read, offset, false, editDistance), collect(idx3, reversed, offset));
+                    }
+                }
+            }
+        }
+
+        private List<String> collect(SequenceTagIndex idx, String seq, int offset)
+        {
+            List<String> ret = new ArrayList<>();
+            idx.scan(seq, offset, (tag, editDist, barcodeSeq, targetSeq) -> ret.add(tag.getName() + ":" + editDist + ":" + barcodeSeq + ":" + targetSeq));
+
+            return ret;
+        }
+
+        private List<String> bruteForce(List<SequenceTag> tags, String read, int offset, boolean is5Prime, int editDistance)
+        {
+            List<String> ret = new ArrayList<>();
+            String seq = is5Prime ? read : StringUtils.reverse(read);
+            for (SequenceTag tag : tags)
+            {
+                String barcodeSeq = is5Prime ? tag.getSequence() : StringUtils.reverse(tag.getReverseComplement());
+                String targetSeq;
+                if (offset >= 0)
+                {
+                    targetSeq = seq.substring(offset, offset + barcodeSeq.length());
+                }
+                else
+                {
+                    barcodeSeq = barcodeSeq.substring(-offset);
+                    targetSeq = seq.substring(0, barcodeSeq.length());
+                }
+
+                int editDist = StringUtils.getLevenshteinDistance(barcodeSeq, targetSeq);
+                if (editDist <= editDistance)
+                {
+                    ret.add(tag.getName() + ":" + editDist + ":" + barcodeSeq + ":" + targetSeq);
+                }
+            }
+
+            return ret;
+        }
+
+        private String randomSequence(Random r, int length)
+        {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < length; i++)
+            {
+                sb.append("ACGT".charAt(r.nextInt(4)));
+            }
+
+            return sb.toString();
+        }
+
+        private String mutate(Random r, String seq, int maxEdits)
+        {
+            StringBuilder sb = new StringBuilder(seq);
+            int edits = r.nextInt(maxEdits + 1);
+            for (int i = 0; i < edits; i++)
+            {
+                int pos = r.nextInt(sb.length());
+                switch (r.nextInt(3))
+                {
+                    case 0 -> sb.setCharAt(pos, "ACGT".charAt(r.nextInt(4)));
+                    case 1 -> sb.insert(pos, "ACGT".charAt(r.nextInt(4)));
+                    default -> sb.deleteCharAt(pos);
+                }
+            }
+
+            return sb.toString();
+        }
+
+        private static class SimpleTag extends SequenceTag
+        {
+            private final String _name;
+            private final String _sequence;
+
+            public SimpleTag(String name, String sequence)
+            {
+                _name = name;
+                _sequence = sequence;
+            }
+
+            @Override
+            public String getName()
+            {
+                return _name;
+            }
+
+            @Override
+            public String getSequence()
+            {
+                return _sequence;
+            }
+        }
+    }
+}
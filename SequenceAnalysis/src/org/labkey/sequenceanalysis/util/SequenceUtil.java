@@ -11,7 +11,7 @@
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.util.BlockCompressedOutputStream;
-import htsjdk.samtools.util.IOUtil;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
 import htsjdk.samtools.util.Interval;
 import htsjdk.tribble.AbstractFeatureReader;
 import htsjdk.tribble.CloseableTribbleIterator;
@@ -36,30 +36,28 @@
 import org.labkey.api.sequenceanalysis.model.Readset;
 import org.labkey.api.sequenceanalysis.pipeline.ReferenceGenome;
 import org.labkey.api.sequenceanalysis.pipeline.SequencePipelineService;
-import org.labkey.api.sequenceanalysis.run.CommandWrapper;
 import org.labkey.api.sequenceanalysis.run.SimpleScriptWrapper;
 import org.labkey.api.util.FileType;
 import org.labkey.api.util.FileUtil;
-import org.labkey.api.util.StringUtilsLabKey;
 import org.labkey.api.writer.PrintWriters;
 import org.labkey.sequenceanalysis.run.util.BgzipRunner;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.zip.GZIPInputStream;
 
 /**
  * User: bimber
@@ -122,16 +120,9 @@ public String getPrimaryExtension()
 
     public static long getLineCount(File f) throws PipelineJobException
     {
-        FileType gz = new FileType(".gz");
-        try (InputStream is = gz.isType(f) ? new GZIPInputStream(new FileInputStream(f)) : new FileInputStream(f); BufferedReader reader = new BufferedReader(new InputStreamReader(is, StringUtilsLabKey.DEFAULT_CHARSET)))
+        try
         {
-            long i = 0;
-            while (reader.readLine() != null)
-            {
-                i++;
-            }
-
-            return i;
+            return LineCounter.getLineCount(f);
         }
         catch (IOException e)
         {
@@ -146,25 +137,9 @@ public static boolean hasLineCount(File f) throws PipelineJobException
 
     public static boolean hasMinLineCount(File f, long minLines) throws PipelineJobException
     {
-        if (!f.exists())
+        try
         {
-            return false;
-        }
-
-        FileType gz = new FileType(".gz");
-        try (InputStream is = gz.isType(f) ? new GZIPInputStream(new FileInputStream(f)) : new FileInputStream(f); BufferedReader reader = new BufferedReader(new InputStreamReader(is, StringUtilsLabKey.DEFAULT_CHARSET)))
-        {
-            long lineNo = 0;
-            while (reader.readLine() != null)
-            {
-                lineNo++;
-                if (lineNo >= minLines)
-                {
-                    return true;
-                }
-            }
-
-            return false;
+            return LineCounter.hasMinLineCount(f, minLines);
         }
         catch (IOException e)
         {
@@ -264,6 +239,58 @@ public static File bgzip(File input, Logger log) throws PipelineJobException
         }
     }
 
+    /**
+     * Concatenates files in the order given. If bgzf is true, each input is expected to be BGZF and the EOF marker block of each input is dropped,
+     * with a single marker written at the end, which is valid BGZF and gzip without recompressing anything.
+     */
+    public static void concatenateFiles(List<File> inputs, File output, boolean bgzf) throws IOException
+    {
+        try (FileChannel out = FileChannel.open(output.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            for (File input : inputs)
+            {
+                try (FileChannel in = FileChannel.open(input.toPath(), StandardOpenOption.READ))
+                {
+                    long length = in.size();
+                    if (bgzf && endsWithBgzfTerminator(in))
+                    {
+                        length -= BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length;
+                    }
+
+                    long position = 0;
+                    while (position < length)
+                    {
+                        position += in.transferTo(position, length - position, out);
+                    }
+                }
+            }
+
+            if (bgzf)
+            {
+                out.write(ByteBuffer.wrap(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK));
+            }
+        }
+    }
+
+    private static boolean endsWithBgzfTerminator(FileChannel in) throws IOException
+    {
+        byte[] terminator = BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK;
+        if (in.size() < terminator.length)
+        {
+            return false;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(terminator.length);
+        long position = in.size() - terminator.length;
+        while (buffer.hasRemaining())
+        {
+            if (in.read(buffer, position + buffer.position()) < 0)
+                return false;
+        }
+
+        return Arrays.equals(buffer.array(), terminator);
+    }
+
     public static SAMFileHeader.SortOrder getBamSortOrder(File bam) throws IOException
     {
         SamReaderFactory fact = SamReaderFactory.makeDefault();
@@ -401,50 +428,30 @@ public static JSONArray getReadGroupsForBam(File bam) throws IOException
 
     public static void sortROD(File input, Logger log, Integer startColumnIdx) throws IOException, PipelineJobException
     {
-        boolean isCompressed = input.getPath().endsWith(".gz");
-        File tempHeader = new File(input.getParent(), "header.tmp");
-        try (PrintWriter writer = PrintWriters.getPrintWriter(tempHeader))
-        {
-            //copy header
-            try (BufferedReader reader = IOUtil.openFileForBufferedUtf8Reading(input))
-            {
-                String line;
-                while ((line = reader.readLine()) != null)
-                {
-                    if (line.startsWith("#"))
-                    {
-                        writer.write(line + '\n');
-                    }
-                    else
-                    {
-                        //the first non-comment line means we left the header
-                        break;
-                    }
-                }
-            }
-        }
-
-        //then sort/append the records
-        CommandWrapper wrapper = SequencePipelineService.get().getCommandWrapper(log);
-        String cat = isCompressed ? "zcat" : "cat";
-        File tempSorted = new File(input.getParent(), "sorted.tmp");
-        wrapper.execute(Arrays.asList("/bin/sh", "-c", "{ cat '" + tempHeader.getPath() + "'; " + cat + " '" + input.getPath() + "' | grep -v '^#' | sort -V -k1,1" + (startColumnIdx == null ? "" : " -k" + startColumnIdx + "," + startColumnIdx + "n") + "; } " + (isCompressed ? " | bgzip -c " : "")), ProcessBuilder.Redirect.to(tempSorted));
-
-        //replace the non-sorted output
-        input.delete();
-        FileUtils.moveFile(tempSorted, input);
-        tempSorted.delete();
-        tempHeader.delete();
+        sortROD(input, log, startColumnIdx, null);
+    }
 
-        for (String extension : Arrays.asList(".tbi", ".idx"))
+    /**
+     * Sorts a VCF, BED or similar tab-delimited file in place, ordering contigs by the dictionary if provided (otherwise by any ##contig header lines, then in version order).
+     * If the file is a gzipped VCF, BED or GFF sorted on its usual start column, the tabix index is written as well.
+     */
+    public static void sortROD(File input, Logger log, Integer startColumnIdx, @Nullable SAMSequenceDictionary dict) throws IOException
+    {
+        GenomicRecordSorter sorter = new GenomicRecordSorter(log);
+        sorter.setDictionary(dict);
+        sorter.setThreads(SequencePipelineService.get().getMaxThreads(log));
+        if (startColumnIdx != null)
         {
-            File idx = new File(input.getPath() + extension);
-            if (idx.exists())
+            if (!sorter.configureForFile(input) || !Integer.valueOf(startColumnIdx - 1).equals(sorter.getStartColumn()))
             {
-                log.debug("Deleting index: " + idx.getPath());
-                idx.delete();
+                sorter.setEndColumn(null);
+                sorter.setTabixFormat(null);
             }
+
+            sorter.setStartColumn(startColumnIdx - 1);
         }
+
+        sorter.sort(input, input);
     }
 
     public static File combineVcfs(List<File> files, ReferenceGenome genome, File outputGzip, Logger log, boolean multiThreaded, @Nullable Integer compressionLevel, boolean sortAfterMerge) throws PipelineJobException
@@ -477,60 +484,56 @@ else if (!samples.equals(header.getGenotypeSamples()))
         });
 
         File headerFile = new File(outputGzip.getParentFile(), "header.vcf");
+        SAMSequenceDictionary dict = SAMSequenceDictionaryExtractor.extractDictionary(genome.getSequenceDictionary().toPath());
         VariantContextWriterBuilder builder = new VariantContextWriterBuilder().setOutputFile(headerFile);
-        builder.setReferenceDictionary(SAMSequenceDictionaryExtractor.extractDictionary(genome.getSequenceDictionary().toPath()));
+        builder.setReferenceDictionary(dict);
         try (VariantContextWriter writer = builder.build())
         {
             log.info("total samples: " + samples.size());
             writer.writeHeader(new VCFHeader(VCFUtils.smartMergeHeaders(headers, true), samples));
         }
 
-        List<String> bashCommands = new ArrayList<>();
-        bashCommands.add("cat " + headerFile.getPath());
-
-        for (File vcf : files)
-        {
-            String cat = vcf.getName().toLowerCase().endsWith(".gz") ? "zcat" : "cat";
-            bashCommands.add(cat + " '" + vcf.getPath() + "' | grep -v '^#';");
-        }
-
         try
         {
-            File bashTmp = new File(outputGzip.getParentFile(), "vcfCombine.sh");
-            try (PrintWriter writer = PrintWriters.getPrintWriter(bashTmp))
+            //NOTE: shards from a scatter/gather job are usually BGZF and already in order, so the compressed blocks can be appended directly
+            BgzfVcfGatherer gatherer = null;
+            if (BgzfVcfGatherer.canGather(files))
             {
-                writer.write("#!/bin/bash\n");
-                writer.write("set -x\n");
-                writer.write("set -e\n");
-                writer.write("{\n");
-                bashCommands.forEach(x -> writer.write(x + '\n'));
-
-                Integer threads = multiThreaded ? SequencePipelineService.get().getMaxThreads(log) : null;
-                if (threads != null)
+                log.debug("concatenating BGZF blocks");
+                gatherer = new BgzfVcfGatherer(dict, log);
+                if (!gatherer.gather(files, Files.readAllBytes(headerFile.toPath()), outputGzip))
                 {
-                    threads = Math.max(1, threads - 1);
+                    gatherer = null;
+                    outputGzip.delete();
                 }
-
-                writer.write("} | bgzip -f" + (compressionLevel == null ? "" : " --compress-level 9") + (threads == null ? "" : " --threads " + threads) + " > '" + outputGzip.getPath() + "'\n");
             }
 
-            SimpleScriptWrapper wrapper = new SimpleScriptWrapper(log);
-            wrapper.execute(Arrays.asList("/bin/bash", bashTmp.getPath()));
-
-            if (sortAfterMerge)
+            if (gatherer == null)
             {
-                log.debug("sorting VCF");
-                sortROD(outputGzip, log, 2);
+                concatenateVcfs(files, headerFile, outputGzip, log, multiThreaded, compressionLevel);
+
+                if (sortAfterMerge)
+                {
+                    log.debug("sorting VCF");
+                    sortROD(outputGzip, log, 2, dict);
+                }
             }
 
             SequenceAnalysisService.get().ensureVcfIndex(outputGzip, log);
 
-            bashTmp.delete();
-
             if (showTotals)
             {
-                log.info("total variants: " + SequenceAnalysisService.get().getVCFLineCount(outputGzip, log, false));
-                log.info("passing variants: " + SequenceAnalysisService.get().getVCFLineCount(outputGzip, log, true));
+                if (gatherer == null)
+                {
+                    VcfSummary summary = VcfSummary.get(outputGzip, true, log);
+                    log.info("total variants: " + summary.getTotalRecords());
+                    log.info("passing variants: " + summary.getPassingRecords());
+                }
+                else
+                {
+                    log.info("total variants: " + gatherer.getTotalVariants());
+                    log.info("passing variants: " + gatherer.getPassingVariants());
+                }
             }
 
             headerFile.delete();
@@ -548,29 +551,44 @@ else if (!samples.equals(header.getGenotypeSamples()))
         return outputGzip;
     }
 
-    public static Set<String> getContigsInVcf(File vcf) throws PipelineJobException
+    private static void concatenateVcfs(List<File> files, File headerFile, File outputGzip, Logger log, boolean multiThreaded, @Nullable Integer compressionLevel) throws PipelineJobException, IOException
     {
-        try
+        List<String> bashCommands = new ArrayList<>();
+        bashCommands.add("cat " + headerFile.getPath());
+
+        for (File vcf : files)
+        {
+            String cat = vcf.getName().toLowerCase().endsWith(".gz") ? "zcat" : "cat";
+            bashCommands.add(cat + " '" + vcf.getPath() + "' | grep -v '^#';");
+        }
+
+        File bashTmp = new File(outputGzip.getParentFile(), "vcfCombine.sh");
+        try (PrintWriter writer = PrintWriters.getPrintWriter(bashTmp))
         {
-            File script = FileUtil.createTempFile("script", "sh");
-            try (PrintWriter writer = PrintWriters.getPrintWriter(script))
+            writer.write("#!/bin/bash\n");
+            writer.write("set -x\n");
+            writer.write("set -e\n");
+            writer.write("{\n");
+            bashCommands.forEach(x -> writer.write(x + '\n'));
+
+            Integer threads = multiThreaded ? SequencePipelineService.get().getMaxThreads(log) : null;
+            if (threads != null)
             {
-                writer.println("#!/bin/bash");
-                String cat = vcf.getPath().toLowerCase().endsWith(".gz") ? "zcat" : "cat";
-                writer.println(cat + " '" + vcf.getPath() + "' | grep -v '#' | awk ' { print $1 } ' | sort | uniq");
+                threads = Math.max(1, threads - 1);
             }
 
-            SimpleScriptWrapper wrapper = new SimpleScriptWrapper(null);
-            String list = wrapper.executeWithOutput(Arrays.asList("/bin/bash", script.getPath()));
+            writer.write("} | bgzip -f" + (compressionLevel == null ? "" : " --compress-level 9") + (threads == null ? "" : " --threads " + threads) + " > '" + outputGzip.getPath() + "'\n");
+        }
 
-            script.delete();
+        SimpleScriptWrapper wrapper = new SimpleScriptWrapper(log);
+        wrapper.execute(Arrays.asList("/bin/bash", bashTmp.getPath()));
 
-            return new HashSet<>(Arrays.asList(list.split("\n")));
-        }
-        catch (IOException e)
-        {
-            throw new PipelineJobException(e);
-        }
+        bashTmp.delete();
+    }
+
+    public static Set<String> getContigsInVcf(File vcf) throws PipelineJobException
+    {
+        return new HashSet<>(VcfSummary.get(vcf, false, null).getContigs());
     }
 
     public static void deleteFolderWithRm(Logger log, File directory) throws PipelineJobException
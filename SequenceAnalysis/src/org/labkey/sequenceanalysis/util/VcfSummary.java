@@ -0,0 +1,456 @@
+package org.labkey.sequenceanalysis.util;
+
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.labkey.api.pipeline.PipelineJobException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Summarizes the contigs and record counts of a VCF, without decompressing it where possible.
+ * If the VCF has a current tabix or CSI index that includes per-contig record counts (as written by htslib), contigs and totals are read from the index.
+ * Otherwise, or when the number of passing records is needed, the VCF is read once and every count is collected in that pass.
+ *
+ * Results are saved in a sidecar file next to the VCF, keyed on its size and modification time, so later steps can reuse them.
+ */
+public class VcfSummary
+{
+    public static final String SIDECAR_EXTENSION = ".summary.json";
+
+    private static final int TBI_PSEUDO_BIN = 37450;
+
+    private final Map<String, Long> _recordsPerContig;
+    private final @Nullable Long _passingRecords;
+
+    private VcfSummary(Map<String, Long> recordsPerContig, @Nullable Long passingRecords)
+    {
+        _recordsPerContig = Collections.unmodifiableMap(recordsPerContig);
+        _passingRecords = passingRecords;
+    }
+
+    /**
+     * @param includePassing If true, the number of records with a FILTER of PASS or '.' is also returned. This cannot be read from an index.
+     */
+    public static VcfSummary get(File vcf, boolean includePassing, @Nullable Logger log) throws PipelineJobException
+    {
+        try
+        {
+            File sidecar = getSidecar(vcf);
+            VcfSummary cached = readSidecar(vcf, sidecar, log);
+            if (cached != null && (!includePassing || cached._passingRecords != null))
+            {
+                return cached;
+            }
+
+            if (!includePassing)
+            {
+                VcfSummary fromIndex = readIndex(vcf, log);
+                if (fromIndex != null)
+                {
+                    writeSidecar(vcf, sidecar, fromIndex, log);
+                    return fromIndex;
+                }
+            }
+
+            if (log != null)
+            {
+                log.debug("reading VCF to count records: " + vcf.getName());
+            }
+
+            VcfSummary summary = scan(vcf);
+            writeSidecar(vcf, sidecar, summary, log);
+
+            return summary;
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+    }
+
+    public static File getSidecar(File vcf)
+    {
+        return new File(vcf.getPath() + SIDECAR_EXTENSION);
+    }
+
+    /**
+     * @return The contigs with at least one record
+     */
+    public Set<String> getContigs()
+    {
+        return _recordsPerContig.keySet();
+    }
+
+    public Map<String, Long> getRecordsPerContig()
+    {
+        return _recordsPerContig;
+    }
+
+    public long getTotalRecords()
+    {
+        return _recordsPerContig.values().stream().mapToLong(Long::longValue).sum();
+    }
+
+    public @Nullable Long getPassingRecords()
+    {
+        return _passingRecords;
+    }
+
+    private static @Nullable VcfSummary readSidecar(File vcf, File sidecar, @Nullable Logger log)
+    {
+        if (!sidecar.exists())
+        {
+            return null;
+        }
+
+        try
+        {
+            JSONObject json = new JSONObject(Files.readString(sidecar.toPath()));
+            if (json.getLong("size") != vcf.length() || json.getLong("lastModified") != vcf.lastModified())
+            {
+                return null;
+            }
+
+            Map<String, Long> recordsPerContig = new LinkedHashMap<>();
+            JSONArray contigs = json.getJSONArray("recordsPerContig");
+            for (int i = 0; i < contigs.length(); i++)
+            {
+                JSONObject contig = contigs.getJSONObject(i);
+                recordsPerContig.put(contig.getString("contig"), contig.getLong("records"));
+            }
+
+            return new VcfSummary(recordsPerContig, json.has("passingRecords") ? json.getLong("passingRecords") : null);
+        }
+        catch (IOException | JSONException e)
+        {
+            if (log != null)
+            {
+                log.debug("unable to read VCF summary: " + sidecar.getPath() + ", " + e.getMessage());
+            }
+
+            return null;
+        }
+    }
+
+    private static void writeSidecar(File vcf, File sidecar, VcfSummary summary, @Nullable Logger log)
+    {
+        JSONObject json = new JSONObject();
+        json.put("size", vcf.length());
+        json.put("lastModified", vcf.lastModified());
+
+        //NOTE: JSONObject does not retain key order, so contigs are stored as an array
+        JSONArray contigs = new JSONArray();
+        summary._recordsPerContig.forEach((contig, records) -> contigs.put(new JSONObject().put("contig", contig).put("records", records.longValue())));
+        json.put("recordsPerContig", contigs);
+        if (summary._passingRecords != null)
+        {
+            json.put("passingRecords", summary._passingRecords.longValue());
+        }
+
+        try
+        {
+            Files.writeString(sidecar.toPath(), json.toString());
+        }
+        catch (IOException e)
+        {
+            //the directory may be read-only, in which case the summary is simply not cached
+            if (log != null)
+            {
+                log.debug("unable to write VCF summary: " + sidecar.getPath() + ", " + e.getMessage());
+            }
+        }
+    }
+
+    private static @Nullable VcfSummary readIndex(File vcf, @Nullable Logger log) throws IOException
+    {
+        for (String extension : Arrays.asList(".tbi", ".csi"))
+        {
+            File idx = new File(vcf.getPath() + extension);
+            if (!idx.exists() || idx.lastModified() < vcf.lastModified())
+            {
+                continue;
+            }
+
+            byte[] content;
+            try (InputStream is = new BlockCompressedInputStream(idx))
+            {
+                content = is.readAllBytes();
+            }
+
+            ByteBuffer buffer = ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN);
+            Map<String, Long> ret = ".tbi".equals(extension) ? parseTabix(buffer) : parseCsi(buffer);
+            if (ret != null)
+            {
+                return new VcfSummary(ret, null);
+            }
+            else if (log != null)
+            {
+                log.debug("index does not contain record counts: " + idx.getName());
+            }
+        }
+
+        return null;
+    }
+
+    // returns null if the index does not include the count of records for each contig
+    private static @Nullable Map<String, Long> parseTabix(ByteBuffer buffer)
+    {
+        if (buffer.get() != 'T' || buffer.get() != 'B' || buffer.get() != 'I' || buffer.get() != 1)
+        {
+            return null;
+        }
+
+        int nRef = buffer.getInt();
+        String[] names = readNames(buffer, nRef);
+
+        Map<String, Long> ret = new LinkedHashMap<>();
+        for (String name : names)
+        {
+            Long mapped = null;
+            int nBin = buffer.getInt();
+            for (int i = 0; i < nBin; i++)
+            {
+                int bin = buffer.getInt();
+                int nChunk = buffer.getInt();
+                if (bin == TBI_PSEUDO_BIN && nChunk == 2)
+                {
+                    buffer.position(buffer.position() + 16);
+                    mapped = buffer.getLong();
+                    buffer.getLong();
+                }
+                else
+                {
+                    buffer.position(buffer.position() + (16 * nChunk));
+                }
+            }
+
+            int nIntv = buffer.getInt();
+            buffer.position(buffer.position() + (8 * nIntv));
+
+            if (!addContig(ret, name, nBin, mapped))
+            {
+                return null;
+            }
+        }
+
+        return ret;
+    }
+
+    private static @Nullable Map<String, Long> parseCsi(ByteBuffer buffer)
+    {
+        if (buffer.get() != 'C' || buffer.get() != 'S' || buffer.get() != 'I' || buffer.get() != 1)
+        {
+            return null;
+        }
+
+        buffer.getInt(); //min_shift
+        int depth = buffer.getInt();
+        int pseudoBin = (((1 << ((depth + 1) * 3)) - 1) / 7) + 1;
+
+        //NOTE: for VCF, the contig names are held in the auxiliary data in the same layout as tabix
+        int lAux = buffer.getInt();
+        if (lAux < 28)
+        {
+            return null;
+        }
+
+        int auxEnd = buffer.position() + lAux;
+        int nRef = buffer.getInt(auxEnd);
+        String[] names = readNames(buffer, nRef);
+        buffer.position(auxEnd + 4);
+
+        Map<String, Long> ret = new LinkedHashMap<>();
+        for (String name : names)
+        {
+            Long mapped = null;
+            int nBin = buffer.getInt();
+            for (int i = 0; i < nBin; i++)
+            {
+                int bin = buffer.getInt();
+                buffer.getLong(); //loffset
+                int nChunk = buffer.getInt();
+                if (bin == pseudoBin && nChunk == 2)
+                {
+                    buffer.position(buffer.position() + 16);
+                    mapped = buffer.getLong();
+                    buffer.getLong();
+                }
+                else
+                {
+                    buffer.position(buffer.position() + (16 * nChunk));
+                }
+            }
+
+            if (!addContig(ret, name, nBin, mapped))
+            {
+                return null;
+            }
+        }
+
+        return ret;
+    }
+
+    private static String[] readNames(ByteBuffer buffer, int nRef)
+    {
+        //format, col_seq, col_beg, col_end, meta, skip
+        buffer.position(buffer.position() + 24);
+        int lNm = buffer.getInt();
+        String[] names = new String(buffer.array(), buffer.position(), lNm, StandardCharsets.US_ASCII).split("\0", -1);
+        buffer.position(buffer.position() + lNm);
+
+        return Arrays.copyOf(names, nRef);
+    }
+
+    private static boolean addContig(Map<String, Long> ret, String name, int nBin, @Nullable Long mapped)
+    {
+        //a contig without bins has no records, so needs no count
+        if (nBin == 0)
+        {
+            return true;
+        }
+        else if (mapped == null)
+        {
+            return false;
+        }
+
+        if (mapped > 0)
+        {
+            ret.put(name, mapped);
+        }
+
+        return true;
+    }
+
+    private static VcfSummary scan(File vcf) throws IOException
+    {
+        Map<String, Long> recordsPerContig = new LinkedHashMap<>();
+        long passing = 0;
+
+        String contig = null;
+        byte[] contigBytes = new byte[0];
+        long contigRecords = 0;
+
+        byte[] field = new byte[64];
+        int fieldLength = 0;
+        int col = 0;
+        boolean atLineStart = true;
+        boolean skipLine = false;
+
+        byte[] buffer = new byte[1 << 20];
+        try (InputStream is = ReadAheadInputStream.open(vcf))
+        {
+            int read;
+            while ((read = is.read(buffer)) != -1)
+            {
+                for (int i = 0; i < read; i++)
+                {
+                    byte b = buffer[i];
+                    if (b == '\n')
+                    {
+                        if (!atLineStart && !skipLine)
+                        {
+                            contigRecords++;
+                            if (col == 6 && isPassing(field, fieldLength))
+                            {
+                                passing++;
+                            }
+                        }
+
+                        atLineStart = true;
+                        continue;
+                    }
+
+                    if (atLineStart)
+                    {
+                        atLineStart = false;
+                        skipLine = b == '#';
+                        col = 0;
+                        fieldLength = 0;
+                    }
+
+                    if (skipLine)
+                    {
+                        continue;
+                    }
+
+                    if (b == '\t')
+                    {
+                        if (col == 0 && !Arrays.equals(contigBytes, 0, contigBytes.length, field, 0, fieldLength))
+                        {
+                            //NOTE: only allocate when the contig changes
+                            if (contig != null)
+                            {
+                                recordsPerContig.merge(contig, contigRecords, Long::sum);
+                            }
+
+                            contigBytes = Arrays.copyOf(field, fieldLength);
+                            contig = new String(contigBytes, StandardCharsets.US_ASCII);
+                            contigRecords = 0;
+                        }
+                        else if (col == 6)
+                        {
+                            //the FILTER field is complete
+                            if (isPassing(field, fieldLength))
+                            {
+                                passing++;
+                            }
+                            skipLine = true;
+                            contigRecords++;
+                            continue;
+                        }
+
+                        col++;
+                        fieldLength = 0;
+                        continue;
+                    }
+
+                    if (col == 0 || col == 6)
+                    {
+                        if (fieldLength == field.length)
+                        {
+                            field = Arrays.copyOf(field, field.length * 2);
+                        }
+
+                        field[fieldLength++] = b;
+                    }
+                }
+            }
+        }
+
+        if (!atLineStart && !skipLine)
+        {
+            contigRecords++;
+            if (col == 6 && isPassing(field, fieldLength))
+            {
+                passing++;
+            }
+        }
+
+        if (contig != null)
+        {
+            recordsPerContig.merge(contig, contigRecords, Long::sum);
+        }
+
+        return new VcfSummary(recordsPerContig, passing);
+    }
+
+    private static boolean isPassing(byte[] filter, int length)
+    {
+        return (length == 4 && filter[0] == 'P' && filter[1] == 'A' && filter[2] == 'S' && filter[3] == 'S') || (length == 1 && filter[0] == '.');
+    }
+}
@@ -6,18 +6,30 @@
 import org.jetbrains.annotations.Nullable;
 import org.labkey.api.pipeline.PipelineJobException;
 import org.labkey.api.pipeline.PipelineJobService;
+import org.labkey.api.reader.Readers;
 import org.labkey.api.sequenceanalysis.pipeline.SequencePipelineService;
 import org.labkey.api.sequenceanalysis.run.AbstractCommandWrapper;
 import org.labkey.api.util.FileType;
+import org.labkey.api.util.PrintWriters;
 import org.labkey.blast.model.BlastJob;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * User: bimber
@@ -28,6 +40,9 @@ public class BLASTWrapper extends AbstractCommandWrapper
 {
     public static FileType DB_TYPE = new FileType(Arrays.asList("nhr", "nin", "nsq", "idx"), "nhr");
 
+    //the minimum size of a query chunk when running blastn in parallel
+    private static final long MIN_RESIDUES_PER_CHUNK = 50000;
+
     public BLASTWrapper(Logger log)
     {
         super(log);
@@ -48,6 +63,39 @@ public File runBlastN(String blastDbGuid, File input, File outputFile, Map<Strin
 
         File db = new File(dbDir, blastDbGuid);
 
+        Integer maxThreads = null;
+        if (PipelineJobService.get().getLocationType() != PipelineJobService.LocationType.WebServer)
+        {
+            maxThreads = SequencePipelineService.get().getMaxThreads(getLogger());
+        }
+
+        long start = System.currentTimeMillis();
+        List<File> chunks = maxThreads == null || maxThreads < 2 ? Collections.emptyList() : splitQuery(input, outputFile, maxThreads);
+        if (chunks.size() < 2)
+        {
+            chunks.forEach(File::delete);
+
+            executeBlast(getBlastNArgs(exe, db, input, outputFile, params, maxThreads), false);
+            if (!outputFile.exists())
+            {
+                throw new PipelineJobException("Expected file not created: " + outputFile.getPath());
+            }
+        }
+        else
+        {
+            runBlastNChunks(exe, db, chunks, outputFile, params, maxThreads);
+        }
+
+        if (getLogger() != null)
+        {
+            getLogger().info("BLAST finished in " + ((System.currentTimeMillis() - start) / 1000) + "s" + (chunks.size() < 2 ? "" : " using " + chunks.size() + " query chunks"));
+        }
+
+        return outputFile;
+    }
+
+    private List<String> getBlastNArgs(File exe, File db, File input, File outputFile, Map<String, Object> params, @Nullable Integer threads)
+    {
         List<String> args = new ArrayList<>();
         args.add(exe.getPath());
 
@@ -67,14 +115,10 @@ public File runBlastN(String blastDbGuid, File input, File outputFile, Map<Strin
         args.add("-index_name");
         args.add(db.getPath());
 
-        if (PipelineJobService.get().getLocationType() != PipelineJobService.LocationType.WebServer)
+        if (threads != null)
         {
-            Integer maxThreads = SequencePipelineService.get().getMaxThreads(getLogger());
-            if (maxThreads != null)
-            {
-                args.add("-num_threads");
-                args.add(maxThreads.toString());
-            }
+            args.add("-num_threads");
+            args.add(threads.toString());
         }
 
         args.add("-out");
@@ -92,13 +136,195 @@ public File runBlastN(String blastDbGuid, File input, File outputFile, Map<Strin
             }
         }
 
-        executeBlast(args, false);
-        if (!outputFile.exists())
+        return args;
+    }
+
+    /**
+     * Runs blastn on each query chunk concurrently, splitting the threads between them, and then concatenates the ASN.1 archives in chunk order.
+     * blast_formatter reads each Blast4-archive in a file in turn, which is also how blastn writes results when it batches a large query itself.
+     */
+    private void runBlastNChunks(File exe, File db, List<File> chunks, File outputFile, Map<String, Object> params, int maxThreads) throws PipelineJobException, IOException
+    {
+        int threadsPerChunk = Math.max(1, maxThreads / chunks.size());
+        List<File> chunkOutputs = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(chunks.size());
+        try
+        {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < chunks.size(); i++)
+            {
+                File chunk = chunks.get(i);
+                File chunkOutput = new File(chunk.getPath() + ".asn");
+                chunkOutputs.add(chunkOutput);
+
+                int chunkIdx = i + 1;
+                futures.add(executor.submit(() -> {
+                    long start = System.currentTimeMillis();
+
+                    //NOTE: use a separate wrapper per process, since the command wrapper is not designed to be shared between threads
+                    new BLASTWrapper(getLogger()).executeBlast(getBlastNArgs(exe, db, chunk, chunkOutput, params, threadsPerChunk), false);
+                    if (!chunkOutput.exists())
+                    {
+                        throw new PipelineJobException("Expected file not created: " + chunkOutput.getPath());
+                    }
+
+                    if (getLogger() != null)
+                    {
+                        getLogger().info("BLAST query chunk " + chunkIdx + " of " + chunks.size() + " finished in " + ((System.currentTimeMillis() - start) / 1000) + "s");
+                    }
+
+                    return null;
+                }));
+            }
+            executor.shutdown();
+
+            //NOTE: wait for every chunk, since a running blastn process is not stopped by interrupting its thread
+            Throwable error = null;
+            for (Future<?> f : futures)
+            {
+                try
+                {
+                    f.get();
+                }
+                catch (ExecutionException e)
+                {
+                    if (error == null)
+                    {
+                        error = e.getCause();
+                    }
+                }
+            }
+
+            if (error instanceof PipelineJobException pje)
+            {
+                throw pje;
+            }
+            else if (error instanceof IOException ioe)
+            {
+                throw ioe;
+            }
+            else if (error != null)
+            {
+                throw new PipelineJobException(error);
+            }
+
+            try (OutputStream out = new FileOutputStream(outputFile))
+            {
+                for (File chunkOutput : chunkOutputs)
+                {
+                    Files.copy(chunkOutput.toPath(), out);
+                }
+            }
+        }
+        catch (InterruptedException e)
         {
-            throw new PipelineJobException("Expected file not created: " + outputFile.getPath());
+            Thread.currentThread().interrupt();
+            throw new PipelineJobException(e);
         }
+        finally
+        {
+            executor.shutdownNow();
+            chunks.forEach(File::delete);
+            chunkOutputs.forEach(File::delete);
+        }
+    }
 
-        return outputFile;
+    /**
+     * Splits a FASTA query into contiguous chunks with roughly equal numbers of residues, preserving the order of the sequences.
+     * Each chunk is at least MIN_RESIDUES_PER_CHUNK, since each blastn process loads the database index separately.
+     * @return The chunk files, or an empty list if the input is not FASTA or is too small to split
+     */
+    private List<File> splitQuery(File input, File outputFile, int maxChunks) throws IOException
+    {
+        List<Long> lengths = new ArrayList<>();
+        long total = 0;
+        try (BufferedReader reader = Readers.getReader(input))
+        {
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                line = line.trim();
+                if (line.isEmpty())
+                {
+                    continue;
+                }
+
+                if (line.startsWith(">"))
+                {
+                    lengths.add(0L);
+                }
+                else if (lengths.isEmpty())
+                {
+                    //a bare sequence without a header cannot be split
+                    return Collections.emptyList();
+                }
+                else
+                {
+                    lengths.set(lengths.size() - 1, lengths.get(lengths.size() - 1) + line.length());
+                    total += line.length();
+                }
+            }
+        }
+
+        int numChunks = (int)Math.min(Math.min(maxChunks, lengths.size()), total / MIN_RESIDUES_PER_CHUNK);
+        if (numChunks < 2)
+        {
+            return Collections.emptyList();
+        }
+
+        List<File> chunks = new ArrayList<>();
+        PrintWriter writer = null;
+        try (BufferedReader reader = Readers.getReader(input))
+        {
+            int seqIdx = -1;
+            int chunkIdx = -1;
+            long cumulative = 0;
+            String line;
+            while ((line = reader.readLine()) != null)
+            {
+                if (line.trim().startsWith(">"))
+                {
+                    seqIdx++;
+
+                    //assign each sequence by the midpoint of its residues, which keeps the chunks contiguous and balanced
+                    long length = lengths.get(seqIdx);
+                    int targetChunk = (int)Math.min(numChunks - 1, (cumulative + length / 2) * numChunks / total);
+                    cumulative += length;
+
+                    if (targetChunk != chunkIdx)
+                    {
+                        if (writer != null)
+                        {
+                            writer.close();
+                        }
+
+                        chunkIdx = targetChunk;
+                        File chunk = new File(outputFile.getPath() + ".chunk" + chunkIdx + ".fasta");
+                        chunks.add(chunk);
+                        writer = PrintWriters.getPrintWriter(chunk);
+                    }
+                }
+
+                if (writer != null)
+                {
+                    writer.println(line);
+                }
+            }
+        }
+        finally
+        {
+            if (writer != null)
+            {
+                writer.close();
+            }
+        }
+
+        if (getLogger() != null)
+        {
+            getLogger().info("Split " + lengths.size() + " query sequences (" + total + " residues) into " + chunks.size() + " chunks");
+        }
+
+        return chunks;
     }
 
     public String runBlastFormatter(File inputFile, BlastJob.BLAST_OUTPUT_FORMAT outputFormat) throws PipelineJobException, IOException
@@ -40,10 +40,37 @@
     @Nullable Integer getMaxRequestCpus(PipelineJob job);
 
     /**
-     * The maximum RAM in GBs to request for this job.  Not currently implemented
+     * The maximum RAM in GBs to request for this job
      */
     @Nullable Integer getMaxRequestMemory(PipelineJob job);
 
+    /**
+     * The maximum CPUs to request for this job on this engine.  By default this calls getMaxRequestCpus(job)
+     */
+    @Nullable
+    default Integer getMaxRequestCpus(PipelineJob job, RemoteExecutionEngine<?> engine)
+    {
+        return getMaxRequestCpus(job);
+    }
+
+    /**
+     * The maximum RAM in GBs to request for this job on this engine.  By default this calls getMaxRequestMemory(job)
+     */
+    @Nullable
+    default Integer getMaxRequestMemory(PipelineJob job, RemoteExecutionEngine<?> engine)
+    {
+        return getMaxRequestMemory(job);
+    }
+
+    /**
+     * The walltime in minutes to request for this job on this engine.  This is currently only used for slurm
+     */
+    @Nullable
+    default Integer getMaxRequestWalltime(PipelineJob job, RemoteExecutionEngine<?> engine)
+    {
+        return null;
+    }
+
     /**
      * Additional lines to include in the condor submit script.  These will be appended to the default script.
      */
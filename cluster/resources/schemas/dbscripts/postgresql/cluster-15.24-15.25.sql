@@ -0,0 +1,8 @@
+ALTER TABLE cluster.clusterJobs ADD requestedCpus int;
+ALTER TABLE cluster.clusterJobs ADD requestedMemory int;
+ALTER TABLE cluster.clusterJobs ADD requestedWalltime int;
+ALTER TABLE cluster.clusterJobs ADD inputSize bigint;
+ALTER TABLE cluster.clusterJobs ADD maxRss bigint;
+ALTER TABLE cluster.clusterJobs ADD elapsedSeconds int;
+ALTER TABLE cluster.clusterJobs ADD cpuEfficiency double precision;
+ALTER TABLE cluster.clusterJobs ADD outOfMemory boolean;
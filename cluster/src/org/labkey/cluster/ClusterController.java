@@ -21,7 +21,9 @@
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
+import org.labkey.api.action.ApiSimpleResponse;
 import org.labkey.api.action.ConfirmAction;
+import org.labkey.api.action.ReadOnlyApiAction;
 import org.labkey.api.action.SimpleRedirectAction;
 import org.labkey.api.action.SpringActionController;
 import org.labkey.api.collections.CaseInsensitiveHashMap;
@@ -45,6 +47,7 @@
 import org.labkey.api.util.URLHelper;
 import org.labkey.api.view.HtmlView;
 import org.labkey.cluster.pipeline.AbstractClusterExecutionEngine;
+import org.labkey.cluster.pipeline.ClusterCommandRunner;
 import org.springframework.validation.BindException;
 import org.springframework.validation.Errors;
 import org.springframework.web.servlet.ModelAndView;
@@ -558,4 +561,14 @@ public void setJobId(Integer jobId)
             _jobId = jobId;
         }
     }
+
+    @RequiresPermission(AdminPermission.class)
+    public static class GetClusterCommandMetricsAction extends ReadOnlyApiAction<Object>
+    {
+        @Override
+        public Object execute(Object o, BindException errors) throws Exception
+        {
+            return new ApiSimpleResponse(ClusterCommandRunner.get().getMetrics());
+        }
+    }
 }
@@ -35,8 +35,10 @@
 import org.labkey.api.query.QueryService;
 import org.labkey.api.settings.AdminConsole;
 import org.labkey.api.view.WebPartFactory;
+import org.labkey.cluster.pipeline.ClusterCommandRunner;
 import org.labkey.cluster.pipeline.ClusterPipelineJobNotificationProvider;
 import org.labkey.cluster.pipeline.ClusterPipelineProvider;
+import org.labkey.cluster.pipeline.HistoryResourceAllocator;
 import org.labkey.cluster.pipeline.SlurmExecutionEngine;
 import org.labkey.cluster.pipeline.TestCase;
 import org.labkey.cluster.query.ForceCancelJobsButton;
@@ -66,7 +68,7 @@ public String getName()
     @Override
     public Double getSchemaVersion()
     {
-        return 15.24;
+        return 15.25;
     }
 
     @Override
@@ -137,7 +139,9 @@ public Set<Class> getIntegrationTests()
     public @NotNull Set<Class> getUnitTests()
     {
         return new HashSet<>(List.of(
-                SlurmExecutionEngine.TestCase.class
+                SlurmExecutionEngine.TestCase.class,
+                ClusterCommandRunner.TestCase.class,
+                HistoryResourceAllocator.TestCase.class
         ));
     }
 
@@ -7,6 +7,7 @@
 import org.labkey.api.pipeline.RemoteExecutionEngine;
 import org.labkey.api.pipeline.TaskFactory;
 import org.labkey.cluster.pipeline.ClusterPipelineJob;
+import org.labkey.cluster.pipeline.HistoryResourceAllocator;
 
 /**
  * Created by bimber on 7/26/2017.
@@ -26,6 +27,7 @@ public PipelineStartup()
         {
             _log.info("Registering cluster pipeline steps");
             ClusterService.setInstance(new ClusterServiceImpl());
+            ClusterService.get().registerResourceAllocator(new HistoryResourceAllocator.Factory());
             registerPipelineSteps();
             _hasRegistered = true;
         }
@@ -1,6 +1,7 @@
 package org.labkey.cluster.pipeline;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.labkey.api.cluster.ClusterResourceAllocator;
 import org.labkey.api.data.Container;
 import org.labkey.api.pipeline.PipelineJob;
@@ -18,6 +19,7 @@
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by bimber on 7/11/2017.
@@ -36,10 +38,17 @@ abstract class AbstractClusterEngineConfig implements PipelineJobService.RemoteE
     protected String _remoteExecutable = "/usr/local/java_current/bin/java";
     protected List<String> _extraSubmitScriptLines = null;
 
+    protected boolean _predictResources = false;
+    protected Integer _maxRequestCpus = null;
+    protected Integer _maxRequestMemory = null;
+    protected Integer _maxRequestWalltime = null;
+
     protected String _submitCommand;
     protected String _statusCommand;
     protected String _removeCommand;
     protected String _historyCommand;
+    protected String _bulkHistoryCommand;
+    protected int _commandTimeout = ClusterCommandRunner.DEFAULT_TIMEOUT_SECONDS;
 
     public void setRemoteExecutable(String remoteExecutable)
     {
@@ -80,6 +89,58 @@ public Integer getRequestMemory()
         return _requestMemory;
     }
 
+    /**
+     * If true, HistoryResourceAllocator predicts resources for each task from its earlier submissions, and a job that runs out of memory is resubmitted with more
+     */
+    public boolean isPredictResources()
+    {
+        return _predictResources;
+    }
+
+    public void setPredictResources(boolean predictResources)
+    {
+        _predictResources = predictResources;
+    }
+
+    /**
+     * The most CPUs any job can request, or null for no limit
+     */
+    public Integer getMaxRequestCpus()
+    {
+        return _maxRequestCpus;
+    }
+
+    public void setMaxRequestCpus(Integer maxRequestCpus)
+    {
+        _maxRequestCpus = maxRequestCpus;
+    }
+
+    /**
+     * The most RAM in GBs any job can request, or null for no limit
+     */
+    public Integer getMaxRequestMemory()
+    {
+        return _maxRequestMemory;
+    }
+
+    public void setMaxRequestMemory(Integer maxRequestMemory)
+    {
+        _maxRequestMemory = maxRequestMemory;
+    }
+
+    /**
+     * The longest walltime in minutes any job can request, or null for no limit
+     */
+    public Integer getMaxRequestWalltime()
+    {
+        return _maxRequestWalltime;
+    }
+
+    public void setMaxRequestWalltime(Integer maxRequestWalltime)
+    {
+        _maxRequestWalltime = maxRequestWalltime;
+    }
+
     public String getLabKeyDir()
     {
         return _labKeyDir == null || !_labKeyDir.endsWith("/") ? _labKeyDir : _labKeyDir.substring(0, _labKeyDir.length()-1);
@@ -109,6 +170,81 @@ protected List<String> getFinalJavaOpts(PipelineJob job, RemoteExecutionEngine e
         return javaOpts;
     }
 
+    /**
+     * Runs the registered allocators for this job's active task, then applies the defaults and limits of this config. If predictResources is set
+     * and the last submission of this task ran out of memory, the memory is increased. The resources requested are recorded on the submission.
+     */
+    public ResourceRequest getResourceRequest(ClusterJob j, PipelineJob job, RemoteExecutionEngine<?> engine, List<String> extraLines, Map<String, Object> extraEnvironmentVars)
+    {
+        Integer maxCpus = null;
+        Integer maxRam = null;
+        Integer maxWalltime = null;
+        if (job.getActiveTaskId() != null)
+        {
+            List<ClusterResourceAllocator.Factory> allocatorFactories = ClusterServiceImpl.get().getAllocators(job.getActiveTaskId());
+            for (ClusterResourceAllocator.Factory allocatorFact : allocatorFactories)
+            {
+                ClusterResourceAllocator allocator = allocatorFact.getAllocator();
+                job.getLogger().debug("using resource allocator: " + allocator.getClass().getName() + " for activeTask: " + job.getActiveTaskId());
+                Integer c = allocator.getMaxRequestCpus(job, engine);
+                if (c != null)
+                {
+                    job.getLogger().debug("setting cpus: " + c);
+                    maxCpus = c;
+                }
+
+                Integer m = allocator.getMaxRequestMemory(job, engine);
+                if (m != null)
+                {
+                    job.getLogger().debug("setting memory: " + m);
+                    maxRam = m;
+                }
+
+                Integer w = allocator.getMaxRequestWalltime(job, engine);
+                if (w != null)
+                {
+                    job.getLogger().debug("setting walltime: " + w);
+                    maxWalltime = w;
+                }
+
+                allocator.addExtraSubmitScriptLines(job, engine, extraLines);
+
+                extraEnvironmentVars.putAll(allocator.getEnvironmentVars(job, engine));
+            }
+        }
+
+        Integer cpus = maxCpus != null ? maxCpus : getRequestCpus();
+        Integer ram = maxRam != null ? maxRam : getRequestMemory();
+        if (isPredictResources())
+        {
+            Integer retryRam = HistoryResourceAllocator.getRetryMemory(job, this);
+            if (retryRam != null && (ram == null || retryRam > ram))
+            {
+                job.getLogger().info("The last submission of this task ran out of memory, increasing the memory from " + ram + " to " + retryRam + " GB");
+                ram = retryRam;
+            }
+        }
+
+        ResourceRequest ret = new ResourceRequest(applyLimit(cpus, getMaxRequestCpus(), "cpus", job), applyLimit(ram, getMaxRequestMemory(), "memory", job), applyLimit(maxWalltime, getMaxRequestWalltime(), "walltime", job));
+        j.setRequestedCpus(ret.getCpus());
+        j.setRequestedMemory(ret.getMemory());
+        j.setRequestedWalltime(ret.getWalltime());
+        j.setInputSize(HistoryResourceAllocator.getInputSize(job));
+
+        return ret;
+    }
+
+    private Integer applyLimit(Integer value, Integer limit, String name, PipelineJob job)
+    {
+        if (value != null && limit != null && value > limit)
+        {
+            job.getLogger().debug("reducing " + name + " from " + value + " to the limit of " + limit);
+            return limit;
+        }
+
+        return value;
+    }
+
     public List<String> getJobArgs(File localPipelineDir, File localSerializedJobXmlFile, PipelineJob job, RemoteExecutionEngine<?> engine)
     {
         List<String> ret = new ArrayList<>();
@@ -247,6 +383,16 @@ public StringExpression getHistoryCommandExpr()
         return StringExpressionFactory.create(_historyCommand);
     }
 
+    /**
+     * An optional command that reports the history of many jobs at once. It can use ${clusterIds}, which is a comma-separated list,
+     * or ${clusterConstraint}, which is an HTCondor constraint expression that matches those jobs.
+     */
+    @Nullable
+    public StringExpression getBulkHistoryCommandExpr()
+    {
+        return _bulkHistoryCommand == null ? null : StringExpressionFactory.create(_bulkHistoryCommand);
+    }
+
     public void setSubmitCommand(String submitCommand)
     {
         _submitCommand = submitCommand;
@@ -267,6 +413,24 @@ public void setHistoryCommand(String historyCommand)
         _historyCommand = historyCommand;
     }
 
+    public void setBulkHistoryCommand(String bulkHistoryCommand)
+    {
+        _bulkHistoryCommand = bulkHistoryCommand;
+    }
+
+    /**
+     * @return The number of seconds a scheduler command can run before it is killed
+     */
+    public int getCommandTimeout()
+    {
+        return _commandTimeout;
+    }
+
+    public void setCommandTimeout(int commandTimeout)
+    {
+        _commandTimeout = commandTimeout;
+    }
+
     public List<String> getExtraSubmitLines()
     {
         List<String> ret = new ArrayList<>();
@@ -282,4 +446,39 @@ public void setExtraSubmitScriptLines(List<String> extraSubmitScriptLines)
     {
         _extraSubmitScriptLines = extraSubmitScriptLines;
     }
+
+    public static class ResourceRequest
+    {
+        private final Integer _cpus;
+        private final Integer _memory;
+        private final Integer _walltime;
+
+        public ResourceRequest(Integer cpus, Integer memory, Integer walltime)
+        {
+            _cpus = cpus;
+            _memory = memory;
+            _walltime = walltime;
+        }
+
+        public Integer getCpus()
+        {
+            return _cpus;
+        }
+
+        /**
+         * In GB
+         */
+        public Integer getMemory()
+        {
+            return _memory;
+        }
+
+        /**
+         * In minutes
+         */
+        public Integer getWalltime()
+        {
+            return _walltime;
+        }
+    }
 }
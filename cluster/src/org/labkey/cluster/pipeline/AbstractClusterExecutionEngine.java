@@ -1,16 +1,17 @@
 package org.labkey.cluster.pipeline;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.labkey.api.collections.CaseInsensitiveHashMap;
 import org.labkey.api.collections.CaseInsensitiveHashSet;
 import org.labkey.api.data.CompareType;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
 import org.labkey.api.data.DbSchema;
+import org.labkey.api.data.DbScope;
 import org.labkey.api.data.SQLFragment;
 import org.labkey.api.data.SimpleFilter;
 import org.labkey.api.data.Sort;
@@ -31,7 +32,6 @@
 import org.labkey.api.util.NetworkDrive;
 import org.labkey.api.util.PageFlowUtil;
 import org.labkey.api.util.Pair;
-import org.labkey.api.util.StringUtilsLabKey;
 import org.labkey.cluster.ClusterManager;
 import org.labkey.cluster.ClusterSchema;
 import org.labkey.cluster.ClusterServiceImpl;
@@ -47,9 +47,13 @@
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Collectors;
 
 /**
  * Created by bimber on 7/11/2017.
@@ -61,15 +65,45 @@
     public static final String NOT_SUBMITTED = "NOT_SUBMITTED";
     public static final String JOB_DELETED = "JOB_DELETED";
 
+    // The maximum number of IDs passed to one scheduler command or one IN clause
+    protected static final int STATUS_BATCH_SIZE = 500;
+    private static final int JOB_LOCK_STRIPES = 256;
+
     //TODO: allow a site param to set this
     protected boolean _debug = false;
 
     private final ConfigType _config;
 
+    // Held for the duration of a status update. A scheduled update that finds another in progress is skipped rather than queued.
+    private final ReentrantLock _statusLock = new ReentrantLock();
+    private final ReentrantLock _requeueLock = new ReentrantLock();
+
+    // Submission, cancellation and status changes for the same job are serialized by these, striped by job ID, so different jobs proceed in parallel
+    private final ReentrantLock[] _jobLocks = new ReentrantLock[JOB_LOCK_STRIPES];
+
+    // Only set during updateStatusForAll(), and only read by the thread holding _statusLock
+    private StatusIndex _statusIndex = null;
+
     protected AbstractClusterExecutionEngine(ConfigType config, Logger log)
     {
         _config = config;
         _log = log;
+
+        for (int i = 0; i < _jobLocks.length; i++)
+        {
+            _jobLocks[i] = new ReentrantLock();
+        }
+    }
+
+    private ReentrantLock getJobLock(@Nullable String jobId)
+    {
+        return _jobLocks[Math.floorMod(jobId == null ? 0 : jobId.hashCode(), _jobLocks.length)];
+    }
+
+    @Nullable
+    private StatusIndex getStatusIndex()
+    {
+        return _statusLock.isHeldByCurrentThread() ? _statusIndex : null;
     }
 
     @Override
@@ -80,6 +114,20 @@ public ConfigType getConfig()
 
     @Override
     public void submitJob(PipelineJob job) throws PipelineJobException
+    {
+        ReentrantLock lock = getJobLock(job.getJobGUID());
+        lock.lock();
+        try
+        {
+            doSubmitJob(job);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void doSubmitJob(PipelineJob job) throws PipelineJobException
     {
         if (isDebug())
         {
@@ -301,6 +349,30 @@ private List<ClusterJob> getClusterSubmissionsForJob(String jobId, boolean inclu
         return clusterJobs.isEmpty() ? Collections.emptyList() : clusterJobs;
     }
 
+    /**
+     * @return The most recent submission for each of these cluster IDs that has one. During a status update, this reads from that update's index.
+     */
+    protected Map<String, ClusterJob> getClusterSubmissions(Collection<String> clusterIds)
+    {
+        StatusIndex statusIndex = getStatusIndex();
+        if (statusIndex != null)
+        {
+            return statusIndex.getClusterSubmissions(clusterIds);
+        }
+
+        Map<String, ClusterJob> ret = new HashMap<>();
+        for (String clusterId : new LinkedHashSet<>(clusterIds))
+        {
+            ClusterJob j = getClusterSubmission(clusterId);
+            if (j != null)
+            {
+                ret.put(clusterId, j);
+            }
+        }
+
+        return ret;
+    }
+
     protected ClusterJob getClusterSubmission(String clusterId)
     {
         TableInfo ti = ClusterSchema.getInstance().getSchema().getTable(ClusterSchema.CLUSTER_JOBS);
@@ -316,9 +388,20 @@ protected ClusterJob getClusterSubmission(String clusterId)
         return ret.isEmpty() ? null : ret.get(0);
     }
 
-    public synchronized void requeueBlockedJobs() throws PipelineJobException
+    public void requeueBlockedJobs() throws PipelineJobException
     {
-        if (!ClusterManager.get().isPreventClusterInteraction())
+        if (ClusterManager.get().isPreventClusterInteraction())
+        {
+            return;
+        }
+
+        if (!_requeueLock.tryLock())
+        {
+            _log.debug("blocked jobs are already being requeued, skipping");
+            return;
+        }
+
+        try
         {
             //first see if we have any submissions to check
             TableInfo ti = ClusterSchema.getInstance().getSchema().getTable(ClusterSchema.CLUSTER_JOBS);
@@ -334,17 +417,37 @@ public synchronized void requeueBlockedJobs() throws PipelineJobException
 
             for (ClusterJob j : jobs)
             {
-                PipelineJob job = PipelineJobService.get().getJobStore().getJob(j.getJobId());
-                if (job == null)
+                ReentrantLock lock = getJobLock(j.getJobId());
+                lock.lock();
+                try
                 {
-                    _log.error("unable to find PipelineJob matching: " + j.getJobId(), new Exception());
+                    //NOTE: the job could have been cancelled since the list above was read
+                    ClusterJob current = new TableSelector(ti).getObject(j.getRowId(), ClusterJob.class);
+                    if (current == null || !NOT_SUBMITTED.equals(current.getStatus()))
+                    {
+                        continue;
+                    }
+
+                    PipelineJob job = PipelineJobService.get().getJobStore().getJob(current.getJobId());
+                    if (job == null)
+                    {
+                        _log.error("unable to find PipelineJob matching: " + current.getJobId(), new Exception());
+                    }
+                    else
+                    {
+                        doSubmitJobToCluster(current, job);
+                    }
                 }
-                else
+                finally
                 {
-                    doSubmitJobToCluster(j, job);
+                    lock.unlock();
                 }
             }
         }
+        finally
+        {
+            _requeueLock.unlock();
+        }
     }
 
     abstract protected Set<String> updateStatusForAllJobs() throws PipelineJobException;
@@ -356,12 +459,44 @@ public void updateStatusForJobs(@NotNull Collection<String> jobIds) throws Pipel
         updateStatusForAll(jobIds);
     }
 
-    public synchronized void updateStatusForAll() throws PipelineJobException
+    /**
+     * Updates the status of all active jobs. If another update is already running, this returns immediately.
+     */
+    public void updateStatusForAll() throws PipelineJobException
+    {
+        if (!_statusLock.tryLock())
+        {
+            _log.debug("a status update is already running, skipping");
+            return;
+        }
+
+        try
+        {
+            doUpdateStatusForAll(Collections.emptySet());
+        }
+        finally
+        {
+            _statusLock.unlock();
+        }
+    }
+
+    /**
+     * Updates the status of all active jobs, plus these jobs. If another update is already running, this waits for it to finish.
+     */
+    public void updateStatusForAll(Collection<String> extraJobIds) throws PipelineJobException
     {
-        updateStatusForAll(Collections.emptySet());
+        _statusLock.lock();
+        try
+        {
+            doUpdateStatusForAll(extraJobIds);
+        }
+        finally
+        {
+            _statusLock.unlock();
+        }
     }
 
-    public synchronized void updateStatusForAll(Collection<String> extraJobIds) throws PipelineJobException
+    private void doUpdateStatusForAll(Collection<String> extraJobIds) throws PipelineJobException
     {
         if (ClusterManager.get().isPreventClusterInteraction())
         {
@@ -374,37 +509,101 @@ public synchronized void updateStatusForAll(Collection<String> extraJobIds) thro
             return;
         }
 
-        Set<String> jobsUpdated = updateStatusForAllJobs();
+        _statusIndex = new StatusIndex(jobs);
+        try
+        {
+            Set<String> jobsUpdated = updateStatusForAllJobs();
+            _statusIndex.flushUpdates();
 
-        // iterate existing submissions to catch completed tasks and errors
-        // regenerate this list in case status has otherwise changed
-        jobs = getJobsToCheck(false, extraJobIds);
-        //_log.debug("found " + jobs.size() + " additional cluster jobs to check");
+            // iterate existing submissions to catch completed tasks and errors
+            // regenerate this list in case status has otherwise changed
+            jobs = getJobsToCheck(false, extraJobIds);
+            _statusIndex.addJobs(jobs);
 
-        for (ClusterJob j : jobs)
-        {
-            if (jobsUpdated.contains(j.getClusterId()))
+            List<ClusterJob> toCheck = new ArrayList<>();
+            for (ClusterJob j : jobs)
             {
-                continue;
+                if (jobsUpdated.contains(j.getClusterId()))
+                {
+                    continue;
+                }
+                else if (j.getClusterId() == null)
+                {
+                    _log.error("clusterId was null for job: " + j.getRowId() + " / " + j.getStatus(), new Exception());
+                    continue;
+                }
+
+                toCheck.add(j);
             }
-            else if (j.getClusterId() == null)
+
+            if (!toCheck.isEmpty())
             {
-                _log.error("clusterId was null for job: " + j.getRowId() + " / " + j.getStatus(), new Exception());
-                continue;
+                //check the scheduler's history, in batches
+                Map<String, Pair<String, String>> statuses = getStatusForJobs(toCheck);
+                for (ClusterJob j : toCheck)
+                {
+                    Pair<String, String> jobStatus = statuses.get(j.getClusterId());
+                    if (jobStatus != null)
+                    {
+                        _log.debug("updating job status: " + j.getClusterId() + " / " + jobStatus.first);
+                        updateJobStatus(jobStatus.first, j, jobStatus.second);
+                    }
+                    else
+                    {
+                        _log.error("unable to find record of job submission: " + j.getClusterId());
+                    }
+                }
             }
 
-            //check condor_history
+            _statusIndex.flushUpdates();
+        }
+        finally
+        {
+            _statusIndex = null;
+        }
+    }
+
+    /**
+     * @return The status of each of these jobs that could be found, keyed by cluster ID. By default, this checks each job separately.
+     */
+    protected Map<String, Pair<String, String>> getStatusForJobs(List<ClusterJob> jobs)
+    {
+        Map<String, Pair<String, String>> ret = new HashMap<>();
+        for (ClusterJob j : jobs)
+        {
             Pair<String, String> jobStatus = getStatusForJob(j, ContainerManager.getForId(j.getContainer()));
             if (jobStatus != null)
             {
-                _log.debug("updating job status: " + j.getClusterId() + " / " + jobStatus.first);
-                updateJobStatus(jobStatus.first, j, jobStatus.second);
+                ret.put(j.getClusterId(), jobStatus);
             }
-            else
+        }
+
+        return ret;
+    }
+
+    /**
+     * Splits jobs into groups that can be checked with one scheduler command. Each group has a single cluster user and at most STATUS_BATCH_SIZE jobs.
+     */
+    protected List<List<ClusterJob>> getStatusBatches(List<ClusterJob> jobs)
+    {
+        Map<String, String> clusterUserByContainer = new HashMap<>();
+        Map<String, List<ClusterJob>> jobsByUser = new LinkedHashMap<>();
+        for (ClusterJob j : jobs)
+        {
+            String clusterUser = clusterUserByContainer.computeIfAbsent(j.getContainer(), c -> String.valueOf(getBaseCtx(ContainerManager.getForId(c)).get("clusterUser")));
+            jobsByUser.computeIfAbsent(clusterUser, x -> new ArrayList<>()).add(j);
+        }
+
+        List<List<ClusterJob>> ret = new ArrayList<>();
+        for (List<ClusterJob> userJobs : jobsByUser.values())
+        {
+            for (int i = 0; i < userJobs.size(); i += STATUS_BATCH_SIZE)
             {
-                _log.error("unable to find record of job submission: " + j.getClusterId());
+                ret.add(userJobs.subList(i, Math.min(i + STATUS_BATCH_SIZE, userJobs.size())));
             }
         }
+
+        return ret;
     }
 
     private boolean doSubmitJobToCluster(ClusterJob j, PipelineJob job) throws PipelineJobException
@@ -504,7 +703,21 @@ protected Collection<ClusterJob> getJobsToCheck(boolean includeConflicting, Coll
     /**
      * this expects the status normalized from cluster codes to LK TaskStatus
      */
-    protected synchronized void updateJobStatus(@Nullable String status, ClusterJob j, @Nullable String info) throws PipelineJobException
+    protected void updateJobStatus(@Nullable String status, ClusterJob j, @Nullable String info) throws PipelineJobException
+    {
+        ReentrantLock lock = getJobLock(j.getJobId());
+        lock.lock();
+        try
+        {
+            doUpdateJobStatus(status, j, info, getStatusIndex());
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void doUpdateJobStatus(@Nullable String status, ClusterJob j, @Nullable String info, @Nullable StatusIndex statusIndex) throws PipelineJobException
     {
         //update DB
         boolean statusChanged = (status != null && !status.equals(j.getStatus()));
@@ -512,7 +725,7 @@ protected synchronized void updateJobStatus(@Nullable String status, ClusterJob
         j.setStatus(status);
 
 
-        ClusterJob mostRecent = getMostRecentClusterSubmission(j.getJobId(), true);
+        ClusterJob mostRecent = statusIndex == null ? getMostRecentClusterSubmission(j.getJobId(), true) : statusIndex.getMostRecentSubmission(j.getJobId());
         boolean hasNewerSubmission = mostRecent != null && j.getClusterId() != null && !j.getClusterId().equals(mostRecent.getClusterId());
 
         PipelineStatusFile sf = PipelineService.get().getStatusFile(j.getStatusFileId());
@@ -547,10 +760,30 @@ protected synchronized void updateJobStatus(@Nullable String status, ClusterJob
         //no need to redundantly update PipelineJob
         if (!statusChanged)
         {
-            Table.update(null, ClusterSchema.getInstance().getSchema().getTable(ClusterSchema.CLUSTER_JOBS), j, j.getRowId());
+            if (statusIndex != null)
+            {
+                statusIndex.queueUpdate(j);
+            }
+            else
+            {
+                Table.update(null, ClusterSchema.getInstance().getSchema().getTable(ClusterSchema.CLUSTER_JOBS), j, j.getRowId());
+            }
+
             return;
         }
 
+        if (statusIndex != null)
+        {
+            //NOTE: the index could miss a submission made during this update, so confirm with the DB before changing the PipelineJob
+            statusIndex.removeUpdate(j);
+            mostRecent = getMostRecentClusterSubmission(j.getJobId(), true);
+            if (mostRecent != null && j.getClusterId() != null && !j.getClusterId().equals(mostRecent.getClusterId()))
+            {
+                Table.update(null, ClusterSchema.getInstance().getSchema().getTable(ClusterSchema.CLUSTER_JOBS), j, j.getRowId());
+                return;
+            }
+        }
+
         //and update the actual PipelineJob
         try
         {
@@ -621,6 +854,11 @@ else if (pj.getActiveTaskStatus() == PipelineJob.TaskStatus.complete)
                         }
                     }
 
+                    if (taskStatus == PipelineJob.TaskStatus.error && retryAfterOutOfMemory(j, pj))
+                    {
+                        return;
+                    }
+
                     pj.getLogger().debug("setting active task status for job: " + j.getClusterId() + " to: " + taskStatus.name() + ". status was: " + pj.getActiveTaskStatus() + " (JSON) /" + sf.getStatus() + " (StatusFile) / " + status + " (Cluster), activeTaskId: " + (pj.getActiveTaskId() != null ? pj.getActiveTaskId().toString() : "no active task") + ", hostname: " + sf.getActiveHostName() + ", rowid: " + j.getRowId());
                     try
                     {
@@ -675,6 +913,41 @@ else if (pj.getActiveTaskStatus() == PipelineJob.TaskStatus.complete)
         }
     }
 
+    /**
+     * If this submission ran out of memory and the engine predicts resources, resubmits the job with more memory, up to the configured limit.
+     * @return True if the job was resubmitted
+     */
+    private boolean retryAfterOutOfMemory(ClusterJob j, PipelineJob pj)
+    {
+        if (!Boolean.TRUE.equals(j.getOutOfMemory()) || !(getConfig() instanceof AbstractClusterEngineConfig config) || !config.isPredictResources())
+        {
+            return false;
+        }
+
+        //NOTE: record this submission as finished first, so the new submission is not treated as a duplicate
+        Table.update(null, ClusterSchema.getInstance().getSchema().getTable(ClusterSchema.CLUSTER_JOBS), j, j.getRowId());
+
+        Integer memory = HistoryResourceAllocator.getRetryMemory(pj, config);
+        if (memory == null)
+        {
+            pj.getLogger().info("Job ran out of memory with " + j.getRequestedMemory() + " GB, and will not be resubmitted since it reached the memory limit or the maximum retries");
+            return false;
+        }
+
+        pj.getLogger().warn("Job ran out of memory with " + j.getRequestedMemory() + " GB, resubmitting with " + memory + " GB");
+        try
+        {
+            submitJob(pj);
+            return true;
+        }
+        catch (PipelineJobException e)
+        {
+            _log.error("Unable to resubmit job after it ran out of memory: " + pj.getJobGUID(), e);
+            pj.getLogger().error("Unable to resubmit job", e);
+            return false;
+        }
+    }
+
     @Override
     public void cancelJob(String jobId) throws PipelineJobException
     {
@@ -684,6 +957,21 @@ public void cancelJob(String jobId) throws PipelineJobException
             return;
         }
 
+        ReentrantLock lock = getJobLock(jobId);
+        lock.lock();
+        try
+        {
+            doCancelJob(jobId);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void doCancelJob(String jobId) throws PipelineJobException
+    {
+
         //find cluster Id for Job Id. Allow status=cancelled in case the cluster already updated:
         ClusterJob clusterJob = getMostRecentClusterSubmission(jobId, false, true);
         if (clusterJob == null)
@@ -786,59 +1074,44 @@ protected List<String> execute(String command, @Nullable File workDir)
 
         try
         {
-            Process p = Runtime.getRuntime().exec(command, null, workDir);
-            try
+            ClusterCommandRunner.Result result = ClusterCommandRunner.get().execute(command, workDir, getCommandTimeout());
+            if (result.isTimedOut())
             {
-                String output = IOUtils.toString(p.getInputStream(), StringUtilsLabKey.DEFAULT_CHARSET);
-                String errorOutput = IOUtils.toString(p.getErrorStream(), StringUtilsLabKey.DEFAULT_CHARSET);
-
-                int exitCode = p.waitFor();
-                if (exitCode != 0)
-                {
-                    _log.error("Non-zero exit from command: " + command);
-                }
-
-                if (errorOutput != null)
-                {
-                    errorOutput = errorOutput.replaceAll("\n\r", "\n");
-                    ret.addAll(Arrays.asList(errorOutput.split("\n")));
-                }
-
-                if (output != null)
-                {
-                    output = output.replaceAll("\n\r", "\n");
-                    ret.addAll(Arrays.asList(output.split("\n")));
-                }
-
-                _log.debug("results: ");
-                _log.debug(StringUtils.join(ret, "\n"));
-
-                return ret;
+                _log.error("Cluster command timed out: " + command);
+                return null;
             }
-            catch (InterruptedException e)
+            else if (result.getExitCode() != 0)
             {
-                _log.error("Error executing cluster command: " + command);
-                _log.info(StringUtils.join(ret, "\n"));
-                _log.error(e.getMessage(), e);
-            }
-            finally
-            {
-                if (p != null)
-                {
-                    p.destroy();
-                }
+                _log.error("Non-zero exit from command: " + command);
             }
+
+            ret.addAll(Arrays.asList(result.getStderr().replaceAll("\n\r", "\n").split("\n")));
+            ret.addAll(Arrays.asList(result.getStdout().replaceAll("\n\r", "\n").split("\n")));
+
+            _log.debug("results: ");
+            _log.debug(StringUtils.join(ret, "\n"));
+
+            return ret;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            _log.error("Interrupted while executing cluster command: " + command, e);
         }
         catch (IOException e)
         {
             _log.error("Error executing cluster command: " + command);
-            _log.info(StringUtils.join(ret, "\n"));
             _log.error(e.getMessage(), e);
         }
 
         return null;
     }
 
+    protected int getCommandTimeout()
+    {
+        return getConfig() instanceof AbstractClusterEngineConfig config ? config.getCommandTimeout() : ClusterCommandRunner.DEFAULT_TIMEOUT_SECONDS;
+    }
+
     protected void checkForCompletedJob(ClusterJob job)
     {
         // TODO: consider also checking the DB for submissions that are marked as complete.
@@ -852,4 +1125,148 @@ protected void checkForCompletedJob(ClusterJob job)
             //return PipelineJob.TaskStatus.complete.name().toUpperCase();
         }
     }
+
+    /**
+     * The cluster submissions for one status update, loaded in batches so that each line of scheduler output does not need its own query.
+     * Updates that do not change a job's status are queued and written together in one transaction.
+     */
+    private class StatusIndex
+    {
+        private final Map<String, ClusterJob> _byClusterId = new HashMap<>();
+        private final Set<String> _unknownClusterIds = new HashSet<>();
+        private final Map<String, ClusterJob> _mostRecentByJobId = new HashMap<>();
+        private final Map<Integer, Map<String, Object>> _pendingUpdates = new LinkedHashMap<>();
+
+        public StatusIndex(Collection<ClusterJob> jobs)
+        {
+            addJobs(jobs);
+        }
+
+        public void addJobs(Collection<ClusterJob> jobs)
+        {
+            for (ClusterJob j : jobs)
+            {
+                if (j.getClusterId() != null)
+                {
+                    _byClusterId.merge(j.getClusterId(), j, (a, b) -> isNewer(b, a) ? b : a);
+                    _unknownClusterIds.remove(j.getClusterId());
+                }
+            }
+
+            loadMostRecentSubmissions(jobs.stream().map(ClusterJob::getJobId).filter(x -> x != null && !_mostRecentByJobId.containsKey(x)).collect(Collectors.toSet()));
+        }
+
+        public Map<String, ClusterJob> getClusterSubmissions(Collection<String> clusterIds)
+        {
+            List<String> toLoad = clusterIds.stream().distinct().filter(x -> !_byClusterId.containsKey(x) && !_unknownClusterIds.contains(x)).toList();
+            TableInfo ti = ClusterSchema.getInstance().getSchema().getTable(ClusterSchema.CLUSTER_JOBS);
+            for (int i = 0; i < toLoad.size(); i += STATUS_BATCH_SIZE)
+            {
+                List<String> batch = toLoad.subList(i, Math.min(i + STATUS_BATCH_SIZE, toLoad.size()));
+                SimpleFilter filter = new SimpleFilter(FieldKey.fromString("clusterId"), batch, CompareType.IN);
+                filter.addCondition(FieldKey.fromString("location"), getConfig().getLocation());
+                for (ClusterJob j : new TableSelector(ti, filter, new Sort("-created")).getArrayList(ClusterJob.class))
+                {
+                    if (_byClusterId.containsKey(j.getClusterId()))
+                    {
+                        _log.error("multiple cluster submissions exist for same id: " + j.getClusterId());
+                        continue;
+                    }
+
+                    _byClusterId.put(j.getClusterId(), j);
+                }
+
+                //NOTE: it is allowable for the same user to submit jobs outside of LK, so remember these to avoid querying again
+                batch.stream().filter(x -> !_byClusterId.containsKey(x)).forEach(_unknownClusterIds::add);
+            }
+
+            Map<String, ClusterJob> ret = new HashMap<>();
+            for (String clusterId : clusterIds)
+            {
+                ClusterJob j = _byClusterId.get(clusterId);
+                if (j != null)
+                {
+                    ret.put(clusterId, j);
+                }
+            }
+
+            return ret;
+        }
+
+        public ClusterJob getMostRecentSubmission(String jobId)
+        {
+            if (!_mostRecentByJobId.containsKey(jobId))
+            {
+                //NOTE: this handles the translation of jobId through the status file, which the batched query does not
+                _mostRecentByJobId.put(jobId, getMostRecentClusterSubmission(jobId, true));
+            }
+
+            return _mostRecentByJobId.get(jobId);
+        }
+
+        private void loadMostRecentSubmissions(Set<String> jobIds)
+        {
+            List<String> toLoad = new ArrayList<>(jobIds);
+            TableInfo ti = ClusterSchema.getInstance().getSchema().getTable(ClusterSchema.CLUSTER_JOBS);
+            for (int i = 0; i < toLoad.size(); i += STATUS_BATCH_SIZE)
+            {
+                // This matches the filter used by getMostRecentClusterSubmission(), which includes inactive and cancelled submissions
+                SimpleFilter filter = new SimpleFilter(FieldKey.fromString("jobId"), toLoad.subList(i, Math.min(i + STATUS_BATCH_SIZE, toLoad.size())), CompareType.IN);
+                filter.addCondition(FieldKey.fromString("location"), getConfig().getLocation());
+                filter.addCondition(FieldKey.fromString("clusterId"), null, CompareType.NONBLANK);
+                filter.addCondition(FieldKey.fromString("status"), PREPARING, CompareType.NEQ_OR_NULL);
+                filter.addCondition(FieldKey.fromString("status"), NOT_SUBMITTED, CompareType.NEQ_OR_NULL);
+
+                for (ClusterJob j : new TableSelector(ti, filter, new Sort("-created")).getArrayList(ClusterJob.class))
+                {
+                    _mostRecentByJobId.putIfAbsent(j.getJobId(), j);
+                }
+            }
+        }
+
+        /**
+         * Queues the columns set by a status check that did not change the job's status. Only these columns are written, so a cancel or
+         * requeue made by another thread before the flush is not reverted.
+         */
+        public void queueUpdate(ClusterJob j)
+        {
+            Map<String, Object> row = new CaseInsensitiveHashMap<>();
+            row.put("hostname", j.getHostname());
+            row.put("lastStatusCheck", j.getLastStatusCheck());
+            row.put("logModified", j.getLogModified());
+
+            _pendingUpdates.put(j.getRowId(), row);
+        }
+
+        public void removeUpdate(ClusterJob j)
+        {
+            _pendingUpdates.remove(j.getRowId());
+        }
+
+        public void flushUpdates()
+        {
+            if (_pendingUpdates.isEmpty())
+            {
+                return;
+            }
+
+            TableInfo ti = ClusterSchema.getInstance().getSchema().getTable(ClusterSchema.CLUSTER_JOBS);
+            try (DbScope.Transaction transaction = ti.getSchema().getScope().ensureTransaction())
+            {
+                for (Map.Entry<Integer, Map<String, Object>> e : _pendingUpdates.entrySet())
+                {
+                    Table.update(null, ti, e.getValue(), e.getKey());
+                }
+
+                transaction.commit();
+            }
+
+            _pendingUpdates.clear();
+        }
+
+        private boolean isNewer(ClusterJob a, ClusterJob b)
+        {
+            return a.getCreated() != null && (b.getCreated() == null || a.getCreated().after(b.getCreated()));
+        }
+    }
 }
@@ -0,0 +1,309 @@
+package org.labkey.cluster.pipeline;
+
+import org.apache.commons.io.FilenameUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.util.StringUtilsLabKey;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs scheduler commands (squeue, sbatch, condor_submit, etc.) on a bounded pool shared by all cluster engines. stdout and stderr are
+ * drained concurrently, so a command that writes heavily to either stream cannot block on a full pipe, and a command that runs past its
+ * timeout is killed. Counts, latency and timeouts are tracked per command, along with the number of commands waiting for a worker.
+ */
+public class ClusterCommandRunner
+{
+    private static final Logger _log = LogManager.getLogger(ClusterCommandRunner.class);
+    private static final ClusterCommandRunner _instance = new ClusterCommandRunner();
+
+    public static final int DEFAULT_TIMEOUT_SECONDS = 300;
+    private static final int MAX_CONCURRENT_COMMANDS = 8;
+
+    private final ThreadPoolExecutor _executor;
+    private final ExecutorService _drainExecutor;
+    private final Map<String, CommandStats> _stats = new ConcurrentHashMap<>();
+
+    private ClusterCommandRunner()
+    {
+        _executor = new ThreadPoolExecutor(MAX_CONCURRENT_COMMANDS, MAX_CONCURRENT_COMMANDS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), createThreadFactory("ClusterCommand"));
+        _executor.allowCoreThreadTimeOut(true);
+
+        //NOTE: each running command uses up to two of these threads, so this is bounded by the size of the pool above
+        _drainExecutor = Executors.newCachedThreadPool(createThreadFactory("ClusterCommandOutput"));
+    }
+
+    public static ClusterCommandRunner get()
+    {
+        return _instance;
+    }
+
+    private static ThreadFactory createThreadFactory(String name)
+    {
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Runs this command, splitting it on whitespace in the same way as Runtime.exec(String), and waits for the result.
+     */
+    public Result execute(String command, @Nullable File workDir, int timeoutSeconds) throws IOException, InterruptedException
+    {
+        List<String> args = new ArrayList<>();
+        StringTokenizer st = new StringTokenizer(command);
+        while (st.hasMoreTokens())
+        {
+            args.add(st.nextToken());
+        }
+
+        if (args.isEmpty())
+        {
+            throw new IllegalArgumentException("attempting to execute an empty command");
+        }
+
+        return execute(args, workDir, timeoutSeconds);
+    }
+
+    public Result execute(List<String> args, @Nullable File workDir, int timeoutSeconds) throws IOException, InterruptedException
+    {
+        long queued = System.currentTimeMillis();
+        Future<Result> future = _executor.submit(() -> run(args, workDir, timeoutSeconds, queued));
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException e)
+        {
+            future.cancel(true);
+            throw e;
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException ioe)
+            {
+                throw ioe;
+            }
+            else if (e.getCause() instanceof RuntimeException re)
+            {
+                throw re;
+            }
+
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private Result run(List<String> args, @Nullable File workDir, int timeoutSeconds, long queued) throws IOException, InterruptedException
+    {
+        CommandStats stats = _stats.computeIfAbsent(FilenameUtils.getName(args.get(0)), x -> new CommandStats());
+        long start = System.currentTimeMillis();
+        stats.waitMillis.add(start - queued);
+
+        ProcessBuilder pb = new ProcessBuilder(args);
+        if (workDir != null)
+        {
+            pb.directory(workDir);
+        }
+
+        Process p = pb.start();
+        try
+        {
+            p.getOutputStream().close();
+            Future<String> stdout = _drainExecutor.submit(() -> drain(p.getInputStream()));
+            Future<String> stderr = _drainExecutor.submit(() -> drain(p.getErrorStream()));
+
+            boolean timedOut = !p.waitFor(timeoutSeconds, TimeUnit.SECONDS);
+            if (timedOut)
+            {
+                _log.error("Cluster command exceeded the timeout of " + timeoutSeconds + " seconds and will be killed: " + String.join(" ", args));
+                p.destroyForcibly();
+                p.waitFor(10, TimeUnit.SECONDS);
+                stats.timeouts.increment();
+            }
+
+            Result ret = new Result(timedOut ? -1 : p.exitValue(), getOutput(stdout), getOutput(stderr), timedOut);
+            if (ret.getExitCode() != 0)
+            {
+                stats.failures.increment();
+            }
+
+            return ret;
+        }
+        finally
+        {
+            p.destroy();
+            stats.record(System.currentTimeMillis() - start);
+        }
+    }
+
+    private static String drain(InputStream is) throws IOException
+    {
+        try (is)
+        {
+            return IOUtils.toString(is, StringUtilsLabKey.DEFAULT_CHARSET);
+        }
+    }
+
+    private static String getOutput(Future<String> f) throws IOException, InterruptedException
+    {
+        try
+        {
+            //NOTE: a child process that inherited the pipe can keep it open after the command exits, so do not wait indefinitely
+            return f.get(30, TimeUnit.SECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            f.cancel(true);
+            return "";
+        }
+        catch (ExecutionException e)
+        {
+            throw e.getCause() instanceof IOException ioe ? ioe : new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * @return The number of commands running, the number waiting for a worker, and the count, latency and timeouts of each command
+     */
+    public Map<String, Object> getMetrics()
+    {
+        Map<String, Object> ret = new LinkedHashMap<>();
+        ret.put("maxConcurrentCommands", MAX_CONCURRENT_COMMANDS);
+        ret.put("activeCommands", _executor.getActiveCount());
+        ret.put("queuedCommands", _executor.getQueue().size());
+
+        Map<String, Object> commands = new TreeMap<>();
+        _stats.forEach((name, stats) -> commands.put(name, stats.toMap()));
+        ret.put("commands", commands);
+
+        return ret;
+    }
+
+    public static class Result
+    {
+        private final int _exitCode;
+        private final String _stdout;
+        private final String _stderr;
+        private final boolean _timedOut;
+
+        public Result(int exitCode, String stdout, String stderr, boolean timedOut)
+        {
+            _exitCode = exitCode;
+            _stdout = stdout;
+            _stderr = stderr;
+            _timedOut = timedOut;
+        }
+
+        public int getExitCode()
+        {
+            return _exitCode;
+        }
+
+        public String getStdout()
+        {
+            return _stdout;
+        }
+
+        public String getStderr()
+        {
+            return _stderr;
+        }
+
+        public boolean isTimedOut()
+        {
+            return _timedOut;
+        }
+    }
+
+    private static class CommandStats
+    {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder totalMillis = new LongAdder();
+        private final LongAdder waitMillis = new LongAdder();
+        private final AtomicLong maxMillis = new AtomicLong();
+        private volatile long lastMillis = 0;
+
+        public void record(long millis)
+        {
+            count.increment();
+            totalMillis.add(millis);
+            maxMillis.accumulateAndGet(millis, Math::max);
+            lastMillis = millis;
+        }
+
+        public Map<String, Object> toMap()
+        {
+            long total = count.sum();
+            Map<String, Object> ret = new LinkedHashMap<>();
+            ret.put("count", total);
+            ret.put("failures", failures.sum());
+            ret.put("timeouts", timeouts.sum());
+            ret.put("meanMillis", total == 0 ? 0 : totalMillis.sum() / total);
+            ret.put("maxMillis", maxMillis.get());
+            ret.put("lastMillis", lastMillis);
+            ret.put("meanQueueMillis", total == 0 ? 0 : waitMillis.sum() / total);
+
+            return ret;
+        }
+    }
+
+    public static class TestCase
+    {
+        @Test
+        public void testLargeStderr() throws Exception
+        {
+            // Over a megabyte on stderr would fill the pipe and hang if stdout was read to the end first
+            Result result = get().execute(List.of("sh", "-c", "head -c 2000000 /dev/zero | tr '\\0' x >&2; echo done"), null, 60);
+
+            Assert.assertFalse("Command should not time out", result.isTimedOut());
+            Assert.assertEquals("Incorrect exit code", 0, result.getExitCode());
+            Assert.assertEquals("Incorrect stdout", "done", result.getStdout().trim());
+            Assert.assertEquals("Incorrect stderr length", 2000000, result.getStderr().length());
+        }
+
+        @Test
+        public void testTimeout() throws Exception
+        {
+            long start = System.currentTimeMillis();
+            Result result = get().execute("sleep 60", null, 1);
+
+            Assert.assertTrue("Command should time out", result.isTimedOut());
+            Assert.assertTrue("Command was not killed promptly", System.currentTimeMillis() - start < 30000);
+
+            @SuppressWarnings("unchecked")
+            Map<String, Object> sleepStats = (Map<String, Object>)((Map<String, Object>)get().getMetrics().get("commands")).get("sleep");
+            Assert.assertNotNull("Missing metrics for command", sleepStats);
+            Assert.assertTrue("Timeout was not counted", (Long)sleepStats.get("timeouts") > 0);
+        }
+    }
+}
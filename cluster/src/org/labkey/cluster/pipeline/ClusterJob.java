@@ -26,6 +26,15 @@
     private String _hostname;
     private Date _logModified;
 
+    private Integer _requestedCpus;
+    private Integer _requestedMemory;
+    private Integer _requestedWalltime;
+    private Long _inputSize;
+    private Long _maxRss;
+    private Integer _elapsedSeconds;
+    private Double _cpuEfficiency;
+    private Boolean _outOfMemory;
+
     public int getRowId()
     {
         return _rowId;
@@ -195,4 +204,99 @@ public void setLogModified(Date logModified)
     {
         _logModified = logModified;
     }
+
+    public Integer getRequestedCpus()
+    {
+        return _requestedCpus;
+    }
+
+    public void setRequestedCpus(Integer requestedCpus)
+    {
+        _requestedCpus = requestedCpus;
+    }
+
+    /**
+     * In GB
+     */
+    public Integer getRequestedMemory()
+    {
+        return _requestedMemory;
+    }
+
+    public void setRequestedMemory(Integer requestedMemory)
+    {
+        _requestedMemory = requestedMemory;
+    }
+
+    /**
+     * In minutes
+     */
+    public Integer getRequestedWalltime()
+    {
+        return _requestedWalltime;
+    }
+
+    public void setRequestedWalltime(Integer requestedWalltime)
+    {
+        _requestedWalltime = requestedWalltime;
+    }
+
+    /**
+     * The total size, in bytes, of the job's input files
+     */
+    public Long getInputSize()
+    {
+        return _inputSize;
+    }
+
+    public void setInputSize(Long inputSize)
+    {
+        _inputSize = inputSize;
+    }
+
+    /**
+     * The peak memory used, in bytes, as reported by the scheduler
+     */
+    public Long getMaxRss()
+    {
+        return _maxRss;
+    }
+
+    public void setMaxRss(Long maxRss)
+    {
+        _maxRss = maxRss;
+    }
+
+    public Integer getElapsedSeconds()
+    {
+        return _elapsedSeconds;
+    }
+
+    public void setElapsedSeconds(Integer elapsedSeconds)
+    {
+        _elapsedSeconds = elapsedSeconds;
+    }
+
+    /**
+     * The CPU time used divided by the elapsed time multiplied by the allocated CPUs
+     */
+    public Double getCpuEfficiency()
+    {
+        return _cpuEfficiency;
+    }
+
+    public void setCpuEfficiency(Double cpuEfficiency)
+    {
+        _cpuEfficiency = cpuEfficiency;
+    }
+
+    public Boolean getOutOfMemory()
+    {
+        return _outOfMemory;
+    }
+
+    public void setOutOfMemory(Boolean outOfMemory)
+    {
+        _outOfMemory = outOfMemory;
+    }
 }
@@ -4,7 +4,6 @@
 import org.apache.logging.log4j.Logger;
 import org.apache.logging.log4j.LogManager;
 import org.jetbrains.annotations.NotNull;
-import org.labkey.api.cluster.ClusterResourceAllocator;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
 import org.labkey.api.pipeline.PipelineJob;
@@ -12,15 +11,16 @@
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.Pair;
 import org.labkey.cluster.ClusterManager;
-import org.labkey.cluster.ClusterServiceImpl;
 import org.quartz.JobExecutionException;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -42,66 +42,21 @@ public HTCondorExecutionEngine(HTCondorExecutionEngineConfig config)
     protected Set<String> updateStatusForAllJobs() throws PipelineJobException
     {
         //first check using condor_q, since condor_history might not pick up newly submitted jobs
-        String command = getConfig().getStatusCommandExpr().eval(getBaseCtx(ContainerManager.getRoot()));
-        List<String> ret = execute(command);
+        Map<String, String> queue = readQueue();
         Set<String> jobsUpdated = new HashSet<>();
-        if (ret != null)
+
+        Map<String, ClusterJob> submissions = getClusterSubmissions(queue.keySet());
+        for (Map.Entry<String, String> e : queue.entrySet())
         {
-            //verify success
-            boolean withinJobs = false;
-            for (String line : ret)
+            ClusterJob j = submissions.get(e.getKey());
+            if (j == null)
             {
-                line = StringUtils.trimToNull(line);
-                if (line == null)
-                {
-                    continue;
-                }
-
-                if (withinJobs)
-                {
-                    if (line.matches("^[0-9]+ jobs.*"))
-                    {
-                        break;
-                    }
-                    else
-                    {
-                        String[] tokens = line.split("( )+");
-                        if (tokens.length < 6)
-                        {
-                            _log.warn("condor_q line unexpectedly short: [" + line + "]");
-                            continue;
-                        }
-
-                        String id = StringUtils.trimToNull(tokens[0]);
-                        if (id != null)
-                        {
-                            ClusterJob j = getClusterSubmission(id);
-                            if (j == null)
-                            {
-                                //it is allowable for the same user to submit jobs outside of LK
-                                //_log.error("unable to find HTCondor submission matching: " + id);
-                            }
-                            else
-                            {
-                                String status = translateCondorStatusToTaskStatus(StringUtils.trimToNull(tokens[5]));
-                                updateJobStatus(status, j, null);
-                                jobsUpdated.add(j.getClusterId());
-                            }
-                        }
-                    }
-                }
-                else if (line.startsWith("ID "))
-                {
-                    withinJobs = true;
-                }
+                //it is allowable for the same user to submit jobs outside of LK
+                continue;
             }
 
-            //indicates we never hit the header
-            if (!withinJobs)
-            {
-                _log.error("error checking htcondor job status:");
-                _log.error(StringUtils.join(ret, "\n"));
-            }
+            updateJobStatus(translateCondorStatusToTaskStatus(e.getValue()), j, null);
+            jobsUpdated.add(j.getClusterId());
         }
 
         return jobsUpdated;
@@ -118,7 +73,7 @@ public String getType()
     protected List<String> submitJobToCluster(ClusterJob j, PipelineJob job) throws PipelineJobException
     {
         //build submit script
-        File submitScript = createSubmitScript(job);
+        File submitScript = createSubmitScript(j, job);
 
         Map<String, String> ctx = getBaseCtx(job.getContainer());
         ctx.put("submitScript", getConfig().getClusterPath(submitScript));
@@ -159,7 +114,7 @@ else if (line.startsWith("** "))
         return ret;
     }
 
-    private File createSubmitScript(PipelineJob job) throws PipelineJobException
+    private File createSubmitScript(ClusterJob j, PipelineJob job) throws PipelineJobException
     {
         try
         {
@@ -169,7 +124,8 @@ private File createSubmitScript(PipelineJob job) throws PipelineJobException
             File outDir = job.getLogFile().getParentFile();
             String basename = FileUtil.getBaseName(job.getLogFile());
             File submitScript = getExpectedSubmitScript(job);
-            if (ClusterManager.get().isRecreateSubmitScriptFile() && submitScript.exists())
+            //NOTE: predicted resources can change between submissions, so the script is always rewritten
+            if ((ClusterManager.get().isRecreateSubmitScriptFile() || getConfig().isPredictResources()) && submitScript.exists())
             {
                 job.getLogger().info("Deleting existing submit script");
                 submitScript.delete();
@@ -188,52 +144,19 @@ private File createSubmitScript(PipelineJob job) throws PipelineJobException
                     writer.write("log=" + getConfig().getClusterPath(new File(outDir, basename + "-$(Cluster).$(Process).condor.log")) + "\n");
 
                     // This allows modules to register code to modify resource usage per task.
-                    Integer maxCpus = null;
-                    Integer maxRam = null;
                     List<String> extraLines = new ArrayList<>(getConfig().getExtraSubmitLines());
                     Map<String, Object> extraEnvironmentVars = new HashMap<>();
+                    AbstractClusterEngineConfig.ResourceRequest request = getConfig().getResourceRequest(j, job, this, extraLines, extraEnvironmentVars);
 
-                    if (job.getActiveTaskId() != null)
-                    {
-                        List<ClusterResourceAllocator.Factory> allocatorFactories = ClusterServiceImpl.get().getAllocators(job.getActiveTaskId());
-                        for (ClusterResourceAllocator.Factory allocatorFact : allocatorFactories)
-                        {
-                            ClusterResourceAllocator allocator = allocatorFact.getAllocator();
-                            job.getLogger().debug("using resource allocator: " + allocator.getClass().getName());
-                            Integer c = allocator.getMaxRequestCpus(job);
-                            if (c != null)
-                            {
-                                job.getLogger().debug("setting cpus: " + c);
-                                maxCpus = c;
-                            }
-
-                            Integer m = allocator.getMaxRequestMemory(job);
-                            if (m != null)
-                            {
-                                job.getLogger().debug("setting memory: " + m);
-                                maxRam = m;
-                            }
-
-                            allocator.addExtraSubmitScriptLines(job, this, extraLines);
-
-                            extraEnvironmentVars.putAll(allocator.getEnvironmentVars(job, this));
-                        }
-                    }
-
-                    Integer cpus = null;
-                    if (maxCpus != null || getConfig().getRequestCpus() != null)
+                    Integer cpus = request.getCpus();
+                    if (cpus != null)
                     {
-                        //NOTE: it is possible this could exceed the max allowable for this cluster.
-                        //consider making defaultCpus and maxCpus params
-                        cpus = maxCpus != null ? maxCpus : getConfig().getRequestCpus();
                         writer.write("request_cpus = " + cpus + "\n");
                     }
 
-                    Integer ram = null;
-                    if (maxRam != null || getConfig().getRequestMemory() != null)
+                    Integer ram = request.getMemory();
+                    if (ram != null)
                     {
-                        //NOTE: see comment above for CPUs
-                        ram = maxRam != null ? maxRam : getConfig().getRequestMemory();
                         writer.write("request_memory = " + ram + " GB\n");
                     }
 
@@ -346,52 +269,24 @@ protected Pair<String, String> getStatusForJob(ClusterJob job, Container c)
         List<String> ret = execute(command);
         if (ret != null)
         {
-            //verify success
-            boolean withinJobs = false;
-            for (String line : ret)
+            Map<String, String> history = readJobTable(ret, "condor_history", false);
+            for (String id : history.keySet())
             {
-                line = StringUtils.trimToNull(line);
-                if (line == null)
+                if (!id.equals(job.getClusterId()))
                 {
-                    continue;
+                    _log.error("incorrect line found when calling condor_history for: " + job.getClusterId() + ", found: " + id);
                 }
+            }
 
-                if (withinJobs)
-                {
-                    if (line.matches("^[0-9]+ jobs.*"))
-                    {
-                        break;
-                    }
-                    else
-                    {
-                        String[] tokens = line.split("( )+");
-                        if (tokens.length < 6)
-                        {
-                            _log.warn("condor_history line unexpectedly short: [" + line + "]");
-                            continue;
-                        }
-
-                        String id = StringUtils.trimToNull(tokens[0]);
-                        if (!id.equals(job.getClusterId()))
-                        {
-                            _log.error("incorrect line found when calling condor_history for: " + job.getClusterId());
-                            _log.error(line);
-                            continue;
-                        }
-
-                        String s = translateCondorStatusToTaskStatus(StringUtils.trimToNull(tokens[5]));
-                        return s != null ? Pair.of(s, null) : null;
-                    }
-                }
-                else if (line.startsWith("ID "))
-                {
-                    withinJobs = true;
-                }
+            if (history.containsKey(job.getClusterId()))
+            {
+                String s = translateCondorStatusToTaskStatus(history.get(job.getClusterId()));
+                return s != null ? Pair.of(s, null) : null;
             }
         }
 
         //if not found in condor_history, it could mean it is sitting in the queue
-        String status = getStatusFromQueue(job.getClusterId());
+        String status = translateCondorStatusToTaskStatus(readQueue().get(job.getClusterId()));
         if (status != null)
         {
             return Pair.of(status, null);
@@ -407,60 +302,168 @@ else if (line.startsWith("ID "))
     }
 
     /**
-     * @return The string status, always translated to the LabKey TaskStatus instead of raw condor code
+     * If bulkHistoryCommand is configured, this checks condor_history for batches of jobs using a constraint that matches their IDs,
+     * and then checks condor_q once for any jobs it did not report. Otherwise each job is checked separately.
      */
-    private String getStatusFromQueue(String clusterId)
+    @Override
+    protected Map<String, Pair<String, String>> getStatusForJobs(List<ClusterJob> jobs)
     {
-        String command = getConfig().getStatusCommandExpr().eval(getBaseCtx(ContainerManager.getRoot()));
-        List<String> ret = execute(command);
-        if (ret != null)
+        if (getConfig().getBulkHistoryCommandExpr() == null)
         {
-            boolean withinJobs = false;
-            for (String line : ret)
+            return super.getStatusForJobs(jobs);
+        }
+
+        Map<String, Pair<String, String>> ret = new HashMap<>();
+        List<ClusterJob> toCheckSeparately = new ArrayList<>();
+        for (List<ClusterJob> batch : getStatusBatches(jobs))
+        {
+            List<String> clusterIds = new ArrayList<>();
+            List<String> constraints = new ArrayList<>();
+            for (ClusterJob j : batch)
             {
-                line = StringUtils.trimToNull(line);
-                if (line == null)
+                String constraint = getConstraint(j.getClusterId());
+                if (constraint == null)
                 {
+                    toCheckSeparately.add(j);
                     continue;
                 }
 
-                if (withinJobs)
+                clusterIds.add(j.getClusterId());
+                constraints.add(constraint);
+            }
+
+            if (clusterIds.isEmpty())
+            {
+                continue;
+            }
+
+            Map<String, String> ctx = getBaseCtx(ContainerManager.getForId(batch.get(0).getContainer()));
+            ctx.put("clusterIds", StringUtils.join(clusterIds, ","));
+            ctx.put("clusterConstraint", StringUtils.join(constraints, "||"));
+
+            List<String> lines = execute(getConfig().getBulkHistoryCommandExpr().eval(ctx));
+            if (lines != null)
+            {
+                Map<String, String> history = readJobTable(lines, "condor_history", false);
+                for (String clusterId : clusterIds)
                 {
-                    if (line.matches("^[0-9]+ jobs.*"))
+                    String status = translateCondorStatusToTaskStatus(history.get(clusterId));
+                    if (status != null)
                     {
-                        break;
-                    }
-                    else
-                    {
-                        String[] tokens = line.split("( )+");
-                        if (tokens.length < 6)
-                        {
-                            _log.warn("condor_q line unexpectedly short: [" + line + "]");
-                            continue;
-                        }
-
-                        String id = StringUtils.trimToNull(tokens[0]);
-                        if (clusterId.equals(id))
-                        {
-                            return translateCondorStatusToTaskStatus(StringUtils.trimToNull(tokens[5]));
-                        }
+                        ret.put(clusterId, Pair.of(status, null));
                     }
                 }
-                else if (line.startsWith("ID "))
+            }
+        }
+
+        //if not found in condor_history, it could mean it is sitting in the queue
+        List<ClusterJob> missing = jobs.stream().filter(j -> !ret.containsKey(j.getClusterId()) && !toCheckSeparately.contains(j)).toList();
+        if (!missing.isEmpty())
+        {
+            Map<String, String> queue = readQueue();
+            for (ClusterJob j : missing)
+            {
+                String status = translateCondorStatusToTaskStatus(queue.get(j.getClusterId()));
+                if (status != null)
+                {
+                    ret.put(j.getClusterId(), Pair.of(status, null));
+                }
+                else
                 {
-                    withinJobs = true;
+                    checkForCompletedJob(j);
+                    _log.error("Error checking htcondor job status for job: " + j.getClusterId());
                 }
             }
+        }
 
-            //indicates we never hit the header
-            if (!withinJobs)
+        if (!toCheckSeparately.isEmpty())
+        {
+            ret.putAll(super.getStatusForJobs(toCheckSeparately));
+        }
+
+        return ret;
+    }
+
+    /**
+     * @return A constraint matching this cluster ID (cluster or cluster.proc), or null if it is not in that form.
+     * This has no spaces, since commands are split on whitespace.
+     */
+    private String getConstraint(String clusterId)
+    {
+        if (clusterId == null || !clusterId.matches("^[0-9]+(\\.[0-9]+)?$"))
+        {
+            return null;
+        }
+
+        String[] tokens = clusterId.split("\\.");
+
+        return tokens.length == 1 ? "ClusterId==" + tokens[0] : "(ClusterId==" + tokens[0] + "&&ProcId==" + tokens[1] + ")";
+    }
+
+    /**
+     * Runs condor_q once.
+     * @return The raw condor status of each job in the queue, keyed by cluster ID
+     */
+    private Map<String, String> readQueue()
+    {
+        String command = getConfig().getStatusCommandExpr().eval(getBaseCtx(ContainerManager.getRoot()));
+        List<String> ret = execute(command);
+
+        return ret == null ? Collections.emptyMap() : readJobTable(ret, "condor_q", true);
+    }
+
+    /**
+     * Parses the table written by condor_q and condor_history
+     * @return The raw condor status of each job, keyed by cluster ID, in the order reported
+     */
+    private Map<String, String> readJobTable(List<String> ret, String toolName, boolean logIfHeaderMissing)
+    {
+        Map<String, String> jobs = new LinkedHashMap<>();
+        boolean withinJobs = false;
+        for (String line : ret)
+        {
+            line = StringUtils.trimToNull(line);
+            if (line == null)
+            {
+                continue;
+            }
+
+            if (withinJobs)
+            {
+                if (line.matches("^[0-9]+ jobs.*"))
+                {
+                    break;
+                }
+                else
+                {
+                    String[] tokens = line.split("( )+");
+                    if (tokens.length < 6)
+                    {
+                        _log.warn(toolName + " line unexpectedly short: [" + line + "]");
+                        continue;
+                    }
+
+                    String id = StringUtils.trimToNull(tokens[0]);
+                    if (id != null)
+                    {
+                        jobs.put(id, StringUtils.trimToNull(tokens[5]));
+                    }
+                }
+            }
+            else if (line.startsWith("ID "))
             {
-                _log.error("error checking htcondor job status:");
-                _log.error(StringUtils.join(ret, "\n"));
+                withinJobs = true;
             }
         }
 
-        return null;
+        //indicates we never hit the header
+        if (!withinJobs && logIfHeaderMissing)
+        {
+            _log.error("error checking htcondor job status:");
+            _log.error(StringUtils.join(ret, "\n"));
+        }
+
+        return jobs;
     }
 
     private String translateCondorStatusToTaskStatus(String status)
@@ -0,0 +1,442 @@
+package org.labkey.cluster.pipeline;
+
+import org.jetbrains.annotations.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.cluster.ClusterResourceAllocator;
+import org.labkey.api.data.CompareType;
+import org.labkey.api.data.SimpleFilter;
+import org.labkey.api.data.Sort;
+import org.labkey.api.data.TableInfo;
+import org.labkey.api.data.TableSelector;
+import org.labkey.api.pipeline.PipelineJob;
+import org.labkey.api.pipeline.RemoteExecutionEngine;
+import org.labkey.api.pipeline.TaskId;
+import org.labkey.api.pipeline.file.FileAnalysisJobSupport;
+import org.labkey.api.query.FieldKey;
+import org.labkey.cluster.ClusterSchema;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Predicts the CPUs, memory and walltime for a task from what its earlier, successful submissions used, as reported by the scheduler.
+ * Each is fit against the total size of the job's inputs using quantile regression, so that most jobs of a given size fit within the request.
+ * This only applies to engines with predictResources set. It has the lowest priority, so any allocator a module registers for a task overrides it.
+ */
+public class HistoryResourceAllocator implements ClusterResourceAllocator
+{
+    // The number of recent submissions of a task used for a prediction, and the fewest needed to make one
+    private static final int MAX_HISTORY = 200;
+    private static final int MIN_HISTORY = 10;
+
+    private static final double MEMORY_QUANTILE = 0.95;
+    private static final double MEMORY_HEADROOM = 1.2;
+    private static final double CPU_QUANTILE = 0.9;
+    private static final double WALLTIME_QUANTILE = 0.95;
+    private static final double WALLTIME_HEADROOM = 1.5;
+    private static final int MIN_WALLTIME_MINUTES = 30;
+
+    private static final int MAX_OUT_OF_MEMORY_RETRIES = 2;
+    private static final double RETRY_MEMORY_FACTOR = 1.5;
+    private static final long GB = 1024L * 1024 * 1024;
+
+    private static final Cache<String, Prediction> _cache = CacheManager.getStringKeyCache(1000, CacheManager.HOUR, "ClusterResourcePredictions");
+
+    public static class Factory implements ClusterResourceAllocator.Factory
+    {
+        @Override
+        public ClusterResourceAllocator getAllocator()
+        {
+            return new HistoryResourceAllocator();
+        }
+
+        @Override
+        public @Nullable Integer getPriority(TaskId taskId)
+        {
+            return Integer.MIN_VALUE;
+        }
+    }
+
+    @Override
+    public @Nullable Integer getMaxRequestCpus(PipelineJob job)
+    {
+        return null;
+    }
+
+    @Override
+    public @Nullable Integer getMaxRequestMemory(PipelineJob job)
+    {
+        return null;
+    }
+
+    @Override
+    public void addExtraSubmitScriptLines(PipelineJob job, RemoteExecutionEngine engine, List<String> existingExtraLines)
+    {
+
+    }
+
+    @Override
+    public @Nullable Integer getMaxRequestCpus(PipelineJob job, RemoteExecutionEngine<?> engine)
+    {
+        Prediction prediction = getPrediction(job, engine);
+        Double usedCpus = prediction == null ? null : prediction.cpus.predict(getInputSize(job));
+        if (usedCpus == null)
+        {
+            return null;
+        }
+
+        job.getLogger().debug("predicted cpus from " + prediction.cpus.count + " prior submissions: " + usedCpus);
+
+        return Math.max(1, (int)Math.ceil(usedCpus));
+    }
+
+    @Override
+    public @Nullable Integer getMaxRequestMemory(PipelineJob job, RemoteExecutionEngine<?> engine)
+    {
+        Prediction prediction = getPrediction(job, engine);
+        Double maxRss = prediction == null ? null : prediction.memory.predict(getInputSize(job));
+        if (maxRss == null)
+        {
+            return null;
+        }
+
+        job.getLogger().debug("predicted max RSS from " + prediction.memory.count + " prior submissions: " + (long)(maxRss / (1024 * 1024)) + " MB");
+
+        return toGb(maxRss * MEMORY_HEADROOM);
+    }
+
+    @Override
+    public @Nullable Integer getMaxRequestWalltime(PipelineJob job, RemoteExecutionEngine<?> engine)
+    {
+        Prediction prediction = getPrediction(job, engine);
+        Double seconds = prediction == null ? null : prediction.walltime.predict(getInputSize(job));
+        if (seconds == null)
+        {
+            return null;
+        }
+
+        job.getLogger().debug("predicted elapsed time from " + prediction.walltime.count + " prior submissions: " + (long)(seconds / 60) + " minutes");
+
+        return Math.max(MIN_WALLTIME_MINUTES, (int)Math.ceil(seconds * WALLTIME_HEADROOM / 60));
+    }
+
+    private static int toGb(double bytes)
+    {
+        return Math.max(1, (int)Math.ceil(bytes / GB));
+    }
+
+    @Nullable
+    private Prediction getPrediction(PipelineJob job, RemoteExecutionEngine<?> engine)
+    {
+        if (job.getActiveTaskId() == null || !(engine.getConfig() instanceof AbstractClusterEngineConfig config) || !config.isPredictResources())
+        {
+            return null;
+        }
+
+        String taskId = job.getActiveTaskId().toString();
+        String key = config.getLocation() + "||" + taskId;
+        Prediction ret = _cache.get(key);
+        if (ret == null)
+        {
+            ret = Prediction.fit(getHistory(config.getLocation(), taskId));
+            _cache.put(key, ret);
+        }
+
+        return ret;
+    }
+
+    private static List<ClusterJob> getHistory(String location, String taskId)
+    {
+        TableInfo ti = ClusterSchema.getInstance().getSchema().getTable(ClusterSchema.CLUSTER_JOBS);
+        SimpleFilter filter = new SimpleFilter(FieldKey.fromString("activeTaskId"), taskId);
+        filter.addCondition(FieldKey.fromString("location"), location);
+        filter.addCondition(FieldKey.fromString("status"), PipelineJob.TaskStatus.complete.name().toUpperCase());
+        filter.addCondition(FieldKey.fromString("elapsedSeconds"), null, CompareType.NONBLANK);
+
+        return new TableSelector(ti, filter, new Sort("-created")).setMaxRows(MAX_HISTORY).getArrayList(ClusterJob.class);
+    }
+
+    /**
+     * @return The total size of the job's input files, or null if the job does not have input files
+     */
+    @Nullable
+    public static Long getInputSize(PipelineJob job)
+    {
+        if (!(job instanceof FileAnalysisJobSupport support) || support.getInputFiles() == null || support.getInputFiles().isEmpty())
+        {
+            return null;
+        }
+
+        long total = 0;
+        for (File f : support.getInputFiles())
+        {
+            if (f.exists())
+            {
+                total += f.length();
+            }
+        }
+
+        return total;
+    }
+
+    /**
+     * @return The memory in GB for a new submission of this job's active task, if its last submission ran out of memory and another attempt is allowed
+     */
+    @Nullable
+    public static Integer getRetryMemory(PipelineJob job, AbstractClusterEngineConfig config)
+    {
+        if (job.getActiveTaskId() == null)
+        {
+            return null;
+        }
+
+        TableInfo ti = ClusterSchema.getInstance().getSchema().getTable(ClusterSchema.CLUSTER_JOBS);
+        SimpleFilter filter = new SimpleFilter(FieldKey.fromString("jobId"), job.getJobGUID());
+        filter.addCondition(FieldKey.fromString("activeTaskId"), job.getActiveTaskId().toString());
+        filter.addCondition(FieldKey.fromString("location"), config.getLocation());
+        filter.addCondition(FieldKey.fromString("clusterId"), null, CompareType.NONBLANK);
+        List<ClusterJob> submissions = new TableSelector(ti, filter, new Sort("-created")).getArrayList(ClusterJob.class);
+        if (submissions.isEmpty() || !Boolean.TRUE.equals(submissions.get(0).getOutOfMemory()))
+        {
+            return null;
+        }
+
+        long attempts = submissions.stream().filter(x -> Boolean.TRUE.equals(x.getOutOfMemory())).count();
+
+        return getRetryMemory(submissions.get(0), attempts, config.getRequestMemory(), config.getMaxRequestMemory());
+    }
+
+    @Nullable
+    protected static Integer getRetryMemory(ClusterJob failed, long attempts, @Nullable Integer defaultMemory, @Nullable Integer maxMemory)
+    {
+        if (attempts > MAX_OUT_OF_MEMORY_RETRIES)
+        {
+            return null;
+        }
+
+        int requested = failed.getRequestedMemory() != null ? failed.getRequestedMemory() : defaultMemory != null ? defaultMemory : 0;
+        int ret = (int)Math.ceil(requested * RETRY_MEMORY_FACTOR);
+        if (failed.getMaxRss() != null)
+        {
+            ret = Math.max(ret, toGb(failed.getMaxRss() * MEMORY_HEADROOM));
+        }
+
+        if (maxMemory != null)
+        {
+            ret = Math.min(ret, maxMemory);
+        }
+
+        return ret > requested ? ret : null;
+    }
+
+    private static class Prediction
+    {
+        private final QuantileFit cpus;
+        private final QuantileFit memory;
+        private final QuantileFit walltime;
+
+        private Prediction(QuantileFit cpus, QuantileFit memory, QuantileFit walltime)
+        {
+            this.cpus = cpus;
+            this.memory = memory;
+            this.walltime = walltime;
+        }
+
+        public static Prediction fit(List<ClusterJob> history)
+        {
+            // The CPUs actually used, which can be well below the number requested
+            QuantileFit cpus = QuantileFit.fit(history, j -> j.getCpuEfficiency() == null || j.getRequestedCpus() == null ? null : j.getCpuEfficiency() * j.getRequestedCpus(), CPU_QUANTILE);
+            QuantileFit memory = QuantileFit.fit(history, j -> j.getMaxRss() == null ? null : j.getMaxRss().doubleValue(), MEMORY_QUANTILE);
+            QuantileFit walltime = QuantileFit.fit(history, j -> j.getElapsedSeconds() == null ? null : j.getElapsedSeconds().doubleValue(), WALLTIME_QUANTILE);
+
+            return new Prediction(cpus, memory, walltime);
+        }
+    }
+
+    /**
+     * A line, value = intercept + (slope * input size), fit to a quantile of the history. The slope is never negative.
+     * Jobs without an input size get the quantile of all values.
+     */
+    protected static class QuantileFit
+    {
+        private final int count;
+        private final double intercept;
+        private final double slope;
+        private final double constant;
+
+        protected QuantileFit(int count, double intercept, double slope, double constant)
+        {
+            this.count = count;
+            this.intercept = intercept;
+            this.slope = slope;
+            this.constant = constant;
+        }
+
+        private static QuantileFit fit(List<ClusterJob> history, Function<ClusterJob, Double> getter, double tau)
+        {
+            List<Double> values = new ArrayList<>();
+            List<double[]> points = new ArrayList<>();
+            for (ClusterJob j : history)
+            {
+                Double y = getter.apply(j);
+                if (y == null)
+                {
+                    continue;
+                }
+
+                values.add(y);
+                if (j.getInputSize() != null)
+                {
+                    points.add(new double[]{j.getInputSize(), y});
+                }
+            }
+
+            double constant = values.isEmpty() ? 0 : quantile(values.stream().mapToDouble(Double::doubleValue).toArray(), tau);
+            if (points.size() < MIN_HISTORY)
+            {
+                return new QuantileFit(values.size(), constant, 0, constant);
+            }
+
+            double[] line = fitLine(points.stream().mapToDouble(x -> x[0]).toArray(), points.stream().mapToDouble(x -> x[1]).toArray(), tau);
+
+            return new QuantileFit(values.size(), line[0], line[1], constant);
+        }
+
+        @Nullable
+        public Double predict(@Nullable Long inputSize)
+        {
+            if (count < MIN_HISTORY)
+            {
+                return null;
+            }
+
+            return inputSize == null ? constant : intercept + (slope * inputSize);
+        }
+    }
+
+    /**
+     * Fits value = intercept + slope * x at this quantile, by minimizing the pinball loss. One optimal line passes through two of the points,
+     * so each pair is tried, along with the horizontal line at the quantile. This is O(n^3), which is fine for MAX_HISTORY points.
+     * @return The intercept and slope
+     */
+    protected static double[] fitLine(double[] x, double[] y, double tau)
+    {
+        double bestIntercept = quantile(y, tau);
+        double bestSlope = 0;
+        double bestLoss = loss(x, y, tau, bestIntercept, bestSlope);
+        for (int i = 0; i < x.length; i++)
+        {
+            for (int j = i + 1; j < x.length; j++)
+            {
+                if (x[i] == x[j])
+                {
+                    continue;
+                }
+
+                double slope = (y[j] - y[i]) / (x[j] - x[i]);
+                if (slope < 0)
+                {
+                    continue;
+                }
+
+                double intercept = y[i] - (slope * x[i]);
+                double loss = loss(x, y, tau, intercept, slope);
+                if (loss < bestLoss)
+                {
+                    bestLoss = loss;
+                    bestIntercept = intercept;
+                    bestSlope = slope;
+                }
+            }
+        }
+
+        return new double[]{bestIntercept, bestSlope};
+    }
+
+    private static double loss(double[] x, double[] y, double tau, double intercept, double slope)
+    {
+        double ret = 0;
+        for (int i = 0; i < x.length; i++)
+        {
+            double r = y[i] - (intercept + (slope * x[i]));
+            ret += r >= 0 ? tau * r : (tau - 1) * r;
+        }
+
+        return ret;
+    }
+
+    protected static double quantile(double[] values, double tau)
+    {
+        double[] sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+
+        return sorted[Math.min(sorted.length - 1, (int)Math.ceil(tau * sorted.length) - 1)];
+    }
+
+    public static class TestCase
+    {
+        @Test
+        public void testFitLine()
+        {
+            // Memory rises by 2 bytes per byte of input, with one in ten jobs using 30% more
+            int n = 100;
+            double[] x = new double[n];
+            double[] y = new double[n];
+            for (int i = 0; i < n; i++)
+            {
+                x[i] = (i + 1) * 1000;
+                y[i] = (1000 + (2 * x[i])) * (i % 10 == 0 ? 1.3 : 1.0);
+            }
+
+            double[] line = fitLine(x, y, 0.5);
+            Assert.assertEquals("Incorrect median slope", 2.0, line[1], 0.001);
+            Assert.assertEquals("Incorrect median intercept", 1000, line[0], 1);
+
+            line = fitLine(x, y, 0.95);
+            int below = 0;
+            for (int i = 0; i < n; i++)
+            {
+                if (y[i] <= line[0] + (line[1] * x[i]) + 0.001)
+                {
+                    below++;
+                }
+            }
+
+            Assert.assertTrue("Too few jobs fit under the 95th percentile: " + below, below >= 95);
+        }
+
+        @Test
+        public void testNoNegativeSlope()
+        {
+            double[] x = new double[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10};
+            double[] y = new double[]{10, 9, 8, 7, 6, 5, 4, 3, 2, 1};
+
+            double[] line = fitLine(x, y, 0.9);
+            Assert.assertEquals("Slope should not be negative", 0, line[1], 0);
+            Assert.assertEquals("Incorrect intercept", quantile(y, 0.9), line[0], 0);
+        }
+
+        @Test
+        public void testRetryMemory()
+        {
+            ClusterJob failed = new ClusterJob();
+            failed.setRequestedMemory(16);
+            failed.setMaxRss(15L * GB);
+
+            Assert.assertEquals("Incorrect retry memory", Integer.valueOf(24), getRetryMemory(failed, 1, 48, null));
+            Assert.assertEquals("Retry memory should be capped", Integer.valueOf(20), getRetryMemory(failed, 1, 48, 20));
+            Assert.assertNull("Should not retry at the limit", getRetryMemory(failed, 1, 48, 16));
+            Assert.assertNull("Should not retry after the maximum attempts", getRetryMemory(failed, MAX_OUT_OF_MEMORY_RETRIES + 1, 48, null));
+
+            // If the job used more than 1.5x its request, the retry is based on what it used
+            failed.setMaxRss(30L * GB);
+            Assert.assertEquals("Incorrect retry memory", Integer.valueOf(36), getRetryMemory(failed, 1, 48, null));
+        }
+    }
+}
@@ -8,7 +8,6 @@
 import org.jetbrains.annotations.Nullable;
 import org.junit.Assert;
 import org.junit.Test;
-import org.labkey.api.cluster.ClusterResourceAllocator;
 import org.labkey.api.collections.CaseInsensitiveHashSet;
 import org.labkey.api.data.Container;
 import org.labkey.api.data.ContainerManager;
@@ -16,8 +15,8 @@
 import org.labkey.api.pipeline.PipelineJobException;
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.Pair;
+import org.labkey.api.util.StringExpression;
 import org.labkey.cluster.ClusterManager;
-import org.labkey.cluster.ClusterServiceImpl;
 import org.quartz.JobExecutionException;
 
 import java.io.File;
@@ -25,8 +24,10 @@
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
@@ -71,7 +72,7 @@ public void doScheduledUpdate() throws JobExecutionException
     protected List<String> submitJobToCluster(ClusterJob j, PipelineJob job) throws PipelineJobException
     {
         //build submit script
-        File submitScript = createSubmitScript(job);
+        File submitScript = createSubmitScript(j, job);
 
         Map<String, String> ctx = getBaseCtx(job.getContainer());
         ctx.put("submitScript", getConfig().getClusterPath(submitScript));
@@ -112,107 +113,41 @@ protected List<String> submitJobToCluster(ClusterJob j, PipelineJob job) throws
     protected Set<String> updateStatusForAllJobs() throws PipelineJobException
     {
         //first check using squeue, since sacct might not pick up newly submitted jobs
-        String command = getConfig().getStatusCommandExpr().eval(getBaseCtx(ContainerManager.getRoot()));
-        List<String> ret = execute(command);
+        Map<String, QueueEntry> queue = readQueue();
         Set<String> jobsUpdated = new HashSet<>();
-        if (ret != null)
+
+        Map<String, ClusterJob> submissions = getClusterSubmissions(queue.keySet());
+        for (Map.Entry<String, QueueEntry> e : queue.entrySet())
         {
-            //verify success
-            boolean headerFound = false;
-            List<String> header = null;
-            int jobIdx = -1;
-            int stateIdx = -1;
-            int hostnameIdx = -1;
-            int reasonIdx = -1;
-            for (String line : ret)
+            ClusterJob j = submissions.get(e.getKey());
+            if (j == null)
             {
-                line = StringUtils.trimToNull(line);
-                if (line == null)
-                {
-                    continue;
-                }
-
-                if (line.startsWith("JOBID"))
-                {
-                    headerFound = true;
-                    header = Arrays.asList(line.toUpperCase().split("( )+"));
-                    jobIdx = header.indexOf("JOBID");
-                    stateIdx = header.indexOf("STATE");
-                    hostnameIdx = header.indexOf("NODELIST");
-                    reasonIdx = header.indexOf("REASON");
-
-                    if (stateIdx == -1)
-                    {
-                        _log.error("Unable to find STATE in header: " + StringUtils.join(header, ", "));
-                        break;
-                    }
-
-                    if (jobIdx == -1)
-                    {
-                        _log.error("Unable to find JOBID in header: " + StringUtils.join(header, ", "));
-                        break;
-                    }
+                //it is allowable for the same user to submit jobs outside of LK
+                continue;
+            }
 
-                    continue;
-                }
+            QueueEntry entry = e.getValue();
+            if (entry.hostname != null)
+            {
+                j.setHostname(entry.hostname);
+            }
 
-                if (headerFound)
+            Pair<String, String> status = translateSlurmStatusToTaskStatus(entry.state);
+            if (entry.reason != null)
+            {
+                if (!"Priority".equals(entry.reason) && !"None".equals(entry.reason))
                 {
-                    try
+                    if (status == null)
                     {
-                        String[] tokens = line.split("( )+");
-                        String id = StringUtils.trimToNull(tokens[jobIdx]);
-                        if (id != null)
-                        {
-                            ClusterJob j = getClusterSubmission(id);
-                            if (j == null)
-                            {
-                                //it is allowable for the same user to submit jobs outside of LK
-                                //_log.error("unable to find slurm submission matching: " + id);
-                            }
-                            else
-                            {
-                                String hostname = hostnameIdx != -1 && tokens.length > hostnameIdx ? StringUtils.trimToNull(tokens[hostnameIdx]) : null;
-                                if (hostname != null)
-                                {
-                                    j.setHostname(hostname);
-                                }
-
-                                Pair<String, String> status = translateSlurmStatusToTaskStatus(StringUtils.trimToNull(tokens[stateIdx]));
-
-                                String reason = reasonIdx != -1 && tokens.length > reasonIdx ? StringUtils.trimToNull(tokens[reasonIdx]) : null;
-                                if (reason != null)
-                                {
-                                    if (!"Priority".equals(reason) && !"None".equals(reason))
-                                    {
-                                        if (status == null)
-                                        {
-                                            status = new Pair<>("ERROR", null);
-                                        }
-
-                                        status.second = "Reason: " + reason;
-                                    }
-                                }
-
-                                updateJobStatus(status == null ? null : status.first, j, status == null ? null : status.second);
-                                jobsUpdated.add(j.getClusterId());
-                            }
-                        }
-                    }
-                    catch (Exception e)
-                    {
-                        _log.error("Error parsing line: " + line, e);
-                        throw e;
+                        status = new Pair<>("ERROR", null);
                     }
+
+                    status.second = "Reason: " + entry.reason;
                 }
             }
 
-            //indicates we never hit the header
-            if (!headerFound)
-            {
-                _log.error("error checking slurm job status:");
-                _log.error(StringUtils.join(ret, "\n"));
-            }
+            updateJobStatus(status == null ? null : status.first, j, status == null ? null : status.second);
+            jobsUpdated.add(j.getClusterId());
         }
 
         return jobsUpdated;
@@ -221,140 +156,297 @@ protected Set<String> updateStatusForAllJobs() throws PipelineJobException
     @Override
     protected Pair<String, String> getStatusForJob(ClusterJob job, Container c)
     {
-        Map<String, String> ctx = getBaseCtx(c);
-        ctx.put("clusterId", job.getClusterId());
         if (job.getClusterId() == null)
         {
             _log.error("clusterId was null for job: " + job.getRowId() + " / " + job.getStatus());
+            return null;
         }
 
-        String command = getConfig().getHistoryCommandExpr().eval(ctx);
-        String info = null;
-        List<String> ret = execute(command);
-        if (ret != null)
+        return getStatusForJobs(Collections.singletonList(job)).get(job.getClusterId());
+    }
+
+    /**
+     * Checks sacct for batches of jobs, passing a comma-separated list of IDs as clusterId, and then checks squeue once for any jobs sacct did not report.
+     */
+    @Override
+    protected Map<String, Pair<String, String>> getStatusForJobs(List<ClusterJob> jobs)
+    {
+        Map<String, Pair<String, String>> ret = new HashMap<>();
+        for (List<ClusterJob> batch : getStatusBatches(jobs))
         {
-            //verify success
-            boolean headerFound = false;
-            boolean foundJobLine = false;
-            LinkedHashSet<String> statuses = new LinkedHashSet<>();
-            List<String> header;
-            int jobIdx = -1;
-            int stateIdx = -1;
-            int hostnameIdx = -1;
-            int maxRssIdx = -1;
-            for (String line : ret)
+            Map<String, ClusterJob> jobsById = new LinkedHashMap<>();
+            batch.forEach(j -> jobsById.put(j.getClusterId(), j));
+
+            String clusterIds = StringUtils.join(jobsById.keySet(), ",");
+            Map<String, String> ctx = getBaseCtx(ContainerManager.getForId(batch.get(0).getContainer()));
+            ctx.put("clusterId", clusterIds);
+            ctx.put("clusterIds", clusterIds);
+
+            StringExpression expr = getConfig().getBulkHistoryCommandExpr() == null ? getConfig().getHistoryCommandExpr() : getConfig().getBulkHistoryCommandExpr();
+            List<String> lines = execute(expr.eval(ctx));
+            if (lines != null)
             {
-                line = StringUtils.trimToNull(line);
-                if (line == null)
-                {
-                    continue;
-                }
+                ret.putAll(parseHistory(lines, jobsById));
+            }
+        }
 
-                if (line.startsWith("JobID"))
+        //if not found in sacct, it could mean it is sitting in the queue
+        List<ClusterJob> missing = jobs.stream().filter(j -> !ret.containsKey(j.getClusterId())).toList();
+        if (!missing.isEmpty())
+        {
+            Map<String, QueueEntry> queue = readQueue();
+            for (ClusterJob j : missing)
+            {
+                QueueEntry entry = queue.get(j.getClusterId());
+                Pair<String, String> status = entry == null ? null : translateSlurmStatusToTaskStatus(entry.state);
+                if (status != null)
                 {
-                    foundJobLine = true;
-                    header = Arrays.asList(line.toUpperCase().split("( )+"));
-                    jobIdx = header.indexOf("JOBID");
-                    stateIdx = header.indexOf("STATE");
-                    hostnameIdx = header.indexOf("NODELIST");
-                    maxRssIdx = header.indexOf("MAXRSS");
-
-                    if (stateIdx == -1)
+                    if (entry.hostname != null)
                     {
-                        _log.error("Unable to find STATE in header: " + StringUtils.join(header, ", "));
-                        break;
+                        j.setHostname(entry.hostname);
                     }
 
-                    if (jobIdx == -1)
-                    {
-                        _log.error("Unable to find JOBID in header: " + StringUtils.join(header, ", "));
-                        break;
-                    }
+                    ret.put(j.getClusterId(), status);
                 }
-                else if (foundJobLine && line.startsWith("------------"))
+                else
                 {
-                    headerFound = true;
+                    checkForCompletedJob(j);
+
+                    //indicates we never found status
+                    _log.error("Error checking slurm job status for job: " + j.getClusterId());
                 }
-                else if (headerFound)
+            }
+        }
+
+        return ret;
+    }
+
+    /**
+     * Parses sacct output, which can include several jobs. Job steps (such as 1234.batch) are reported on their own lines,
+     * and contribute the hostname and MaxRSS, but not the status, of their job. If the output includes them, the MaxRSS,
+     * elapsed time (ElapsedRaw) and CPU efficiency (from TotalCPU and AllocCPUS) are recorded on each job.
+     * Output from sacct --parsable2 is split on '|', which is required to read columns after MaxRSS, since MaxRSS is blank on the job's own line.
+     */
+    private Map<String, Pair<String, String>> parseHistory(List<String> lines, Map<String, ClusterJob> jobsById)
+    {
+        boolean headerFound = false;
+        boolean foundJobLine = false;
+        Map<String, LinkedHashSet<String>> statuses = new LinkedHashMap<>();
+        Map<String, String> infos = new HashMap<>();
+        Set<String> exceededMemory = new HashSet<>();
+        Map<String, Double> cpuSeconds = new HashMap<>();
+        Map<String, Integer> allocCpus = new HashMap<>();
+        List<String> header;
+        int jobIdx = -1;
+        int stateIdx = -1;
+        int hostnameIdx = -1;
+        int maxRssIdx = -1;
+        int elapsedIdx = -1;
+        int totalCpuIdx = -1;
+        int allocCpusIdx = -1;
+        boolean parsable = false;
+        for (String line : lines)
+        {
+            line = StringUtils.trimToNull(line);
+            if (line == null)
+            {
+                continue;
+            }
+
+            if (line.startsWith("JobID"))
+            {
+                foundJobLine = true;
+
+                //NOTE: --parsable2 output has no separator line below the header
+                parsable = line.contains("|");
+                headerFound = parsable;
+                header = Arrays.asList(parsable ? line.toUpperCase().split("\\|", -1) : line.toUpperCase().split("( )+"));
+                jobIdx = header.indexOf("JOBID");
+                stateIdx = header.indexOf("STATE");
+                hostnameIdx = header.indexOf("NODELIST");
+                maxRssIdx = header.indexOf("MAXRSS");
+                elapsedIdx = header.indexOf("ELAPSEDRAW");
+                totalCpuIdx = header.indexOf("TOTALCPU");
+                allocCpusIdx = header.indexOf("ALLOCCPUS");
+
+                if (stateIdx == -1)
                 {
-                    try
+                    _log.error("Unable to find STATE in header: " + StringUtils.join(header, ", "));
+                    break;
+                }
+
+                if (jobIdx == -1)
+                {
+                    _log.error("Unable to find JOBID in header: " + StringUtils.join(header, ", "));
+                    break;
+                }
+            }
+            else if (foundJobLine && line.startsWith("------------"))
+            {
+                headerFound = true;
+            }
+            else if (headerFound)
+            {
+                try
+                {
+                    String[] tokens = parsable ? line.split("\\|", -1) : line.split("( )+");
+                    String id = StringUtils.trimToNull(tokens[jobIdx]);
+                    ClusterJob job = id == null ? null : jobsById.get(id.contains(".") ? id.substring(0, id.indexOf('.')) : id);
+                    if (job == null)
                     {
-                        String[] tokens = line.split("( )+");
-                        String id = StringUtils.trimToNull(tokens[jobIdx]);
-                        if (id.equals(job.getClusterId()))
+                        continue;
+                    }
+
+                    if (id.equals(job.getClusterId()))
+                    {
+                        statuses.computeIfAbsent(id, x -> new LinkedHashSet<>()).add(StringUtils.trimToNull(tokens[stateIdx]));
+
+                        //NOTE: these are reported for the job as a whole, including its steps
+                        if (elapsedIdx > -1 && elapsedIdx < tokens.length && NumberUtils.isDigits(tokens[elapsedIdx]))
                         {
-                            statuses.add(StringUtils.trimToNull(tokens[stateIdx]));
+                            job.setElapsedSeconds(Integer.parseInt(tokens[elapsedIdx]));
                         }
 
-                        if (hostnameIdx > -1)
+                        if (allocCpusIdx > -1 && allocCpusIdx < tokens.length && NumberUtils.isDigits(tokens[allocCpusIdx]))
                         {
-                            String hostname = tokens.length > hostnameIdx ? StringUtils.trimToNull(tokens[hostnameIdx]) : null;
-                            if (hostname != null)
-                            {
-                                if (job.getHostname() == null || !job.getHostname().equals(hostname))
-                                {
-                                    job.setHostname(hostname);
-                                }
-                            }
+                            allocCpus.put(id, Integer.parseInt(tokens[allocCpusIdx]));
                         }
 
-                        // NOTE: if the line has blank ending columns, trimmed lines might lack that value
-                        if (maxRssIdx > -1 && maxRssIdx < tokens.length)
+                        if (totalCpuIdx > -1 && totalCpuIdx < tokens.length)
                         {
-                            try
+                            Double seconds = parseDuration(tokens[totalCpuIdx]);
+                            if (seconds != null)
                             {
-                                if (NumberUtils.isCreatable(tokens[maxRssIdx]))
-                                {
-                                    long bytes = FileSizeFormatter.convertStringRepresentationToBytes(tokens[maxRssIdx]);
-                                    long requestInBytes = FileSizeFormatter.convertStringRepresentationToBytes(getConfig().getRequestMemory() + "G"); //request is always GB
-                                    if (bytes > requestInBytes)
-                                    {
-                                        info = "Job exceeded memory, max was: " + FileSizeFormatter.convertBytesToUnit(bytes, 'G') + "G";
-                                    }
-                                }
+                                cpuSeconds.put(id, seconds);
                             }
-                            catch (IllegalArgumentException e)
+                        }
+                    }
+
+                    if (hostnameIdx > -1)
+                    {
+                        String hostname = tokens.length > hostnameIdx ? StringUtils.trimToNull(tokens[hostnameIdx]) : null;
+                        if (hostname != null)
+                        {
+                            if (job.getHostname() == null || !job.getHostname().equals(hostname))
                             {
-                                _log.error("Unable to parse MaxRSS for job: " + job.getClusterId() + ", with line: [" + line + "]", e);
+                                job.setHostname(hostname);
                             }
                         }
                     }
-                    catch (Exception e)
+
+                    // NOTE: if the line has blank ending columns, trimmed lines might lack that value
+                    if (maxRssIdx > -1 && maxRssIdx < tokens.length)
                     {
-                        _log.error("Error parsing line: " + line, e);
-                        throw e;
+                        try
+                        {
+                            //NOTE: sacct reports MaxRSS with a unit suffix, such as 1000K
+                            if (tokens[maxRssIdx].matches("^[0-9]+[KMGTPkmgtp]$"))
+                            {
+                                long bytes = FileSizeFormatter.convertStringRepresentationToBytes(tokens[maxRssIdx]);
+                                if (job.getMaxRss() == null || bytes > job.getMaxRss())
+                                {
+                                    job.setMaxRss(bytes);
+                                }
+
+                                Integer request = job.getRequestedMemory() != null ? job.getRequestedMemory() : getConfig().getRequestMemory();
+                                long requestInBytes = request == null ? Long.MAX_VALUE : FileSizeFormatter.convertStringRepresentationToBytes(request + "G"); //request is always GB
+                                if (bytes > requestInBytes)
+                                {
+                                    infos.put(job.getClusterId(), "Job exceeded memory, max was: " + FileSizeFormatter.convertBytesToUnit(bytes, 'G') + "G");
+                                    exceededMemory.add(job.getClusterId());
+                                }
+                            }
+                        }
+                        catch (IllegalArgumentException e)
+                        {
+                            _log.error("Unable to parse MaxRSS for job: " + job.getClusterId() + ", with line: [" + line + "]", e);
+                        }
                     }
                 }
+                catch (Exception e)
+                {
+                    _log.error("Error parsing line: " + line, e);
+                    throw e;
+                }
             }
+        }
 
+        Map<String, Pair<String, String>> ret = new HashMap<>();
+        for (Map.Entry<String, LinkedHashSet<String>> e : statuses.entrySet())
+        {
             //NOTE: in the situation where a job is evicted and is then cancelled while waiting, we need to inspect more lines to verify whether this job is actually cancelled
-            if (!statuses.isEmpty())
+            String status = e.getValue().stream().skip(e.getValue().size() - 1).findFirst().get();
+            if (e.getValue().size() > 1)
             {
-                String status = statuses.stream().skip(statuses.size()-1).findFirst().get();
-                if (statuses.size() > 1)
-                {
-                    _log.error("more than one status returned for job " + job.getClusterId() + ": " + StringUtils.join(statuses, ";") + ", using: " + status);
-                }
+                _log.error("more than one status returned for job " + e.getKey() + ": " + StringUtils.join(e.getValue(), ";") + ", using: " + status);
+            }
+
+            Pair<String, String> translated = translateSlurmStatusToTaskStatus(status, infos.get(e.getKey()));
+            if (translated != null)
+            {
+                ret.put(e.getKey(), translated);
+            }
+
+            ClusterJob job = jobsById.get(e.getKey());
+            if (isOutOfMemory(status) || (exceededMemory.contains(e.getKey()) && translated != null && PipelineJob.TaskStatus.error.matches(translated.first)))
+            {
+                job.setOutOfMemory(true);
+            }
 
-                return translateSlurmStatusToTaskStatus(status, info);
+            Integer cpus = allocCpus.get(e.getKey());
+            if (cpus != null && cpus > 0 && cpuSeconds.containsKey(e.getKey()) && job.getElapsedSeconds() != null && job.getElapsedSeconds() > 0)
+            {
+                job.setCpuEfficiency(cpuSeconds.get(e.getKey()) / ((double)job.getElapsedSeconds() * cpus));
             }
         }
 
-        //if not found in condor_history, it could mean it is sitting in the queue
-        Pair<String, String> status = getStatusFromQueue(job);
-        if (status != null)
+        return ret;
+    }
+
+    private boolean isOutOfMemory(@Nullable String status)
+    {
+        if (status == null)
         {
-            return status;
+            return false;
         }
 
-        checkForCompletedJob(job);
+        try
+        {
+            return StatusType.parseValue(status) == StatusType.OOM;
+        }
+        catch (IllegalArgumentException e)
+        {
+            return false;
+        }
+    }
 
+    /**
+     * Parses a slurm duration, such as TotalCPU, which has the format [DD-[HH:]]MM:SS[.mmm]
+     * @return The number of seconds, or null if this is not a duration
+     */
+    @Nullable
+    protected static Double parseDuration(@Nullable String value)
+    {
+        value = StringUtils.trimToNull(value);
+        if (value == null || !value.matches("^([0-9]+-)?([0-9]+:){1,2}[0-9]+(\\.[0-9]+)?$"))
+        {
+            return null;
+        }
+
+        double days = 0;
+        if (value.contains("-"))
+        {
+            days = Double.parseDouble(value.substring(0, value.indexOf('-')));
+            value = value.substring(value.indexOf('-') + 1);
+        }
 
-        //indicates we never found status
-        _log.error("Error checking slurm job status for job: " + job.getClusterId());
-        _log.error(StringUtils.join(ret, "\n"));
+        double seconds = 0;
+        for (String token : value.split(":"))
+        {
+            seconds = (seconds * 60) + Double.parseDouble(token);
+        }
 
-        return null;
+        return (days * 86400) + seconds;
     }
 
     @Override
@@ -398,7 +490,7 @@ public static File getExpectedSubmitScript(PipelineJob job)
         return new File(job.getLogFile().getParentFile(), basename + (job.getActiveTaskId() == null ? "" : "." + job.getActiveTaskId().getNamespaceClass().getSimpleName()) + ".slurm.sh");
     }
 
-    private File createSubmitScript(PipelineJob job) throws PipelineJobException
+    private File createSubmitScript(ClusterJob j, PipelineJob job) throws PipelineJobException
     {
         try
         {
@@ -408,7 +500,8 @@ private File createSubmitScript(PipelineJob job) throws PipelineJobException
             File outDir = job.getLogFile().getParentFile();
             String basename = FileUtil.getBaseName(job.getLogFile());
             File submitScript = getExpectedSubmitScript(job);
-            if (ClusterManager.get().isRecreateSubmitScriptFile() && submitScript.exists())
+            //NOTE: predicted resources can change between submissions, so the script is always rewritten
+            if ((ClusterManager.get().isRecreateSubmitScriptFile() || getConfig().isPredictResources()) && submitScript.exists())
             {
                 job.getLogger().info("Deleting existing submit script");
                 submitScript.delete();
@@ -439,58 +532,29 @@ private File createSubmitScript(PipelineJob job) throws PipelineJobException
                     }
 
                     // This allows modules to register code to modify resource usage per task.
-                    Integer maxCpus = null;
-                    Integer maxRam = null;
                     List<String> extraLines = new ArrayList<>(getConfig().getExtraSubmitLines());
                     Map<String, Object> extraEnvironmentVars = new HashMap<>();
+                    AbstractClusterEngineConfig.ResourceRequest request = getConfig().getResourceRequest(j, job, this, extraLines, extraEnvironmentVars);
 
-                    if (job.getActiveTaskId() != null)
-                    {
-
-                        List<ClusterResourceAllocator.Factory> allocatorFactories = ClusterServiceImpl.get().getAllocators(job.getActiveTaskId());
-                        for (ClusterResourceAllocator.Factory allocatorFact : allocatorFactories)
-                        {
-                            ClusterResourceAllocator allocator = allocatorFact.getAllocator();
-                            job.getLogger().debug("using resource allocator: " + allocator.getClass().getName() + " for activeTask: " + job.getActiveTaskId());
-                            Integer c = allocator.getMaxRequestCpus(job);
-                            if (c != null)
-                            {
-                                job.getLogger().debug("setting cpus: " + c);
-                                maxCpus = c;
-                            }
-
-                            Integer m = allocator.getMaxRequestMemory(job);
-                            if (m != null)
-                            {
-                                job.getLogger().debug("setting memory: " + m);
-                                maxRam = m;
-                            }
-
-                            allocator.addExtraSubmitScriptLines(job, this, extraLines);
-
-                            extraEnvironmentVars.putAll(allocator.getEnvironmentVars(job, this));
-                        }
-                    }
-
-                    Integer cpus = null;
-                    if (maxCpus != null || getConfig().getRequestCpus() != null)
+                    Integer cpus = request.getCpus();
+                    if (cpus != null)
                     {
-                        //NOTE: it is possible this could exceed the max allowable for this cluster.
-                        //consider making defaultCpus and maxCpus params
-                        cpus = maxCpus != null ? maxCpus : getConfig().getRequestCpus();
                         writer.write("#SBATCH --cpus-per-task=" + cpus + "\n");
                     }
 
-                    Integer ram = null;
-                    if (maxRam != null || getConfig().getRequestMemory() != null)
+                    Integer ram = request.getMemory();
+                    if (ram != null)
                     {
-                        //NOTE: see comment above for CPUs
-                        //Also, add buffer between the amount allocated for the slurm job and the amount set in LK.
+                        //NOTE: add buffer between the amount allocated for the slurm job and the amount set in LK.
                         //slurm is more aggressive about killed over memory jobs
-                        ram = maxRam != null ? maxRam : getConfig().getRequestMemory();
                         writer.write("#SBATCH --mem=" + (ram + 2) + "000\n");
                     }
 
+                    if (request.getWalltime() != null)
+                    {
+                        writer.write("#SBATCH --time=" + request.getWalltime() + "\n");
+                    }
+
                     List<String> environment = new ArrayList<>();
                     if (cpus != null)
                     {
@@ -673,10 +737,12 @@ else if (t._aliases.contains(value))
     }
 
     /**
-     * @return The string status, always translated to the LabKey TaskStatus instead of raw condor code
+     * Runs squeue once.
+     * @return Each job in the queue, keyed by cluster ID, in the order reported
      */
-    private Pair<String, String> getStatusFromQueue(ClusterJob job)
+    private Map<String, QueueEntry> readQueue()
     {
+        Map<String, QueueEntry> queue = new LinkedHashMap<>();
         String command = getConfig().getStatusCommandExpr().eval(getBaseCtx(ContainerManager.getRoot()));
         List<String> ret = execute(command);
         if (ret != null)
@@ -686,6 +752,7 @@ private Pair<String, String> getStatusFromQueue(ClusterJob job)
             int jobIdx = -1;
             int stateIdx = -1;
             int hostnameIdx = -1;
+            int reasonIdx = -1;
 
             for (String line : ret)
             {
@@ -702,6 +769,7 @@ private Pair<String, String> getStatusFromQueue(ClusterJob job)
                     jobIdx = header.indexOf("JOBID");
                     stateIdx = header.indexOf("STATE");
                     hostnameIdx = header.indexOf("NODELIST");
+                    reasonIdx = header.indexOf("REASON");
 
                     if (stateIdx == -1)
                     {
@@ -724,18 +792,13 @@ private Pair<String, String> getStatusFromQueue(ClusterJob job)
                     {
                         String[] tokens = line.split("( )+");
                         String id = StringUtils.trimToNull(tokens[jobIdx]);
-                        if (job.getClusterId().equals(id))
+                        if (id != null)
                         {
-                            if (hostnameIdx > -1)
-                            {
-                                String hostname = tokens.length > hostnameIdx ? StringUtils.trimToNull(tokens[hostnameIdx]) : null;
-                                if (hostname != null)
-                                {
-                                    job.setHostname(hostname);
-                                }
-                            }
-
-                            return translateSlurmStatusToTaskStatus(StringUtils.trimToNull(tokens[stateIdx]));
+                            QueueEntry entry = new QueueEntry();
+                            entry.state = StringUtils.trimToNull(tokens[stateIdx]);
+                            entry.hostname = hostnameIdx != -1 && tokens.length > hostnameIdx ? StringUtils.trimToNull(tokens[hostnameIdx]) : null;
+                            entry.reason = reasonIdx != -1 && tokens.length > reasonIdx ? StringUtils.trimToNull(tokens[reasonIdx]) : null;
+                            queue.put(id, entry);
                         }
                     }
                     catch (Exception e)
@@ -754,7 +817,14 @@ private Pair<String, String> getStatusFromQueue(ClusterJob job)
             }
         }
 
-        return null;
+        return queue;
+    }
+
+    private static class QueueEntry
+    {
+        private String state;
+        private String hostname;
+        private String reason;
     }
 
     // Based on: https://stackoverflow.com/questions/3758606/how-can-i-convert-byte-size-into-a-human-readable-format-in-java
@@ -803,6 +873,8 @@ private static long getSizeFactor(char unit)
 
     public static class TestCase
     {
+        private static final Logger _log = LogManager.getLogger(TestCase.class);
+
         @Test
         public void testFileSizeFormatter()
         {
@@ -812,5 +884,138 @@ public void testFileSizeFormatter()
             long val2 = FileSizeFormatter.convertBytesToUnit(bytes, 'K');
             Assert.assertEquals("Incorrect string value", 1362624, val2);
         }
+
+        @Test
+        public void testBulkStatusCheck()
+        {
+            int jobCount = 10000;
+            FakeSlurmEngine engine = new FakeSlurmEngine();
+            List<ClusterJob> jobs = new ArrayList<>();
+            for (int i = 0; i < jobCount; i++)
+            {
+                String clusterId = String.valueOf(100000 + i);
+                ClusterJob j = new ClusterJob();
+                j.setClusterId(clusterId);
+                j.setContainer(ContainerManager.getRoot().getId());
+                jobs.add(j);
+
+                // Most jobs have finished, some are still pending, and a few ran out of memory:
+                if (i % 10 == 0)
+                {
+                    engine._queue.put(clusterId, "PENDING");
+                }
+                else
+                {
+                    engine._history.put(clusterId, i % 97 == 0 ? "OUT_OF_MEMORY" : "COMPLETED");
+                }
+            }
+
+            long start = System.currentTimeMillis();
+            Map<String, Pair<String, String>> statuses = engine.getStatusForJobs(jobs);
+            _log.info("checked status of " + jobCount + " jobs in " + (System.currentTimeMillis() - start) + "ms");
+
+            Assert.assertEquals("Incorrect number of statuses", jobCount, statuses.size());
+            Assert.assertEquals("Incorrect number of sacct calls", (jobCount + STATUS_BATCH_SIZE - 1) / STATUS_BATCH_SIZE, engine._historyCalls);
+            Assert.assertEquals("Incorrect number of squeue calls", 1, engine._queueCalls);
+            Assert.assertEquals("Incorrect status", PipelineJob.TaskStatus.waiting.name().toUpperCase(), statuses.get("100000").first);
+            Assert.assertEquals("Incorrect status", PipelineJob.TaskStatus.complete.name().toUpperCase(), statuses.get("100001").first);
+            Assert.assertEquals("Incorrect status", PipelineJob.TaskStatus.error.name().toUpperCase(), statuses.get(String.valueOf(100000 + 97)).first);
+            Assert.assertEquals("Incorrect hostname", "node1", jobs.get(1).getHostname());
+        }
+
+        @Test
+        public void testParseHistory()
+        {
+            SlurmExecutionEngine engine = new FakeSlurmEngine();
+            ClusterJob j = new ClusterJob();
+            j.setClusterId("1234");
+
+            // This matches the columns of the historyCommand in the example pipelineConfig.xml:
+            List<String> lines = Arrays.asList(
+                    "JobID|State|NodeList|MaxRSS|ElapsedRaw|TotalCPU|AllocCPUS",
+                    "1234|COMPLETED|node1||3600|01:30:00|2",
+                    "1234.batch|COMPLETED|node1|1000K|3600|01:30:00|2",
+                    "1234.extern|COMPLETED|node1|500K|3600|00:00:01|2"
+            );
+
+            Map<String, Pair<String, String>> statuses = engine.parseHistory(lines, Map.of("1234", j));
+            Assert.assertEquals("Incorrect status", PipelineJob.TaskStatus.complete.name().toUpperCase(), statuses.get("1234").first);
+            Assert.assertEquals("Incorrect hostname", "node1", j.getHostname());
+            Assert.assertEquals("Incorrect elapsed seconds", Integer.valueOf(3600), j.getElapsedSeconds());
+            Assert.assertEquals("Incorrect MaxRSS", Long.valueOf(1024000), j.getMaxRss());
+            Assert.assertNotNull("CPU efficiency not set", j.getCpuEfficiency());
+            Assert.assertEquals("Incorrect CPU efficiency", 0.75, j.getCpuEfficiency(), 0.0001);
+            Assert.assertNotEquals("Job should not be out of memory", Boolean.TRUE, j.getOutOfMemory());
+
+            // The whitespace-delimited output of older configs is still read:
+            ClusterJob j2 = new ClusterJob();
+            j2.setClusterId("1235");
+            engine.parseHistory(Arrays.asList(
+                    "JobID State NodeList MaxRSS",
+                    "------------ ---------- -------- ----------",
+                    "1235 COMPLETED node2",
+                    "1235.batch COMPLETED node2 2000K"
+            ), Map.of("1235", j2));
+            Assert.assertEquals("Incorrect hostname", "node2", j2.getHostname());
+            Assert.assertEquals("Incorrect MaxRSS", Long.valueOf(2048000), j2.getMaxRss());
+        }
+    }
+
+    /**
+     * Stands in for squeue and sacct, so status checks on many jobs can be tested and timed without a cluster
+     */
+    private static class FakeSlurmEngine extends SlurmExecutionEngine
+    {
+        private final Map<String, String> _queue = new LinkedHashMap<>();
+        private final Map<String, String> _history = new LinkedHashMap<>();
+        private int _queueCalls = 0;
+        private int _historyCalls = 0;
+
+        public FakeSlurmEngine()
+        {
+            super(createConfig());
+        }
+
+        private static SlurmExecutionEngineConfig createConfig()
+        {
+            SlurmExecutionEngineConfig config = new SlurmExecutionEngineConfig();
+            config.setStatusCommand("squeue -O JobId,State,Reason");
+            config.setHistoryCommand("sacct --parsable2 --jobs=${clusterId} -o JobId,State,NodeList,MaxRSS,ElapsedRaw,TotalCPU,AllocCPUS");
+
+            return config;
+        }
+
+        @Override
+        protected List<String> execute(String command)
+        {
+            List<String> ret = new ArrayList<>();
+            if (command.startsWith("squeue"))
+            {
+                _queueCalls++;
+                ret.add("JOBID STATE REASON");
+                _queue.forEach((id, state) -> ret.add(id + " " + state + " Priority"));
+            }
+            else if (command.startsWith("sacct"))
+            {
+                _historyCalls++;
+                ret.add("JobID|State|NodeList|MaxRSS|ElapsedRaw|TotalCPU|AllocCPUS");
+                String ids = command.split(" ")[2].replaceFirst("^--jobs=", "");
+                for (String id : ids.split(","))
+                {
+                    if (_history.containsKey(id))
+                    {
+                        //NOTE: sacct leaves MaxRSS blank on the job's own line
+                        ret.add(id + "|" + _history.get(id) + "|node1||3600|01:30:00|2");
+                        ret.add(id + ".batch|" + _history.get(id) + "|node1|1000K|3600|01:30:00|2");
+                    }
+                }
+            }
+            else
+            {
+                throw new IllegalArgumentException("Unexpected command: " + command);
+            }
+
+            return ret;
+        }
     }
 }
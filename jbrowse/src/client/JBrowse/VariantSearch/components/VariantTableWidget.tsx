@@ -14,7 +14,7 @@ import {
 } from '@mui/x-data-grid';
 import SearchIcon from '@mui/icons-material/Search';
 import LinkIcon from '@mui/icons-material/Link';
-import React, { useEffect, useState } from 'react';
+import React, { useEffect, useRef, useState } from 'react';
 import { getConf } from '@jbrowse/core/configuration';
 import { AppBar, Box, Button, Dialog, Paper, Popover, Toolbar, Tooltip, Typography } from '@mui/material';
 import { FilterFormModal } from './FilterFormModal';
@@ -86,9 +86,21 @@ const VariantTableWidget = observer(props => {
           window.history.pushState(null, "", currentUrl.toString());
         }
 
+        // When moving to the next page of the same query, pass the cursor from the prior page so the server does not re-collect every preceding hit:
+        const cursorKey = [encodedSearchString, pageSize, field, sort].join('|')
+        const cursor = nextCursor.current?.key === cursorKey && nextCursor.current?.page === page ? nextCursor.current.cursor : undefined
+
         setFilters(passedFilters);
         setDataLoaded(false)
-        fetchLuceneQuery(passedFilters, sessionId, trackGUID, page, pageSize, field, sort, (json)=>{handleSearch(json)}, (error) => {setDataLoaded(true); setError(error)});
+        fetchLuceneQuery(passedFilters, sessionId, trackGUID, page, pageSize, field, sort, (json)=>{
+            nextCursor.current = json.nextCursor ? { key: cursorKey, page: page + 1, cursor: json.nextCursor } : undefined
+            handleSearch(json)
+        }, (error) => {
+            // The cursor may be stale (for example, if the index was rebuilt), so the next request falls back to the offset:
+            nextCursor.current = undefined
+            setDataLoaded(true)
+            setError(error)
+        }, cursor);
     }
 
     const TableCellWithPopover = (props: { value: any }) => {
@@ -262,6 +274,9 @@ const VariantTableWidget = observer(props => {
     // False until initial data load or an error:
     const [dataLoaded, setDataLoaded] = useState(false)
 
+    // The cursor returned with the last page, and the page and query it continues:
+    const nextCursor = useRef<{ key: string, page: number, cursor: string }>(undefined)
+
     const urlParams = new URLSearchParams(window.location.search)
     const page = parseInt(urlParams.get('page') || '0')
     const pageSize = parseInt(urlParams.get('pageSize') || '50')
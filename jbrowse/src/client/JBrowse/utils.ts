@@ -420,7 +420,7 @@ function generateLuceneString(field, operator, value) {
   return luceneQueryString;
 }
 
-export async function fetchLuceneQuery(filters, sessionId, trackGUID, offset, pageSize, sortField, sortReverseString, successCallback, failureCallback) {
+export async function fetchLuceneQuery(filters, sessionId, trackGUID, offset, pageSize, sortField, sortReverseString, successCallback, failureCallback, cursor?: string) {
     if (!offset) {
         offset = 0
     }
@@ -451,7 +451,14 @@ export async function fetchLuceneQuery(filters, sessionId, trackGUID, offset, pa
         url: ActionURL.buildURL('jbrowse', 'luceneQuery.api'),
         method: 'GET',
         success: async function(res){
-            let jsonRes = JSON.parse(res.response);
+            let jsonRes
+            try {
+                jsonRes = JSON.parse(res.response);
+            } catch (e) {
+                // The server can fail after part of the results were sent, which leaves an incomplete document
+                failureCallback("There was an error: the search results were incomplete\n Session ID:" + sessionId)
+                return
+            }
             successCallback(jsonRes)
         },
         failure: function(res) {
@@ -464,7 +471,8 @@ export async function fetchLuceneQuery(filters, sessionId, trackGUID, offset, pa
             "offset": offset,
             "pageSize": pageSize,
             "sortField": sortField ?? "genomicPosition",
-            "sortReverse": sortReverse 
+            "sortReverse": sortReverse,
+            "cursor": cursor
         },
     });
 }
@@ -16,15 +16,13 @@
 
 package org.labkey.jbrowse;
 
-import htsjdk.samtools.util.CloseableIterator;
-import htsjdk.variant.variantcontext.Genotype;
-import htsjdk.variant.variantcontext.VariantContext;
-import htsjdk.variant.vcf.VCFFileReader;
+import jakarta.servlet.http.HttpServletResponse;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.NotNull;
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.labkey.api.action.ApiJsonWriter;
 import org.labkey.api.action.ApiResponse;
 import org.labkey.api.action.ApiSimpleResponse;
 import org.labkey.api.action.MutatingApiAction;
@@ -78,6 +76,7 @@
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -556,49 +555,41 @@ else if (!d.getFile().exists())
             {
                 errors.reject(ERROR_MSG, "Must provide the chromosome, start and stop");
             }
+            else if (form.getStop() < form.getStart())
+            {
+                errors.reject(ERROR_MSG, "The stop must not be before the start");
+            }
+
+            if (form.getFormat() != null && !"columnar".equals(form.getFormat()) && !"objects".equals(form.getFormat()))
+            {
+                errors.reject(ERROR_MSG, "Unknown format: " + form.getFormat());
+            }
         }
 
         @Override
         public ApiResponse execute(GetGenotypesForm form, BindException errors)
         {
-            JSONArray ret = new JSONArray();
             Map<String, Object> resultProperties = new HashMap<>();
 
             List<JsonFile> jsonFiles = getJsonFiles(form);
-            try (VCFFileReader reader = new VCFFileReader(jsonFiles.get(0).getExpData().getFile()))
-            {
-                Map<String, String> demographicsFields = JBrowseServiceImpl.get().getDemographicsFields(getUser(), getContainer());
-                Map<String, Map<String, Object>> demographics = JBrowseServiceImpl.get().resolveSubjects(reader.getFileHeader().getSampleNamesInOrder(), getUser(), getContainer());
+            JBrowseGenotypeService.GenotypeRegion region = JBrowseGenotypeService.get().getGenotypes(jsonFiles.get(0).getExpData().getFile(), form.getChr(), form.getStart(), form.getStop());
 
-                try (CloseableIterator<VariantContext> it = reader.query(form.getChr(), form.getStart(), form.getStop()))
-                {
-                    while (it.hasNext())
-                    {
-                        VariantContext vc = it.next();
-                        JSONObject pos = new JSONObject();
-                        pos.put("contig", vc.getContig());
-                        pos.put("start", vc.getStart());
-                        pos.put("end", vc.getEnd());
-                        pos.put("refAllele", vc.getReference().getBaseString());
-
-                        JSONArray genotypes = new JSONArray();
-                        for (Genotype g : vc.getGenotypes())
-                        {
-                            JSONObject gt = new JSONObject();
-                            gt.put("sample", g.getSampleName());
-                            gt.put("gt", g.getGenotypeString());
-
-                            genotypes.put(gt);
-                        }
-
-                        pos.put("genotypes", genotypes);
-                        ret.put(pos);
-                    }
-                }
+            if ("columnar".equals(form.getFormat()))
+            {
+                resultProperties.put("sites", region.getSitesJson());
+            }
+            else
+            {
+                resultProperties.put("genotypes", region.getGenotypesJson());
+            }
 
-                resultProperties.put("genotypes", ret);
-                resultProperties.put("demographics", demographics);
-                resultProperties.put("demographicsFields", demographicsFields);
+            // The sample list and demographics only change with the VCF, so clients that already hold them can skip them:
+            resultProperties.put("samplesKey", region.getSamplesKey());
+            if (!region.getSamplesKey().equals(form.getSamplesKey()))
+            {
+                resultProperties.put("samples", region.getSamples());
+                resultProperties.put("demographics", JBrowseGenotypeService.get().getDemographics(region, getUser(), getContainer()));
+                resultProperties.put("demographicsFields", JBrowseServiceImpl.get().getDemographicsFields(getUser(), getContainer()));
             }
 
             return new ApiSimpleResponse(resultProperties);
@@ -611,6 +602,8 @@ public ApiResponse execute(GetGenotypesForm form, BindException errors)
         private String _chr;
         private Integer _start;
         private Integer _stop;
+        private String _format;
+        private String _samplesKey;
 
         public String getTrackId()
         {
@@ -651,6 +644,30 @@ public void setStop(Integer stop)
         {
             _stop = stop;
         }
+
+        /**
+         * Either "objects" (the default), which sends one object per sample per site,
+         * or "columnar", which sends each site's distinct genotypes and one packed code per sample.
+         */
+        public String getFormat()
+        {
+            return _format;
+        }
+
+        public void setFormat(String format)
+        {
+            _format = format;
+        }
+
+        public String getSamplesKey()
+        {
+            return _samplesKey;
+        }
+
+        public void setSamplesKey(String samplesKey)
+        {
+            _samplesKey = samplesKey;
+        }
     }
 
 
@@ -908,13 +925,43 @@ public ApiResponse execute(LuceneQueryForm form, BindException errors)
                 return null;
             }
 
+            //NOTE: the query is parsed and run before anything is written, so errors in the query are still reported normally
+            HttpServletResponse response = getViewContext().getResponse();
             try
             {
-                return new ApiSimpleResponse(searcher.doSearch(getUser(), PageFlowUtil.decode(form.getSearchString()), form.getPageSize(), form.getOffset(), form.getSortField(), form.getSortReverse()));
+                String searchString = PageFlowUtil.decode(form.getSearchString());
+                if ("tsv".equalsIgnoreCase(form.getFormat()))
+                {
+                    searcher.exportTsv(getUser(), searchString, form.getSortField(), form.getSortReverse(), () -> {
+                        PageFlowUtil.prepareResponseForFile(response, Collections.emptyMap(), "variants.tsv", true);
+                        return response.getWriter();
+                    });
+                }
+                else
+                {
+                    //NOTE: the results hold a reference to the index searcher until closed
+                    try (JBrowseLuceneSearch.SearchResults results = searcher.search(getUser(), searchString, form.getPageSize(), form.getOffset(), StringUtils.trimToNull(form.getCursor()), form.getSortField(), form.getSortReverse()))
+                    {
+                        response.setContentType(ApiJsonWriter.CONTENT_TYPE_JSON);
+                        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+                        results.writeJSON(response.getWriter());
+                    }
+                }
+
+                return null;
             }
             catch (Exception e)
             {
                 _log.error("Error in JBrowse lucene query", e);
+
+                //NOTE: once part of the results has been sent, appending an error would only produce a longer invalid document.
+                // The client will fail to parse the truncated response instead.
+                if (response.isCommitted())
+                {
+                    return null;
+                }
+
+                response.reset();
                 errors.reject(ERROR_MSG, e.getMessage());
                 return null;
             }
@@ -951,6 +998,12 @@ else if (!isValidUUID(form.getTrackId()))
 
         private boolean _sortReverse = false;
 
+        // The nextCursor from the prior page. If provided, offset is ignored
+        private String _cursor;
+
+        // Either json (the default) or tsv. TSV returns every hit, rather than one page
+        private String _format;
+
         public String getSearchString()
         {
             return _searchString;
@@ -999,6 +1052,26 @@ public void setOffset(int offset)
 
         public void setSortReverse(boolean sortReverse) { _sortReverse = sortReverse; }
 
+        public String getCursor()
+        {
+            return _cursor;
+        }
+
+        public void setCursor(String cursor)
+        {
+            _cursor = cursor;
+        }
+
+        public String getFormat()
+        {
+            return _format;
+        }
+
+        public void setFormat(String format)
+        {
+            _format = format;
+        }
+
         public String getTrackId()
         {
             return _trackId;
@@ -1010,6 +1083,98 @@ public void setTrackId(String trackId)
         }
     }
 
+    @RequiresPermission(ReadPermission.class)
+    public static class LuceneFacetsAction extends ReadOnlyApiAction<LuceneFacetsForm>
+    {
+        @Override
+        public ApiResponse execute(LuceneFacetsForm form, BindException errors)
+        {
+            JBrowseLuceneSearch searcher;
+            try
+            {
+                searcher = JBrowseLuceneSearch.create(form.getSessionId(), form.getTrackId(), getUser());
+            }
+            catch (IllegalArgumentException e)
+            {
+                errors.reject(ERROR_MSG, e.getMessage());
+                return null;
+            }
+
+            try
+            {
+                return new ApiSimpleResponse(searcher.getFacets(getUser(), PageFlowUtil.decode(form.getSearchString()), Arrays.asList(form.getFields()), form.getBins(), form.getLimit()));
+            }
+            catch (Exception e)
+            {
+                _log.error("Error in JBrowse lucene facet query", e);
+                errors.reject(ERROR_MSG, e.getMessage());
+                return null;
+            }
+        }
+
+        @Override
+        public void validateForm(LuceneFacetsForm form, Errors errors)
+        {
+            if ((form.getSearchString() == null || form.getSessionId() == null || form.getTrackId() == null))
+            {
+                errors.reject(ERROR_MSG, "Must provide search string, track ID, and the JBrowse session ID");
+            }
+            else if (!isValidUUID(form.getTrackId()))
+            {
+                errors.reject(ERROR_MSG, "Invalid track ID: " + form.getTrackId());
+            }
+            else if (form.getFields() == null || form.getFields().length == 0)
+            {
+                errors.reject(ERROR_MSG, "Must provide at least one field");
+            }
+            else if (form.getBins() < 1 || form.getLimit() < 1)
+            {
+                errors.reject(ERROR_MSG, "Bins and limit must be positive");
+            }
+        }
+    }
+
+    public static class LuceneFacetsForm extends LuceneQueryForm
+    {
+        private String[] _fields;
+
+        // The number of bins for numeric fields
+        private int _bins = 20;
+
+        // The maximum number of distinct values returned per string field
+        private int _limit = 100;
+
+        public String[] getFields()
+        {
+            return _fields;
+        }
+
+        public void setFields(String[] fields)
+        {
+            _fields = fields;
+        }
+
+        public int getBins()
+        {
+            return _bins;
+        }
+
+        public void setBins(int bins)
+        {
+            _bins = bins;
+        }
+
+        public int getLimit()
+        {
+            return _limit;
+        }
+
+        public void setLimit(int limit)
+        {
+            _limit = limit;
+        }
+    }
+
     public static class ResolveVcfFieldsForm
     {
         private String[] infoKeys;
@@ -1042,7 +1207,11 @@ public static class GetLuceneCacheInfoAction extends ReadOnlyApiAction<Object>
         @Override
         public ApiResponse execute(Object form, BindException errors)
         {
-            return new ApiSimpleResponse("cacheInfo", JBrowseLuceneSearch.reportCacheInfo());
+            ApiSimpleResponse resp = new ApiSimpleResponse("cacheInfo", JBrowseLuceneSearch.reportCacheInfo());
+            resp.put("indexCacheInfo", JBrowseLuceneSearch.reportIndexCacheInfo());
+            resp.put("genotypeCacheInfo", JBrowseGenotypeService.get().reportCacheInfo());
+
+            return resp;
         }
     }
 }
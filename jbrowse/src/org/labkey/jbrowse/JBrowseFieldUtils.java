@@ -32,16 +32,19 @@
     public static final String N_CALLED = "nCalled";
     public static final String FRACTION_HET = "fractionHet";
     public static final String HOMOZYGOUS_VAR = "homozygousVarSamples";
+    // NOTE: this is indexed as a LongPoint, since the genomic position of contigs after the first ~2Gb of a genome exceeds the range of an int.
+    // Indexes created before this change store it as an IntPoint, so searches check the point size of the opened index
+    public static final String GENOMIC_POSITION = "genomicPosition";
 
 
-    // These fields are always indexed in DISCVRSeq, and present in all VCFs (or created client-side in ExtendedVariantAdapter
+    // These fields are always indexed by VcfLuceneIndexer, and present in all VCFs (or created client-side in ExtendedVariantAdapter
     public static final Map<String, JBrowseFieldDescriptor> DEFAULT_FIELDS = new LinkedHashMap<>() {{
         put("contig", new JBrowseFieldDescriptor("contig", "This is the chromosome/contig", true, true, VCFHeaderLineType.String, 1).label("Chromosome"));
         put("start", new JBrowseFieldDescriptor("start", "The start position of this variant", true, true, VCFHeaderLineType.Integer, 2).label("Start"));
         put("end", new JBrowseFieldDescriptor("end", "The end position of this variant", false, true, VCFHeaderLineType.Integer, 3).label("End"));
         put("ref", new JBrowseFieldDescriptor("ref", "The reference allele", true, true, VCFHeaderLineType.String, 4).label("Ref Allele"));
         put("alt", new JBrowseFieldDescriptor("alt", "The alternate allele", true, true, VCFHeaderLineType.String, 5).label("Alt Allele"));
-        put("genomicPosition", new JBrowseFieldDescriptor("genomicPosition", "", false, true, VCFHeaderLineType.Integer, 6).hidden(true).label("Genomic Position"));
+        put(GENOMIC_POSITION, new JBrowseFieldDescriptor(GENOMIC_POSITION, "", false, true, VCFHeaderLineType.Integer, 6).hidden(true).label("Genomic Position"));
     }};
 
     public static Map<String, JBrowseFieldDescriptor> getIndexedFields(JsonFile jsonFile, User u, Container c)
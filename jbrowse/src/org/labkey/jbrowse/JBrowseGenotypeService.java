@@ -0,0 +1,609 @@
+package org.labkey.jbrowse;
+
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.GenotypesContext;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFFileReader;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.labkey.api.cache.Cache;
+import org.labkey.api.cache.CacheManager;
+import org.labkey.api.data.Container;
+import org.labkey.api.security.User;
+import org.labkey.api.util.logging.LogHelper;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serves genotypes from track VCFs. Each recently used VCF has a small pool of open readers, and genotypes are decoded in fixed-size
+ * tiles of the genome that are held in a bounded LRU cache, so panning across a region reuses the tiles it has already read.
+ * Within a tile, each site stores its distinct genotype strings once plus one packed code per sample.
+ */
+public class JBrowseGenotypeService
+{
+    private static final Logger _log = LogHelper.getLogger(JBrowseGenotypeService.class, "Logger for JBrowseGenotypeService");
+    private static final JBrowseGenotypeService _instance = new JBrowseGenotypeService();
+
+    public static final int TILE_SIZE = 10000;
+    private static final int MAX_IDLE_READERS = 4;
+    private static final int MAX_READER_POOLS = 32;
+    private static final long MAX_POOL_IDLE_MILLIS = 30 * 60 * 1000L;
+    private static final long POOL_SWEEP_MILLIS = 60 * 1000L;
+    private static final long MAX_CACHED_BYTES = 256L * 1024 * 1024;
+
+    // Access-ordered by VCF path, so iteration starts with the least recently used pool. Guarded by itself.
+    private final LinkedHashMap<String, ReaderPool> _readerPools = new LinkedHashMap<>(16, 0.75f, true);
+    private long _lastPoolSweep = 0;
+
+    // Access-ordered, so iteration starts with the least recently used tile. Guarded by this.
+    private final LinkedHashMap<String, Tile> _tiles = new LinkedHashMap<>(64, 0.75f, true);
+    private long _cachedBytes = 0;
+
+    private final LongAdder _tileHits = new LongAdder();
+    private final LongAdder _tileMisses = new LongAdder();
+
+    private final Cache<String, Map<String, Map<String, Object>>> _demographicsCache = CacheManager.getStringKeyCache(500, CacheManager.HOUR, "JBrowseGenotypeDemographics");
+
+    private JBrowseGenotypeService()
+    {
+
+    }
+
+    public static JBrowseGenotypeService get()
+    {
+        return _instance;
+    }
+
+    /**
+     * @return The sites overlapping this region (1-based, inclusive), with the samples of the VCF in header order
+     */
+    public GenotypeRegion getGenotypes(File vcf, String contig, int start, int stop)
+    {
+        ReaderPool pool = getReaderPool(vcf);
+        int regionStart = Math.max(1, start);
+
+        List<Site> sites = new ArrayList<>();
+        for (int tileIdx = (regionStart - 1) / TILE_SIZE; tileIdx <= (stop - 1) / TILE_SIZE; tileIdx++)
+        {
+            int tileStart = (tileIdx * TILE_SIZE) + 1;
+            int tileEnd = tileStart + TILE_SIZE - 1;
+            for (Site site : getTile(pool, contig, tileIdx).sites)
+            {
+                if (site.end < regionStart || site.start > stop)
+                {
+                    continue;
+                }
+
+                //NOTE: a site that spans several tiles is in each of them, so only report it from the tile holding its first position in this region
+                int first = Math.max(site.start, regionStart);
+                if (first >= tileStart && first <= tileEnd)
+                {
+                    sites.add(site);
+                }
+            }
+        }
+
+        return new GenotypeRegion(pool.samples, pool.samplesKey, sites);
+    }
+
+    /**
+     * Demographics are cached by container, user and sample set, since resolving thousands of subjects is far slower than reading the genotypes.
+     */
+    public Map<String, Map<String, Object>> getDemographics(GenotypeRegion region, User u, Container c)
+    {
+        String key = c.getId() + "||" + u.getUserId() + "||" + region.getSamplesKey();
+        Map<String, Map<String, Object>> ret = _demographicsCache.get(key);
+        if (ret == null)
+        {
+            ret = Collections.unmodifiableMap(JBrowseServiceImpl.get().resolveSubjects(region.getSamples(), u, c));
+            _demographicsCache.put(key, ret);
+        }
+
+        return ret;
+    }
+
+    private ReaderPool getReaderPool(File vcf)
+    {
+        String path = vcf.getPath();
+        List<ReaderPool> toClose = new ArrayList<>();
+        ReaderPool pool;
+        synchronized (_readerPools)
+        {
+            pool = _readerPools.get(path);
+            if (pool != null && !pool.isCurrent())
+            {
+                _readerPools.remove(path);
+                toClose.add(pool);
+                pool = null;
+            }
+        }
+
+        if (pool == null)
+        {
+            //NOTE: the VCF header is read outside the lock. If two requests race, the second pool is discarded.
+            ReaderPool created = new ReaderPool(vcf);
+            synchronized (_readerPools)
+            {
+                pool = _readerPools.get(path);
+                if (pool == null)
+                {
+                    _readerPools.put(path, created);
+                    pool = created;
+                }
+                else
+                {
+                    toClose.add(created);
+                }
+            }
+        }
+
+        pool.lastUsed = System.currentTimeMillis();
+        synchronized (_readerPools)
+        {
+            evictReaderPools(pool, toClose);
+        }
+
+        toClose.forEach(ReaderPool::close);
+
+        return pool;
+    }
+
+    /**
+     * Removes the least recently used pools beyond MAX_READER_POOLS, and those idle longer than MAX_POOL_IDLE_MILLIS. Periodically, this also
+     * removes pools whose VCF was replaced or deleted, since those would otherwise hold their readers until evicted.
+     */
+    private void evictReaderPools(ReaderPool active, List<ReaderPool> toClose)
+    {
+        long now = System.currentTimeMillis();
+        boolean sweep = now - _lastPoolSweep > POOL_SWEEP_MILLIS;
+        if (sweep)
+        {
+            _lastPoolSweep = now;
+        }
+
+        Iterator<ReaderPool> it = _readerPools.values().iterator();
+        while (it.hasNext())
+        {
+            ReaderPool pool = it.next();
+            if (pool == active)
+            {
+                continue;
+            }
+
+            if (_readerPools.size() > MAX_READER_POOLS || now - pool.lastUsed > MAX_POOL_IDLE_MILLIS || (sweep && !pool.isCurrent()))
+            {
+                it.remove();
+                toClose.add(pool);
+            }
+            else if (!sweep)
+            {
+                break;
+            }
+        }
+    }
+
+    private Tile getTile(ReaderPool pool, String contig, int tileIdx)
+    {
+        String key = pool.cacheKey + "||" + contig + "||" + tileIdx;
+        synchronized (this)
+        {
+            Tile tile = _tiles.get(key);
+            if (tile != null)
+            {
+                _tileHits.increment();
+                return tile;
+            }
+        }
+
+        //NOTE: two requests for the same uncached tile may both read it. This is harmless, and avoids holding a lock during I/O.
+        _tileMisses.increment();
+        Tile tile = readTile(pool, contig, tileIdx);
+        synchronized (this)
+        {
+            Tile existing = _tiles.put(key, tile);
+            if (existing != null)
+            {
+                _cachedBytes -= existing.bytes;
+            }
+            _cachedBytes += tile.bytes;
+
+            Iterator<Tile> it = _tiles.values().iterator();
+            while (_cachedBytes > MAX_CACHED_BYTES && it.hasNext())
+            {
+                _cachedBytes -= it.next().bytes;
+                it.remove();
+            }
+        }
+
+        return tile;
+    }
+
+    private Tile readTile(ReaderPool pool, String contig, int tileIdx)
+    {
+        int tileStart = (tileIdx * TILE_SIZE) + 1;
+        List<Site> sites = new ArrayList<>();
+        long bytes = 0;
+
+        VCFFileReader reader = pool.borrow();
+        try
+        {
+            try (CloseableIterator<VariantContext> it = reader.query(contig, tileStart, tileStart + TILE_SIZE - 1))
+            {
+                while (it.hasNext())
+                {
+                    Site site = new Site(it.next(), pool.samples.size());
+                    sites.add(site);
+                    bytes += site.getSize();
+                }
+            }
+        }
+        finally
+        {
+            pool.release(reader);
+        }
+
+        return new Tile(sites, bytes);
+    }
+
+    public JSONObject reportCacheInfo()
+    {
+        JSONObject info = new JSONObject();
+        synchronized (this)
+        {
+            info.put("cachedTiles", _tiles.size());
+            info.put("cachedBytes", _cachedBytes);
+        }
+        synchronized (_readerPools)
+        {
+            info.put("openReaderPools", _readerPools.size());
+        }
+        info.put("hitCount", _tileHits.sum());
+        info.put("missCount", _tileMisses.sum());
+
+        return info;
+    }
+
+    public void clearCache()
+    {
+        synchronized (this)
+        {
+            _tiles.clear();
+            _cachedBytes = 0;
+        }
+
+        List<ReaderPool> toClose;
+        synchronized (_readerPools)
+        {
+            toClose = new ArrayList<>(_readerPools.values());
+            _readerPools.clear();
+        }
+        toClose.forEach(ReaderPool::close);
+
+        _demographicsCache.clear();
+    }
+
+    /**
+     * Closes the readers and drops the cached tiles for a single VCF, such as when its track is reindexed
+     */
+    public void clearCache(File vcf)
+    {
+        String path = vcf.getPath();
+        ReaderPool pool;
+        synchronized (_readerPools)
+        {
+            pool = _readerPools.remove(path);
+        }
+
+        if (pool != null)
+        {
+            pool.close();
+        }
+
+        synchronized (this)
+        {
+            Iterator<Map.Entry<String, Tile>> it = _tiles.entrySet().iterator();
+            while (it.hasNext())
+            {
+                Map.Entry<String, Tile> e = it.next();
+                if (e.getKey().startsWith(path + "||"))
+                {
+                    _cachedBytes -= e.getValue().bytes;
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    public static class GenotypeRegion
+    {
+        private final List<String> _samples;
+        private final String _samplesKey;
+        private final List<Site> _sites;
+
+        private GenotypeRegion(List<String> samples, String samplesKey, List<Site> sites)
+        {
+            _samples = samples;
+            _samplesKey = samplesKey;
+            _sites = sites;
+        }
+
+        public List<String> getSamples()
+        {
+            return _samples;
+        }
+
+        /**
+         * @return A hash of the sample list, which clients can send back to avoid receiving the same samples again
+         */
+        public String getSamplesKey()
+        {
+            return _samplesKey;
+        }
+
+        /**
+         * @return One object per site, with the distinct genotypes in "values" and, in "codes", the base64 of one index into values per sample
+         * (one byte each, or two bytes big-endian when bytesPerSample is 2)
+         */
+        public JSONArray getSitesJson()
+        {
+            JSONArray ret = new JSONArray();
+            for (Site site : _sites)
+            {
+                JSONObject pos = site.toJSON();
+                pos.put("values", site.values);
+                pos.put("bytesPerSample", site.bytesPerSample);
+                pos.put("codes", Base64.getEncoder().encodeToString(site.codes));
+                ret.put(pos);
+            }
+
+            return ret;
+        }
+
+        /**
+         * @return The genotypes as one object per sample per site, which is the format of earlier versions of this API
+         */
+        public JSONArray getGenotypesJson()
+        {
+            JSONArray ret = new JSONArray();
+            for (Site site : _sites)
+            {
+                JSONArray genotypes = new JSONArray();
+                for (int i = 0; i < _samples.size(); i++)
+                {
+                    JSONObject gt = new JSONObject();
+                    gt.put("sample", _samples.get(i));
+                    gt.put("gt", site.values.get(site.getCode(i)));
+                    genotypes.put(gt);
+                }
+
+                JSONObject pos = site.toJSON();
+                pos.put("genotypes", genotypes);
+                ret.put(pos);
+            }
+
+            return ret;
+        }
+    }
+
+    private static class Site
+    {
+        private final String contig;
+        private final int start;
+        private final int end;
+        private final String ref;
+        private final List<String> alt = new ArrayList<>();
+        private final List<String> values = new ArrayList<>();
+        private final int bytesPerSample;
+        private final byte[] codes;
+
+        public Site(VariantContext vc, int sampleCount)
+        {
+            contig = vc.getContig();
+            start = vc.getStart();
+            end = vc.getEnd();
+            ref = vc.getReference().getBaseString();
+            for (Allele a : vc.getAlternateAlleles())
+            {
+                alt.add(a.getDisplayString());
+            }
+
+            GenotypesContext genotypes = vc.getGenotypes();
+            if (genotypes.size() != sampleCount)
+            {
+                throw new IllegalStateException("Expected " + sampleCount + " genotypes at " + contig + ":" + start + ", found: " + genotypes.size());
+            }
+
+            Map<String, Integer> valueIdx = new HashMap<>();
+            int[] idx = new int[sampleCount];
+            for (int i = 0; i < sampleCount; i++)
+            {
+                idx[i] = valueIdx.computeIfAbsent(genotypes.get(i).getGenotypeString(), gt -> {
+                    values.add(gt);
+                    return values.size() - 1;
+                });
+            }
+
+            if (values.size() > 65536)
+            {
+                throw new IllegalStateException("Too many distinct genotypes at " + contig + ":" + start);
+            }
+
+            bytesPerSample = values.size() > 256 ? 2 : 1;
+            codes = new byte[sampleCount * bytesPerSample];
+            for (int i = 0; i < sampleCount; i++)
+            {
+                if (bytesPerSample == 1)
+                {
+                    codes[i] = (byte)idx[i];
+                }
+                else
+                {
+                    codes[2 * i] = (byte)(idx[i] >> 8);
+                    codes[(2 * i) + 1] = (byte)idx[i];
+                }
+            }
+        }
+
+        public int getCode(int sampleIdx)
+        {
+            return bytesPerSample == 1 ? codes[sampleIdx] & 0xFF : ((codes[2 * sampleIdx] & 0xFF) << 8) | (codes[(2 * sampleIdx) + 1] & 0xFF);
+        }
+
+        public long getSize()
+        {
+            //NOTE: this is an estimate, dominated by the codes for VCFs with many samples
+            long size = 64 + codes.length + ref.length();
+            for (String v : values)
+            {
+                size += 40 + v.length();
+            }
+
+            return size;
+        }
+
+        public JSONObject toJSON()
+        {
+            JSONObject pos = new JSONObject();
+            pos.put("contig", contig);
+            pos.put("start", start);
+            pos.put("end", end);
+            pos.put("refAllele", ref);
+            pos.put("altAlleles", alt);
+
+            return pos;
+        }
+    }
+
+    private static class Tile
+    {
+        private final List<Site> sites;
+        private final long bytes;
+
+        public Tile(List<Site> sites, long bytes)
+        {
+            this.sites = sites;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * VCFFileReader is not thread-safe, so each request borrows a reader and returns it when done. Up to MAX_IDLE_READERS are kept open.
+     */
+    private static class ReaderPool
+    {
+        private final File vcf;
+        private final long lastModified;
+        private final String cacheKey;
+        private final List<String> samples;
+        private final String samplesKey;
+        private final Deque<VCFFileReader> idle = new ArrayDeque<>();
+        private boolean closed = false;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        public ReaderPool(File vcf)
+        {
+            this.vcf = vcf;
+            lastModified = vcf.lastModified();
+            cacheKey = vcf.getPath() + "||" + lastModified;
+
+            VCFFileReader reader = new VCFFileReader(vcf);
+            samples = Collections.unmodifiableList(new ArrayList<>(reader.getFileHeader().getSampleNamesInOrder()));
+            samplesKey = hashSamples(samples);
+            idle.push(reader);
+        }
+
+        public boolean isCurrent()
+        {
+            return vcf.lastModified() == lastModified;
+        }
+
+        public VCFFileReader borrow()
+        {
+            //NOTE: if the pool was closed because the file changed, a request already using it gets a new reader, which is closed on release
+            synchronized (this)
+            {
+                if (!closed && !idle.isEmpty())
+                {
+                    return idle.pop();
+                }
+            }
+
+            return new VCFFileReader(vcf);
+        }
+
+        public void release(VCFFileReader reader)
+        {
+            synchronized (this)
+            {
+                if (!closed && idle.size() < MAX_IDLE_READERS)
+                {
+                    idle.push(reader);
+                    return;
+                }
+            }
+
+            closeReader(reader);
+        }
+
+        public void close()
+        {
+            List<VCFFileReader> toClose;
+            synchronized (this)
+            {
+                closed = true;
+                toClose = new ArrayList<>(idle);
+                idle.clear();
+            }
+
+            toClose.forEach(this::closeReader);
+        }
+
+        private void closeReader(VCFFileReader reader)
+        {
+            try
+            {
+                reader.close();
+            }
+            catch (Exception e)
+            {
+                _log.error("Unable to close reader for: " + vcf.getPath(), e);
+            }
+        }
+    }
+
+    private static String hashSamples(List<String> samples)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String sample : samples)
+            {
+                digest.update(sample.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte)0);
+            }
+
+            return HexFormat.of().formatHex(digest.digest());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
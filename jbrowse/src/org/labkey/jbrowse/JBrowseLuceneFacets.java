@@ -0,0 +1,334 @@
+package org.labkey.jbrowse;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.search.SortField;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the values of indexed fields over the hits of a query. This reads the doc values that hold every value of a field (the field name plus "_facet"),
+ * so no stored fields are decoded. String fields are counted per distinct value, and numeric fields are counted in equal-width bins
+ * between the smallest and largest matching value. Each value of a multi-valued field is counted.
+ * Indexes created before the facet doc values existed fall back to the sort doc values, which only hold the first value.
+ */
+public class JBrowseLuceneFacets
+{
+    public static final String FACET_SUFFIX = "_facet";
+    private static final String SORT_SUFFIX = "_sort";
+
+    private final List<String> _fieldNames;
+    private final List<String> _stringFields = new ArrayList<>();
+    private final Map<String, SortField.Type> _numericFields = new HashMap<>();
+    private final int _bins;
+    private final int _limit;
+
+    /**
+     * @param fieldTypes The fields to count, in the order they should be reported. STRING fields are counted by value, and LONG or DOUBLE fields are binned.
+     * @param bins The number of bins for numeric fields
+     * @param limit The maximum number of distinct values reported for string fields. Other values are summed into otherCount.
+     */
+    public JBrowseLuceneFacets(Map<String, SortField.Type> fieldTypes, int bins, int limit)
+    {
+        _fieldNames = new ArrayList<>(fieldTypes.keySet());
+        for (Map.Entry<String, SortField.Type> e : fieldTypes.entrySet())
+        {
+            if (e.getValue() == SortField.Type.STRING)
+            {
+                _stringFields.add(e.getKey());
+            }
+            else
+            {
+                _numericFields.put(e.getKey(), e.getValue());
+            }
+        }
+
+        _bins = bins;
+        _limit = limit;
+    }
+
+    public JSONObject compute(IndexSearcher searcher, Query query) throws IOException
+    {
+        // The first pass counts strings and finds the range of each numeric field, which the second pass needs to place the bins.
+        // The filter is usually in the query cache after the first pass, so the second pass does not re-run the query.
+        SummaryCollector summary = new SummaryCollector();
+        searcher.search(query, summary);
+        summary.finishLeaf();
+
+        BinCollector bins = null;
+        if (!_numericFields.isEmpty() && summary._hits > 0)
+        {
+            bins = new BinCollector(summary);
+            searcher.search(query, bins);
+        }
+
+        JSONArray facets = new JSONArray();
+        for (String field : _fieldNames)
+        {
+            JSONObject facet = new JSONObject();
+            facet.put("field", field);
+            if (_numericFields.containsKey(field))
+            {
+                int idx = _fieldNames.indexOf(field);
+                facet.put("type", "numeric");
+                facet.put("missingCount", summary._hits - summary._numericCounts[idx]);
+                if (summary._numericCounts[idx] > 0)
+                {
+                    facet.put("min", summary._min[idx]);
+                    facet.put("max", summary._max[idx]);
+
+                    JSONArray arr = new JSONArray();
+                    double width = getBinWidth(summary, idx);
+                    for (int i = 0; i < bins._counts[idx].length; i++)
+                    {
+                        JSONObject bin = new JSONObject();
+                        bin.put("start", summary._min[idx] + (i * width));
+                        bin.put("end", i == bins._counts[idx].length - 1 ? summary._max[idx] : summary._min[idx] + ((i + 1) * width));
+                        bin.put("count", bins._counts[idx][i]);
+                        arr.put(bin);
+                    }
+                    facet.put("bins", arr);
+                }
+                else
+                {
+                    facet.put("bins", new JSONArray());
+                }
+            }
+            else
+            {
+                Map<String, Long> counts = summary._stringCounts.get(field);
+                List<Map.Entry<String, Long>> sorted = new ArrayList<>(counts.entrySet());
+                sorted.sort(Map.Entry.<String, Long>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+
+                JSONArray arr = new JSONArray();
+                long total = 0;
+                long other = 0;
+                for (int i = 0; i < sorted.size(); i++)
+                {
+                    total += sorted.get(i).getValue();
+                    if (i < _limit)
+                    {
+                        JSONObject value = new JSONObject();
+                        value.put("value", sorted.get(i).getKey());
+                        value.put("count", sorted.get(i).getValue());
+                        arr.put(value);
+                    }
+                    else
+                    {
+                        other += sorted.get(i).getValue();
+                    }
+                }
+
+                facet.put("type", "string");
+                facet.put("values", arr);
+                facet.put("distinctValues", sorted.size());
+                facet.put("otherCount", other);
+                facet.put("missingCount", summary._hits - summary._stringDocs[_stringFields.indexOf(field)]);
+                facet.put("totalCount", total);
+            }
+
+            facets.put(facet);
+        }
+
+        JSONObject ret = new JSONObject();
+        ret.put("totalHits", summary._hits);
+        ret.put("facets", facets);
+
+        return ret;
+    }
+
+    private double getBinWidth(SummaryCollector summary, int idx)
+    {
+        return (summary._max[idx] - summary._min[idx]) / _bins;
+    }
+
+    private static String getDocValuesField(LeafReaderContext context, String field)
+    {
+        return context.reader().getFieldInfos().fieldInfo(field + FACET_SUFFIX) == null ? field + SORT_SUFFIX : field + FACET_SUFFIX;
+    }
+
+    private static double toDouble(long value, SortField.Type type)
+    {
+        return type == SortField.Type.DOUBLE ? Double.longBitsToDouble(value) : value;
+    }
+
+    private class SummaryCollector extends SimpleCollector
+    {
+        private long _hits = 0;
+
+        // Counts for the current segment, by ordinal, which are converted to values when the segment is done
+        private final SortedSetDocValues[] _stringValues = new SortedSetDocValues[_stringFields.size()];
+        private final int[][] _ordCounts = new int[_stringFields.size()][];
+        private final Map<String, Map<String, Long>> _stringCounts = new HashMap<>();
+        private final long[] _stringDocs = new long[_stringFields.size()];
+
+        // These are indexed by position in _fieldNames
+        private final SortedNumericDocValues[] _numericValues = new SortedNumericDocValues[_fieldNames.size()];
+        private final long[] _numericCounts = new long[_fieldNames.size()];
+        private final double[] _min = new double[_fieldNames.size()];
+        private final double[] _max = new double[_fieldNames.size()];
+
+        public SummaryCollector()
+        {
+            for (String field : _stringFields)
+            {
+                _stringCounts.put(field, new HashMap<>());
+            }
+
+            Arrays.fill(_min, Double.POSITIVE_INFINITY);
+            Arrays.fill(_max, Double.NEGATIVE_INFINITY);
+        }
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) throws IOException
+        {
+            finishLeaf();
+
+            for (int i = 0; i < _stringFields.size(); i++)
+            {
+                _stringValues[i] = DocValues.getSortedSet(context.reader(), getDocValuesField(context, _stringFields.get(i)));
+                _ordCounts[i] = new int[(int)_stringValues[i].getValueCount()];
+            }
+
+            for (int i = 0; i < _fieldNames.size(); i++)
+            {
+                if (_numericFields.containsKey(_fieldNames.get(i)))
+                {
+                    _numericValues[i] = DocValues.getSortedNumeric(context.reader(), getDocValuesField(context, _fieldNames.get(i)));
+                }
+            }
+        }
+
+        @Override
+        public void collect(int doc) throws IOException
+        {
+            _hits++;
+
+            for (int i = 0; i < _stringValues.length; i++)
+            {
+                if (_stringValues[i].advanceExact(doc))
+                {
+                    for (int j = 0; j < _stringValues[i].docValueCount(); j++)
+                    {
+                        _ordCounts[i][(int)_stringValues[i].nextOrd()]++;
+                    }
+
+                    _stringDocs[i]++;
+                }
+            }
+
+            for (int i = 0; i < _numericValues.length; i++)
+            {
+                if (_numericValues[i] != null && _numericValues[i].advanceExact(doc))
+                {
+                    for (int j = 0; j < _numericValues[i].docValueCount(); j++)
+                    {
+                        double value = toDouble(_numericValues[i].nextValue(), _numericFields.get(_fieldNames.get(i)));
+                        _min[i] = Math.min(_min[i], value);
+                        _max[i] = Math.max(_max[i], value);
+                    }
+
+                    _numericCounts[i]++;
+                }
+            }
+        }
+
+        private void finishLeaf() throws IOException
+        {
+            for (int i = 0; i < _stringValues.length; i++)
+            {
+                if (_stringValues[i] == null)
+                {
+                    continue;
+                }
+
+                Map<String, Long> counts = _stringCounts.get(_stringFields.get(i));
+                for (int ord = 0; ord < _ordCounts[i].length; ord++)
+                {
+                    if (_ordCounts[i][ord] > 0)
+                    {
+                        counts.merge(_stringValues[i].lookupOrd(ord).utf8ToString(), (long)_ordCounts[i][ord], Long::sum);
+                    }
+                }
+
+                _stringValues[i] = null;
+                _ordCounts[i] = null;
+            }
+        }
+
+        @Override
+        public ScoreMode scoreMode()
+        {
+            return ScoreMode.COMPLETE_NO_SCORES;
+        }
+    }
+
+    private class BinCollector extends SimpleCollector
+    {
+        private final SummaryCollector _summary;
+        private final SortedNumericDocValues[] _numericValues = new SortedNumericDocValues[_fieldNames.size()];
+        private final long[][] _counts = new long[_fieldNames.size()][];
+
+        public BinCollector(SummaryCollector summary)
+        {
+            _summary = summary;
+            for (int i = 0; i < _fieldNames.size(); i++)
+            {
+                if (_numericFields.containsKey(_fieldNames.get(i)))
+                {
+                    //NOTE: if every value is the same, report a single bin
+                    _counts[i] = new long[summary._min[i] == summary._max[i] ? 1 : _bins];
+                }
+            }
+        }
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) throws IOException
+        {
+            for (int i = 0; i < _fieldNames.size(); i++)
+            {
+                if (_counts[i] != null)
+                {
+                    _numericValues[i] = DocValues.getSortedNumeric(context.reader(), getDocValuesField(context, _fieldNames.get(i)));
+                }
+            }
+        }
+
+        @Override
+        public void collect(int doc) throws IOException
+        {
+            for (int i = 0; i < _numericValues.length; i++)
+            {
+                if (_numericValues[i] != null && _numericValues[i].advanceExact(doc))
+                {
+                    double width = getBinWidth(_summary, i);
+                    for (int j = 0; j < _numericValues[i].docValueCount(); j++)
+                    {
+                        double value = toDouble(_numericValues[i].nextValue(), _numericFields.get(_fieldNames.get(i)));
+                        int bin = width == 0 ? 0 : (int)((value - _summary._min[i]) / width);
+                        _counts[i][Math.max(0, Math.min(bin, _counts[i].length - 1))]++;
+                    }
+                }
+            }
+        }
+
+        @Override
+        public ScoreMode scoreMode()
+        {
+            return ScoreMode.COMPLETE_NO_SCORES;
+        }
+    }
+}
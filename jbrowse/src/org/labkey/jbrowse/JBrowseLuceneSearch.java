@@ -6,8 +6,11 @@
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.StoredFields;
 import org.apache.lucene.queryparser.classic.MultiFieldQueryParser;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.flexible.core.QueryNodeException;
@@ -15,20 +18,26 @@
 import org.apache.lucene.queryparser.flexible.standard.config.PointsConfig;
 import org.apache.lucene.search.BooleanClause;
 import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.FieldDoc;
 import org.apache.lucene.search.IndexSearcher;
 import org.apache.lucene.search.LRUQueryCache;
 import org.apache.lucene.search.MatchAllDocsQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.QueryCachingPolicy;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.Sort;
 import org.apache.lucene.search.SortField;
 import org.apache.lucene.search.TopFieldDocs;
 import org.apache.lucene.search.UsageTrackingQueryCachingPolicy;
 import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.BytesRef;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.labkey.api.cache.Cache;
 import org.labkey.api.cache.CacheLoader;
@@ -48,20 +57,29 @@
 import org.labkey.jbrowse.model.JBrowseSession;
 import org.labkey.jbrowse.model.JsonFile;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -80,8 +98,14 @@
     private static final String GENOMIC_POSITION = "genomicPosition";
     private static final int maxCachedQueries = 1000;
     private static final long maxRamBytesUsed = 250 * 1024 * 1024L;
+    private static final int STORED_FIELDS_BATCH_SIZE = 256;
+    private static final int EXPORT_PAGE_SIZE = 1000;
+    private static final int maxCachedFacets = 100;
 
     private static final Cache<String, CacheEntry> _cache = new LuceneIndexCache();
+    private static final Map<String, Object> _openLocks = new ConcurrentHashMap<>();
+    private static final LongAdder _cacheHits = new LongAdder();
+    private static final LongAdder _cacheMisses = new LongAdder();
 
     private JBrowseLuceneSearch(final JBrowseSession session, final JsonFile jsonFile, User u)
     {
@@ -102,22 +126,34 @@ public static JBrowseLuceneSearch create(String sessionId, String trackId, User
         return new JBrowseLuceneSearch(session, getTrack(session, trackId, u), u);
     }
 
-    private static synchronized CacheEntry getCacheEntryForSession(String trackObjectId, File indexPath) throws IOException {
+    private CacheEntry getCacheEntry(User u)
+    {
+        String trackObjectId = _jsonFile.getObjectId();
         CacheEntry cacheEntry = _cache.get(trackObjectId);
-
-        // Open directory of lucene path, get a directory reader, and create the index search manager
-        if (cacheEntry == null)
+        if (cacheEntry != null)
         {
+            _cacheHits.increment();
+            return cacheEntry;
+        }
+
+        //NOTE: only searches against this track wait while its index is opened
+        return withOpenLock(trackObjectId, () -> {
+            CacheEntry entry = _cache.get(trackObjectId);
+            if (entry != null)
+            {
+                _cacheHits.increment();
+                return entry;
+            }
+
+            _cacheMisses.increment();
+            File indexPath = _jsonFile.getExpectedLocationOfLuceneIndex(true);
             try
             {
-                Directory indexDirectory = FSDirectory.open(indexPath.toPath());
-                LRUQueryCache queryCache = new LRUQueryCache(maxCachedQueries, maxRamBytesUsed);
-                IndexReader indexReader = DirectoryReader.open(indexDirectory);
-                IndexSearcher indexSearcher = new IndexSearcher(indexReader);
-                indexSearcher.setQueryCache(queryCache);
-                indexSearcher.setQueryCachingPolicy(new ForceMatchAllDocsCachingPolicy());
-                cacheEntry = new CacheEntry(queryCache, indexSearcher, indexPath);
-                _cache.put(trackObjectId, cacheEntry);
+                // Field types come from the VCF header and do not depend on the user, so the context can be shared
+                entry = CacheEntry.open(indexPath, JBrowseFieldUtils.getIndexedFields(_jsonFile, u, getContainer()));
+                _cache.put(trackObjectId, entry);
+
+                return entry;
             }
             catch (Exception e)
             {
@@ -125,9 +161,36 @@ private static synchronized CacheEntry getCacheEntryForSession(String trackObjec
 
                 throw new IllegalStateException("Error creating search index reader for: " + trackObjectId);
             }
-        }
+        });
+    }
 
-        return cacheEntry;
+    /**
+     * Runs the action while holding the lock for this track. A lock is only kept in _openLocks while it is held, so the map does
+     * not grow with every track searched, and nothing needs to be removed when the index cache evicts or clears an entry.
+     */
+    private static <T> T withOpenLock(String trackObjectId, Supplier<T> action)
+    {
+        while (true)
+        {
+            Object lock = _openLocks.computeIfAbsent(trackObjectId, k -> new Object());
+            synchronized (lock)
+            {
+                //NOTE: a thread that waited on a lock its holder has since removed takes the current lock instead
+                if (_openLocks.get(trackObjectId) != lock)
+                {
+                    continue;
+                }
+
+                try
+                {
+                    return action.get();
+                }
+                finally
+                {
+                    _openLocks.remove(trackObjectId, lock);
+                }
+            }
+        }
     }
 
     private String templateReplace(final String searchString)
@@ -189,49 +252,16 @@ public String extractFieldName(String queryString)
         return parts.length > 0 ? parts[0].trim() : null;
     }
 
-    public JSONObject doSearch(User u, String searchString, final int pageSize, final int offset, String sortField, boolean sortReverse) throws IOException, ParseException
+    private PreparedQuery prepareQuery(User u, String searchString, String sortField, boolean sortReverse) throws IOException, ParseException
     {
         searchString = tryUrlDecode(searchString);
-        File indexPath = _jsonFile.getExpectedLocationOfLuceneIndex(true);
-        Map<String, JBrowseFieldDescriptor> fields = JBrowseFieldUtils.getIndexedFields(_jsonFile, u, getContainer());
-
-        CacheEntry cacheEntry = getCacheEntryForSession(_jsonFile.getObjectId(), indexPath);
-        Analyzer analyzer = new StandardAnalyzer();
-
-        List<String> stringQueryParserFields = new ArrayList<>();
-        Map<String, SortField.Type> numericQueryParserFields = new HashMap<>();
-        PointsConfig intPointsConfig = new PointsConfig(new DecimalFormat(), Integer.class);
-        PointsConfig doublePointsConfig = new PointsConfig(new DecimalFormat(), Double.class);
-        Map<String, PointsConfig> pointsConfigMap = new HashMap<>();
-
-        // Iterate fields and split them into fields for the queryParser and the numericQueryParser
-        for (Map.Entry<String, JBrowseFieldDescriptor> entry : fields.entrySet())
-        {
-            String field = entry.getKey();
-            JBrowseFieldDescriptor descriptor = entry.getValue();
-
-            switch(descriptor.getType())
-            {
-                case Flag, String, Character -> stringQueryParserFields.add(field);
-                case Float -> {
-                    numericQueryParserFields.put(field, SortField.Type.DOUBLE);
-                    pointsConfigMap.put(field, doublePointsConfig);
-                }
-                case Integer -> {
-                    numericQueryParserFields.put(field, SortField.Type.LONG);
-                    pointsConfigMap.put(field, intPointsConfig);
-                }
-            }
-        }
+        CacheEntry cacheEntry = getCacheEntry(u);
+        SearchContext context = cacheEntry.getSearchContext();
 
         // The numericQueryParser can perform range queries, but numeric fields they can't be indexed alongside
         // lexicographic  fields, so they get split into a separate parser
-        MultiFieldQueryParser queryParser = new MultiFieldQueryParser(stringQueryParserFields.toArray(new String[0]), new StandardAnalyzer());
-        queryParser.setAllowLeadingWildcard(true);
-
-        StandardQueryParser numericQueryParser = new StandardQueryParser();
-        numericQueryParser.setAnalyzer(analyzer);
-        numericQueryParser.setPointsConfigMap(pointsConfigMap);
+        MultiFieldQueryParser queryParser = context.createQueryParser();
+        StandardQueryParser numericQueryParser = context.createNumericQueryParser();
 
         BooleanQuery.Builder booleanQueryBuilder = new BooleanQuery.Builder();
 
@@ -255,11 +285,11 @@ public JSONObject doSearch(User u, String searchString, final int pageSize, fina
                 queryString = templateReplace(queryString);
             }
 
-            if (stringQueryParserFields.contains(fieldName))
+            if (context.stringFields.contains(fieldName))
             {
                 query = queryParser.parse(queryString);
             }
-            else if (numericQueryParserFields.containsKey(fieldName))
+            else if (context.numericFields.containsKey(fieldName))
             {
                 try
                 {
@@ -291,10 +321,10 @@ else if (numericQueryParserFields.containsKey(fieldName))
         if (!sortField.equals(GENOMIC_POSITION)) {
             SortField.Type fieldType;
 
-            if (stringQueryParserFields.contains(sortField)) {
+            if (context.stringFields.contains(sortField)) {
                 fieldType = SortField.Type.STRING;
-            } else if (numericQueryParserFields.containsKey(sortField)) {
-                fieldType = numericQueryParserFields.get(sortField);
+            } else if (context.numericFields.containsKey(sortField)) {
+                fieldType = context.numericFields.get(sortField);
             } else {
                 throw new IllegalArgumentException("Could not find type for sort field: " + sortField);
             }
@@ -302,41 +332,479 @@ else if (numericQueryParserFields.containsKey(fieldName))
             sort = new Sort(new SortField(sortField + "_sort", fieldType, sortReverse));
         }
 
-        // Get chunks of size {pageSize}. Default to 1 chunk -- add to the offset to get more.
-        // We then iterate over the range of documents we want based on the offset. This does grow in memory
-        // linearly with the number of documents, but my understanding is that these are just score,id pairs
-        // rather than full documents, so mem usage *should* still be pretty low.
-        // Perform the search with sorting
-        TopFieldDocs topDocs = cacheEntry.indexSearcher.search(query, pageSize * (offset + 1), sort);
+        String cursorKey = searchString + "\u0000" + sortField + "\u0000" + sortReverse;
 
-        JSONObject results = new JSONObject();
+        return new PreparedQuery(cacheEntry, query, sort, context.fieldNames, cursorKey.hashCode());
+    }
+
+    public JSONObject doSearch(User u, String searchString, final int pageSize, final int offset, String sortField, boolean sortReverse) throws IOException, ParseException
+    {
+        try (SearchResults results = search(u, searchString, pageSize, offset, null, sortField, sortReverse))
+        {
+            return results.toJSON();
+        }
+    }
+
+    /**
+     * Runs one page of the query. If a cursor from a prior page is provided, the page begins immediately after that hit
+     * and the offset is ignored, so the cost of a page does not depend on how deep it is.
+     */
+    public SearchResults search(User u, String searchString, final int pageSize, final int offset, @Nullable String cursor, String sortField, boolean sortReverse) throws IOException, ParseException
+    {
+        PreparedQuery pq = prepareQuery(u, searchString, sortField, sortReverse);
+        try
+        {
+            long readerVersion = getReaderVersion(pq.searcher);
+            long start = System.nanoTime();
+
+            ScoreDoc[] hits;
+            long totalHits;
+            if (cursor == null)
+            {
+                // Get chunks of size {pageSize}. Default to 1 chunk -- add to the offset to get more.
+                // This collects every preceding hit, so clients paging forward should pass the cursor instead.
+                TopFieldDocs topDocs = pq.searcher.search(pq.query, pageSize * (offset + 1), pq.sort);
+                hits = Arrays.copyOfRange(topDocs.scoreDocs, Math.min(pageSize * offset, topDocs.scoreDocs.length), topDocs.scoreDocs.length);
+                totalHits = topDocs.totalHits.value;
+            }
+            else
+            {
+                TopFieldDocs topDocs = pq.searcher.searchAfter(decodeCursor(cursor, pq.cursorKey, readerVersion), pq.query, pageSize, pq.sort);
+                hits = topDocs.scoreDocs;
+                totalHits = topDocs.totalHits.value;
+            }
 
-        // Iterate over the doc list, (either to the total end or until the page ends) grab the requested docs,
-        // and add to returned results
-        List<JSONObject> data = new ArrayList<>();
-        for (int i = pageSize * offset; i < Math.min(pageSize * (offset + 1), topDocs.scoreDocs.length); i++)
+            pq.cacheEntry.recordQuery(System.nanoTime() - start);
+            String nextCursor = hits.length == pageSize && hits.length > 0 ? encodeCursor((FieldDoc)hits[hits.length - 1], pq.cursorKey, readerVersion) : null;
+
+            return new SearchResults(pq, hits, totalHits, nextCursor);
+        }
+        catch (IOException | RuntimeException e)
         {
-            JSONObject elem = new JSONObject();
-            Document doc = cacheEntry.indexSearcher.storedFields().document(topDocs.scoreDocs[i].doc);
+            pq.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes every hit of the query as TSV, with one column per indexed field. Hits are read one page at a time using searchAfter,
+     * so memory use does not grow with the size of the result.
+     */
+    public void exportTsv(User u, String searchString, String sortField, boolean sortReverse, WriterFactory writerFactory) throws IOException, ParseException
+    {
+        try (PreparedQuery pq = prepareQuery(u, searchString, sortField, sortReverse))
+        {
+            Writer out = writerFactory.getWriter();
+            out.write(String.join("\t", pq.fieldNames));
+            out.write('\n');
+
+            FieldDoc after = null;
+            while (true)
+            {
+                TopFieldDocs topDocs = after == null ? pq.searcher.search(pq.query, EXPORT_PAGE_SIZE, pq.sort) : pq.searcher.searchAfter(after, pq.query, EXPORT_PAGE_SIZE, pq.sort);
+                if (topDocs.scoreDocs.length == 0)
+                {
+                    break;
+                }
+
+                forEachDocument(pq.searcher, topDocs.scoreDocs, doc -> {
+                    for (int i = 0; i < pq.fieldNames.size(); i++)
+                    {
+                        if (i > 0)
+                        {
+                            out.write('\t');
+                        }
+
+                        List<String> values = new ArrayList<>();
+                        for (IndexableField field : doc.getFields(pq.fieldNames.get(i)))
+                        {
+                            values.add(field.stringValue() == null ? String.valueOf(field.numericValue()) : field.stringValue());
+                        }
+                        out.write(StringUtils.replaceChars(String.join(",", values), "\t\r\n", "   "));
+                    }
+                    out.write('\n');
+                });
+
+                if (topDocs.scoreDocs.length < EXPORT_PAGE_SIZE)
+                {
+                    break;
+                }
+
+                after = (FieldDoc)topDocs.scoreDocs[topDocs.scoreDocs.length - 1];
+            }
 
-            for (IndexableField field : doc.getFields()) {
-                String fieldName = field.name();
-                String[] fieldValues = doc.getValues(fieldName);
-                if (fieldValues.length > 1) {
-                    elem.put(fieldName, fieldValues);
-                } else {
-                    elem.put(fieldName, fieldValues[0]);
+            out.flush();
+        }
+    }
+
+    /**
+     * Counts values of the given fields over every hit of the query. Results are cached per track until its index is reopened.
+     *
+     * @see JBrowseLuceneFacets
+     */
+    public JSONObject getFacets(User u, String searchString, List<String> fieldNames, int bins, int limit) throws IOException, ParseException
+    {
+        try (PreparedQuery pq = prepareQuery(u, searchString, GENOMIC_POSITION, false))
+        {
+            SearchContext context = pq.cacheEntry.getSearchContext();
+            Map<String, SortField.Type> fieldTypes = new LinkedHashMap<>();
+            for (String field : fieldNames)
+            {
+                if (context.stringFields.contains(field))
+                {
+                    fieldTypes.put(field, SortField.Type.STRING);
+                }
+                else if (context.numericFields.containsKey(field))
+                {
+                    fieldTypes.put(field, context.numericFields.get(field));
+                }
+                else
+                {
+                    throw new IllegalArgumentException("No such field: " + field);
                 }
             }
 
-            data.add(elem);
+            String cacheKey = getReaderVersion(pq.searcher) + "||" + pq.query + "||" + fieldTypes.keySet() + "||" + bins + "||" + limit;
+            JSONObject ret = pq.cacheEntry.getCachedFacets(cacheKey);
+            if (ret == null)
+            {
+                long start = System.nanoTime();
+                ret = new JBrowseLuceneFacets(fieldTypes, bins, limit).compute(pq.searcher, pq.query);
+                pq.cacheEntry.recordQuery(System.nanoTime() - start);
+                pq.cacheEntry.cacheFacets(cacheKey, ret);
+            }
+
+            return ret;
         }
+    }
 
-        results.put("data", data);
-        results.put("totalHits", topDocs.totalHits.value);
+    private static long getReaderVersion(IndexSearcher searcher)
+    {
+        return searcher.getIndexReader() instanceof DirectoryReader dr ? dr.getVersion() : 0;
+    }
 
-        //TODO: we should probably stream this
-        return results;
+    /**
+     * The cursor records the sort values and doc ID of the last hit, along with the reader version and a hash of the query,
+     * since doc IDs are only meaningful for the same reader and the sort values only for the same query.
+     */
+    private static String encodeCursor(FieldDoc last, int cursorKey, long readerVersion)
+    {
+        JSONArray values = new JSONArray();
+        for (Object o : last.fields)
+        {
+            if (o == null)
+            {
+                values.put("n");
+            }
+            else if (o instanceof Integer i)
+            {
+                values.put("i:" + i);
+            }
+            else if (o instanceof Long l)
+            {
+                values.put("l:" + l);
+            }
+            else if (o instanceof Double d)
+            {
+                values.put("d:" + Double.doubleToLongBits(d));
+            }
+            else if (o instanceof Float f)
+            {
+                values.put("f:" + Float.floatToIntBits(f));
+            }
+            else if (o instanceof BytesRef br)
+            {
+                values.put("s:" + Base64.getUrlEncoder().withoutPadding().encodeToString(Arrays.copyOfRange(br.bytes, br.offset, br.offset + br.length)));
+            }
+            else
+            {
+                throw new IllegalStateException("Unsupported sort value: " + o.getClass().getName());
+            }
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("version", readerVersion);
+        json.put("query", cursorKey);
+        json.put("doc", last.doc);
+        json.put("values", values);
+
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static FieldDoc decodeCursor(String cursor, int cursorKey, long readerVersion)
+    {
+        JSONObject json;
+        try
+        {
+            json = new JSONObject(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+        }
+        catch (IllegalArgumentException | JSONException e)
+        {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor);
+        }
+
+        if (json.optInt("query") != cursorKey)
+        {
+            throw new IllegalArgumentException("The cursor does not match this query");
+        }
+
+        if (json.optLong("version") != readerVersion)
+        {
+            throw new IllegalArgumentException("The search index has changed since this cursor was created, please restart the search");
+        }
+
+        JSONArray values = json.getJSONArray("values");
+        Object[] fields = new Object[values.length()];
+        for (int i = 0; i < fields.length; i++)
+        {
+            String val = values.getString(i);
+            String payload = val.length() > 2 ? val.substring(2) : "";
+            fields[i] = switch (val.charAt(0))
+            {
+                case 'n' -> null;
+                case 'i' -> Integer.parseInt(payload);
+                case 'l' -> Long.parseLong(payload);
+                case 'd' -> Double.longBitsToDouble(Long.parseLong(payload));
+                case 'f' -> Float.intBitsToFloat(Integer.parseInt(payload));
+                case 's' -> new BytesRef(Base64.getUrlDecoder().decode(payload));
+                default -> throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            };
+        }
+
+        return new FieldDoc(json.getInt("doc"), Float.NaN, fields);
+    }
+
+    /**
+     * Supplies the output for an export. This is only called once the query has been parsed, so a bad query can still be reported as an error.
+     */
+    public interface WriterFactory
+    {
+        Writer getWriter() throws IOException;
+    }
+
+    private interface DocumentHandler
+    {
+        void handle(Document doc) throws IOException;
+    }
+
+    /**
+     * Decodes stored fields in batches. Within each batch, documents are read in doc ID order so the compressed stored-field
+     * blocks are visited sequentially, and are then passed to the handler in hit order.
+     */
+    private static void forEachDocument(IndexSearcher searcher, ScoreDoc[] hits, DocumentHandler handler) throws IOException
+    {
+        StoredFields storedFields = searcher.storedFields();
+        Document[] batch = new Document[Math.min(hits.length, STORED_FIELDS_BATCH_SIZE)];
+        long[] order = new long[batch.length];
+        for (int start = 0; start < hits.length; start += STORED_FIELDS_BATCH_SIZE)
+        {
+            int size = Math.min(STORED_FIELDS_BATCH_SIZE, hits.length - start);
+            for (int i = 0; i < size; i++)
+            {
+                order[i] = ((long)hits[start + i].doc << 32) | i;
+            }
+            Arrays.sort(order, 0, size);
+
+            for (int i = 0; i < size; i++)
+            {
+                batch[(int)order[i]] = storedFields.document((int)(order[i] >>> 32));
+            }
+
+            for (int i = 0; i < size; i++)
+            {
+                handler.handle(batch[i]);
+                batch[i] = null;
+            }
+        }
+    }
+
+    private static JSONObject documentToJSON(Document doc)
+    {
+        JSONObject elem = new JSONObject();
+        for (IndexableField field : doc.getFields()) {
+            String fieldName = field.name();
+            String[] fieldValues = doc.getValues(fieldName);
+            if (fieldValues.length > 1) {
+                elem.put(fieldName, fieldValues);
+            } else {
+                elem.put(fieldName, fieldValues[0]);
+            }
+        }
+
+        return elem;
+    }
+
+    /**
+     * The parts of query parsing that depend only on the track's indexed fields. This is built once when the index is opened and shared by all searches.
+     * The query parsers and PointsConfig formats are not thread-safe, so those are created per query.
+     */
+    public static class SearchContext
+    {
+        private final List<String> fieldNames;
+        private final Set<String> stringFields;
+        private final Map<String, SortField.Type> numericFields;
+        private final Set<String> longPointFields;
+        private final Analyzer analyzer = new StandardAnalyzer();
+
+        /**
+         * @param reader Used to find which Integer fields were indexed as LongPoint. Older indexes store genomicPosition as an IntPoint.
+         */
+        public static SearchContext create(Map<String, JBrowseFieldDescriptor> fields, IndexReader reader)
+        {
+            Set<String> longPointFields = new HashSet<>();
+            for (FieldInfo fi : FieldInfos.getMergedFieldInfos(reader))
+            {
+                if (fi.getPointDimensionCount() > 0 && fi.getPointNumBytes() == Long.BYTES)
+                {
+                    longPointFields.add(fi.name);
+                }
+            }
+
+            return new SearchContext(fields, longPointFields);
+        }
+
+        private SearchContext(Map<String, JBrowseFieldDescriptor> fields, Set<String> longPointFields)
+        {
+            Set<String> stringFields = new HashSet<>();
+            Map<String, SortField.Type> numericFields = new HashMap<>();
+
+            // Iterate fields and split them into fields for the queryParser and the numericQueryParser
+            for (Map.Entry<String, JBrowseFieldDescriptor> entry : fields.entrySet())
+            {
+                switch(entry.getValue().getType())
+                {
+                    case Flag, String, Character -> stringFields.add(entry.getKey());
+                    case Float -> numericFields.put(entry.getKey(), SortField.Type.DOUBLE);
+                    case Integer -> numericFields.put(entry.getKey(), SortField.Type.LONG);
+                }
+            }
+
+            this.fieldNames = List.copyOf(fields.keySet());
+            this.stringFields = Collections.unmodifiableSet(stringFields);
+            this.numericFields = Collections.unmodifiableMap(numericFields);
+            this.longPointFields = Collections.unmodifiableSet(longPointFields);
+        }
+
+        public MultiFieldQueryParser createQueryParser()
+        {
+            MultiFieldQueryParser queryParser = new MultiFieldQueryParser(stringFields.toArray(new String[0]), analyzer);
+            queryParser.setAllowLeadingWildcard(true);
+
+            return queryParser;
+        }
+
+        public StandardQueryParser createNumericQueryParser()
+        {
+            PointsConfig intPointsConfig = new PointsConfig(new DecimalFormat(), Integer.class);
+            PointsConfig longPointsConfig = new PointsConfig(new DecimalFormat(), Long.class);
+            PointsConfig doublePointsConfig = new PointsConfig(new DecimalFormat(), Double.class);
+            Map<String, PointsConfig> pointsConfigMap = new HashMap<>();
+            numericFields.forEach((field, type) -> pointsConfigMap.put(field, type == SortField.Type.DOUBLE ? doublePointsConfig : longPointFields.contains(field) ? longPointsConfig : intPointsConfig));
+
+            StandardQueryParser numericQueryParser = new StandardQueryParser();
+            numericQueryParser.setAnalyzer(analyzer);
+            numericQueryParser.setPointsConfigMap(pointsConfigMap);
+
+            return numericQueryParser;
+        }
+    }
+
+    /**
+     * A parsed query and the searcher acquired to run it. Closing this releases the searcher.
+     */
+    private static class PreparedQuery implements Closeable
+    {
+        private final CacheEntry cacheEntry;
+        private final IndexSearcher searcher;
+        private final Query query;
+        private final Sort sort;
+        private final List<String> fieldNames;
+        private final int cursorKey;
+
+        public PreparedQuery(CacheEntry cacheEntry, Query query, Sort sort, List<String> fieldNames, int cursorKey) throws IOException
+        {
+            this.cacheEntry = cacheEntry;
+            this.query = query;
+            this.sort = sort;
+            this.fieldNames = fieldNames;
+            this.cursorKey = cursorKey;
+            this.searcher = cacheEntry.acquire();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            cacheEntry.release(searcher);
+        }
+    }
+
+    /**
+     * One page of hits. Stored fields are not read until the results are written, so this holds the searcher until it is closed.
+     */
+    public static class SearchResults implements Closeable
+    {
+        private final PreparedQuery preparedQuery;
+        private final IndexSearcher searcher;
+        private final ScoreDoc[] hits;
+        private final long totalHits;
+        private final @Nullable String nextCursor;
+
+        private SearchResults(PreparedQuery preparedQuery, ScoreDoc[] hits, long totalHits, @Nullable String nextCursor)
+        {
+            this.preparedQuery = preparedQuery;
+            this.searcher = preparedQuery.searcher;
+            this.hits = hits;
+            this.totalHits = totalHits;
+            this.nextCursor = nextCursor;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            preparedQuery.close();
+        }
+
+        public long getTotalHits()
+        {
+            return totalHits;
+        }
+
+        public @Nullable String getNextCursor()
+        {
+            return nextCursor;
+        }
+
+        public JSONObject toJSON() throws IOException
+        {
+            List<JSONObject> data = new ArrayList<>(hits.length);
+            forEachDocument(searcher, hits, doc -> data.add(documentToJSON(doc)));
+
+            JSONObject results = new JSONObject();
+            results.put("data", data);
+            results.put("totalHits", totalHits);
+            results.put("nextCursor", nextCursor == null ? JSONObject.NULL : nextCursor);
+
+            return results;
+        }
+
+        /**
+         * Writes the same object as toJSON(), one row at a time.
+         */
+        public void writeJSON(Writer out) throws IOException
+        {
+            out.write("{\"totalHits\":" + totalHits + ",\"nextCursor\":" + (nextCursor == null ? "null" : JSONObject.quote(nextCursor)) + ",\"data\":[");
+            boolean[] first = {true};
+            forEachDocument(searcher, hits, doc -> {
+                if (!first[0])
+                {
+                    out.write(',');
+                }
+                first[0] = false;
+                out.write(documentToJSON(doc).toString());
+            });
+            out.write("]}");
+            out.flush();
+        }
     }
 
     public static class DefaultJBrowseFieldCustomizer extends AbstractJBrowseFieldCustomizer
@@ -473,7 +941,7 @@ private void closeReader(@Nullable CacheEntry entry)
 
             try
             {
-                entry.getIndexSearcher().getIndexReader().close();
+                entry.close();
             }
             catch (IOException e)
             {
@@ -530,17 +998,96 @@ public Cache<String, CacheEntry> createTemporaryCache()
         }
     }
 
-    public static class CacheEntry
+    public static class CacheEntry implements Closeable
     {
         private final LRUQueryCache queryCache;
-        private final IndexSearcher indexSearcher;
+        private final Directory indexDirectory;
+        private final SearcherManager searcherManager;
+        private final SearchContext searchContext;
         private final File luceneIndexDir;
+        private final long openTimeMillis;
+        private final LongAdder queryCount = new LongAdder();
+        private final LongAdder queryNanos = new LongAdder();
+        private final LongAccumulator maxQueryNanos = new LongAccumulator(Math::max, 0);
+        private final Map<String, JSONObject> facetCache = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, JSONObject> eldest)
+            {
+                return size() > maxCachedFacets;
+            }
+        });
 
-        public CacheEntry(LRUQueryCache queryCache, IndexSearcher indexSearcher, File luceneIndexDir)
+        private CacheEntry(LRUQueryCache queryCache, Directory indexDirectory, SearcherManager searcherManager, SearchContext searchContext, File luceneIndexDir, long openTimeMillis)
         {
             this.queryCache = queryCache;
-            this.indexSearcher = indexSearcher;
+            this.indexDirectory = indexDirectory;
+            this.searcherManager = searcherManager;
+            this.searchContext = searchContext;
             this.luceneIndexDir = luceneIndexDir;
+            this.openTimeMillis = openTimeMillis;
+        }
+
+        private static CacheEntry open(File luceneIndexDir, Map<String, JBrowseFieldDescriptor> fields) throws IOException
+        {
+            long start = System.currentTimeMillis();
+            LRUQueryCache queryCache = new LRUQueryCache(maxCachedQueries, maxRamBytesUsed);
+            Directory indexDirectory = new MMapDirectory(luceneIndexDir.toPath());
+            SearcherManager searcherManager = new SearcherManager(indexDirectory, new SearcherFactory()
+            {
+                @Override
+                public IndexSearcher newSearcher(IndexReader reader, IndexReader previousReader)
+                {
+                    IndexSearcher indexSearcher = new IndexSearcher(reader);
+                    indexSearcher.setQueryCache(queryCache);
+                    indexSearcher.setQueryCachingPolicy(new ForceMatchAllDocsCachingPolicy());
+
+                    return indexSearcher;
+                }
+            });
+
+            SearchContext searchContext;
+            IndexSearcher searcher = searcherManager.acquire();
+            try
+            {
+                searchContext = SearchContext.create(fields, searcher.getIndexReader());
+            }
+            finally
+            {
+                searcherManager.release(searcher);
+            }
+
+            return new CacheEntry(queryCache, indexDirectory, searcherManager, searchContext, luceneIndexDir, System.currentTimeMillis() - start);
+        }
+
+        /**
+         * Every searcher acquired must be passed to release(). Searchers acquired before a refresh or close remain usable until released.
+         */
+        public IndexSearcher acquire() throws IOException
+        {
+            return searcherManager.acquire();
+        }
+
+        public void release(IndexSearcher indexSearcher) throws IOException
+        {
+            searcherManager.release(indexSearcher);
+        }
+
+        private void recordQuery(long nanos)
+        {
+            queryCount.increment();
+            queryNanos.add(nanos);
+            maxQueryNanos.accumulate(nanos);
+        }
+
+        private @Nullable JSONObject getCachedFacets(String key)
+        {
+            return facetCache.get(key);
+        }
+
+        private void cacheFacets(String key, JSONObject facets)
+        {
+            facetCache.put(key, facets);
         }
 
         public LRUQueryCache getQueryCache()
@@ -548,28 +1095,64 @@ public LRUQueryCache getQueryCache()
             return queryCache;
         }
 
-        public IndexSearcher getIndexSearcher()
+        private SearchContext getSearchContext()
         {
-            return indexSearcher;
+            return searchContext;
         }
 
         public File getLuceneIndexDir()
         {
             return luceneIndexDir;
         }
+
+        public JSONObject getMetrics()
+        {
+            JSONObject info = new JSONObject();
+            info.put("luceneIndexDir", luceneIndexDir.getPath());
+            info.put("openTimeMs", openTimeMillis);
+
+            long count = queryCount.sum();
+            info.put("queryCount", count);
+            info.put("meanQueryMs", count == 0 ? 0 : (queryNanos.sum() / count) / 1000000.0);
+            info.put("maxQueryMs", maxQueryNanos.get() / 1000000.0);
+            info.put("cachedFacets", facetCache.size());
+
+            return info;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            try
+            {
+                searcherManager.close();
+            }
+            finally
+            {
+                indexDirectory.close();
+            }
+        }
     }
 
     public static JSONArray reportCacheInfo()
     {
         JSONArray cacheInfo = new JSONArray();
-        for (String sessionId : _cache.getKeys())
+        for (String trackId : _cache.getKeys())
         {
-            LRUQueryCache qc = _cache.get(sessionId).getQueryCache();
-            JSONObject info = new JSONObject();
+            CacheEntry entry = _cache.get(trackId);
+            if (entry == null)
+            {
+                continue;
+            }
+
+            LRUQueryCache qc = entry.getQueryCache();
+            JSONObject info = entry.getMetrics();
+            info.put("trackId", trackId);
             info.put("cacheSize", qc.getCacheSize());
             info.put("cacheCount", qc.getCacheCount());
             info.put("hitCount", qc.getHitCount());
             info.put("missCount", qc.getMissCount());
+            info.put("hitRate", getHitRate(qc.getHitCount(), qc.getMissCount()));
             info.put("evictionCount", qc.getEvictionCount());
             info.put("totalCount", qc.getTotalCount());
             cacheInfo.put(info);
@@ -578,6 +1161,25 @@ public static JSONArray reportCacheInfo()
         return cacheInfo;
     }
 
+    /**
+     * @return How often searches found their track's index already open
+     */
+    public static JSONObject reportIndexCacheInfo()
+    {
+        JSONObject info = new JSONObject();
+        info.put("openIndexes", _cache.getKeys().size());
+        info.put("hitCount", _cacheHits.sum());
+        info.put("missCount", _cacheMisses.sum());
+        info.put("hitRate", getHitRate(_cacheHits.sum(), _cacheMisses.sum()));
+
+        return info;
+    }
+
+    private static double getHitRate(long hits, long misses)
+    {
+        return hits + misses == 0 ? 0 : (double)hits / (hits + misses);
+    }
+
     public void cacheDefaultQuery()
     {
         try
@@ -616,7 +1218,12 @@ public static void clearCache(@Nullable String jbrowseTrackId)
         }
         else
         {
-            _cache.remove(jbrowseTrackId);
+            //NOTE: the searcher manager is not refreshed after a reindex, since the index directory is replaced and the field types may change.
+            //Removing the entry closes it, and the next search opens the new index.
+            withOpenLock(jbrowseTrackId, () -> {
+                _cache.remove(jbrowseTrackId);
+                return null;
+            });
         }
     }
 
@@ -639,6 +1246,7 @@ public void shutdownStarted()
         {
             _log.info("Clearing all open JBrowse/Lucene cached readers");
             JBrowseLuceneSearch.emptyCache();
+            JBrowseGenotypeService.get().clearCache();
         }
     }
 }
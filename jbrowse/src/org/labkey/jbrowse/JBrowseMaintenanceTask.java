@@ -24,6 +24,7 @@
 import org.labkey.api.util.SystemMaintenance.MaintenanceTask;
 import org.labkey.jbrowse.model.JBrowseSession;
 import org.labkey.jbrowse.model.JsonFile;
+import org.labkey.jbrowse.pipeline.JsonFilePreparer;
 
 import java.io.File;
 import java.io.IOException;
@@ -287,7 +288,7 @@ private void processContainer(Container c, Logger log) throws IOException
                     try
                     {
                         User u = LDKService.get().getBackgroundAdminUser();
-                        j.prepareResource(u, log, false, true);
+                        JsonFilePreparer.prepare(j, u, log, true);
                     }
                     catch (Exception e)
                     {
@@ -43,6 +43,7 @@
 import org.labkey.jbrowse.button.ReprocessSessionsButton;
 import org.labkey.jbrowse.pipeline.IndexVariantsStep;
 import org.labkey.jbrowse.pipeline.JBrowseSessionPipelineProvider;
+import org.labkey.jbrowse.pipeline.VcfLuceneIndexer;
 import org.labkey.jbrowse.query.JBrowseUserSchema;
 
 import java.util.Collection;
@@ -144,7 +145,8 @@ public Set<String> getSchemaNames()
     public Set<Class> getUnitTests()
     {
         return PageFlowUtil.set(
-                JBrowseManager.TestCase.class
+                JBrowseManager.TestCase.class,
+                VcfLuceneIndexer.TestCase.class
         );
     }
 }
\ No newline at end of file
@@ -34,6 +34,7 @@
 import org.labkey.jbrowse.pipeline.IndexVariantsStep;
 import org.labkey.jbrowse.pipeline.JBrowseLucenePipelineJob;
 import org.labkey.jbrowse.pipeline.JBrowseSessionPipelineJob;
+import org.labkey.jbrowse.pipeline.JsonFilePreparer;
 
 import java.io.BufferedReader;
 import java.io.File;
@@ -82,7 +83,7 @@ public String prepareOutputFile(User u, Logger log, Integer outputFileId, boolea
         {
             try
             {
-                ret.prepareResource(u, log, false, true);
+                JsonFilePreparer.prepare(ret, u, log, true);
             }
             catch (PipelineJobException e)
             {
@@ -3,6 +3,7 @@
 import htsjdk.samtools.util.BlockCompressedOutputStream;
 import org.apache.commons.io.FileUtils;
 import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 import org.labkey.api.data.DbSchema;
 import org.labkey.api.data.DbSchemaType;
 import org.labkey.api.data.SimpleFilter;
@@ -114,10 +115,10 @@ public boolean shouldExist()
     abstract protected TableSelector getSelector();
 
     @Override
-    public File prepareResource(User u, Logger log, boolean throwIfNotPrepared, boolean forceReprocess) throws PipelineJobException
+    public File prepareResource(User u, Logger log, boolean throwIfNotPrepared, boolean forceReprocess, @Nullable Integer luceneThreads) throws PipelineJobException
     {
         createGtf(log, throwIfNotPrepared, forceReprocess);
-        return super.prepareResource(u, log, throwIfNotPrepared, forceReprocess);
+        return super.prepareResource(u, log, throwIfNotPrepared, forceReprocess, luceneThreads);
     }
 
     public void createGtf(Logger log, boolean throwOnNotFound, boolean forceRecreate) throws PipelineJobException
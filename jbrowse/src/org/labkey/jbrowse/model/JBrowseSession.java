@@ -27,6 +27,7 @@
 import org.labkey.api.util.PageFlowUtil;
 import org.labkey.jbrowse.JBrowseManager;
 import org.labkey.jbrowse.JBrowseSchema;
+import org.labkey.jbrowse.pipeline.JsonFilePreparer;
 
 import java.io.File;
 import java.nio.file.Path;
@@ -209,17 +210,13 @@ public List<JsonFile> getJsonFiles(User u, boolean createDatabaseRecordsIfNeeded
 
     public void ensureJsonFilesPrepared(User u, Logger log) throws PipelineJobException
     {
+        JsonFilePreparer preparer = new JsonFilePreparer(u, log);
         for (JsonFile x : getJsonFiles(u, true))
         {
-            try
-            {
-                x.prepareResource(u, log, false, false);
-            }
-            catch (Exception e)
-            {
-                log.error("Unable to process JsonFile: " + getObjectId(), e);
-            }
+            preparer.add(x, false);
         }
+
+        preparer.prepareAll(false);
     }
 
     public JSONObject getConfigJson(User u, Logger log, @Nullable List<String> additionalActiveTracks) throws PipelineJobException
@@ -51,6 +51,7 @@
 import org.labkey.api.util.PageFlowUtil;
 import org.labkey.api.util.Path;
 import org.labkey.api.view.UnauthorizedException;
+import org.labkey.jbrowse.JBrowseGenotypeService;
 import org.labkey.jbrowse.JBrowseLuceneSearch;
 import org.labkey.jbrowse.JBrowseManager;
 import org.labkey.jbrowse.JBrowseSchema;
@@ -813,6 +814,14 @@ protected boolean needsGzip()
     }
 
     public File prepareResource(User u, Logger log, boolean throwIfNotPrepared, boolean forceReprocess) throws PipelineJobException
+    {
+        return prepareResource(u, log, throwIfNotPrepared, forceReprocess, null);
+    }
+
+    /**
+     * @param luceneThreads If provided, the max threads used to build the lucene index. Otherwise the pipeline's max threads are used.
+     */
+    public File prepareResource(User u, Logger log, boolean throwIfNotPrepared, boolean forceReprocess, @Nullable Integer luceneThreads) throws PipelineJobException
     {
         ExpData expData = getExpData();
         if (expData == null)
@@ -965,6 +974,7 @@ public File prepareResource(User u, Logger log, boolean throwIfNotPrepared, bool
             else if (existingLuceneDir != null && existingLuceneDir.exists())
             {
                 JBrowseLuceneSearch.clearCache(getObjectId());
+                JBrowseGenotypeService.get().clearCache(targetFile);
 
                 // Note: this could exist, but be an empty folder:
                 if (luceneDir.exists())
@@ -1000,7 +1010,7 @@ else if (existingLuceneDir != null && existingLuceneDir.exists())
             }
             else if (sizeInGb > 50)
             {
-                log.info("VCF is too large, submitting VcfToLuceneIndexer as a separate pipeline job");
+                log.info("VCF is too large, submitting lucene indexing as a separate pipeline job");
                 final File vcf = targetFile;
                 JobRunner.getDefault().execute(() -> {
                     try
@@ -1031,8 +1041,9 @@ else if (sizeInGb > 50)
 
                 if (forceReprocess || !doesLuceneIndexExist())
                 {
-                    JBrowseLucenePipelineJob.prepareLuceneIndex(targetFile, luceneDir, log, getInfoFieldsToIndex(), allowLenientLuceneProcessing());
+                    JBrowseLucenePipelineJob.prepareLuceneIndex(targetFile, luceneDir, log, getInfoFieldsToIndex(), allowLenientLuceneProcessing(), luceneThreads);
                     JBrowseLuceneSearch.clearCache(getObjectId());
+                    JBrowseGenotypeService.get().clearCache(targetFile);
                 }
                 else
                 {
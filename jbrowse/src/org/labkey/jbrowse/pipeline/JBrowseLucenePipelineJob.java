@@ -1,8 +1,8 @@
 package org.labkey.jbrowse.pipeline;
 
-import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang3.SystemUtils;
 import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 import org.labkey.api.assay.AssayFileWriter;
 import org.labkey.api.data.Container;
 import org.labkey.api.files.FileUrls;
@@ -17,7 +17,6 @@
 import org.labkey.api.pipeline.TaskPipeline;
 import org.labkey.api.security.User;
 import org.labkey.api.sequenceanalysis.pipeline.SequencePipelineService;
-import org.labkey.api.sequenceanalysis.run.DISCVRSeqRunner;
 import org.labkey.api.util.FileUtil;
 import org.labkey.api.util.GUID;
 import org.labkey.api.util.PageFlowUtil;
@@ -150,66 +149,19 @@ public void setAllowLenientLuceneProcessing(boolean allowLenientLuceneProcessing
 
     public static void prepareLuceneIndex(File vcf, File indexDir, Logger log, List<String> infoFieldsForFullTextSearch, boolean allowLenientLuceneProcessing) throws PipelineJobException
     {
-        log.debug("Generating VCF full text index for file: " + vcf.getName());
-
-        DISCVRSeqRunner runner = new DISCVRSeqRunner(log);
-        if (!runner.jarExists())
-        {
-            log.error("Unable to find DISCVRSeq.jar, skipping lucene index creation");
-            return;
-        }
-
-        if (indexDir.exists())
-        {
-            try
-            {
-                FileUtils.deleteDirectory(indexDir);
-            }
-            catch (IOException e)
-            {
-                throw new PipelineJobException(e);
-            }
-        }
-
-        List<String> args = runner.getBaseArgs("VcfToLuceneIndexer");
-        args.add("-V");
-        args.add(vcf.getPath());
-
-        args.add("-O");
-        args.add(indexDir.getPath());
-
-        if (allowLenientLuceneProcessing)
-        {
-            args.add("--validation-stringency");
-            args.add("LENIENT");
-        }
-
-        infoFieldsForFullTextSearch = infoFieldsForFullTextSearch.stream().sorted().toList();
-        for (String field : infoFieldsForFullTextSearch)
-        {
-            args.add("-IF");
-            args.add(field);
-        }
-
-        args.add("--allow-missing-fields");
-
-        args.add("--index-stats");
-        args.add(getExpectedLocationOfLuceneIndexStats(indexDir).getPath());
-
-        if (allowLenientLuceneProcessing)
-        {
-            args.add("--validation-stringency");
-            args.add("LENIENT");
-        }
+        prepareLuceneIndex(vcf, indexDir, log, infoFieldsForFullTextSearch, allowLenientLuceneProcessing, null);
+    }
 
-        Integer threads = SequencePipelineService.get().getMaxThreads(log);
-        if (threads != null)
-        {
-            args.add("--threads");
-            args.add(threads.toString());
-        }
+    /**
+     * @param threads If provided, the max threads used to build the index. Otherwise the pipeline's max threads are used.
+     */
+    public static void prepareLuceneIndex(File vcf, File indexDir, Logger log, List<String> infoFieldsForFullTextSearch, boolean allowLenientLuceneProcessing, @Nullable Integer threads) throws PipelineJobException
+    {
+        log.debug("Generating VCF full text index for file: " + vcf.getName());
 
-        runner.execute(args);
+        VcfLuceneIndexer indexer = new VcfLuceneIndexer(log, infoFieldsForFullTextSearch.stream().sorted().toList(), allowLenientLuceneProcessing);
+        indexer.setThreads(threads == null ? SequencePipelineService.get().getMaxThreads(log) : threads);
+        indexer.createOrUpdateIndex(vcf, indexDir, getExpectedLocationOfLuceneIndexStats(indexDir));
 
         if (!SystemUtils.IS_OS_WINDOWS)
         {
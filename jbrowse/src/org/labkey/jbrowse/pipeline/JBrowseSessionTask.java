@@ -133,10 +133,12 @@ private void prepareGenome(boolean forceReprocess) throws PipelineJobException
         JBrowseSession session = JBrowseSession.getGenericGenomeSession(getPipelineJob().getLibraryId());
         List<JsonFile> jsonFiles = session.getJsonFiles(getJob().getUser(), true);
         getJob().getLogger().info("total files to reprocess: " + jsonFiles.size());
+        JsonFilePreparer preparer = new JsonFilePreparer(getJob().getUser(), getJob().getLogger());
         for (JsonFile f : jsonFiles)
         {
-            f.prepareResource(getJob().getUser(), getJob().getLogger(), false, forceReprocess);
+            preparer.add(f, forceReprocess);
         }
+        preparer.prepareAll(true);
     }
 
     private void reprocessResources() throws PipelineJobException
@@ -150,10 +152,12 @@ private void reprocessResources() throws PipelineJobException
         TableSelector ts = new TableSelector(ti, new SimpleFilter(FieldKey.fromString("objectid"), getPipelineJob().getJsonFiles(), CompareType.IN), null);
         List<JsonFile> jsonFiles = ts.getArrayList(JsonFile.class);
         getJob().getLogger().info("total files to reprocess: " + jsonFiles.size());
+        JsonFilePreparer preparer = new JsonFilePreparer(getJob().getUser(), getJob().getLogger());
         for (JsonFile f : jsonFiles)
         {
-            f.prepareResource(getJob().getUser(), getJob().getLogger(), false, true);
+            preparer.add(f, true);
         }
+        preparer.prepareAll(true);
     }
 
     private void createOrAddToSession() throws PipelineJobException
@@ -206,6 +210,9 @@ private void createOrAddToSession() throws PipelineJobException
             JBrowseSession session = JBrowseSession.getGenericGenomeSession(db.getLibraryId());
             session.ensureJsonFilesPrepared(getJob().getUser(), getJob().getLogger());
 
+            //NOTE: database records are created as tracks are found, and the tracks are then prepared together
+            JsonFilePreparer preparer = new JsonFilePreparer(getJob().getUser(), getJob().getLogger());
+
             List<Integer> trackIdList = new ArrayList<>();
             if (getPipelineJob().getTrackIds() != null)
                 trackIdList.addAll(getPipelineJob().getTrackIds());
@@ -257,7 +264,7 @@ private void createOrAddToSession() throws PipelineJobException
                     trackRecord = Table.insert(getJob().getUser(), databaseMembers, trackRecord);
                     databaseMemberRecordsCreated.add((Integer)trackRecord.get("rowid"));
 
-                    json.prepareResource(getJob().getUser(), getJob().getLogger(), false, false);
+                    preparer.add(json, false);
                 }
             }
             else
@@ -308,10 +315,11 @@ private void createOrAddToSession() throws PipelineJobException
                     trackRecord = Table.insert(getJob().getUser(), databaseMembers, trackRecord);
                     databaseMemberRecordsCreated.add((Integer) trackRecord.get("rowid"));
 
-                    json.prepareResource(getJob().getUser(), getJob().getLogger(), false, false);
+                    preparer.add(json, false);
                 }
             }
 
+            preparer.prepareAll(true);
             getJob().getLogger().info("Processing resources complete");
             success = true;
         }
@@ -0,0 +1,227 @@
+package org.labkey.jbrowse.pipeline;
+
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import org.labkey.api.pipeline.PipelineJobException;
+import org.labkey.api.security.User;
+import org.labkey.api.sequenceanalysis.pipeline.SequencePipelineService;
+import org.labkey.jbrowse.model.JsonFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Prepares JsonFiles (bgzip, tabix, trix and lucene indexes) on a bounded thread pool. Each JsonFile is prepared under a lock
+ * held for its objectId, so two jobs on this server never process the same track at once.
+ */
+public class JsonFilePreparer
+{
+    //NOTE: entries are reference counted, and removed once no thread holds or waits on them
+    private static final Map<String, TrackLock> _locks = new ConcurrentHashMap<>();
+
+    private final User _user;
+    private final Logger _log;
+    private final Map<String, Item> _items = new LinkedHashMap<>();
+    private int _threads = 1;
+
+    public JsonFilePreparer(User user, Logger log)
+    {
+        _user = user;
+        _log = log;
+
+        Integer maxThreads = SequencePipelineService.get().getMaxThreads(log);
+        if (maxThreads != null)
+        {
+            _threads = Math.max(1, maxThreads);
+        }
+    }
+
+    public void setThreads(int threads)
+    {
+        _threads = Math.max(1, threads);
+    }
+
+    /**
+     * Queues this JsonFile. If it was already added, it is prepared once, reprocessing if either request asked for that.
+     */
+    public void add(JsonFile jsonFile, boolean forceReprocess)
+    {
+        Item existing = _items.get(jsonFile.getObjectId());
+        if (existing == null)
+        {
+            _items.put(jsonFile.getObjectId(), new Item(jsonFile, forceReprocess));
+        }
+        else if (forceReprocess && !existing.forceReprocess)
+        {
+            _items.put(jsonFile.getObjectId(), new Item(existing.jsonFile, true));
+        }
+    }
+
+    /**
+     * Prepares every queued JsonFile.
+     * @param failOnError If true, the first failure stops any tracks that have not started and is thrown once running tracks finish. Otherwise failures are logged and the rest continue.
+     */
+    public void prepareAll(boolean failOnError) throws PipelineJobException
+    {
+        List<Item> items = new ArrayList<>(_items.values());
+        _items.clear();
+        if (items.isEmpty())
+        {
+            return;
+        }
+
+        //NOTE: the thread budget is split between tracks, since each lucene index build is itself multi-threaded
+        int threads = Math.min(_threads, items.size());
+        int threadsPerTrack = Math.max(1, _threads / threads);
+        _log.info("Preparing " + items.size() + " track(s) using " + threads + " thread(s), with " + threadsPerTrack + " thread(s) per track");
+
+        AtomicInteger completed = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        try
+        {
+            for (Item item : items)
+            {
+                futures.add(executor.submit(() -> {
+                    long start = System.currentTimeMillis();
+                    try
+                    {
+                        prepare(item.jsonFile, _user, _log, item.forceReprocess, threadsPerTrack);
+                    }
+                    catch (Exception e)
+                    {
+                        if (failOnError)
+                        {
+                            throw e;
+                        }
+
+                        _log.error("Unable to process JsonFile: " + item.jsonFile.getObjectId(), e);
+                    }
+
+                    _log.info("Finished track " + completed.incrementAndGet() + " of " + items.size() + ": " + item.jsonFile.getLabel() + " (" + ((System.currentTimeMillis() - start) / 1000) + "s)");
+                    return null;
+                }));
+            }
+            executor.shutdown();
+
+            for (Future<?> f : futures)
+            {
+                try
+                {
+                    f.get();
+                }
+                catch (ExecutionException e)
+                {
+                    //NOTE: let tracks in progress finish, since stopping an external tool midway can leave partial files
+                    futures.forEach(x -> x.cancel(false));
+                    awaitTermination(executor);
+
+                    if (e.getCause() instanceof PipelineJobException pje)
+                    {
+                        throw pje;
+                    }
+
+                    throw new PipelineJobException(e.getCause());
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new PipelineJobException(e);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    private void awaitTermination(ExecutorService executor) throws InterruptedException
+    {
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES))
+        {
+            _log.info("Waiting for tracks in progress to finish");
+        }
+    }
+
+    /**
+     * Prepares one JsonFile, waiting if another thread is already preparing it.
+     */
+    public static File prepare(JsonFile jsonFile, User u, Logger log, boolean forceReprocess) throws PipelineJobException
+    {
+        return prepare(jsonFile, u, log, forceReprocess, null);
+    }
+
+    /**
+     * @param threads If provided, the max threads used to build this track's lucene index. Otherwise the pipeline's max threads are used.
+     */
+    public static File prepare(JsonFile jsonFile, User u, Logger log, boolean forceReprocess, @Nullable Integer threads) throws PipelineJobException
+    {
+        String objectId = jsonFile.getObjectId();
+        ReentrantLock lock = _locks.compute(objectId, (x, existing) -> {
+            TrackLock ret = existing == null ? new TrackLock() : existing;
+            ret.users++;
+            return ret;
+        }).lock;
+
+        try
+        {
+            if (!lock.tryLock())
+            {
+                log.info("Waiting for another job to finish preparing track: " + jsonFile.getLabel() + " (" + objectId + ")");
+                try
+                {
+                    lock.lockInterruptibly();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new PipelineJobException(e);
+                }
+            }
+
+            try
+            {
+                log.info("Preparing track: " + jsonFile.getLabel() + " (" + objectId + ")");
+                return jsonFile.prepareResource(u, log, false, forceReprocess, threads);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        finally
+        {
+            _locks.computeIfPresent(objectId, (x, existing) -> --existing.users == 0 ? null : existing);
+        }
+    }
+
+    private static class TrackLock
+    {
+        private final ReentrantLock lock = new ReentrantLock();
+        private int users = 0;
+    }
+
+    private static class Item
+    {
+        private final JsonFile jsonFile;
+        private final boolean forceReprocess;
+
+        public Item(JsonFile jsonFile, boolean forceReprocess)
+        {
+            this.jsonFile = jsonFile;
+            this.forceReprocess = forceReprocess;
+        }
+    }
+}
@@ -0,0 +1,1027 @@
+package org.labkey.jbrowse.pipeline;
+
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import htsjdk.samtools.util.FileExtensions;
+import htsjdk.tribble.TribbleException;
+import htsjdk.tribble.readers.TabixReader;
+import htsjdk.variant.variantcontext.Allele;
+import htsjdk.variant.variantcontext.Genotype;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.variantcontext.VariantContextBuilder;
+import htsjdk.variant.variantcontext.writer.Options;
+import htsjdk.variant.variantcontext.writer.VariantContextWriter;
+import htsjdk.variant.variantcontext.writer.VariantContextWriterBuilder;
+import htsjdk.variant.vcf.VCFCodec;
+import htsjdk.variant.vcf.VCFFileReader;
+import htsjdk.variant.vcf.VCFHeader;
+import htsjdk.variant.vcf.VCFHeaderLineType;
+import htsjdk.variant.vcf.VCFHeaderVersion;
+import org.apache.commons.io.FileUtils;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DoubleDocValuesField;
+import org.apache.lucene.document.DoublePoint;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.IntPoint;
+import org.apache.lucene.document.LongPoint;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.document.SortedSetDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.BytesRef;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assert;
+import org.junit.Test;
+import org.labkey.api.pipeline.PipelineJobException;
+import org.labkey.api.writer.PrintWriters;
+import org.labkey.jbrowse.JBrowseFieldUtils;
+import org.labkey.jbrowse.JBrowseLuceneFacets;
+import org.labkey.jbrowse.JBrowseLuceneSearch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Builds the lucene index used by JBrowseLuceneSearch from a bgzipped, tabix-indexed VCF.
+ * The genome is split into regions using the tabix index, and groups of regions are indexed in parallel, each into its own directory,
+ * which are then combined with addIndexes. Documents are sorted by genomicPosition and segments are only merged with their neighbors,
+ * so index order remains genomic order.
+ * A manifest stores the fields indexed and a checksum of the VCF lines in each region. This allows an existing index to be updated when fields
+ * are dropped or contigs are added, rather than rebuilt. Per-field stats are collected while indexing.
+ */
+public class VcfLuceneIndexer
+{
+    private static final int MANIFEST_VERSION = 2;
+    private static final String MANIFEST_NAME = "indexManifest.json";
+    private static final String SORT_SUFFIX = "_sort";
+    private static final String GENOMIC_POSITION = JBrowseFieldUtils.GENOMIC_POSITION;
+    private static final int REGION_SIZE = 10000000;
+    private static final int MAX_SORT_VALUE_LENGTH = 256;
+
+    //NOTE: doc values terms are limited to 32766 bytes, which this allows for any UTF-8 string
+    private static final int MAX_FACET_VALUE_LENGTH = 8000;
+
+    private final Logger _log;
+    private final List<String> _infoFields;
+    private final boolean _lenient;
+    private int _threads = 1;
+
+    public VcfLuceneIndexer(Logger log, List<String> infoFields, boolean lenient)
+    {
+        _log = log;
+        _infoFields = infoFields;
+        _lenient = lenient;
+    }
+
+    public void setThreads(@Nullable Integer threads)
+    {
+        _threads = threads == null ? 1 : Math.max(1, threads);
+    }
+
+    /**
+     * Creates the index, or brings an existing index created by this class up to date with the VCF and field list.
+     */
+    public void createOrUpdateIndex(File vcf, File indexDir, File statsFile) throws PipelineJobException
+    {
+        File tbi = new File(vcf.getPath() + FileExtensions.TABIX_INDEX);
+        if (!tbi.exists())
+        {
+            throw new PipelineJobException("Unable to find tabix index for: " + vcf.getPath());
+        }
+
+        VCFHeader header;
+        try (VCFFileReader reader = new VCFFileReader(vcf, false))
+        {
+            header = reader.getFileHeader();
+        }
+
+        SAMSequenceDictionary dict = header.getSequenceDictionary();
+        if (dict == null || dict.isEmpty())
+        {
+            throw new PipelineJobException("The VCF header must have contig lines: " + vcf.getPath());
+        }
+
+        Map<String, IndexedField> fields = getFields(header);
+        Map<String, Long> contigOffsets = new LinkedHashMap<>();
+        long offset = 0;
+        for (SAMSequenceRecord rec : dict.getSequences())
+        {
+            contigOffsets.put(rec.getSequenceName(), offset);
+            offset += rec.getSequenceLength();
+        }
+
+        List<Region> regions;
+        try (TabixReader tabix = new TabixReader(vcf.getPath(), tbi.getPath()))
+        {
+            for (String contig : tabix.getChromosomes())
+            {
+                if (dict.getSequence(contig) == null)
+                {
+                    throw new PipelineJobException("Contig is not in the VCF header: " + contig);
+                }
+            }
+
+            regions = getRegions(dict, tabix.getChromosomes());
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+
+        try
+        {
+            Manifest existing = Files.isSymbolicLink(indexDir.toPath()) ? null : Manifest.read(indexDir);
+            if (existing != null && updateIndex(vcf, header, indexDir, statsFile, existing, fields, contigOffsets, regions))
+            {
+                return;
+            }
+
+            buildIndex(vcf, header, indexDir, statsFile, fields, contigOffsets, regions);
+        }
+        catch (IOException e)
+        {
+            throw new PipelineJobException(e);
+        }
+    }
+
+    private boolean updateIndex(File vcf, VCFHeader header, File indexDir, File statsFile, Manifest existing, Map<String, IndexedField> fields, Map<String, Long> contigOffsets, List<Region> regions) throws IOException, PipelineJobException
+    {
+        if (!existing.fields.keySet().containsAll(fields.keySet()))
+        {
+            Set<String> added = new HashSet<>(fields.keySet());
+            added.removeAll(existing.fields.keySet());
+            _log.info("Fields were added, the index will be rebuilt: " + added);
+            return false;
+        }
+
+        for (String contig : existing.contigOffsets.keySet())
+        {
+            if (!existing.contigOffsets.get(contig).equals(contigOffsets.get(contig)))
+            {
+                _log.info("The VCF sequence dictionary changed for contig: " + contig + ", the index will be rebuilt");
+                return false;
+            }
+        }
+
+        if (existing.vcfSize == vcf.length() && existing.vcfLastModified == vcf.lastModified())
+        {
+            _log.info("The existing lucene index is current");
+            return true;
+        }
+
+        List<Region> known = new ArrayList<>();
+        List<Region> added = new ArrayList<>();
+        for (Region r : regions)
+        {
+            (existing.contigOffsets.containsKey(r.contig) ? known : added).add(r);
+        }
+
+        if (known.size() != existing.regions.size())
+        {
+            _log.info("The regions of the VCF do not match the index, the index will be rebuilt");
+            return false;
+        }
+
+        // Confirm the records already indexed are unchanged. This reads the VCF, but does not parse or index it:
+        _log.info("Verifying " + known.size() + " existing regions");
+        processRegions(vcf, header, known, null, existing.fields, contigOffsets);
+        for (int i = 0; i < known.size(); i++)
+        {
+            Region r = known.get(i);
+            Region prior = existing.regions.get(i);
+            if (!r.contig.equals(prior.contig) || r.start != prior.start || r.end != prior.end || r.crc != prior.crc || r.records != prior.records)
+            {
+                _log.info("Records differ from the index in region: " + r.contig + ":" + (r.start + 1) + "-" + r.end + ", the index will be rebuilt");
+                return false;
+            }
+
+            r.stats.putAll(prior.stats);
+        }
+
+        if (!added.isEmpty())
+        {
+            _log.info("Appending " + added.size() + " new regions to the existing index");
+            File workDir = new File(indexDir.getParentFile(), indexDir.getName() + ".parts");
+            FileUtils.deleteDirectory(workDir);
+            try
+            {
+                List<File> parts = processRegions(vcf, header, added, workDir, existing.fields, contigOffsets);
+                try (Directory dir = FSDirectory.open(indexDir.toPath()); IndexWriter writer = new IndexWriter(dir, createConfig(IndexWriterConfig.OpenMode.APPEND)))
+                {
+                    writer.addIndexes(openAll(parts).toArray(new Directory[0]));
+
+                    //NOTE: the new segments are only in genomic order if the new contigs follow the existing ones in the dictionary
+                    if (!isAfter(added, known, contigOffsets))
+                    {
+                        _log.info("Merging segments to restore genomic order");
+                        writer.forceMerge(1);
+                    }
+
+                    writer.commit();
+                }
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(workDir);
+            }
+        }
+
+        List<Region> allRegions = new ArrayList<>(known);
+        allRegions.addAll(added);
+        allRegions.sort((a, b) -> Long.compare(contigOffsets.get(a.contig) + a.start, contigOffsets.get(b.contig) + b.start));
+
+        new Manifest(vcf, existing.fields, contigOffsets, allRegions).write(indexDir);
+        writeStats(statsFile, existing.fields, allRegions);
+
+        return true;
+    }
+
+    private void buildIndex(File vcf, VCFHeader header, File indexDir, File statsFile, Map<String, IndexedField> fields, Map<String, Long> contigOffsets, List<Region> regions) throws IOException, PipelineJobException
+    {
+        _log.info("Building lucene index from " + regions.size() + " regions, using " + _threads + " threads");
+
+        //NOTE: the index is built beside the existing one, so searches can continue until it is replaced
+        File tmpDir = new File(indexDir.getParentFile(), indexDir.getName() + ".tmp");
+        File workDir = new File(indexDir.getParentFile(), indexDir.getName() + ".parts");
+        FileUtils.deleteDirectory(tmpDir);
+        FileUtils.deleteDirectory(workDir);
+        try
+        {
+            List<File> parts = processRegions(vcf, header, regions, workDir, fields, contigOffsets);
+            try (Directory dir = FSDirectory.open(tmpDir.toPath()); IndexWriter writer = new IndexWriter(dir, createConfig(IndexWriterConfig.OpenMode.CREATE)))
+            {
+                writer.addIndexes(openAll(parts).toArray(new Directory[0]));
+                writer.commit();
+            }
+
+            new Manifest(vcf, fields, contigOffsets, regions).write(tmpDir);
+        }
+        finally
+        {
+            FileUtils.deleteDirectory(workDir);
+        }
+
+        if (Files.isSymbolicLink(indexDir.toPath()))
+        {
+            Files.delete(indexDir.toPath());
+        }
+        else if (indexDir.exists())
+        {
+            FileUtils.deleteDirectory(indexDir);
+        }
+        FileUtils.moveDirectory(tmpDir, indexDir);
+
+        writeStats(statsFile, fields, regions);
+    }
+
+    /**
+     * Reads each region, recording the checksum, record count and field stats on the region. If workDir is provided, the records are also indexed.
+     * Consecutive regions are grouped into tasks of roughly REGION_SIZE bases, and each task writes its own index.
+     *
+     * @return The index directory for each task, in genomic order
+     */
+    private List<File> processRegions(File vcf, VCFHeader header, List<Region> regions, @Nullable File workDir, Map<String, IndexedField> fields, Map<String, Long> contigOffsets) throws IOException, PipelineJobException
+    {
+        List<List<Region>> tasks = new ArrayList<>();
+        List<Region> current = new ArrayList<>();
+        long currentSize = 0;
+        for (Region r : regions)
+        {
+            current.add(r);
+            currentSize += r.end - r.start;
+            if (currentSize >= REGION_SIZE)
+            {
+                tasks.add(current);
+                current = new ArrayList<>();
+                currentSize = 0;
+            }
+        }
+
+        if (!current.isEmpty())
+        {
+            tasks.add(current);
+        }
+
+        List<File> parts = new ArrayList<>();
+        List<Future<Void>> futures = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(_threads, Math.max(1, tasks.size())));
+        try
+        {
+            for (int i = 0; i < tasks.size(); i++)
+            {
+                File partDir = workDir == null ? null : new File(workDir, "part" + i);
+                if (partDir != null)
+                {
+                    parts.add(partDir);
+                }
+
+                List<Region> task = tasks.get(i);
+                Callable<Void> c = () -> {
+                    processTask(vcf, header, task, partDir, fields, contigOffsets);
+                    return null;
+                };
+                futures.add(executor.submit(c));
+            }
+
+            long processed = 0;
+            for (int i = 0; i < futures.size(); i++)
+            {
+                futures.get(i).get();
+                processed += tasks.get(i).stream().mapToLong(r -> r.records).sum();
+                if (i % 10 == 9 || i == futures.size() - 1)
+                {
+                    _log.info("Processed " + (i + 1) + " of " + futures.size() + " region groups, " + processed + " records");
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new PipelineJobException(e);
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException ioe)
+            {
+                throw ioe;
+            }
+            else if (e.getCause() instanceof PipelineJobException pje)
+            {
+                throw pje;
+            }
+
+            throw new PipelineJobException(e.getCause());
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        return parts;
+    }
+
+    private void processTask(File vcf, VCFHeader header, List<Region> regions, @Nullable File partDir, Map<String, IndexedField> fields, Map<String, Long> contigOffsets) throws IOException, PipelineJobException
+    {
+        VCFCodec codec = new VCFCodec();
+        codec.setVCFHeader(header, header.getVCFHeaderVersion() == null ? VCFHeaderVersion.VCF4_2 : header.getVCFHeaderVersion());
+
+        try (TabixReader tabix = new TabixReader(vcf.getPath(), vcf.getPath() + FileExtensions.TABIX_INDEX); Directory dir = partDir == null ? null : FSDirectory.open(partDir.toPath()); IndexWriter writer = dir == null ? null : new IndexWriter(dir, createConfig(IndexWriterConfig.OpenMode.CREATE)))
+        {
+            for (Region r : regions)
+            {
+                CRC32 crc = new CRC32();
+                TabixReader.Iterator it = tabix.query(tabix.chr2tid(r.contig), r.start, r.end);
+                String line;
+                while ((line = it.next()) != null)
+                {
+                    //NOTE: records overlapping the region but starting before it belong to the prior region
+                    int pos0 = getPosition(line) - 1;
+                    if (pos0 < r.start || pos0 >= r.end)
+                    {
+                        continue;
+                    }
+
+                    crc.update(line.getBytes(StandardCharsets.UTF_8));
+                    r.records++;
+
+                    if (writer != null)
+                    {
+                        VariantContext vc;
+                        try
+                        {
+                            vc = codec.decode(line);
+                        }
+                        catch (TribbleException e)
+                        {
+                            if (!_lenient)
+                            {
+                                throw new PipelineJobException("Unable to parse VCF line at " + r.contig + ":" + (pos0 + 1) + ", " + e.getMessage(), e);
+                            }
+
+                            _log.warn("Skipping invalid VCF line at " + r.contig + ":" + (pos0 + 1) + ", " + e.getMessage());
+                            continue;
+                        }
+
+                        writer.addDocument(createDocument(vc, contigOffsets.get(r.contig), fields, r.stats));
+                    }
+                }
+
+                r.crc = crc.getValue();
+            }
+
+            if (writer != null)
+            {
+                writer.commit();
+            }
+        }
+    }
+
+    private static IndexWriterConfig createConfig(IndexWriterConfig.OpenMode mode)
+    {
+        IndexWriterConfig config = new IndexWriterConfig(new StandardAnalyzer());
+        config.setOpenMode(mode);
+        config.setRAMBufferSizeMB(128);
+
+        //NOTE: JBrowseLuceneSearch uses index order for genomicPosition sorting. LogDocMergePolicy only merges adjacent segments, which keeps that order.
+        config.setIndexSort(new Sort(new SortField(GENOMIC_POSITION + SORT_SUFFIX, SortField.Type.LONG)));
+        config.setMergePolicy(new LogDocMergePolicy());
+
+        return config;
+    }
+
+    private static List<Directory> openAll(List<File> dirs) throws IOException
+    {
+        List<Directory> ret = new ArrayList<>();
+        for (File f : dirs)
+        {
+            ret.add(FSDirectory.open(f.toPath()));
+        }
+
+        return ret;
+    }
+
+    private static boolean isAfter(List<Region> added, List<Region> existing, Map<String, Long> contigOffsets)
+    {
+        if (existing.isEmpty())
+        {
+            return true;
+        }
+
+        long lastExisting = existing.stream().mapToLong(r -> contigOffsets.get(r.contig)).max().getAsLong();
+        long firstAdded = added.stream().mapToLong(r -> contigOffsets.get(r.contig)).min().getAsLong();
+
+        return firstAdded > lastExisting;
+    }
+
+    private static int getPosition(String line)
+    {
+        int tab = line.indexOf('\t');
+        int end = line.indexOf('\t', tab + 1);
+
+        return Integer.parseInt(line.substring(tab + 1, end == -1 ? line.length() : end));
+    }
+
+    /**
+     * @return Regions of at most REGION_SIZE bases, covering each contig present in the tabix index, in dictionary order. Coordinates are zero-based, half-open.
+     */
+    private static List<Region> getRegions(SAMSequenceDictionary dict, Set<String> indexedContigs)
+    {
+        List<Region> ret = new ArrayList<>();
+        for (SAMSequenceRecord rec : dict.getSequences())
+        {
+            if (!indexedContigs.contains(rec.getSequenceName()))
+            {
+                continue;
+            }
+
+            for (int start = 0; start < rec.getSequenceLength(); start += REGION_SIZE)
+            {
+                ret.add(new Region(rec.getSequenceName(), start, (int)Math.min((long)start + REGION_SIZE, rec.getSequenceLength())));
+            }
+        }
+
+        return ret;
+    }
+
+    private Map<String, IndexedField> getFields(VCFHeader header)
+    {
+        Map<String, IndexedField> ret = new LinkedHashMap<>();
+        for (String fn : _infoFields)
+        {
+            if (!header.hasInfoLine(fn))
+            {
+                _log.warn("Field requested for indexing, but was not present in the VCF header: " + fn);
+                continue;
+            }
+
+            ret.put(fn, new IndexedField(fn, header.getInfoHeaderLine(fn).getType()));
+        }
+
+        return ret;
+    }
+
+    private Document createDocument(VariantContext vc, long contigOffset, Map<String, IndexedField> fields, Map<String, FieldStats> stats)
+    {
+        Document doc = new Document();
+        addStrings(doc, "contig", List.of(vc.getContig()), stats);
+        addInts(doc, "start", List.of(vc.getStart()), stats);
+        addInts(doc, "end", List.of(vc.getEnd()), stats);
+        addStrings(doc, "ref", List.of(vc.getReference().getDisplayString()), stats);
+        addStrings(doc, "alt", vc.getAlternateAlleles().stream().map(Allele::getDisplayString).toList(), stats);
+
+        long genomicPosition = contigOffset + vc.getStart();
+        doc.add(new LongPoint(GENOMIC_POSITION, genomicPosition));
+        doc.add(new StoredField(GENOMIC_POSITION, String.valueOf(genomicPosition)));
+        doc.add(new NumericDocValuesField(GENOMIC_POSITION + SORT_SUFFIX, genomicPosition));
+
+        for (IndexedField field : fields.values())
+        {
+            if (field.type == VCFHeaderLineType.Flag)
+            {
+                if (vc.hasAttribute(field.name))
+                {
+                    addStrings(doc, field.name, List.of("true"), stats);
+                }
+
+                continue;
+            }
+
+            List<String> values = vc.getAttributeAsStringList(field.name, null).stream().filter(v -> v != null && !v.isEmpty() && !".".equals(v)).toList();
+            switch (field.type)
+            {
+                case Integer -> addInts(doc, field.name, parse(values, field.name, vc, Integer::parseInt), stats);
+                case Float -> addDoubles(doc, field.name, parse(values, field.name, vc, Double::parseDouble), stats);
+                default -> addStrings(doc, field.name, values, stats);
+            }
+        }
+
+        if (vc.hasGenotypes())
+        {
+            List<String> variableSamples = new ArrayList<>();
+            List<String> homozygousVarSamples = new ArrayList<>();
+            int nHet = 0;
+            int nHomVar = 0;
+            int nCalled = 0;
+            for (Genotype g : vc.getGenotypes())
+            {
+                if (g.isCalled())
+                {
+                    nCalled++;
+                }
+
+                if (g.isHet())
+                {
+                    nHet++;
+                    variableSamples.add(g.getSampleName());
+                }
+                else if (g.isHomVar())
+                {
+                    nHomVar++;
+                    variableSamples.add(g.getSampleName());
+                    homozygousVarSamples.add(g.getSampleName());
+                }
+            }
+
+            addStrings(doc, JBrowseFieldUtils.VARIABLE_SAMPLES, variableSamples, stats);
+            addStrings(doc, JBrowseFieldUtils.HOMOZYGOUS_VAR, homozygousVarSamples, stats);
+            addInts(doc, JBrowseFieldUtils.N_HET, List.of(nHet), stats);
+            addInts(doc, JBrowseFieldUtils.N_HOMVAR, List.of(nHomVar), stats);
+            addInts(doc, JBrowseFieldUtils.N_CALLED, List.of(nCalled), stats);
+            if (nHet + nHomVar > 0)
+            {
+                addDoubles(doc, JBrowseFieldUtils.FRACTION_HET, List.of((double)nHet / (nHet + nHomVar)), stats);
+            }
+        }
+
+        return doc;
+    }
+
+    private interface ValueParser<T>
+    {
+        T parse(String value);
+    }
+
+    private <T> List<T> parse(List<String> values, String fieldName, VariantContext vc, ValueParser<T> parser)
+    {
+        List<T> ret = new ArrayList<>(values.size());
+        for (String v : values)
+        {
+            try
+            {
+                ret.add(parser.parse(v));
+            }
+            catch (NumberFormatException e)
+            {
+                if (!_lenient)
+                {
+                    throw new IllegalArgumentException("Invalid value for " + fieldName + " at " + vc.getContig() + ":" + vc.getStart() + ": " + v);
+                }
+            }
+        }
+
+        return ret;
+    }
+
+    // NOTE: values are stored as strings, since JBrowseLuceneSearch returns stored values using Document.getValues()
+    private static void addStrings(Document doc, String name, List<String> values, Map<String, FieldStats> stats)
+    {
+        if (values.isEmpty())
+        {
+            return;
+        }
+
+        for (String v : values)
+        {
+            doc.add(new TextField(name, v, Field.Store.YES));
+        }
+
+        // Sorting uses the first value, while facets count every distinct value
+        for (String v : new LinkedHashSet<>(values))
+        {
+            doc.add(new SortedSetDocValuesField(name + JBrowseLuceneFacets.FACET_SUFFIX, new BytesRef(v.length() > MAX_FACET_VALUE_LENGTH ? v.substring(0, MAX_FACET_VALUE_LENGTH) : v)));
+        }
+
+        String sortValue = values.get(0);
+        doc.add(new SortedDocValuesField(name + SORT_SUFFIX, new BytesRef(sortValue.length() > MAX_SORT_VALUE_LENGTH ? sortValue.substring(0, MAX_SORT_VALUE_LENGTH) : sortValue)));
+        stats.computeIfAbsent(name, k -> new FieldStats()).count++;
+    }
+
+    private static void addInts(Document doc, String name, List<Integer> values, Map<String, FieldStats> stats)
+    {
+        if (values.isEmpty())
+        {
+            return;
+        }
+
+        FieldStats fs = stats.computeIfAbsent(name, k -> new FieldStats());
+        for (int v : values)
+        {
+            doc.add(new IntPoint(name, v));
+            doc.add(new StoredField(name, String.valueOf(v)));
+            doc.add(new SortedNumericDocValuesField(name + JBrowseLuceneFacets.FACET_SUFFIX, v));
+            fs.add(v);
+        }
+
+        doc.add(new NumericDocValuesField(name + SORT_SUFFIX, values.get(0)));
+        fs.count++;
+    }
+
+    private static void addDoubles(Document doc, String name, List<Double> values, Map<String, FieldStats> stats)
+    {
+        if (values.isEmpty())
+        {
+            return;
+        }
+
+        FieldStats fs = stats.computeIfAbsent(name, k -> new FieldStats());
+        for (double v : values)
+        {
+            doc.add(new DoublePoint(name, v));
+            doc.add(new StoredField(name, String.valueOf(v)));
+
+            //NOTE: this uses the same encoding as DoubleDocValuesField, which JBrowseLuceneFacets expects
+            doc.add(new SortedNumericDocValuesField(name + JBrowseLuceneFacets.FACET_SUFFIX, Double.doubleToRawLongBits(v)));
+            fs.add(v);
+        }
+
+        doc.add(new DoubleDocValuesField(name + SORT_SUFFIX, values.get(0)));
+        fs.count++;
+    }
+
+    private static void writeStats(File statsFile, Map<String, IndexedField> fields, List<Region> regions) throws IOException
+    {
+        Map<String, FieldStats> totals = new LinkedHashMap<>();
+        long records = 0;
+        for (Region r : regions)
+        {
+            records += r.records;
+            r.stats.forEach((name, fs) -> totals.computeIfAbsent(name, k -> new FieldStats()).merge(fs));
+        }
+
+        try (PrintWriter writer = PrintWriters.getPrintWriter(statsFile))
+        {
+            writer.println("TotalRecords\t" + records);
+            writer.println("Field\tType\tRecordsWithValue\tMin\tMax");
+            for (Map.Entry<String, FieldStats> e : totals.entrySet())
+            {
+                FieldStats fs = e.getValue();
+                String type = fields.containsKey(e.getKey()) ? fields.get(e.getKey()).type.name() : "";
+                writer.println(e.getKey() + "\t" + type + "\t" + fs.count + "\t" + (fs.hasRange() ? fs.min : "") + "\t" + (fs.hasRange() ? fs.max : ""));
+            }
+        }
+    }
+
+    private static class IndexedField
+    {
+        private final String name;
+        private final VCFHeaderLineType type;
+
+        public IndexedField(String name, VCFHeaderLineType type)
+        {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    private static class FieldStats
+    {
+        private long count = 0;
+        private double min = Double.POSITIVE_INFINITY;
+        private double max = Double.NEGATIVE_INFINITY;
+
+        public void add(double value)
+        {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        public void merge(FieldStats other)
+        {
+            count += other.count;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+
+        public boolean hasRange()
+        {
+            return min <= max;
+        }
+
+        public JSONObject toJSON()
+        {
+            JSONObject json = new JSONObject();
+            json.put("count", count);
+            if (hasRange())
+            {
+                json.put("min", min);
+                json.put("max", max);
+            }
+
+            return json;
+        }
+
+        public static FieldStats fromJSON(JSONObject json)
+        {
+            FieldStats fs = new FieldStats();
+            fs.count = json.getLong("count");
+            if (json.has("min"))
+            {
+                fs.min = json.getDouble("min");
+                fs.max = json.getDouble("max");
+            }
+
+            return fs;
+        }
+    }
+
+    private static class Region
+    {
+        private final String contig;
+        private final int start;
+        private final int end;
+        private long crc = 0;
+        private long records = 0;
+        private final Map<String, FieldStats> stats = new HashMap<>();
+
+        public Region(String contig, int start, int end)
+        {
+            this.contig = contig;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    private static class Manifest
+    {
+        private final long vcfSize;
+        private final long vcfLastModified;
+        private final Map<String, IndexedField> fields;
+        private final Map<String, Long> contigOffsets;
+        private final List<Region> regions;
+
+        private Manifest(long vcfSize, long vcfLastModified, Map<String, IndexedField> fields, Map<String, Long> contigOffsets, List<Region> regions)
+        {
+            this.vcfSize = vcfSize;
+            this.vcfLastModified = vcfLastModified;
+            this.fields = fields;
+            this.contigOffsets = contigOffsets;
+            this.regions = regions;
+        }
+
+        public Manifest(File vcf, Map<String, IndexedField> fields, Map<String, Long> contigOffsets, List<Region> regions)
+        {
+            this(vcf.length(), vcf.lastModified(), fields, contigOffsets, regions);
+        }
+
+        /**
+         * @return The manifest, or null if the index was not created by this class or predates the current manifest version
+         */
+        public static @Nullable Manifest read(File indexDir) throws IOException
+        {
+            File f = new File(indexDir, MANIFEST_NAME);
+            if (!f.exists())
+            {
+                return null;
+            }
+
+            JSONObject json = new JSONObject(Files.readString(f.toPath()));
+            if (json.optInt("version") != MANIFEST_VERSION)
+            {
+                return null;
+            }
+
+            Map<String, IndexedField> fields = new LinkedHashMap<>();
+            JSONObject fieldJson = json.getJSONObject("fields");
+            for (String name : fieldJson.keySet())
+            {
+                fields.put(name, new IndexedField(name, VCFHeaderLineType.valueOf(fieldJson.getString(name))));
+            }
+
+            //NOTE: only contigs that have regions are in the index
+            Map<String, Long> contigOffsets = new HashMap<>();
+            List<Region> regions = new ArrayList<>();
+            JSONObject offsetJson = json.getJSONObject("contigOffsets");
+            JSONArray regionJson = json.getJSONArray("regions");
+            for (int i = 0; i < regionJson.length(); i++)
+            {
+                JSONObject o = regionJson.getJSONObject(i);
+                Region r = new Region(o.getString("contig"), o.getInt("start"), o.getInt("end"));
+                r.crc = o.getLong("crc");
+                r.records = o.getLong("records");
+                JSONObject statsJson = o.getJSONObject("stats");
+                for (String name : statsJson.keySet())
+                {
+                    r.stats.put(name, FieldStats.fromJSON(statsJson.getJSONObject(name)));
+                }
+
+                regions.add(r);
+                contigOffsets.put(r.contig, offsetJson.getLong(r.contig));
+            }
+
+            return new Manifest(json.getLong("vcfSize"), json.getLong("vcfLastModified"), fields, contigOffsets, regions);
+        }
+
+        public void write(File indexDir) throws IOException
+        {
+            JSONObject json = new JSONObject();
+            json.put("version", MANIFEST_VERSION);
+            json.put("vcfSize", vcfSize);
+            json.put("vcfLastModified", vcfLastModified);
+
+            JSONObject fieldJson = new JSONObject();
+            fields.values().forEach(f -> fieldJson.put(f.name, f.type.name()));
+            json.put("fields", fieldJson);
+
+            JSONObject offsetJson = new JSONObject();
+            JSONArray regionJson = new JSONArray();
+            for (Region r : regions)
+            {
+                offsetJson.put(r.contig, contigOffsets.get(r.contig));
+
+                JSONObject o = new JSONObject();
+                o.put("contig", r.contig);
+                o.put("start", r.start);
+                o.put("end", r.end);
+                o.put("crc", r.crc);
+                o.put("records", r.records);
+
+                JSONObject statsJson = new JSONObject();
+                r.stats.forEach((name, fs) -> statsJson.put(name, fs.toJSON()));
+                o.put("stats", statsJson);
+                regionJson.put(o);
+            }
+            json.put("contigOffsets", offsetJson);
+            json.put("regions", regionJson);
+
+            Files.writeString(new File(indexDir, MANIFEST_NAME).toPath(), json.toString());
+        }
+    }
+
+    public static class TestCase extends Assert
+    {
+        private static final Logger _log = LogManager.getLogger(VcfLuceneIndexer.TestCase.class);
+
+        @Test
+        public void testAppendAndQueryPositions() throws Exception
+        {
+            File dir = Files.createTempDirectory("vcfLuceneIndexer").toFile();
+            try
+            {
+                SAMSequenceDictionary dict = new SAMSequenceDictionary(List.of(new SAMSequenceRecord("chr1", 1000), new SAMSequenceRecord("chr2", 1000)));
+                File vcf = new File(dir, "test.vcf.gz");
+                File indexDir = new File(dir, "lucene");
+                File statsFile = new File(dir, "stats.txt");
+
+                VcfLuceneIndexer indexer = new VcfLuceneIndexer(_log, Collections.emptyList(), false);
+                indexer.setThreads(2);
+
+                writeVcf(vcf, dict, List.of(createVariant("chr1", 100, "G"), createVariant("chr1", 200, "G")));
+                indexer.createOrUpdateIndex(vcf, indexDir, statsFile);
+                assertEquals("Incorrect record count", 2, countHits(indexDir, "genomicPosition:[1 TO 2000]"));
+
+                // Add records on the second contig, which should be appended to the existing index:
+                writeVcf(vcf, dict, List.of(createVariant("chr1", 100, "G"), createVariant("chr1", 200, "G"), createVariant("chr2", 50, "G", "T")));
+                indexer.createOrUpdateIndex(vcf, indexDir, statsFile);
+
+                Manifest manifest = Manifest.read(indexDir);
+                assertNotNull("Manifest not written", manifest);
+                assertEquals("Incorrect regions", 2, manifest.regions.size());
+                assertEquals("Incorrect offset", Long.valueOf(1000), manifest.contigOffsets.get("chr2"));
+
+                assertEquals("Incorrect record count", 3, countHits(indexDir, "genomicPosition:[1 TO 2000]"));
+                assertEquals("Incorrect records on chr1", 2, countHits(indexDir, "genomicPosition:[1 TO 1000]"));
+                assertEquals("Incorrect records on chr2", 1, countHits(indexDir, "genomicPosition:[1001 TO 2000]"));
+                assertEquals("Incorrect record count", 1, countHits(indexDir, "genomicPosition:[150 TO 1049]"));
+
+                // Facets should count every value of a multi-valued field:
+                try (Directory d = FSDirectory.open(indexDir.toPath()); DirectoryReader reader = DirectoryReader.open(d))
+                {
+                    JSONObject facet = new JBrowseLuceneFacets(Map.of("alt", SortField.Type.STRING), 10, 10).compute(new IndexSearcher(reader), new MatchAllDocsQuery()).getJSONArray("facets").getJSONObject(0);
+                    assertEquals("Incorrect distinct values", 2, facet.getInt("distinctValues"));
+                    assertEquals("Incorrect total count", 4, facet.getLong("totalCount"));
+                    assertEquals("Incorrect missing count", 0, facet.getLong("missingCount"));
+                }
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(dir);
+            }
+        }
+
+        @Test
+        public void testQueryIntPointPositions() throws Exception
+        {
+            // Indexes built before genomicPosition was indexed as a long store it as an IntPoint, and must still be queried as ints
+            File indexDir = Files.createTempDirectory("vcfLuceneIndexerInt").toFile();
+            try
+            {
+                try (Directory d = FSDirectory.open(indexDir.toPath()); IndexWriter writer = new IndexWriter(d, new IndexWriterConfig(new StandardAnalyzer())))
+                {
+                    for (int pos : new int[]{100, 200, 1050})
+                    {
+                        Document doc = new Document();
+                        doc.add(new IntPoint(JBrowseFieldUtils.GENOMIC_POSITION, pos));
+                        writer.addDocument(doc);
+                    }
+                }
+
+                assertEquals("Incorrect record count", 3, countHits(indexDir, "genomicPosition:[1 TO 2000]"));
+                assertEquals("Incorrect record count", 1, countHits(indexDir, "genomicPosition:[150 TO 1049]"));
+            }
+            finally
+            {
+                FileUtils.deleteDirectory(indexDir);
+            }
+        }
+
+        private VariantContext createVariant(String contig, int pos, String... alts)
+        {
+            List<Allele> alleles = new ArrayList<>();
+            alleles.add(Allele.create("A", true));
+            for (String alt : alts)
+            {
+                alleles.add(Allele.create(alt));
+            }
+
+            return new VariantContextBuilder("test", contig, pos, pos, alleles).make();
+        }
+
+        private void writeVcf(File vcf, SAMSequenceDictionary dict, List<VariantContext> variants)
+        {
+            VCFHeader header = new VCFHeader();
+            header.setSequenceDictionary(dict);
+
+            try (VariantContextWriter writer = new VariantContextWriterBuilder().setOutputFile(vcf).setReferenceDictionary(dict).setOption(Options.INDEX_ON_THE_FLY).build())
+            {
+                writer.writeHeader(header);
+                variants.forEach(writer::add);
+            }
+        }
+
+        private int countHits(File indexDir, String queryString) throws Exception
+        {
+            //NOTE: this parses the query the same way as JBrowseLuceneSearch, so the point types must match those indexed
+            try (Directory d = FSDirectory.open(indexDir.toPath()); DirectoryReader reader = DirectoryReader.open(d))
+            {
+                Query query = JBrowseLuceneSearch.SearchContext.create(JBrowseFieldUtils.DEFAULT_FIELDS, reader).createNumericQueryParser().parse(queryString, "");
+                return new IndexSearcher(reader).count(query);
+            }
+        }
+    }
+}